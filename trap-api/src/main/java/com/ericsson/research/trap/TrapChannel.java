@@ -210,4 +210,62 @@ public interface TrapChannel
      */
     public abstract int getPriority();
     
+    /**
+     * Sets the channel weight, used by the {@link TrapEndpoint#WEIGHTED_SCHEDULER}. The weight is the number of bytes
+     * the channel may send in each scheduling round, so that channels share the link in proportion to their weights.
+     * A message larger than the weight is sent once the channel has saved up enough rounds. The default weight is the
+     * default chunk size.
+     * <p>
+     * The weight is ignored by the {@link TrapEndpoint#PRIORITY_SCHEDULER}.
+     * 
+     * @param bytes
+     *            The number of bytes per round. Must be positive.
+     * @return The TrapChannel, for chaining.
+     * @throws IllegalArgumentException
+     *             If <i>bytes</i> is zero or negative.
+     */
+    public abstract TrapChannel setWeight(int bytes);
+    
+    /**
+     * Accessor for the channel weight.
+     * 
+     * @return The number of bytes the channel may send per scheduling round.
+     */
+    public abstract int getWeight();
+    
+    /**
+     * Marks the channel as latency sensitive. With the {@link TrapEndpoint#WEIGHTED_SCHEDULER}, latency sensitive
+     * channels pre-empt all other channels whenever they have messages to send, in order of priority. They should
+     * therefore only carry small amounts of traffic. Channel ID 0 is latency sensitive by default.
+     * 
+     * @param latencySensitive
+     *            <i>true</i> to let this channel pre-empt weighted channels, <i>false</i> otherwise.
+     * @return The TrapChannel, for chaining.
+     */
+    public abstract TrapChannel setLatencySensitive(boolean latencySensitive);
+    
+    /**
+     * Queries whether this channel is latency sensitive.
+     * 
+     * @return <i>true</i> if the channel pre-empts weighted channels.
+     */
+    public abstract boolean isLatencySensitive();
+    
+    /**
+     * Accessor for how long the channel has currently had messages waiting without being allowed to send any. This
+     * includes time spent waiting for the in-flight window as well as for other channels.
+     * 
+     * @return The current wait, in milliseconds, or 0 if the channel has nothing to send.
+     */
+    public abstract long getSchedulingDelay();
+    
+    /**
+     * Accessor for the longest time the channel has had messages waiting without being allowed to send any. A channel
+     * being starved by other traffic will show a growing maximum delay.
+     * 
+     * @return The longest observed wait, in milliseconds.
+     * @see #getSchedulingDelay()
+     */
+    public abstract long getMaxSchedulingDelay();
+    
 }
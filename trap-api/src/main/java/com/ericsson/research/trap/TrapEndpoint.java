@@ -180,6 +180,69 @@ public interface TrapEndpoint extends TrapSettings
      */
     public static final String OPTION_ENABLE_COMPRESSION = "trap.enablecompression";
     
+    /**
+     * Configuration parameter for the zlib compression level of compressed messages, in the range [-1,9]. 1 is the
+     * fastest and 9 gives the best compression. The default, -1, selects the zlib default level.
+     */
+    public static final String OPTION_COMPRESSION_LEVEL  = "trap.compressionlevel";
+    
+    /**
+     * Configuration parameter for the minimum payload size, in bytes, for a message to be compressed. Smaller messages
+     * are sent uncompressed even if compression was requested, as compressing them rarely saves space.
+     */
+    public static final String OPTION_COMPRESS_THRESHOLD = "trap.compressionthreshold";
+    
+    /**
+     * Configuration parameter for the maximum number of bytes the endpoint sends in one batch. Messages are handed to
+     * the transport back to back, and the transport is flushed once this limit or {@link #OPTION_BATCH_MAX_COUNT} is
+     * reached, or when there is nothing more to send. Transports that coalesce writes also use this as their write
+     * buffer size. Set to 0 or less to flush only when the queue has been drained.
+     */
+    public static final String OPTION_BATCH_MAX_BYTES    = "trap.sendbatch.maxbytes";
+    
+    /**
+     * Configuration parameter for the maximum number of messages the endpoint sends in one batch before flushing the
+     * transport. Set to 0 or less to flush only when the queue has been drained.
+     * 
+     * @see #OPTION_BATCH_MAX_BYTES
+     */
+    public static final String OPTION_BATCH_MAX_COUNT    = "trap.sendbatch.maxmessages";
+    
+    /**
+     * Configuration parameter for the largest serialized message, in bytes, that a transport accepts from the remote
+     * side. A message whose header announces a larger size terminates the transport before any of its body is
+     * buffered. Chunked messages are limited per chunk. The default is 16 MiB.
+     */
+    public static final String OPTION_MAX_MESSAGE_SIZE   = "trap.maxmessagesize";
+    
+    /**
+     * Configuration parameter selecting how the endpoint schedules messages between its channels. Set to
+     * {@link #PRIORITY_SCHEDULER} or {@link #WEIGHTED_SCHEDULER}. The default is {@link #PRIORITY_SCHEDULER}.
+     */
+    public static final String OPTION_SCHEDULER          = "trap.scheduler";
+    
+    /**
+     * When supplied to {@link #OPTION_SCHEDULER}, channels are served in strict priority order. Channels with the same
+     * priority take turns, each sending up to its priority in bytes. See {@link TrapChannel#setPriority(int)}.
+     */
+    public static final String PRIORITY_SCHEDULER        = "PRIORITY_SCHEDULER";
+    
+    /**
+     * When supplied to {@link #OPTION_SCHEDULER}, channels share the link in proportion to their weights using deficit
+     * round robin, regardless of priority. Latency sensitive channels are always served first. See
+     * {@link TrapChannel#setWeight(int)} and {@link TrapChannel#setLatencySensitive(boolean)}.
+     */
+    public static final String WEIGHTED_SCHEDULER        = "WEIGHTED_SCHEDULER";
+    
+    /**
+     * Configuration parameter that pins the endpoint to one of a fixed set of event loop threads, one per processor.
+     * Channel reassembly, delegate dispatch and the send loop then run on that thread, rather than being handed to
+     * the cached thread pool for every batch. This saves context switches and keeps the endpoint's state in one
+     * processor's cache, but a delegate that blocks will stall every endpoint sharing its loop. Set on a listener to
+     * apply to all the endpoints it accepts. Defaults to <i>false</i>.
+     */
+    public static final String OPTION_EVENT_LOOP         = "trap.eventloop";
+    
     /**
      * Hostname for automatic configuration. This option is used by the client to format its Open message, and for the
      * server to ensure the client has the correct transports configured
@@ -76,6 +76,36 @@ public final class TrapConstants
      */
     public static final boolean COMPRESSION_ENABLED_DEFAULT;
     
+    /**
+     * The default minimum payload size, in bytes, for compression to be applied.
+     */
+    public static final int     COMPRESSION_THRESHOLD_DEFAULT;
+    
+    /**
+     * The default maximum number of bytes sent in one batch before the transport is flushed.
+     */
+    public static final int     BATCH_MAX_BYTES_DEFAULT;
+    
+    /**
+     * The default maximum number of messages sent in one batch before the transport is flushed.
+     */
+    public static final int     BATCH_MAX_COUNT_DEFAULT;
+    
+    /**
+     * The default scheduler for sending messages between channels.
+     */
+    public static final String  ENDPOINT_SCHEDULER_DEFAULT;
+    
+    /**
+     * The default channel weight, in bytes per scheduling round.
+     */
+    public static final int     CHANNEL_WEIGHT_DEFAULT;
+    
+    /**
+     * Whether endpoints are pinned to an event loop by default.
+     */
+    public static final boolean ENDPOINT_EVENT_LOOP_DEFAULT;
+    
     /**
      * The endpoint ID (alternatively named trapId) of the endpoint
      */
@@ -99,6 +129,12 @@ public final class TrapConstants
         TRANSPORT_ENABLED_DEFAULT = true;
         CONNECTION_TOKEN = "trap.connection-token";
         COMPRESSION_ENABLED_DEFAULT = true;
+        COMPRESSION_THRESHOLD_DEFAULT = 64;
+        BATCH_MAX_BYTES_DEFAULT = 64 * 1024;
+        BATCH_MAX_COUNT_DEFAULT = 1024;
+        ENDPOINT_SCHEDULER_DEFAULT = TrapEndpoint.PRIORITY_SCHEDULER;
+        CHANNEL_WEIGHT_DEFAULT = DEFAULT_CHUNK_SIZE;
+        ENDPOINT_EVENT_LOOP_DEFAULT = false;
     }
     
     TrapConstants()
@@ -37,6 +37,7 @@ package com.ericsson.research.trap.spi;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 
 import com.ericsson.research.trap.TrapChannel;
 
@@ -363,7 +364,37 @@ public interface TrapMessage
      *             If serialization fails.
      */
     public abstract byte[] serialize() throws IOException;
-    
+
+    /**
+     * Serializes this TrapMessage into the supplied buffer, starting at its current position. Exactly
+     * {@link #length()} bytes are written, in the same format as {@link #serialize()}. This allows transports to encode
+     * directly into their own (e.g. direct or pooled) buffers, without an intermediate byte array.
+     *
+     * @param buf
+     *            The buffer to write to. Must have at least {@link #length()} bytes remaining.
+     * @throws java.nio.BufferOverflowException
+     *             If the buffer does not have enough room for the message. Nothing is written in this case.
+     * @throws IOException
+     *             If serialization fails.
+     * @since 1.4.3
+     */
+    public abstract void serializeTo(ByteBuffer buf) throws IOException;
+
+    /**
+     * Serializes this TrapMessage into a sequence of buffers suitable for a gathering write. The first buffer contains
+     * the message header and authentication data; the second wraps the (compressed, if enabled) payload without
+     * copying it. Writing the buffers in order yields the same bytes as {@link #serialize()}.
+     * <p>
+     * The payload buffer shares its contents with the message, so neither the buffers nor the message data may be
+     * modified until the buffers have been written.
+     *
+     * @return The buffers to write, each positioned at zero and ready for reading.
+     * @throws IOException
+     *             If serialization fails.
+     * @since 1.4.3
+     */
+    public abstract ByteBuffer[] serializeBuffers() throws IOException;
+
     /**
      * Attempts to deserialize a TrapMessage.
      * 
@@ -465,7 +496,8 @@ public interface TrapMessage
      * The length in bytes of this message, as it would appear when serialized using the current settings. There is no
      * guarantee this will be the number of bytes sent on the wire, but it is an estimate (if nothing else changes).
      * <p>
-     * This method performs an estimate computation, so may be off in case of compressible encodings.
+     * This method performs an estimate computation, so may be off in case of compressible encodings. Implementations
+     * may cache the value until the message is modified.
      * 
      * @return The serialized length, in bytes
      */
@@ -518,7 +550,8 @@ public interface TrapMessage
     public abstract int getChannel();
     
     /**
-     * Retrieves the compressed data, if compression is enabled. Else returns the message data.
+     * Retrieves the compressed data, if compression is enabled. Else returns the message data. The compressed data is
+     * computed at most once, unless the message data or compression setting changes.
      * 
      * @return The message data, compressed if enabled.
      * @since 1.1
@@ -66,6 +66,11 @@ public class TrapTransportPriority
     public static final int WEBSOCKET_ERNIO = WEBSOCKET + 10;
     public static final int WEBSOCKET_NETTY = WEBSOCKET_ERNIO + 10;
     
+    /**
+     * HTTP/2 transport. A session is one bidirectional stream, so it ranks just after WebSocket and well ahead of HTTP.
+     */
+    public static final int HTTP2           = WEBSOCKET + 100;
+    
     public static final int SOCKET          = -100;
     public static final int SOCKET_ERNIO    = SOCKET + 10;
     
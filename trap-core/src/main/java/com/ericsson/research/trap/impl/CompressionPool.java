@@ -0,0 +1,202 @@
+package com.ericsson.research.trap.impl;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Shared pool of zlib contexts used for message compression. Creating a {@link Deflater} or {@link Inflater} allocates
+ * native zlib state that is only released by {@link Deflater#end()} (or, eventually, a finalizer), so the contexts are
+ * reset and reused rather than created per message. The pool is bounded; contexts returned to a full pool are ended
+ * immediately.
+ */
+final class CompressionPool
+{
+    
+    /**
+     * The maximum number of idle contexts of each kind kept in the pool.
+     */
+    static final int                                     MAX_POOLED      = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    
+    private static final ConcurrentLinkedQueue<Deflater> deflaters       = new ConcurrentLinkedQueue<Deflater>();
+    private static final ConcurrentLinkedQueue<Inflater> inflaters       = new ConcurrentLinkedQueue<Inflater>();
+    private static final AtomicInteger                   pooledDeflaters = new AtomicInteger(0);
+    private static final AtomicInteger                   pooledInflaters = new AtomicInteger(0);
+    
+    private CompressionPool()
+    {
+    }
+    
+    /**
+     * Compresses <i>data</i> into a complete zlib stream, as produced by a {@link java.util.zip.DeflaterOutputStream}.
+     * 
+     * @param data
+     *            The data to compress
+     * @param level
+     *            The compression level, [-1,9]. See {@link Deflater#setLevel(int)}.
+     * @return The compressed data
+     */
+    static byte[] deflate(byte[] data, int level)
+    {
+        return deflate(data, 0, data.length, level);
+    }
+    
+    /**
+     * Compresses part of an array into a complete zlib stream.
+     * 
+     * @param data
+     *            The buffer holding the data to compress
+     * @param offset
+     *            The offset of the data
+     * @param length
+     *            The number of bytes to compress
+     * @param level
+     *            The compression level, [-1,9]. See {@link Deflater#setLevel(int)}.
+     * @return The compressed data
+     */
+    static byte[] deflate(byte[] data, int offset, int length, int level)
+    {
+        Deflater deflater = deflaters.poll();
+        
+        if (deflater != null)
+            pooledDeflaters.decrementAndGet();
+        else
+            deflater = new Deflater();
+        
+        try
+        {
+            deflater.setLevel(level);
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            
+            byte[] out = new byte[Math.max(64, length / 2)];
+            int outLength = 0;
+            
+            while (!deflater.finished())
+            {
+                if (outLength == out.length)
+                    out = Arrays.copyOf(out, out.length * 2);
+                
+                outLength += deflater.deflate(out, outLength, out.length - outLength);
+            }
+            
+            return outLength == out.length ? out : Arrays.copyOf(out, outLength);
+        }
+        finally
+        {
+            deflater.reset();
+            
+            if (pooledDeflaters.incrementAndGet() <= MAX_POOLED)
+            {
+                deflaters.offer(deflater);
+            }
+            else
+            {
+                pooledDeflaters.decrementAndGet();
+                deflater.end();
+            }
+        }
+    }
+    
+    /**
+     * Decompresses a zlib stream. A truncated stream yields the data decompressed so far, just like an
+     * {@link java.util.zip.InflaterOutputStream} would.
+     * 
+     * @param data
+     *            The buffer holding the compressed data
+     * @param offset
+     *            The offset of the compressed data
+     * @param length
+     *            The number of compressed bytes
+     * @return The decompressed data
+     * @throws IOException
+     *             If the data is not a valid zlib stream
+     */
+    static byte[] inflate(byte[] data, int offset, int length) throws IOException
+    {
+        Inflater inflater = inflaters.poll();
+        
+        if (inflater != null)
+            pooledInflaters.decrementAndGet();
+        else
+            inflater = new Inflater();
+        
+        try
+        {
+            inflater.setInput(data, offset, length);
+            
+            byte[] out = new byte[Math.max(64, length * 2)];
+            int outLength = 0;
+            
+            while (!inflater.finished())
+            {
+                if (outLength == out.length)
+                    out = Arrays.copyOf(out, out.length * 2);
+                
+                int read = inflater.inflate(out, outLength, out.length - outLength);
+                
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                
+                outLength += read;
+            }
+            
+            return outLength == out.length ? out : Arrays.copyOf(out, outLength);
+        }
+        catch (DataFormatException e)
+        {
+            throw new IOException(e);
+        }
+        finally
+        {
+            inflater.reset();
+            
+            if (pooledInflaters.incrementAndGet() <= MAX_POOLED)
+            {
+                inflaters.offer(inflater);
+            }
+            else
+            {
+                pooledInflaters.decrementAndGet();
+                inflater.end();
+            }
+        }
+    }
+}
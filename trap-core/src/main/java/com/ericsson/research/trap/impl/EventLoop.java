@@ -0,0 +1,128 @@
+package com.ericsson.research.trap.impl;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single thread that runs tasks in the order they were submitted. Endpoints configured with
+ * {@link com.ericsson.research.trap.TrapEndpoint#OPTION_EVENT_LOOP} are pinned to one loop, which then runs their
+ * send and receive processing instead of the cached thread pool. There is one loop per available processor; endpoints
+ * are spread over them round robin.
+ */
+public class EventLoop implements Executor, Runnable
+{
+    
+    private static final EventLoop[]              loops    = new EventLoop[Runtime.getRuntime().availableProcessors()];
+    private static final AtomicInteger            nextLoop = new AtomicInteger();
+    
+    private final ConcurrentLinkedQueue<Runnable> tasks    = new ConcurrentLinkedQueue<Runnable>();
+    private final Thread                          thread;
+    private volatile boolean                      parked   = false;
+    private final Logger                          logger   = LoggerFactory.getLogger(EventLoop.class);
+    
+    /**
+     * Returns the next event loop to pin an endpoint to. Loops are started as they are first needed.
+     */
+    public static EventLoop next()
+    {
+        int i = (nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length;
+        
+        synchronized (loops)
+        {
+            if (loops[i] == null)
+                loops[i] = new EventLoop("trap-eventloop-" + i);
+            
+            return loops[i];
+        }
+    }
+    
+    EventLoop(String name)
+    {
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+    
+    public void execute(Runnable task)
+    {
+        this.tasks.add(task);
+        
+        if (this.parked && Thread.currentThread() != this.thread)
+            LockSupport.unpark(this.thread);
+    }
+    
+    /**
+     * Checks if the calling thread is this loop's thread.
+     */
+    public boolean inEventLoop()
+    {
+        return Thread.currentThread() == this.thread;
+    }
+    
+    public void run()
+    {
+        for (;;)
+        {
+            Runnable task;
+            
+            while ((task = this.tasks.poll()) != null)
+            {
+                try
+                {
+                    task.run();
+                }
+                catch (Throwable t)
+                {
+                    this.logger.error("Unhandled exception in event loop task {}; {}", task, t, t);
+                }
+            }
+            
+            // Any task added after this point will see parked, and unpark us. Any task added before it is seen below.
+            this.parked = true;
+            
+            if (this.tasks.isEmpty())
+                LockSupport.park(this);
+            
+            this.parked = false;
+        }
+    }
+    
+}
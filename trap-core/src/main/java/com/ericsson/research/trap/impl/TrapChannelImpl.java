@@ -33,12 +33,15 @@ package com.ericsson.research.trap.impl;
  * ##_END_LICENSE_##
  */
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.zip.InflaterOutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.ericsson.research.trap.TrapChannel;
 import com.ericsson.research.trap.TrapException;
@@ -52,7 +55,6 @@ import com.ericsson.research.trap.spi.TrapMessageBuffer;
 import com.ericsson.research.trap.spi.TrapTransport;
 import com.ericsson.research.trap.spi.queues.BlockingMessageQueue;
 import com.ericsson.research.trap.spi.queues.MessageQueue;
-import com.ericsson.research.trap.utils.ThreadPool;
 
 public class TrapChannelImpl implements TrapChannel, Runnable
 {
@@ -60,16 +62,30 @@ public class TrapChannelImpl implements TrapChannel, Runnable
     private boolean           streamingEnabled = false;
     private int               chunkSize;
     private int               maxInFlightBytes;
-    private MessageQueue      outQueue;
     private TrapMessageBuffer inBuf;
     private int               channelID        = 0;
     private TrapEndpointImpl  parentEP;
-    private int               bytesInFlight    = 0;
     private Object            availabilityLock = new Object();
-    private boolean           available        = false;
     private boolean           running          = false;
     
-    protected int             messageId        = 1;
+    /**
+     * Senders share the read lock, so they do not exclude each other. The write lock is taken when a message is
+     * fragmented, since its fragments need consecutive message IDs, and while the queue is rebuilt.
+     */
+    private final ReentrantReadWriteLock sendLock      = new ReentrantReadWriteLock();
+    private volatile MessageQueue        outQueue;
+    private final AtomicInteger          bytesInFlight = new AtomicInteger(0);
+    protected final AtomicInteger        messageId     = new AtomicInteger(1);
+    
+    /**
+     * When the channel last went from having nothing to send to having a message waiting, or last sent a message while
+     * more were waiting. Zero when nothing is waiting. Used for the scheduling delay statistics.
+     */
+    private final AtomicLong             backlogSince       = new AtomicLong(0);
+    private volatile long                maxSchedulingDelay = 0;
+    private volatile int                 weight             = TrapConstants.CHANNEL_WEIGHT_DEFAULT;
+    private volatile boolean             latencySensitive   = false;
+    
     protected int             maxMessageId     = 0x8000000;   // Even number means we can slide the buffer evenly, without incurring buffer loop costs.
                                                                
     public TrapChannelImpl(TrapEndpointImpl trapEndpointImpl, int channelID)
@@ -154,18 +170,20 @@ public class TrapChannelImpl implements TrapChannel, Runnable
     
     public void assignMessageID(TrapMessage message)
     {
+        // Assign message id (if not already set)
         if (message.getMessageId() == 0)
+            message.setMessageId(this.nextMessageId());
+    }
+    
+    private int nextMessageId()
+    {
+        for (;;)
         {
-            synchronized (this)
-            {
-                // Assign message id (if not already set)
-                int messageId = this.messageId++;
-                
-                if (messageId > this.maxMessageId)
-                    this.messageId = messageId = 1;
-                
-                message.setMessageId(messageId);
-            }
+            int messageId = this.messageId.get();
+            int next = messageId >= this.maxMessageId ? 1 : messageId + 1;
+            
+            if (this.messageId.compareAndSet(messageId, next))
+                return messageId;
         }
     }
     
@@ -185,76 +203,89 @@ public class TrapChannelImpl implements TrapChannel, Runnable
     
     protected void send(TrapMessage message, boolean allowChunk) throws TrapException
     {
-        // We need to block this loop – somehow – in order to prevent message corruption from
-        // simultaneous frgaments on the same channel. 
-        int chunkSize = this.chunkSize;
-        synchronized (this)
+        // Perform the estimate computation.
+        if (allowChunk)
         {
-            this.assignMessageID(message);
-            
-            // Perform the estimate computation.
-            if (allowChunk)
+            byte[] data = message.getCompressedData();
+            if (data != null && data.length > this.chunkSize)
             {
-                byte[] data = message.getCompressedData();
-                if (data != null && data.length > chunkSize)
-                {
-                    
-                    // We need to chunk it up.
-                    for (int i = 0; i < data.length; i += chunkSize)
-                    {
-                        byte[] chunk = Arrays.copyOfRange(data, i, Math.min(i + chunkSize, data.length));
-                        TrapMessage m = new TrapMessageImpl();
-                        m.setData(chunk);
-                        
-                        if (i == 0)
-                        {
-                            m.setOp(Operation.FRAGMENT_START);
-                            m.setMessageId(message.getMessageId());
-                        }
-                        else if (i + chunkSize >= data.length)
-                            m.setOp(Operation.FRAGMENT_END);
-                        else
-                            m.setOp(Operation.MESSAGE);
-                        
-                        m.setCompressed(message.isCompressed());
-                        m.setFormat(message.getFormat());
-                        this.send(m, false);
-                    }
-                    
-                    return;
-                    
-                }
+                // We need to chunk it up.
+                this.sendFragments(message, data);
+                return;
             }
-            
         }
         
-        message.setChannel(this.channelID);
-        
-        synchronized (this.outQueue)
+        Lock lock = this.sendLock.readLock();
+        lock.lock();
+        try
         {
+            this.assignMessageID(message);
+            message.setChannel(this.channelID);
             this.outQueue.put(message);
         }
-        
-        synchronized (this.availabilityLock)
+        finally
         {
-            if (this.bytesInFlight < this.maxInFlightBytes)
-                this.available = true;
+            lock.unlock();
         }
         
+        this.backlogged();
         this.parentEP.kickSendingThread();
     }
     
-    public void messageSent(TrapMessage message)
+    private void sendFragments(TrapMessage message, byte[] data) throws TrapException
     {
-        synchronized (this.availabilityLock)
+        // We need to block this loop – somehow – in order to prevent message corruption from
+        // simultaneous frgaments on the same channel. 
+        int chunkSize = this.chunkSize;
+        Lock lock = this.sendLock.writeLock();
+        lock.lock();
+        try
         {
-            this.bytesInFlight -= message.length();
+            this.assignMessageID(message);
             
-            if (this.bytesInFlight < this.maxInFlightBytes && this.outQueue.peek() != null)
+            for (int i = 0; i < data.length; i += chunkSize)
             {
-                this.available = true;
+                // Each fragment is a slice of the payload, so the payload is not copied until it is serialized.
+                TrapMessageImpl m = new TrapMessageImpl();
+                m.setData(data, i, Math.min(chunkSize, data.length - i));
+                
+                if (i == 0)
+                {
+                    m.setOp(Operation.FRAGMENT_START);
+                    m.setMessageId(message.getMessageId());
+                }
+                else if (i + chunkSize >= data.length)
+                    m.setOp(Operation.FRAGMENT_END);
+                else
+                    m.setOp(Operation.MESSAGE);
+                
+                m.setCompressed(message.isCompressed());
+                m.setFormat(message.getFormat());
+                
+                this.assignMessageID(m);
+                m.setChannel(this.channelID);
+                this.outQueue.put(m);
+                this.backlogged();
+                
+                // Bounded queues may need the sending thread to drain earlier fragments before the rest fit
+                this.parentEP.kickSendingThread();
             }
         }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    private void backlogged()
+    {
+        if (this.backlogSince.get() == 0)
+            this.backlogSince.compareAndSet(0, System.nanoTime());
+    }
+    
+    public void messageSent(TrapMessage message)
+    {
+        this.bytesInFlight.addAndGet((int) -message.length());
         this.parentEP.kickSendingThread();
     }
     
@@ -272,7 +303,9 @@ public class TrapChannelImpl implements TrapChannel, Runnable
     {
         LinkedList<TrapMessage> faileds = new LinkedList<TrapMessage>();
         
-        synchronized (this.outQueue)
+        Lock lock = this.sendLock.writeLock();
+        lock.lock();
+        try
         {
             // Create a new, blank queue
             
@@ -286,7 +319,7 @@ public class TrapChannelImpl implements TrapChannel, Runnable
                 Iterator<TrapMessage> fit = this.failedMessages.iterator();
                 
                 while (fit.hasNext())
-                    this.bytesInFlight -= fit.next().length();
+                    this.bytesInFlight.addAndGet((int) -fit.next().length());
                 
             }
             
@@ -393,11 +426,10 @@ public class TrapChannelImpl implements TrapChannel, Runnable
                 
             this.outQueue = newMessageQueue;
             this.failedMessages.clear();
-            
-            if (this.bytesInFlight < this.maxInFlightBytes && this.outQueue.peek() != null)
-            {
-                this.available = true;
-            }
+        }
+        finally
+        {
+            lock.unlock();
         }
         
         if (faileds.size() > 0)
@@ -406,15 +438,15 @@ public class TrapChannelImpl implements TrapChannel, Runnable
     
     public boolean messagesAvailable()
     {
-        synchronized (this.availabilityLock)
-        {
-            return this.available;
-        }
+        return this.peek() != null;
     }
     
+    /**
+     * Peeks at the next message to send, provided the channel's in flight byte window is not exhausted.
+     */
     public TrapMessage peek()
     {
-        if (this.messagesAvailable())
+        if (this.bytesInFlight.get() < this.maxInFlightBytes)
             return this.outQueue.peek();
         else
             return null;
@@ -422,25 +454,23 @@ public class TrapChannelImpl implements TrapChannel, Runnable
     
     public TrapMessage pop()
     {
-        try
+        TrapMessage message = this.outQueue.pop();
+        
+        if (message != null)
         {
-            TrapMessage message = null;
+            this.bytesInFlight.addAndGet((int) message.length());
             
-            message = this.outQueue.pop();
-            synchronized (this.availabilityLock)
-            {
-                
-                if (message != null)
-                    this.bytesInFlight += message.length();
-                
-                if (this.outQueue.peek() == null || this.bytesInFlight >= this.maxInFlightBytes)
-                    this.available = false;
-            }
-            return message;
-        }
-        finally
-        {
+            // The wait ends here. If there are more messages, the next one starts waiting now.
+            long now = System.nanoTime();
+            long since = this.backlogSince.get();
+            
+            if (since != 0 && now - since > this.maxSchedulingDelay)
+                this.maxSchedulingDelay = now - since;
+            
+            this.backlogSince.set(this.outQueue.peek() != null ? now : 0);
         }
+        
+        return message;
     }
     
     public void receiveMessage(TrapMessage m, TrapTransport t)
@@ -453,13 +483,14 @@ public class TrapChannelImpl implements TrapChannel, Runnable
                 return;
             
             this.running = true;
-            ThreadPool.executeCached(this);
+            this.parentEP.execute(this);
         }
     }
     
-    TrapEndpointMessage   tmp               = new TrapEndpointMessage();
-    ByteArrayOutputStream buf               = new ByteArrayOutputStream();
-    boolean               receivingFragment = false;
+    TrapEndpointMessage    tmp               = new TrapEndpointMessage();
+    ArrayList<TrapMessage> fragments         = new ArrayList<TrapMessage>();
+    int                    fragmentBytes     = 0;
+    boolean                receivingFragment = false;
     private int           priority;
     
     // Performs the receiving task
@@ -482,15 +513,7 @@ public class TrapChannelImpl implements TrapChannel, Runnable
                                     this.receivingFragment = false;
                                     this.tmp.getMessage().setOp(Operation.MESSAGE);
                                 case Operation.Value.MESSAGE:
-                                    try
-                                    {
-                                        this.buf.write(this.tmp.getMessage().getData());
-                                    }
-                                    catch (IOException e)
-                                    {
-                                        parentEP.logger.error("IOException while defragmenting a message; {}", e, e);
-                                        parentEP.close();
-                                    }
+                                    this.addFragment(this.tmp.getMessage());
                                     break;
                                 
                                 default:
@@ -499,21 +522,13 @@ public class TrapChannelImpl implements TrapChannel, Runnable
                             
                             if (!this.receivingFragment)
                             {
-                                byte[] mData = this.buf.toByteArray();
+                                byte[] mData = this.joinFragments();
                                 
                                 if (this.tmp.getMessage().isCompressed())
                                 {
-                                    ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                                    InflaterOutputStream ios = new InflaterOutputStream(bos);
-                                    
                                     try
                                     {
-                                        ios.write(mData, 0, mData.length);
-                                        ios.flush();
-                                        mData = bos.toByteArray();
-                                        
-                                        ios.close();
-                                        bos.close();
+                                        mData = CompressionPool.inflate(mData, 0, mData.length);
                                     }
                                     catch (IOException e)
                                     {
@@ -523,7 +538,6 @@ public class TrapChannelImpl implements TrapChannel, Runnable
                                 }
                                 
                                 this.tmp.getMessage().setData(mData);
-                                this.buf = new ByteArrayOutputStream();
                             }
                             else
                             {
@@ -535,15 +549,7 @@ public class TrapChannelImpl implements TrapChannel, Runnable
                             if (this.tmp.getMessage().getOp().equals(Operation.FRAGMENT_START))
                             {
                                 this.receivingFragment = true;
-                                try
-                                {
-                                    this.buf.write(this.tmp.getMessage().getData());
-                                }
-                                catch (IOException e)
-                                {
-                                    parentEP.logger.error("IOException while defragmenting a message; {}", e, e);
-                                    parentEP.close();
-                                }
+                                this.addFragment(this.tmp.getMessage());
                                 continue;
                             }
                         }
@@ -589,6 +595,42 @@ public class TrapChannelImpl implements TrapChannel, Runnable
         }
     }
     
+    /*
+     * Holds on to a received fragment until the entire message has arrived, so that it can be copied once into an array
+     * of the right size.
+     */
+    private void addFragment(TrapMessage m)
+    {
+        this.fragments.add(m);
+        this.fragmentBytes += m instanceof TrapMessageImpl ? ((TrapMessageImpl) m).getDataLength() : m.getData().length;
+    }
+    
+    private byte[] joinFragments()
+    {
+        byte[] joined = new byte[this.fragmentBytes];
+        int offset = 0;
+        
+        for (int i = 0; i < this.fragments.size(); i++)
+        {
+            TrapMessage m = this.fragments.get(i);
+            
+            if (m instanceof TrapMessageImpl)
+            {
+                offset += ((TrapMessageImpl) m).copyData(joined, offset);
+            }
+            else
+            {
+                byte[] data = m.getData();
+                System.arraycopy(data, 0, joined, offset, data.length);
+                offset += data.length;
+            }
+        }
+        
+        this.fragments.clear();
+        this.fragmentBytes = 0;
+        return joined;
+    }
+    
     public TrapChannel setPriority(int newPriority)
     {
         this.priority = newPriority;
@@ -600,6 +642,56 @@ public class TrapChannelImpl implements TrapChannel, Runnable
         return this.priority;
     }
     
+    public TrapChannel setWeight(int bytes)
+    {
+        if (bytes <= 0)
+            throw new IllegalArgumentException("The channel weight must be positive, not " + bytes);
+        
+        this.weight = bytes;
+        return this;
+    }
+    
+    public int getWeight()
+    {
+        return this.weight;
+    }
+    
+    public TrapChannel setLatencySensitive(boolean latencySensitive)
+    {
+        this.latencySensitive = latencySensitive;
+        
+        // The scheduler keeps latency sensitive channels apart, so it needs to know.
+        this.parentEP.messageQueueRebuild = true;
+        return this;
+    }
+    
+    public boolean isLatencySensitive()
+    {
+        return this.latencySensitive;
+    }
+    
+    public long getSchedulingDelay()
+    {
+        long since = this.backlogSince.get();
+        
+        if (since == 0)
+            return 0;
+        
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - since);
+    }
+    
+    public long getMaxSchedulingDelay()
+    {
+        long max = this.maxSchedulingDelay;
+        long since = this.backlogSince.get();
+        
+        // A channel that is starved right now may not have sent anything yet, so include the current wait.
+        if (since != 0)
+            max = Math.max(max, System.nanoTime() - since);
+        
+        return TimeUnit.NANOSECONDS.toMillis(max);
+    }
+    
     public String toString()
     {
         return "(" + this.channelID + "/o:" + this.outQueue.length() + "/i:" + this.inBuf.toString() + ")";
@@ -35,6 +35,8 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -60,10 +62,12 @@ import com.ericsson.research.trap.delegates.TrapDelegate;
 import com.ericsson.research.trap.delegates.TrapEndpointDelegate;
 import com.ericsson.research.trap.impl.queues.ArrayBlockingMessageQueue;
 import com.ericsson.research.trap.impl.queues.ChannelMessageQueue;
+import com.ericsson.research.trap.impl.queues.ChannelScheduler;
 import com.ericsson.research.trap.impl.queues.LinkedBlockingMessageQueue;
 import com.ericsson.research.trap.impl.queues.LinkedByteBlockingMessageQueue;
 import com.ericsson.research.trap.impl.queues.LinkedByteMessageQueue;
 import com.ericsson.research.trap.impl.queues.LinkedMessageQueue;
+import com.ericsson.research.trap.impl.queues.WeightedChannelMessageQueue;
 import com.ericsson.research.trap.spi.TrapConfiguration;
 import com.ericsson.research.trap.spi.TrapConstants;
 import com.ericsson.research.trap.spi.TrapHostingTransport;
@@ -100,13 +104,21 @@ public abstract class TrapEndpointImpl implements TrapEndpoint, TrapTransportDel
     private final Object                     channelsLock          = new Object();
     protected TrapChannelImpl[]              channels              = new TrapChannelImpl[2];
     protected MessageQueue                   templateMessageQueue  = new LinkedBlockingMessageQueue();
-    protected final ChannelMessageQueue      messageQueue          = new ChannelMessageQueue();
-    protected boolean                        messageQueueRebuild   = false;
+    protected volatile ChannelScheduler      messageQueue          = new ChannelMessageQueue();
+    protected volatile boolean               messageQueueRebuild   = false;
+    protected String                         schedulerType         = TrapConstants.ENDPOINT_SCHEDULER_DEFAULT;
                                                                    
     protected int                            maxActiveTransports   = 1;
                                                                    
     protected Object                         sendingLock           = new Object();
-    private boolean                          sending               = false;
+    private final AtomicBoolean              sending               = new AtomicBoolean(false);
+    
+    /**
+     * Set whenever there may be new work for the sending thread. Senders do not take any lock to start the sending
+     * thread; instead the sending thread clears this flag before looking for messages, and checks it again before
+     * exiting.
+     */
+    private final AtomicBoolean              sendRequested         = new AtomicBoolean(false);
                                                                    
     Object                                   delegateContext;
                                              
@@ -183,8 +195,13 @@ public abstract class TrapEndpointImpl implements TrapEndpoint, TrapTransportDel
      * @see TrapEndpoint#setAsync(boolean)
      */
     protected boolean                        async                 = true;
-    protected boolean                        abortSending          = false;
+    protected volatile boolean               abortSending          = false;
     protected boolean                        compressionEnabled    = TrapConstants.COMPRESSION_ENABLED_DEFAULT;
+    protected int                            compressionLevel      = Deflater.DEFAULT_COMPRESSION;
+    protected int                            compressionThreshold  = TrapConstants.COMPRESSION_THRESHOLD_DEFAULT;
+    protected int                            batchMaxBytes         = TrapConstants.BATCH_MAX_BYTES_DEFAULT;
+    protected int                            batchMaxCount         = TrapConstants.BATCH_MAX_COUNT_DEFAULT;
+    protected volatile EventLoop             eventLoop             = null;
                                                                    
     // Note that async mode does NOT resend messages unless asyncInorder = true
     
@@ -204,6 +221,7 @@ public abstract class TrapEndpointImpl implements TrapEndpoint, TrapTransportDel
         
         TrapChannelImpl tc = new TrapChannelImpl(this, 0);
         tc.setPriority(Integer.MAX_VALUE);
+        tc.setLatencySensitive(true);
         this.channels[0] = tc;
         
         this.messageQueue.rebuild(this.channels);
@@ -283,6 +301,38 @@ public abstract class TrapEndpointImpl implements TrapEndpoint, TrapTransportDel
         this.setKeepaliveExpiry(option);
         
         this.compressionEnabled = this.config.getBooleanOption(TrapEndpoint.OPTION_ENABLE_COMPRESSION, this.compressionEnabled);
+        this.compressionThreshold = this.config.getIntOption(TrapEndpoint.OPTION_COMPRESS_THRESHOLD, this.compressionThreshold);
+        
+        option = this.config.getIntOption(TrapEndpoint.OPTION_COMPRESSION_LEVEL, this.compressionLevel);
+        if (option >= Deflater.DEFAULT_COMPRESSION && option <= Deflater.BEST_COMPRESSION)
+            this.compressionLevel = option;
+        else
+            this.logger.warn("Ignoring invalid compression level {}", option);
+        
+        this.batchMaxBytes = this.config.getIntOption(TrapEndpoint.OPTION_BATCH_MAX_BYTES, this.batchMaxBytes);
+        this.batchMaxCount = this.config.getIntOption(TrapEndpoint.OPTION_BATCH_MAX_COUNT, this.batchMaxCount);
+        
+        String scheduler = this.config.getOption(TrapEndpoint.OPTION_SCHEDULER);
+        if (scheduler != null && !scheduler.equals(this.schedulerType))
+        {
+            if (TrapEndpoint.PRIORITY_SCHEDULER.equals(scheduler) || TrapEndpoint.WEIGHTED_SCHEDULER.equals(scheduler))
+            {
+                // The sending thread swaps the scheduler on its next rebuild.
+                this.schedulerType = scheduler;
+                this.messageQueueRebuild = true;
+            }
+            else
+                this.logger.warn("Ignoring unknown scheduler {}", scheduler);
+        }
+        
+        // Keep the current loop on reconfiguration; moving would reorder the tasks already queued on it.
+        if (this.config.getBooleanOption(TrapEndpoint.OPTION_EVENT_LOOP, TrapConstants.ENDPOINT_EVENT_LOOP_DEFAULT))
+        {
+            if (this.eventLoop == null)
+                this.eventLoop = EventLoop.next();
+        }
+        else
+            this.eventLoop = null;
         
     }
     
@@ -442,7 +492,17 @@ public abstract class TrapEndpointImpl implements TrapEndpoint, TrapTransportDel
     {
         if (data == null)
             throw new NullPointerException("Data cannot be null. It may be a byte array with length zero, but null is forbidden.");
-        this.send(this.createMessage().setOp(Operation.MESSAGE).setData(data).setChannel(channel).setCompressed(useCompression && this.compressionEnabled));
+        boolean compress = this.shouldCompress(useCompression, data.length);
+        this.send(this.createMessage().setOp(Operation.MESSAGE).setData(data).setChannel(channel).setCompressed(compress));
+    }
+    
+    /**
+     * Decides whether a payload should be compressed. Compression must be requested by the sender and enabled on the
+     * endpoint, and payloads below the compression threshold are always sent as-is.
+     */
+    private boolean shouldCompress(boolean useCompression, int length)
+    {
+        return useCompression && this.compressionEnabled && length >= this.compressionThreshold;
     }
     
     public void send(TrapObject object) throws TrapException
@@ -452,11 +512,11 @@ public abstract class TrapEndpointImpl implements TrapEndpoint, TrapTransportDel
     
     public void send(TrapObject object, int channel, boolean useCompression) throws TrapException
     {
-        TrapMessage m = new TrapObjectMessage(object);
+        TrapObjectMessage m = new TrapObjectMessage(object);
+        m.setCompressionLevel(this.compressionLevel);
         m.setOp(Operation.MESSAGE);
         m.setChannel(channel);
-        m.setCompressed(useCompression && this.compressionEnabled);
-
+        
         TrapChannelImpl ch = assignMessageId(m);
         
         try
@@ -479,26 +539,35 @@ public abstract class TrapEndpointImpl implements TrapEndpoint, TrapTransportDel
         {
         }
         
+        // The object is serialized for any other transport, so its size is known from here on. Object transports never
+        // serialize, so only this path needs the threshold check.
+        m.setCompressed(this.shouldCompress(useCompression, m.getData().length));
         ch.send(m);
         
     }
     
     private TrapChannelImpl assignMessageId(TrapMessage message) throws TrapException
     {
-        if ((this.getState() != TrapState.OPEN) && (message.getOp() != Operation.END) && this.getState() != TrapState.SLEEPING) // EXCEPT
-            throw new TrapException("Tried to send to non-open Trap session");
-        TrapChannelImpl channel = (this.getChannel(message.getChannel()));
+        TrapChannelImpl channel = this.getSendingChannel(message);
         channel.assignMessageID(message);
         return channel;
     }
     
+    private TrapChannelImpl getSendingChannel(TrapMessage message) throws TrapException
+    {
+        if ((this.getState() != TrapState.OPEN) && (message.getOp() != Operation.END) && this.getState() != TrapState.SLEEPING) // EXCEPT
+            throw new TrapException("Tried to send to non-open Trap session");
+        return this.getChannel(message.getChannel());
+    }
+    
     public void send(TrapMessage message) throws TrapException
     {
         
         if (message == null)
             throw new NullPointerException("Cannot send null message.");
         
-        TrapChannelImpl channel = assignMessageId(message);
+        // The channel assigns the message ID as it enqueues the message, so that fragments get consecutive IDs.
+        TrapChannelImpl channel = this.getSendingChannel(message);
         channel.send(message);
         
     }
@@ -515,12 +584,15 @@ public abstract class TrapEndpointImpl implements TrapEndpoint, TrapTransportDel
 				{
 					TrapTransport first = null;
 
+					// Any send requested from here on will be seen by the peek below, or by the exit check.
+					TrapEndpointImpl.this.sendRequested.set(false);
+
 					if (TrapEndpointImpl.this.messageQueueRebuild)
 					{
 						// We don't need to synchronize this. At worst, we'll cause one more rebuild than strictly necessary
 						// but rebuilds should be rare enough for it to not matter.
 						TrapEndpointImpl.this.messageQueueRebuild = false;
-						TrapEndpointImpl.this.messageQueue.rebuild(TrapEndpointImpl.this.channels);
+						TrapEndpointImpl.this.rebuildMessageQueue();
 					}
 
 					try
@@ -544,6 +616,9 @@ public abstract class TrapEndpointImpl implements TrapEndpoint, TrapTransportDel
 
 								try
 								{
+									int batchBytes = 0;
+									int batchCount = 0;
+									
                                     while (first.isAvailable())
                                     {
     									TrapMessage m = TrapEndpointImpl.this.messageQueue.peek();
@@ -552,6 +627,17 @@ public abstract class TrapEndpointImpl implements TrapEndpoint, TrapTransportDel
     
     									first.send(m, true);
     									TrapEndpointImpl.this.messageQueue.pop();
+    									
+    									// Hand the transport a full batch at a time, rather than one flush per message or one for the entire queue.
+    									batchBytes += m.length();
+    									batchCount++;
+    									
+    									if (((TrapEndpointImpl.this.batchMaxBytes > 0) && (batchBytes >= TrapEndpointImpl.this.batchMaxBytes)) || ((TrapEndpointImpl.this.batchMaxCount > 0) && (batchCount >= TrapEndpointImpl.this.batchMaxCount)))
+    									{
+    										first.flushTransport();
+    										batchBytes = 0;
+    										batchCount = 0;
+    									}
                                     }
 								}
 								catch (TrapTransportException e)
@@ -599,45 +685,32 @@ public abstract class TrapEndpointImpl implements TrapEndpoint, TrapTransportDel
 					{
 						TrapEndpointImpl.this.messageQueue.rewind();
 
-						synchronized (TrapEndpointImpl.this.sendingLock)
+						try
 						{
-							try
-							{
-								first = TrapEndpointImpl.this.availableTransports.get(0);
-							}
-							catch (Throwable t)
-							{
-							}
-
-							// Also block on messageQueue; this should prevent unexpected exits.
-							synchronized (TrapEndpointImpl.this.messageQueue)
-							{
-
-								if ((TrapEndpointImpl.this.messageQueue.peek() == null) || (first == null) || TrapEndpointImpl.this.abortSending)
-								{
-									//System.out.println("######### Ending condition: " + (TrapEndpointImpl.this.messageQueueSize == 0) + (first == null));
-									TrapEndpointImpl.this.logger.trace("Send loop end: First: {}, Available: {}, EP: {}, MQ: {}", new Object[]{ first, TrapEndpointImpl.this.availableTransports, TrapEndpointImpl.this, TrapEndpointImpl.this.messageQueue });
+							first = TrapEndpointImpl.this.availableTransports.get(0);
+						}
+						catch (Throwable t)
+						{
+						}
 
-									synchronized (sendingLock)
-									{
+						if ((TrapEndpointImpl.this.messageQueue.peek() == null) || (first == null) || TrapEndpointImpl.this.abortSending)
+						{
+							//System.out.println("######### Ending condition: " + (TrapEndpointImpl.this.messageQueueSize == 0) + (first == null));
+							TrapEndpointImpl.this.logger.trace("Send loop end: First: {}, Available: {}, EP: {}, MQ: {}", new Object[]{ first, TrapEndpointImpl.this.availableTransports, TrapEndpointImpl.this, TrapEndpointImpl.this.messageQueue });
 
-										// Make one more loop to catch any MQ rebuilds needed.
-										if (messageQueueRebuild)
-											continue;
+							// Make one more loop to catch any MQ rebuilds needed.
+							if (messageQueueRebuild)
+								continue;
 
-										TrapEndpointImpl.this.setSending(false);
-										TrapEndpointImpl.this.messageQueue.rewind();
+							TrapEndpointImpl.this.messageQueue.rewind();
+							TrapEndpointImpl.this.setSending(false);
 
-										// The final check. If we've gotten this far out, it's worth it.
-										if ((TrapEndpointImpl.this.messageQueue.peek() != null) && first != null)
-										{
-											kickSendingThread();
-										}
-									}
+							// A message may have been enqueued, or a transport become available, after our last check while this
+							// thread still held the sending role. Reclaim it to handle that, unless another thread has already done so.
+							if (!TrapEndpointImpl.this.abortSending && TrapEndpointImpl.this.sendRequested.get() && TrapEndpointImpl.this.sending.compareAndSet(false, true))
+								continue;
 
-									return;
-								}
-							}
+							return;
 						}
 					}
 				}
@@ -650,9 +723,9 @@ public abstract class TrapEndpointImpl implements TrapEndpoint, TrapTransportDel
 			{
 				if (TrapEndpointImpl.this.abortSending)
 				{
+					// ttMessagesFailedSending owns abortSending, and clears it once the queues have been rebuilt.
 					synchronized(TrapEndpointImpl.this.sendingLock)
 					{
-						TrapEndpointImpl.this.abortSending = false;
 						TrapEndpointImpl.this.sendingLock.notifyAll();
 					}
 				}
@@ -663,14 +736,28 @@ public abstract class TrapEndpointImpl implements TrapEndpoint, TrapTransportDel
     
     protected void kickSendingThread()
     {
-        synchronized (this.sendingLock)
-        {
-            if (this.isSending())
-                return;
-            this.setSending(true);
-        }
+        this.sendRequested.set(true);
+        
+        // Failed messages are being requeued. The sending thread is restarted once that is done.
+        if (this.abortSending)
+            return;
+        
+        if (this.sending.compareAndSet(false, true))
+            this.execute(this.sendingThread);
+    }
+    
+    /**
+     * Runs a send or receive processing task on the endpoint's event loop, or in the cached thread pool if the
+     * endpoint does not have one.
+     */
+    protected void execute(Runnable task)
+    {
+        EventLoop loop = this.eventLoop;
         
-        ThreadPool.executeCached(this.sendingThread);
+        if (loop != null)
+            loop.execute(task);
+        else
+            ThreadPool.executeCached(task);
     }
     
     public synchronized void ttStateChanged(TrapTransportState newState, TrapTransportState oldState, TrapTransport transport, Object context)
@@ -717,6 +804,26 @@ public abstract class TrapEndpointImpl implements TrapEndpoint, TrapTransportDel
         }
     }
     
+    /**
+     * Rebuilds the channel scheduler, first replacing it if another scheduler type has been configured. Only the sending
+     * thread may replace the scheduler, as it must not change between a peek and a pop.
+     */
+    protected void rebuildMessageQueue()
+    {
+        ChannelScheduler scheduler = this.messageQueue;
+        
+        if (TrapEndpoint.WEIGHTED_SCHEDULER.equals(this.schedulerType))
+        {
+            if (!(scheduler instanceof WeightedChannelMessageQueue))
+                scheduler = new WeightedChannelMessageQueue();
+        }
+        else if (!(scheduler instanceof ChannelMessageQueue))
+            scheduler = new ChannelMessageQueue();
+        
+        scheduler.rebuild(this.channels);
+        this.messageQueue = scheduler;
+    }
+    
     public void setQueue(MessageQueue newQueue)
     {
         this.templateMessageQueue = newQueue;
@@ -1364,9 +1471,24 @@ public abstract class TrapEndpointImpl implements TrapEndpoint, TrapTransportDel
         return this.createMessage().setOp(Operation.OPENED);
     }
     
-    public void ttMessagesFailedSending(Collection<TrapMessage> messages, TrapTransport transport, Object context)
+    public void ttMessagesFailedSending(final Collection<TrapMessage> messages, final TrapTransport transport, final Object context)
     {
         
+        // The sending thread may be queued behind us on the event loop, so we cannot wait for it here. Go to the back
+        // of the queue instead; by the time we run again, it will have finished.
+        EventLoop loop = this.eventLoop;
+        if (loop != null && loop.inEventLoop() && this.isSending())
+        {
+            loop.execute(new Runnable() {
+                
+                public void run()
+                {
+                    TrapEndpointImpl.this.ttMessagesFailedSending(messages, transport, context);
+                }
+            });
+            return;
+        }
+        
         if (this.logger.isDebugEnabled())
             this.logger.debug("Failed sending {} messages on transport {}, Messages were {}", new Object[] { messages.size(), transport, messages });
             
@@ -1540,7 +1662,7 @@ public abstract class TrapEndpointImpl implements TrapEndpoint, TrapTransportDel
     
     protected TrapMessage createMessage()
     {
-        return new TrapMessageImpl().setFormat(this.trapFormat);
+        return new TrapMessageImpl().setCompressionLevel(this.compressionLevel).setFormat(this.trapFormat);
     }
     
     public int compareTo(TrapEndpointImpl o)
@@ -1601,12 +1723,12 @@ public abstract class TrapEndpointImpl implements TrapEndpoint, TrapTransportDel
     
     protected boolean isSending()
     {
-        return this.sending;
+        return this.sending.get();
     }
     
     protected void setSending(boolean sending)
     {
-        this.sending = sending;
+        this.sending.set(sending);
     }
     
     public void setOption(String optionName, String value)
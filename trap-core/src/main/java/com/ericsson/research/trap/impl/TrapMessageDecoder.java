@@ -0,0 +1,272 @@
+package com.ericsson.research.trap.impl;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.io.UnsupportedEncodingException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+import com.ericsson.research.trap.spi.TrapMessage;
+
+/**
+ * Incremental decoder for a stream of serialized Trap messages. Transports feed it data as it arrives, in whatever
+ * chunks the network delivers, and poll it for complete messages.
+ * <p>
+ * Complete messages are parsed directly out of the data fed to the decoder. Only a message that straddles two chunks is
+ * staged in an internal buffer. The 16 byte header of such a message is parsed once, after which the decoder copies
+ * exactly the remaining bytes of the message into the staging buffer. The buffer grows geometrically as the bytes
+ * arrive, rather than being sized from the untrusted header, so a forged length cannot make the decoder allocate memory
+ * the peer never sends. Messages larger than {@link #setMaxMessageSize(int)} are rejected outright.
+ * <p>
+ * The decoder is not thread safe. Callers must ensure a single thread feeds and polls it at a time.
+ */
+public class TrapMessageDecoder
+{
+    
+    /**
+     * Staging buffers larger than this are released once the message they held has been decoded, rather than being
+     * kept for the next partial message.
+     */
+    public static final int     MAX_RETAINED_BUFFER      = 65536;
+    
+    /**
+     * The default for {@link #setMaxMessageSize(int)}.
+     */
+    public static final int     MAX_MESSAGE_SIZE_DEFAULT = 16 * 1024 * 1024;
+    
+    private static final byte[] EMPTY                    = new byte[0];
+    
+    private byte[]              input                    = EMPTY;
+    private int                 inputOffset              = 0;
+    private int                 inputEnd                 = 0;
+    
+    private ByteBuffer          pending                  = ByteBuffer.allocate(TrapMessageImpl.HEADER_SIZE);
+    private int                 frameLength              = -1;
+    private int                 maxMessageSize           = MAX_MESSAGE_SIZE_DEFAULT;
+    
+    /**
+     * Sets the largest serialized message, header included, that the decoder accepts. Larger messages fail with a
+     * {@link ProtocolException} as soon as their header has been received.
+     * 
+     * @param maxMessageSize
+     *            The maximum message size, in bytes
+     */
+    public void setMaxMessageSize(int maxMessageSize)
+    {
+        if (maxMessageSize < TrapMessageImpl.HEADER_SIZE)
+            throw new IllegalArgumentException("The maximum message size must be at least " + TrapMessageImpl.HEADER_SIZE + " bytes");
+        
+        this.maxMessageSize = maxMessageSize;
+    }
+    
+    /**
+     * Accessor for the largest message the decoder accepts.
+     * 
+     * @return The maximum message size, in bytes
+     */
+    public int getMaxMessageSize()
+    {
+        return this.maxMessageSize;
+    }
+    
+    /**
+     * Supplies the decoder with more data. The data is referenced, not copied, until {@link #poll()} returns
+     * <i>null</i>, so the caller must not modify the range until then.
+     * 
+     * @param data
+     *            The buffer holding the data
+     * @param offset
+     *            The offset of the first new byte
+     * @param length
+     *            The number of new bytes
+     * @throws IllegalStateException
+     *             If the data from a previous call to feed has not been fully consumed.
+     */
+    public void feed(byte[] data, int offset, int length)
+    {
+        if ((offset < 0) || (length < 0) || ((offset + length) > data.length))
+            throw new IllegalArgumentException("Offset and length specified exceed the buffer");
+        
+        if (this.inputOffset < this.inputEnd)
+            throw new IllegalStateException("Fed new data before the previous data was consumed");
+        
+        this.input = data;
+        this.inputOffset = offset;
+        this.inputEnd = offset + length;
+    }
+    
+    /**
+     * Decodes the next message from the data fed so far.
+     * 
+     * @return The next complete message, or <i>null</i> if more data is needed. Once <i>null</i> has been returned,
+     *         all data fed to the decoder has been consumed.
+     * @throws UnsupportedEncodingException
+     *             If the message encoding is not supported
+     * @throws ProtocolException
+     *             If a message header announces a length larger than the maximum message size. The decoder should be
+     *             {@link #reset()} before it is reused.
+     * @throws UnsupportedOperationException
+     *             If the data does not represent a valid Trap message. The decoder should be {@link #reset()} before it
+     *             is reused.
+     */
+    public TrapMessage poll() throws UnsupportedEncodingException, ProtocolException
+    {
+        try
+        {
+            if (this.pending.position() == 0)
+            {
+                // Nothing is staged. Parse straight out of the input, if the entire message is present.
+                int available = this.inputEnd - this.inputOffset;
+                
+                if (available >= TrapMessageImpl.HEADER_SIZE)
+                {
+                    int length = this.messageLength(this.input, this.inputOffset);
+                    
+                    if (available >= length)
+                    {
+                        TrapMessage m = this.createMessage();
+                        m.deserialize(this.input, this.inputOffset, length);
+                        this.inputOffset += length;
+                        return m;
+                    }
+                }
+            }
+            
+            if (!this.stage())
+                return null;
+            
+            TrapMessage m = this.createMessage();
+            m.deserialize(this.pending.array(), 0, this.frameLength);
+            this.clearPending();
+            return m;
+        }
+        finally
+        {
+            // Release the caller's buffer as soon as it has been consumed
+            if (this.inputOffset >= this.inputEnd)
+            {
+                this.input = EMPTY;
+                this.inputOffset = this.inputEnd = 0;
+            }
+        }
+    }
+    
+    /**
+     * Moves as much of the input as belongs to the current message into the staging buffer.
+     * 
+     * @return <i>true</i> if the staging buffer holds a complete message.
+     * @throws ProtocolException
+     *             If the staged header announces an oversized message
+     */
+    private boolean stage() throws ProtocolException
+    {
+        if (this.frameLength < 0)
+        {
+            int n = Math.min(TrapMessageImpl.HEADER_SIZE - this.pending.position(), this.inputEnd - this.inputOffset);
+            this.pending.put(this.input, this.inputOffset, n);
+            this.inputOffset += n;
+            
+            if (this.pending.position() < TrapMessageImpl.HEADER_SIZE)
+                return false;
+            
+            this.frameLength = this.messageLength(this.pending.array(), 0);
+        }
+        
+        int n = Math.min(this.frameLength - this.pending.position(), this.inputEnd - this.inputOffset);
+        
+        if (this.pending.remaining() < n)
+        {
+            // Grow at least twofold so copying stays linear, but never past the announced length. Memory thus tracks the
+            // bytes actually received, not the header.
+            long doubled = 2L * this.pending.capacity();
+            int capacity = (int) Math.max(Math.min(doubled, this.frameLength), this.pending.position() + n);
+            
+            ByteBuffer grown = ByteBuffer.allocate(capacity);
+            this.pending.flip();
+            grown.put(this.pending);
+            this.pending = grown;
+        }
+        
+        this.pending.put(this.input, this.inputOffset, n);
+        this.inputOffset += n;
+        
+        return this.pending.position() == this.frameLength;
+    }
+    
+    private int messageLength(byte[] header, int offset) throws ProtocolException
+    {
+        long length = TrapMessageImpl.getMessageLength(header, offset);
+        
+        if (length > this.maxMessageSize)
+            throw new ProtocolException("Message length " + length + " exceeds the maximum of " + this.maxMessageSize + " bytes");
+        
+        return (int) length;
+    }
+    
+    private void clearPending()
+    {
+        this.frameLength = -1;
+        
+        if (this.pending.capacity() > MAX_RETAINED_BUFFER)
+            this.pending = ByteBuffer.allocate(TrapMessageImpl.HEADER_SIZE);
+        else
+            this.pending.clear();
+    }
+    
+    /**
+     * The number of bytes held by the decoder that belong to a message that has not yet been completely received.
+     * 
+     * @return The number of staged bytes
+     */
+    public int buffered()
+    {
+        return this.pending.position();
+    }
+    
+    /**
+     * Discards all staged and unconsumed data. Used to recover after a decoding error.
+     */
+    public void reset()
+    {
+        this.input = EMPTY;
+        this.inputOffset = this.inputEnd = 0;
+        this.pending = ByteBuffer.allocate(TrapMessageImpl.HEADER_SIZE);
+        this.frameLength = -1;
+    }
+    
+    protected TrapMessage createMessage()
+    {
+        return new TrapMessageImpl();
+    }
+}
@@ -33,13 +33,13 @@ package com.ericsson.research.trap.impl;
  * ##_END_LICENSE_##
  */
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.InflaterOutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
 
 import com.ericsson.research.trap.spi.TrapConstants;
 import com.ericsson.research.trap.spi.TrapMessage;
@@ -49,6 +49,10 @@ public class TrapMessageImpl implements TrapMessage
 {
 	
 	protected byte[]		data			= new byte[] {};
+	
+	// When the data is a slice of a larger array, the slice's offset and length. A length of -1 means all of data.
+	private int				dataOffset		= 0;
+	private int				dataLength		= -1;
 	protected String		authString		= null;
 	protected Format		format			= TrapConstants.MESSAGE_FORMAT_DEFAULT;
 	protected Operation		op				= Operation.OK;
@@ -56,6 +60,13 @@ public class TrapMessageImpl implements TrapMessage
 	private boolean			compressed		= false;
 	private int				channelId		= 0;
 	
+	// Encode-once caches. The compressed body and the wire length are computed lazily, at most once, and are dropped
+	// whenever the properties they depend on change.
+	private volatile byte[]	compressedData	= null;
+	private volatile byte[]	authBytes		= null;
+	private volatile long	length			= -1;
+	private int				compressionLevel	= Deflater.DEFAULT_COMPRESSION;
+	
 	public static final int	HEADER_SIZE		= 16;
 	
 	public TrapMessageImpl()
@@ -73,31 +84,56 @@ public class TrapMessageImpl implements TrapMessage
 	
 	public byte[] serialize() throws IOException
 	{
-		// Make sure the data we have is serialized.
-		// Yeah, I know this looks really odd
+		ByteBuffer buf = ByteBuffer.allocate((int) this.length());
+		this.serializeTo(buf);
+		return buf.array();
+	}
+	
+	public void serializeTo(ByteBuffer buf) throws IOException
+	{
+		byte[] authData = this.getAuthBytes();
+		byte[] mData = this.getPayload();
+		int mOffset = this.getPayloadOffset();
+		int mLength = this.getPayloadLength(mData);
 		
-		if (this.format == Format.SEVEN_BIT_SAFE)
-		{
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			this.serialize7bit(bos);
-			return bos.toByteArray();
-		}
-		else
-			return this.serialize8bit();
+		if (buf.remaining() < HEADER_SIZE + authData.length + mLength)
+			throw new BufferOverflowException();
 		
+		this.serializeHeader(buf, authData.length, mLength);
+		buf.put(authData);
+		buf.put(mData, mOffset, mLength);
 	}
 	
-	protected byte[] serialize8bit() throws UnsupportedEncodingException, IOException
+	public ByteBuffer[] serializeBuffers() throws IOException
 	{
+		byte[] authData = this.getAuthBytes();
+		byte[] mData = this.getPayload();
+		int mOffset = this.getPayloadOffset();
+		int mLength = this.getPayloadLength(mData);
 		
-		// Make 8-bit assertions
-		if (this.data.length >= Math.pow(2, 32))
-			throw new IllegalStateException("Asked to serialize more than 2^32 bytes data into a 8-bit Trap message");
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + authData.length);
+		this.serializeHeader(header, authData.length, mLength);
+		header.put(authData);
+		header.flip();
 		
+		return new ByteBuffer[] { header, ByteBuffer.wrap(mData, mOffset, mLength) };
+	}
+	
+	/**
+	 * Writes the {@link #HEADER_SIZE} byte header of this message, in the current format, into <i>buf</i>.
+	 */
+	protected void serializeHeader(ByteBuffer buf, int authLen, int contentLen)
+	{
+		if (this.format == Format.SEVEN_BIT_SAFE)
+			this.serializeHeader7bit(buf, authLen, contentLen);
+		else
+			this.serializeHeader8bit(buf, authLen, contentLen);
+	}
+	
+	protected void serializeHeader8bit(ByteBuffer buf, int authLen, int contentLen)
+	{
 		byte b1 = 0, b2 = 0;
 		
-		byte[] mData = this.getCompressedData();
-		
 		// First byte: |1|0| MESSAGEOP |
 		b1 |= this.op.getOp() | 0x80;
 		
@@ -106,9 +142,6 @@ public class TrapMessageImpl implements TrapMessage
 		if (this.compressed)
 			b2 |= 0x80;
 		
-		int authLen = (this.authString != null ? this.authString.length() : 0);
-		
-		ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + authLen + mData.length);
 		buf.put(b1);
 		buf.put(b2);
 		
@@ -127,74 +160,44 @@ public class TrapMessageImpl implements TrapMessage
 		// Byte 11-12: RSV3
 		buf.putShort((short) 0);
 		
-		buf.putInt(mData.length);
-		
-		if (authLen > 0)
-			buf.put(this.authString.getBytes("UTF-8"));
-		
-		buf.put(mData);
-		
-		/*// Third byte: Bits 3 - 9 of authLen
-		bos.write((authLen >>> 8) & 0xFF);
-		
-		// Fourth byte: Bits 10 - 16 of authLen
-		bos.write(authLen & 0xFF);
-		
-		// Transport ID!
-		this.writeInt8(this.getMessageId(), bos, true);
-		this.writeInt8(this.transportId, bos, true);
-		this.writeInt8(mData.length, bos, false);
-		
-		if (authLen > 0)
-			bos.write(this.authString.getBytes("UTF-8"));
-		
-		bos.write(mData);*/
-		
-		return buf.array();
+		buf.putInt(contentLen);
 	}
 	
-	protected void serialize7bit(ByteArrayOutputStream bos) throws IOException
+	protected void serializeHeader7bit(ByteBuffer buf, int authLen, int contentLen)
 	{
 		
 		// Make 7-bit assertions
-		if (this.data.length >= Math.pow(2, 28))
+		if (contentLen >= Math.pow(2, 28))
 			throw new IllegalStateException("Asked to serialize more than 2^28 bytes data into a 7-bit Trap message");
 		
 		byte b = 0;
 		
 		// First byte: |0|0| MESSAGEOP |
 		b |= this.op.getOp();
-		bos.write(b);
-		
-		int authLen = (this.authString != null ? this.authString.length() : 0);
+		buf.put(b);
 		
 		// Second byte: First two bits of authLen
 		// Compatibility note: 7-bit mode does not gain channels/compression.
-		bos.write(this.getBits(authLen, 17, 18));
+		buf.put((byte) this.getBits(authLen, 17, 18));
 		
 		// Third byte: Bits 3 - 9 of authLen
-		bos.write(this.getBits(authLen, 19, 25));
+		buf.put((byte) this.getBits(authLen, 19, 25));
 		
 		// Fourth byte: Bits 10 - 16 of authLen
-		bos.write(this.getBits(authLen, 26, 32));
+		buf.put((byte) this.getBits(authLen, 26, 32));
 		
 		// Transport ID!
-		this.writeInt7(this.getMessageId(), bos, true);
-		this.writeInt7(0, bos, true);
-		this.writeInt7(this.data.length, bos, false);
-		
-		if (authLen > 0)
-			bos.write(this.authString.getBytes("UTF-8"));
-		
-		bos.write(this.data);
+		this.writeInt7(this.getMessageId(), buf);
+		this.writeInt7(0, buf);
+		this.writeInt7(contentLen, buf);
 	}
 	
-	private void writeInt7(int src, ByteArrayOutputStream bos, boolean signed)
+	private void writeInt7(int src, ByteBuffer buf)
 	{
-		bos.write(this.getBits(src, 5, 11));
-		bos.write(this.getBits(src, 12, 18));
-		bos.write(this.getBits(src, 19, 25));
-		bos.write(this.getBits(src, 26, 32));
+		buf.put((byte) this.getBits(src, 5, 11));
+		buf.put((byte) this.getBits(src, 12, 18));
+		buf.put((byte) this.getBits(src, 19, 25));
+		buf.put((byte) this.getBits(src, 26, 32));
 	}
 	
 	/* (non-Javadoc)
@@ -279,7 +282,11 @@ public class TrapMessageImpl implements TrapMessage
 		
 		if (length < messageSize)
 			return -1; // Cannot successfully read the remaining values.
-			
+		
+		this.invalidate();
+		this.dataOffset = 0;
+		this.dataLength = -1;
+		
 		// Range of authHeader = (16, authLen)
 		int startByte = offset + 16;
 		
@@ -305,17 +312,9 @@ public class TrapMessageImpl implements TrapMessage
 		}
 		else
 		{
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			InflaterOutputStream ios = new InflaterOutputStream(bos);
-			
 			try
 			{
-				ios.write(rawData, startByte, contentLen);
-				ios.flush();
-				this.data = bos.toByteArray();
-				
-				ios.close();
-				bos.close();
+				this.data = CompressionPool.inflate(rawData, startByte, contentLen);
 			}
 			catch (IOException e)
 			{
@@ -327,6 +326,36 @@ public class TrapMessageImpl implements TrapMessage
 		return messageSize;
 	}
 	
+	/**
+	 * Reads the total serialized length (header, auth and body) of a message from its header. Supports both the 7-bit
+	 * and 8-bit formats.
+	 * 
+	 * @param rawData
+	 *            The buffer holding at least {@link #HEADER_SIZE} bytes of header
+	 * @param offset
+	 *            The offset of the header in the buffer
+	 * @return The number of bytes the message occupies. The value is read from untrusted data and may exceed what the
+	 *         caller is prepared to buffer.
+	 */
+	public static long getMessageLength(byte[] rawData, int offset)
+	{
+		long authLen;
+		long contentLen;
+		
+		if ((rawData[offset + 0] & 0x80) != 0)
+		{
+			authLen = ((rawData[offset + 2] & 0xFF) << 8) | (rawData[offset + 3] & 0xFF);
+			contentLen = ((rawData[offset + 12] & 0xFFL) << 24) | ((rawData[offset + 13] & 0xFF) << 16) | ((rawData[offset + 14] & 0xFF) << 8) | (rawData[offset + 15] & 0xFF);
+		}
+		else
+		{
+			authLen = ((rawData[offset + 1] & 0x03) << 14) | ((rawData[offset + 2] & 0x7F) << 7) | ((rawData[offset + 3] & 0x7F) << 0);
+			contentLen = ((rawData[offset + 12] & 0x7F) << 21) | ((rawData[offset + 13] & 0x7F) << 14) | ((rawData[offset + 14] & 0x7F) << 7) | ((rawData[offset + 15] & 0x7F) << 0);
+		}
+		
+		return HEADER_SIZE + authLen + contentLen;
+	}
+	
 	private int getBits(int src, int startBit, int endBit)
 	{
 		int mask = (int) (Math.pow(2, (endBit - startBit) + 1) - 1);
@@ -341,6 +370,15 @@ public class TrapMessageImpl implements TrapMessage
 	
 	public byte[] getData()
 	{
+		// A slice has to be copied out, as callers expect the array to hold exactly the data. Keep the copy, so that it
+		// only happens once.
+		if (this.dataLength >= 0)
+		{
+			this.data = Arrays.copyOfRange(this.data, this.dataOffset, this.dataOffset + this.dataLength);
+			this.dataOffset = 0;
+			this.dataLength = -1;
+		}
+		
 		return this.data;
 	}
 	
@@ -350,10 +388,79 @@ public class TrapMessageImpl implements TrapMessage
 	
 	public TrapMessage setData(byte[] data)
 	{
+		// Always invalidate, even for the same array: the caller may have modified it in place.
+		this.data = data;
+		this.dataOffset = 0;
+		this.dataLength = -1;
+		this.invalidate();
+		return this;
+	}
+	
+	/**
+	 * Sets the data to a slice of a larger array, without copying it. The array must not be modified while the message
+	 * is in use. {@link #getData()} will copy the slice into an array of its own, so prefer
+	 * {@link #getDataLength()} and {@link #copyData(byte[], int)} where possible.
+	 * 
+	 * @param data
+	 *            The array holding the data
+	 * @param offset
+	 *            The offset of the data in the array
+	 * @param length
+	 *            The number of bytes of data
+	 * @return This message, for chaining
+	 */
+	public TrapMessageImpl setData(byte[] data, int offset, int length)
+	{
+		if (offset < 0 || length < 0 || offset + length > data.length)
+			throw new IndexOutOfBoundsException("Slice [" + offset + ", " + (offset + length) + ") is outside of the array length " + data.length);
+		
 		this.data = data;
+		this.dataOffset = offset;
+		this.dataLength = length;
+		this.invalidate();
 		return this;
 	}
 	
+	/**
+	 * Accessor for the number of bytes of data, without copying a slice.
+	 * 
+	 * @return The data length, in bytes
+	 */
+	public int getDataLength()
+	{
+		if (this.dataLength >= 0)
+			return this.dataLength;
+		
+		byte[] d = this.getData();
+		return d != null ? d.length : 0;
+	}
+	
+	/**
+	 * Copies the data into another array, without copying a slice first.
+	 * 
+	 * @param dst
+	 *            The destination array
+	 * @param offset
+	 *            Where in <i>dst</i> to put the data
+	 * @return The number of bytes copied
+	 */
+	public int copyData(byte[] dst, int offset)
+	{
+		if (this.dataLength >= 0)
+		{
+			System.arraycopy(this.data, this.dataOffset, dst, offset, this.dataLength);
+			return this.dataLength;
+		}
+		
+		byte[] d = this.getData();
+		
+		if (d == null)
+			return 0;
+		
+		System.arraycopy(d, 0, dst, offset, d.length);
+		return d.length;
+	}
+	
 	/* (non-Javadoc)
 	 * @see com.ericsson.research.trap.impl.TrapMessage#getAuthData()
 	 */
@@ -372,10 +479,17 @@ public class TrapMessageImpl implements TrapMessage
 		if ((authData != null) && (authData.length() > 65535))
 			throw new IllegalArgumentException("Cannot have an AuthString more than 65535 bytes");
 		
-		if (authData == null || authData.length() == 0)
-			this.authString = null;
-		else
+		if (authData != null && authData.length() == 0)
+			authData = null;
+		
+		if (authData == null ? this.authString != null : !authData.equals(this.authString))
+		{
 			this.authString = authData;
+			
+			// The compressed body does not depend on the auth header, so only the length needs recomputing.
+			this.authBytes = null;
+			this.length = -1;
+		}
 		
 		return this;
 	}
@@ -395,7 +509,13 @@ public class TrapMessageImpl implements TrapMessage
 	
 	public TrapMessage setFormat(Format format)
 	{
-		this.format = format;
+		if (format != this.format)
+		{
+			this.format = format;
+			
+			// The 7-bit format never compresses, so the serialized length differs between formats.
+			this.length = -1;
+		}
 		return this;
 	}
 	
@@ -431,23 +551,34 @@ public class TrapMessageImpl implements TrapMessage
 	
 	public long length()
 	{
-		int l = HEADER_SIZE;
-		if (this.authString != null)
-			l += StringUtil.toUtfBytes(this.authString).length;
+		long l = this.length;
+		
+		if (l < 0)
+		{
+			l = HEADER_SIZE + this.getAuthBytes().length;
+			
+			byte[] mData = this.getPayload();
+			if (mData != null)
+				l += this.getPayloadLength(mData);
+			
+			this.length = l;
+		}
 		
-		if (this.getCompressedData() != null)
-			l += this.getCompressedData().length;
 		return l;
 	}
 	
 	public String toString()
 	{
-		return this.getOp() + "/C" + this.getChannel() + "/" + this.getMessageId() + (this.data != null ? "/" + this.data.length : "");
+		return this.getOp() + "/C" + this.getChannel() + "/" + this.getMessageId() + (this.data != null ? "/" + (this.dataLength >= 0 ? this.dataLength : this.data.length) : "");
 	}
 	
 	public TrapMessage setCompressed(boolean isCompressed)
 	{
-		this.compressed = isCompressed;
+		if (isCompressed != this.compressed)
+		{
+			this.compressed = isCompressed;
+			this.invalidate();
+		}
 		return this;
 	}
 	
@@ -456,6 +587,34 @@ public class TrapMessageImpl implements TrapMessage
 		return this.compressed;
 	}
 	
+	/**
+	 * Sets the zlib compression level used if this message is compressed. Has no effect on uncompressed messages.
+	 * 
+	 * @param level
+	 *            The compression level, in the range [-1,9], where -1 is the zlib default. See
+	 *            {@link Deflater#setLevel(int)}.
+	 * @return This message, for chaining
+	 * @throws IllegalArgumentException
+	 *             If the level is out of range
+	 */
+	public TrapMessageImpl setCompressionLevel(int level)
+	{
+		if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+			throw new IllegalArgumentException("Invalid compression level " + level);
+		
+		if (level != this.compressionLevel)
+		{
+			this.compressionLevel = level;
+			this.invalidate();
+		}
+		return this;
+	}
+	
+	public int getCompressionLevel()
+	{
+		return this.compressionLevel;
+	}
+	
 	public TrapMessage setChannel(int channelID)
 	{
 		if (channelID < 0 || channelID > 63)
@@ -476,27 +635,77 @@ public class TrapMessageImpl implements TrapMessage
 		if (!this.isCompressed())
 			return this.getData();
 		
-		try
+		byte[] mData = this.compressedData;
+		
+		if (mData == null)
 		{
-			ByteArrayOutputStream tos = new ByteArrayOutputStream();
-			DeflaterOutputStream dos = new DeflaterOutputStream(tos);
-			
-			dos.write(this.getData());
-			dos.finish();
-			dos.flush();
-			
-			byte[] mData = tos.toByteArray();
-			
-			dos.close();
-			tos.close();
-			dos = null;
-			tos = null;
-			
-			return mData;
+			mData = this.compress();
+			this.compressedData = mData;
 		}
-		catch (IOException e)
+		
+		return mData;
+	}
+	
+	/**
+	 * Drops the cached compressed body and serialized length. Must be called whenever the message payload, or any
+	 * property the encoding depends on, changes.
+	 */
+	protected void invalidate()
+	{
+		this.compressedData = null;
+		this.authBytes = null;
+		this.length = -1;
+	}
+	
+	/**
+	 * Retrieves the array holding the body as it is serialized in the current format. The 7-bit format does not support
+	 * compression. If the data is a slice, the body is only part of the array; see {@link #getPayloadOffset()} and
+	 * {@link #getPayloadLength(byte[])}.
+	 */
+	private byte[] getPayload()
+	{
+		if (this.isPayloadCompressed())
+			return this.getCompressedData();
+		
+		return this.dataLength >= 0 ? this.data : this.getData();
+	}
+	
+	private int getPayloadOffset()
+	{
+		return this.isPayloadCompressed() ? 0 : this.dataOffset;
+	}
+	
+	private int getPayloadLength(byte[] payload)
+	{
+		if (!this.isPayloadCompressed() && this.dataLength >= 0)
+			return this.dataLength;
+		
+		return payload.length;
+	}
+	
+	private boolean isPayloadCompressed()
+	{
+		return this.compressed && this.format != Format.SEVEN_BIT_SAFE;
+	}
+	
+	private byte[] getAuthBytes()
+	{
+		byte[] bs = this.authBytes;
+		
+		if (bs == null)
 		{
-			return this.getData();
+			bs = this.authString != null ? StringUtil.toUtfBytes(this.authString) : new byte[0];
+			this.authBytes = bs;
 		}
+		
+		return bs;
+	}
+	
+	private byte[] compress()
+	{
+		if (this.dataLength >= 0)
+			return CompressionPool.deflate(this.data, this.dataOffset, this.dataLength, this.compressionLevel);
+		
+		return CompressionPool.deflate(this.getData(), this.compressionLevel);
 	}
 }
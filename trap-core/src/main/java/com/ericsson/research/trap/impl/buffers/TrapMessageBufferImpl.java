@@ -32,7 +32,6 @@ package com.ericsson.research.trap.impl.buffers;
  * OF THE POSSIBILITY OF SUCH DAMAGE.
  * ##_END_LICENSE_##
  */
-
 import java.util.Arrays;
 
 import com.ericsson.research.trap.spi.TrapEndpointMessage;
@@ -50,6 +49,10 @@ import com.ericsson.research.trap.spi.TrapTransport;
  * penalty for accesses. If messages come from outside the buffer's range, there is a performance penalty, based on
  * buffer settings.
  * <p>
+ * The buffer grows in powers of two, so slots are normally found by masking the message ID. A bitmap records which
+ * slots have been written, which lets a resize move only the filled slots. Any number of threads may put() messages,
+ * but only one thread at a time may fetch() them; the reader does not take the buffer's monitor.
+ * <p>
  * To put it another way, it is a self-growing, circular object buffer implementing random write and sequential read.
  * 
  * @author Vladimir Katardjiev
@@ -57,51 +60,38 @@ import com.ericsson.research.trap.spi.TrapTransport;
 public class TrapMessageBufferImpl implements TrapMessageBuffer
 {
     
-    TrapEndpointMessage[] buffer;
+    volatile Ring ring;
     
-    // The next message ID that should be read
-    long                  readMessageID  = 0;
-    // The next message ID that should be written
-    long                  writeMessageID = 0;
+    // The next message ID that should be read. Only changed by the reader.
+    volatile long readMessageID      = 0;
+    // The next message ID that should be written. Only changed while holding the monitor.
+    volatile long writeMessageID     = 0;
+    // Slots for message IDs below this one have been cleared from the bitmap. Only accessed while holding the monitor.
+    long          reclaimedMessageID = 0;
     
     // We'll perform input validation to catch corrupted messages.
     // The following sizes give us the min/max values of messages we expect to receive.
-    int                   maxMessageId;
-    int                   minMessageId;
+    int           maxMessageId;
+    int           minMessageId;
     
-    int                   bufGrowthSize;
-    int                   maxBufSize;
+    int           maxBufSize;
     
     public TrapMessageBufferImpl(int bufSize, int maxBufSize, int startMessageId, int minMessageId, int maxMessageId)
     {
-        this.bufGrowthSize = bufSize;
         this.maxBufSize = maxBufSize;
         this.minMessageId = minMessageId;
         this.maxMessageId = maxMessageId;
-        this.buffer = new TrapEndpointMessage[bufSize];
+        this.ring = new Ring(bufSize);
         
         // StartMessageID tells us which message is the first to arrive.
         // This is useful if we're swapped out in the middle of a conversation.
-        this.readMessageID = this.writeMessageID = startMessageId;
-        
-        this.fillEmptyBuf(this.buffer);
-    }
-    
-    private void fillEmptyBuf(TrapEndpointMessage[] buffer)
-    {
-        for (int i = 0; i < buffer.length; i++)
-        {
-            TrapEndpointMessage m = buffer[i];
-            
-            if (m == null)
-                buffer[i] = new TrapEndpointMessage();
-        }
+        this.readMessageID = this.writeMessageID = this.reclaimedMessageID = startMessageId;
     }
     
     /* (non-Javadoc)
      * @see com.ericsson.research.trap.impl.buffers.TrapMessageBuffer#available()
      */
-    public synchronized int available()
+    public int available()
     {
         // This is a simple calculation. The (next) expected write message minus the (next) expected read message ID.
         return (int) (this.writeMessageID - this.readMessageID);
@@ -119,20 +109,26 @@ public class TrapMessageBufferImpl implements TrapMessageBuffer
         if (messageId > this.maxMessageId || messageId < this.minMessageId)
             throw new IllegalArgumentException("Message ID [" + messageId + "] outside of acceptable range [" + this.minMessageId + ", " + this.maxMessageId + "].");
         
+        // The reader can move on while we work, so use a snapshot of its position throughout. Everything before it has
+        // been read, and those slots are free to be reused.
+        long readMessageID = this.readMessageID;
+        Ring ring = this.ring;
+        this.reclaim(ring, readMessageID);
+        
         // Message IDs can be reused (and reusing them won't cleanly fit in the buffer.
         // In those wrapping cases, we'll need to up the effective messageId appropriately.
         // TODO: Better constant?
-        if (messageId < this.readMessageID)
+        if (messageId < readMessageID)
         {
-            if ((this.readMessageID - messageId) > (this.maxMessageId - this.minMessageId) / 2)
+            if ((readMessageID - messageId) > (this.maxMessageId - this.minMessageId) / 2)
                 messageId += this.maxMessageId - this.minMessageId + 1;
             else
                 return; // Skip duplicated message.
         }
         
         // Assert that the message has a chance at fitting inside the buffer
-        if (messageId > (this.readMessageID + this.maxBufSize))
-            throw new IllegalArgumentException("Message ID [" + messageId + "] outside of buffer size. First message has ID [" + this.readMessageID + "] and max buffer size is " + this.maxBufSize);
+        if (messageId > (readMessageID + this.maxBufSize))
+            throw new IllegalArgumentException("Message ID [" + messageId + "] outside of buffer size. First message has ID [" + readMessageID + "] and max buffer size is " + this.maxBufSize);
         
         // Assert the message has not already been written.
         if (messageId < this.writeMessageID)
@@ -143,64 +139,41 @@ public class TrapMessageBufferImpl implements TrapMessageBuffer
         // 2) The message is in that range and has not already been written.
         // We now need to ensure the buffer is large enough
         // This is a STRICT equality. Proof: buffer.length == 1, buffer[0] != null => buffer is full
-        if (messageId >= (this.readMessageID + this.buffer.length))
-        {
-            // This is a simple operation. Resize the old buffer into a new one by flushing out the current messages.
-            int newSize = (int) (messageId - this.readMessageID);
-            // The new size should be a multiple of bufGrowthSize
-            newSize /= this.bufGrowthSize;
-            newSize++;
-            newSize *= this.bufGrowthSize;
-            
-            TrapEndpointMessage[] newBuf = new TrapEndpointMessage[newSize];
-            this.fillEmptyBuf(newBuf);
-            
-            // Move all slots from the old buffer to the new one, recalculating the modulus as applicable.
-            // We have to move all slots as we don't track which ones have been filled.
-            //for (long readId = this.readMessageID; readId < this.readMessageID + buffer.length; readId++)
-            //{
-            //	newBuf[(int) (readId % newBuf.length)] = buffer[(int) (readId % buffer.length)];
-            //}
-            for (int i = 0; i < this.buffer.length; i++)
-            {
-                TrapEndpointMessage tmp = this.buffer[i];
-                if (tmp.getMessage() != null)
-                    newBuf[tmp.getMessage().getMessageId() % newBuf.length] = tmp;
-            }
-            
-            this.buffer = newBuf;
-            
-        }
+        if (messageId >= (readMessageID + ring.capacity()))
+            ring = this.grow(ring, (int) (messageId - readMessageID + 1));
         
         // Where are we now? Well, that's the rad part. We now know that messageId will comfortably fit in our world so all we need to do is fill it.
-        TrapEndpointMessage slot = this.buffer[(int) (messageId % this.buffer.length)];
-        slot.setMessage(m);
-        slot.t = t;
-        
-        //System.out.println("Wrote message with ID " + messageId + " and expected ID " + writeMessageID);
+        int slot = ring.index(messageId);
+        ring.messages[slot] = m;
+        ring.transports[slot] = t;
+        ring.fill(slot);
         
         // Final step is to increment the writeMessageId entry, if applicable.
         if (messageId == this.writeMessageID)
         {
+            long writeMessageID = messageId;
+            long lastMessageID = readMessageID + ring.capacity();
+            
             do
             {
-                long expectedMessageId = this.writeMessageID;
+                long expectedMessageId = writeMessageID;
                 
                 if (expectedMessageId > this.maxMessageId)
                     expectedMessageId -= this.maxMessageId - this.minMessageId + 1;
                 
                 // Bug catch verification. Logically, writeMessageID should be the message ID of the current slot's message. If they don't match, we're in deep doodoo
-                if (slot.getMessage().getMessageId() != expectedMessageId)
+                TrapMessage current = ring.messages[slot];
+                if (current == null || current.getMessageId() != expectedMessageId)
                     throw new IllegalStateException("Trap Message Buffer corrupted. Unexpected message ID found. This needs debugging...");
                 
                 // Increment by one.
-                this.writeMessageID++;
+                writeMessageID++;
                 // Fetch the next entry
-                slot = this.buffer[(int) (this.writeMessageID % this.buffer.length)];
-                
-                //System.out.println("Slot.m: " + slot.m + " and rem size " + available() + " vs buffer " + buffer.length);
-                //System.out.println((slot.m != null && (this.writeMessageID - this.readMessageID) < buffer.length));
-            } while (slot.getMessage() != null && (this.writeMessageID - this.readMessageID) < this.buffer.length);
+                slot = ring.index(writeMessageID);
+            } while (writeMessageID < lastMessageID && ring.isFilled(slot));
+            
+            // The reader trusts every slot before writeMessageID, so it must only be published once they are written.
+            this.writeMessageID = writeMessageID;
         }
         
     }
@@ -208,70 +181,187 @@ public class TrapMessageBufferImpl implements TrapMessageBuffer
     /* (non-Javadoc)
      * @see com.ericsson.research.trap.impl.buffers.TrapMessageBuffer#fetch(com.ericsson.research.trap.spi.TrapEndpointMessage, boolean)
      */
-    public synchronized boolean fetch(TrapEndpointMessage target)
+    public boolean fetch(TrapEndpointMessage target)
     {
+        long readMessageID = this.readMessageID;
         
         // Nothing to read here, move along...
-        if (this.readMessageID >= this.writeMessageID)
+        if (readMessageID >= this.writeMessageID)
         {
             target.setMessage(null);
             target.t = null;
             return false;
         }
-        try
+        
+        // Reading the ring after writeMessageID guarantees that it holds every message up to writeMessageID.
+        Ring ring = this.ring;
+        int slot = ring.index(readMessageID);
+        
+        target.setMessage(ring.messages[slot]);
+        target.t = ring.transports[slot];
+        
+        // Writers will not reuse this slot until readMessageID has moved past it, so we can clear it without locking. If
+        // the buffer was resized meanwhile, the copy in the new ring is cleared by the next put().
+        ring.messages[slot] = null;
+        ring.transports[slot] = null;
+        this.readMessageID = ++readMessageID;
+        
+        // If we have wrapped around the messages, we can finally throw ourselves a bone and reduce the message IDs to handle wrapping gracefully.
+        if (readMessageID > this.maxMessageId)
+            this.rewrap();
+        
+        return true;
+    }
+    
+    /*
+     * Clears the bitmap for all slots that have been read since the last call. Must hold the monitor.
+     */
+    private void reclaim(Ring ring, long readMessageID)
+    {
+        for (long id = this.reclaimedMessageID; id < readMessageID; id++)
+            ring.clear(ring.index(id));
+        
+        this.reclaimedMessageID = readMessageID;
+    }
+    
+    /*
+     * Replaces the ring with one that can hold at least the required number of messages, counted from the reclaimed
+     * read position. Must hold the monitor.
+     */
+    private Ring grow(Ring ring, int required)
+    {
+        // Always grow to a power of two, at least double the previous capacity, so that indexing can use a mask.
+        int capacity = Integer.highestOneBit(Math.max(required, ring.capacity() + 1) - 1) << 1;
+        
+        Ring grown = new Ring(capacity);
+        ring.moveTo(grown, this.reclaimedMessageID, 0);
+        this.ring = grown;
+        return grown;
+    }
+    
+    /*
+     * Reduces the message IDs by a full range once the reader has passed maxMessageId. Called by the reader.
+     */
+    private synchronized void rewrap()
+    {
+        // The easiest way is to just create a new buffer and refill it.
+        // This is a fairly expensive operation, but it should only happen once every billion messages or so, so we can consider
+        // the cost amortized.
+        long range = this.maxMessageId - this.minMessageId + 1;
+        Ring ring = this.ring;
+        this.reclaim(ring, this.readMessageID);
+        
+        Ring rewrapped = new Ring(ring.capacity());
+        ring.moveTo(rewrapped, this.reclaimedMessageID, range);
+        this.ring = rewrapped;
+        
+        this.reclaimedMessageID -= range;
+        this.readMessageID -= range;
+        this.writeMessageID -= range;
+    }
+    
+    public synchronized String toString()
+    {
+        this.reclaim(this.ring, this.readMessageID);
+        return Arrays.toString(this.ring.messages);
+    }
+    
+    /**
+     * The slots of the buffer. A new ring is created whenever the buffer is resized or rewrapped, so that the reader can
+     * keep using the one it has while writers move on to the next.
+     */
+    static class Ring
+    {
+        
+        final TrapMessage[]   messages;
+        final TrapTransport[] transports;
+        final long[]          filled;
+        
+        // capacity - 1 if the capacity is a power of two, otherwise -1 and we fall back to modulo.
+        final int             mask;
+        
+        Ring(int capacity)
+        {
+            this.messages = new TrapMessage[capacity];
+            this.transports = new TrapTransport[capacity];
+            this.filled = new long[(capacity + 63) >>> 6];
+            this.mask = (capacity & (capacity - 1)) == 0 ? capacity - 1 : -1;
+        }
+        
+        int capacity()
+        {
+            return this.messages.length;
+        }
+        
+        int index(long messageId)
+        {
+            if (this.mask >= 0)
+                return (int) messageId & this.mask;
+            
+            return (int) (messageId % this.messages.length);
+        }
+        
+        boolean isFilled(int slot)
         {
-            TrapEndpointMessage m = null;
-            for (;;)
+            return (this.filled[slot >>> 6] & (1L << slot)) != 0;
+        }
+        
+        void fill(int slot)
+        {
+            this.filled[slot >>> 6] |= 1L << slot;
+        }
+        
+        void clear(int slot)
+        {
+            this.filled[slot >>> 6] &= ~(1L << slot);
+            this.messages[slot] = null;
+            this.transports[slot] = null;
+        }
+        
+        /*
+         * Returns the first filled slot at or after the given one, or -1 if there is none.
+         */
+        int nextFilled(int slot)
+        {
+            int word = slot >>> 6;
+            
+            if (word >= this.filled.length)
+                return -1;
+            
+            long bits = this.filled[word] & (-1L << slot);
+            
+            while (bits == 0)
             {
+                if (++word == this.filled.length)
+                    return -1;
                 
-                m = this.buffer[(int) (this.readMessageID % this.buffer.length)];
-                
-                if (m.getMessage() != null)
-                {
-                    //System.out.println("Read message with ID " + m.m.getMessageId() + " and expected ID " + this.readMessageID);
-                    this.readMessageID++;
-                    target.setMessage(m.getMessage());
-                    target.t = m.t;
-                    m.setMessage(null);
-                    m.t = null;
-                    return true;
-                }
-                else
-                {
-                    return false;
-                }
+                bits = this.filled[word];
             }
+            
+            return (word << 6) + Long.numberOfTrailingZeros(bits);
         }
-        finally
+        
+        /*
+         * Copies the filled slots into another ring. The messages are assumed to lie within [first, first + capacity),
+         * and are moved to their ID minus offset.
+         */
+        void moveTo(Ring target, long first, long offset)
         {
-            // If we have wrapped around the messages, we can finally throw ourselves a bone and reduce the message IDs to handle wrapping gracefully.
-            if (this.readMessageID > this.maxMessageId)
+            int firstSlot = this.index(first);
+            
+            for (int slot = this.nextFilled(0); slot >= 0; slot = this.nextFilled(slot + 1))
             {
-                // The easiest way is to just create a new buffer and refill it.
-                // This is a fairly expensive operation, but it should only happen once every billion messages or so, so we can consider
-                // the cost amortized.
-                TrapEndpointMessage[] newBuf = new TrapEndpointMessage[this.buffer.length];
-                this.fillEmptyBuf(newBuf);
-                
-                this.readMessageID -= this.maxMessageId - this.minMessageId + 1;
-                this.writeMessageID -= this.maxMessageId - this.minMessageId + 1;
+                int distance = slot - firstSlot;
                 
-                // Recalculation can and should be based on the message IDs. This prevents us from doing expensive errors.
-                for (int i = 0; i < newBuf.length; i++)
-                {
-                    TrapEndpointMessage tmp = this.buffer[i];
-                    if (tmp.getMessage() != null)
-                        newBuf[tmp.getMessage().getMessageId() % newBuf.length] = tmp;
-                }
+                if (distance < 0)
+                    distance += this.capacity();
                 
-                this.buffer = newBuf;
+                int targetSlot = target.index(first + distance - offset);
+                target.messages[targetSlot] = this.messages[slot];
+                target.transports[targetSlot] = this.transports[slot];
+                target.fill(targetSlot);
             }
         }
     }
     
-    public String toString()
-    {
-        return Arrays.toString(this.buffer);
-    }
-    
 }
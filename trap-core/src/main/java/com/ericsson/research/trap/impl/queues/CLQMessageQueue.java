@@ -33,9 +33,8 @@ package com.ericsson.research.trap.impl.queues;
  * ##_END_LICENSE_##
  */
 
-import java.util.Iterator;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.ericsson.research.trap.TrapEndpoint;
 import com.ericsson.research.trap.TrapException;
@@ -43,39 +42,84 @@ import com.ericsson.research.trap.spi.TrapMessage;
 import com.ericsson.research.trap.spi.queues.BlockingMessageQueue;
 import com.ericsson.research.trap.spi.queues.MessageQueue;
 
+/**
+ * A bounded, blocking message queue backed by a {@link ConcurrentLinkedQueue}. Putting and popping messages is lock
+ * free as long as the queue has room; producers only block, on a monitor, once the queue is full.
+ */
 public class CLQMessageQueue implements MessageQueue, BlockingMessageQueue
 {
 	
-	private final LinkedBlockingQueue<TrapMessage>	messageQueue;
-	private long									maxQueueSize	= 1000;
-	private long									blockingTimeout	= 30000;
+	private final ConcurrentLinkedQueue<TrapMessage>	messageQueue	= new ConcurrentLinkedQueue<TrapMessage>();
+	private final AtomicInteger							count			= new AtomicInteger(0);
+	private final AtomicInteger							waiting			= new AtomicInteger(0);
+	private final Object								notFull			= new Object();
+	private long										maxQueueSize	= 1000;
+	private long										blockingTimeout	= 30000;
 	
 	public CLQMessageQueue()
 	{
-		this.messageQueue = new LinkedBlockingQueue<TrapMessage>((int) this.maxQueueSize);
 	}
 	
 	public CLQMessageQueue(int queueSize)
 	{
 		this.maxQueueSize = queueSize;
-		this.messageQueue = new LinkedBlockingQueue<TrapMessage>(queueSize);
-		
 	}
 	
 	public void put(TrapMessage message) throws TrapException
 	{
+		if (!this.reserve())
+			this.awaitSpace();
+		
+		this.messageQueue.offer(message);
+	}
+	
+	/**
+	 * Claims a slot for a new message, if the queue is not full.
+	 */
+	private boolean reserve()
+	{
+		for (;;)
+		{
+			int c = this.count.get();
+			
+			if (c >= this.maxQueueSize)
+				return false;
+			
+			if (this.count.compareAndSet(c, c + 1))
+				return true;
+		}
+	}
+	
+	private void awaitSpace() throws TrapException
+	{
+		long deadline = System.currentTimeMillis() + this.blockingTimeout;
+		
+		// Register as waiting before the final check, so that pop() knows to notify us.
+		this.waiting.incrementAndGet();
 		
 		try
 		{
-			if (!this.messageQueue.offer(message, this.blockingTimeout, TimeUnit.MILLISECONDS))
-				throw new TrapException("Could not insert the message!");
+			synchronized (this.notFull)
+			{
+				while (!this.reserve())
+				{
+					long remaining = deadline - System.currentTimeMillis();
+					
+					if (remaining <= 0)
+						throw new TrapException("Could not insert the message!");
+					
+					this.notFull.wait(remaining);
+				}
+			}
 		}
-		catch (Exception e)
+		catch (InterruptedException e)
 		{
-			// The only other exceptions are caused by reflection (=not caused) or runtime (OOM, etc)
 			throw new TrapException(e);
 		}
-		
+		finally
+		{
+			this.waiting.decrementAndGet();
+		}
 	}
 	
 	public TrapMessage peek()
@@ -85,7 +129,22 @@ public class CLQMessageQueue implements MessageQueue, BlockingMessageQueue
 	
 	public TrapMessage pop()
 	{
-		return this.messageQueue.poll();
+		TrapMessage m = this.messageQueue.poll();
+		
+		if (m != null)
+		{
+			this.count.decrementAndGet();
+			
+			if (this.waiting.get() > 0)
+			{
+				synchronized (this.notFull)
+				{
+					this.notFull.notify();
+				}
+			}
+		}
+		
+		return m;
 	}
 	
 	public long size()
@@ -100,21 +159,12 @@ public class CLQMessageQueue implements MessageQueue, BlockingMessageQueue
 	
 	public int length()
 	{
-		return this.messageQueue.size();
+		return this.count.get();
 	}
 	
 	public boolean hasMoreThanOne()
 	{
-		try
-		{
-			Iterator<TrapMessage> it = this.messageQueue.iterator();
-			it.next();
-			return it.hasNext();
-		}
-		catch (Exception e)
-		{
-			return false;
-		}
+		return this.count.get() > 1;
 	}
 	
 	public long blockingTimeout()
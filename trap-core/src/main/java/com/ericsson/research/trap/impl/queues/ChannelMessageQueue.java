@@ -44,11 +44,13 @@ import com.ericsson.research.trap.spi.TrapMessage;
 
 /**
  * A pseudo message queue that pulls its input from the endpoint's channels. The channel list is rebuilt on demand.
+ * Channels are served in strict priority order, taking turns within the same priority. This is the
+ * {@link com.ericsson.research.trap.TrapEndpoint#PRIORITY_SCHEDULER}.
  * 
  * @author Vladimir Katardjiev
  */
 
-public class ChannelMessageQueue
+public class ChannelMessageQueue implements ChannelScheduler
 {
     RoundRobinChannelSelector[] priorities = new RoundRobinChannelSelector[0];
     long                        cPrio      = 0;
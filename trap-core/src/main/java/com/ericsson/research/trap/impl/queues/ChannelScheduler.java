@@ -0,0 +1,77 @@
+package com.ericsson.research.trap.impl.queues;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import com.ericsson.research.trap.impl.TrapChannelImpl;
+import com.ericsson.research.trap.spi.TrapMessage;
+
+/**
+ * Decides which channel the endpoint sends from next. A scheduler does not hold messages itself; it pulls them from the
+ * channels' queues. It is only used from one thread at a time, the endpoint's sending thread, except when the endpoint
+ * drains it on close.
+ * 
+ * @see com.ericsson.research.trap.TrapEndpoint#OPTION_SCHEDULER
+ */
+public interface ChannelScheduler
+{
+    
+    /**
+     * Rebuilds the scheduler's view of the channels. Called whenever a channel is added or its scheduling class
+     * changes. The array may contain <i>null</i> entries, which are ignored.
+     * 
+     * @param channels
+     *            The endpoint's channels.
+     */
+    public void rebuild(TrapChannelImpl[] channels);
+    
+    /**
+     * Finds the next message to send, without removing it.
+     * 
+     * @return The message a subsequent {@link #pop()} will return, or <i>null</i> if no channel can send.
+     */
+    public TrapMessage peek();
+    
+    /**
+     * Removes the message returned by the last {@link #peek()} from its channel.
+     * 
+     * @return The removed message.
+     */
+    public TrapMessage pop();
+    
+    /**
+     * Called when the sending thread has finished a pass. Schedulers may use this to restart their selection.
+     */
+    public void rewind();
+    
+}
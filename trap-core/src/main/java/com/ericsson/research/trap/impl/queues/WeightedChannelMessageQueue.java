@@ -0,0 +1,225 @@
+package com.ericsson.research.trap.impl.queues;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+
+import com.ericsson.research.trap.impl.TrapChannelImpl;
+import com.ericsson.research.trap.spi.TrapMessage;
+
+/**
+ * Schedules channels using deficit round robin. Each round, a channel may send up to its weight in bytes, plus whatever
+ * it did not use in previous rounds while it had messages waiting. Channels thus share the link in proportion to their
+ * weights, whatever the size of their messages. A bulk channel cannot hold up an interactive one for longer than the
+ * sum of the other channels' weights.
+ * <p>
+ * Latency sensitive channels are kept outside the rounds, and are always served first, in order of priority.
+ * <p>
+ * This is the {@link com.ericsson.research.trap.TrapEndpoint#WEIGHTED_SCHEDULER}.
+ */
+public class WeightedChannelMessageQueue implements ChannelScheduler
+{
+    TrapChannelImpl[] urgent   = new TrapChannelImpl[0];
+    TrapChannelImpl[] weighted = new TrapChannelImpl[0];
+    
+    // Unused bytes for each weighted channel.
+    long[]            deficits = new long[0];
+    
+    // The weighted channel whose turn it is, and whether it has received its weight for this turn.
+    int               current  = 0;
+    boolean           credited = false;
+    
+    // The channel that the last peeked message came from.
+    TrapChannelImpl   peeked   = null;
+    
+    public WeightedChannelMessageQueue()
+    {
+    }
+    
+    public void rebuild(TrapChannelImpl[] channels)
+    {
+        ArrayList<TrapChannelImpl> urgent = new ArrayList<TrapChannelImpl>();
+        ArrayList<TrapChannelImpl> weighted = new ArrayList<TrapChannelImpl>();
+        
+        for (int i = 0; i < channels.length; i++)
+        {
+            TrapChannelImpl c = channels[i];
+            
+            if (c == null)
+                continue;
+            
+            if (c.isLatencySensitive())
+                urgent.add(c);
+            else
+                weighted.add(c);
+        }
+        
+        Collections.sort(urgent, new Comparator<TrapChannelImpl>() {
+            
+            public int compare(TrapChannelImpl o1, TrapChannelImpl o2)
+            {
+                return o2.getPriority() < o1.getPriority() ? -1 : (o2.getPriority() == o1.getPriority() ? 0 : 1);
+            }
+        });
+        
+        synchronized (this)
+        {
+            // Keep the deficits of channels that remain weighted, so a rebuild does not reset the rounds.
+            long[] deficits = new long[weighted.size()];
+            
+            for (int i = 0; i < this.weighted.length; i++)
+            {
+                int idx = weighted.indexOf(this.weighted[i]);
+                
+                if (idx >= 0)
+                    deficits[idx] = this.deficits[i];
+            }
+            
+            this.urgent = urgent.toArray(new TrapChannelImpl[urgent.size()]);
+            this.weighted = weighted.toArray(new TrapChannelImpl[weighted.size()]);
+            this.deficits = deficits;
+            this.current = 0;
+            this.credited = false;
+            this.peeked = null;
+        }
+    }
+    
+    public synchronized TrapMessage peek()
+    {
+        this.peeked = null;
+        
+        for (int i = 0; i < this.urgent.length; i++)
+        {
+            TrapMessage m = this.urgent[i].peek();
+            
+            if (m != null)
+            {
+                this.peeked = this.urgent[i];
+                return m;
+            }
+        }
+        
+        int n = this.weighted.length;
+        
+        // Every visit to a channel with a message either returns it or credits the channel for its next turn, so as long
+        // as some channel has a message we'll get there. If we pass all channels without finding any, we're done.
+        for (int empty = 0; empty < n;)
+        {
+            TrapChannelImpl c = this.weighted[this.current];
+            TrapMessage m = c.peek();
+            
+            if (m == null)
+            {
+                // An idle channel may not save up for later.
+                this.deficits[this.current] = 0;
+                this.next();
+                empty++;
+                continue;
+            }
+            
+            if (!this.credited)
+            {
+                this.deficits[this.current] += c.getWeight();
+                this.credited = true;
+            }
+            
+            if (m.length() <= this.deficits[this.current])
+            {
+                this.peeked = c;
+                return m;
+            }
+            
+            this.next();
+            empty = 0;
+        }
+        
+        return null;
+    }
+    
+    public synchronized TrapMessage pop()
+    {
+        TrapChannelImpl c = this.peeked;
+        this.peeked = null;
+        
+        if (c == null)
+            return null;
+        
+        TrapMessage m = c.pop();
+        
+        if (m != null && !c.isLatencySensitive() && this.weighted.length > 0 && this.weighted[this.current] == c)
+            this.deficits[this.current] -= m.length();
+        
+        return m;
+    }
+    
+    public void rewind()
+    {
+        // The rounds continue where they left off, so that no channel is favoured by the sending thread restarting.
+    }
+    
+    private void next()
+    {
+        this.current++;
+        
+        if (this.current >= this.weighted.length)
+            this.current = 0;
+        
+        this.credited = false;
+    }
+    
+    public synchronized String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        
+        sb.append("[\n\turgent: ");
+        sb.append(Arrays.toString(this.urgent));
+        
+        for (int i = 0; i < this.weighted.length; i++)
+        {
+            sb.append("\n\t");
+            sb.append(this.weighted[i].getWeight());
+            sb.append("/");
+            sb.append(this.deficits[i]);
+            sb.append(": ");
+            sb.append(this.weighted[i].toString());
+        }
+        
+        sb.append("\n]");
+        
+        return sb.toString();
+    }
+}
@@ -33,17 +33,17 @@ package com.ericsson.research.trap.spi.transports;
  * ##_END_LICENSE_##
  */
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
+import java.net.ProtocolException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.NoSuchElementException;
@@ -51,6 +51,7 @@ import java.util.NoSuchElementException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.ericsson.research.trap.TrapEndpoint;
 import com.ericsson.research.trap.TrapException;
 import com.ericsson.research.trap.auth.TrapAuthentication;
 import com.ericsson.research.trap.auth.TrapAuthenticationException;
@@ -58,6 +59,7 @@ import com.ericsson.research.trap.auth.TrapContextKeys;
 import com.ericsson.research.trap.impl.AutoconfigurationDisabledException;
 import com.ericsson.research.trap.impl.NullAuthentication;
 import com.ericsson.research.trap.impl.TrapConfigurationImpl;
+import com.ericsson.research.trap.impl.TrapMessageDecoder;
 import com.ericsson.research.trap.impl.TrapMessageImpl;
 import com.ericsson.research.trap.spi.TrapConfiguration;
 import com.ericsson.research.trap.spi.TrapConstants;
@@ -106,9 +108,8 @@ public abstract class AbstractTransport implements TrapTransport, TrapKeepaliveD
     
     protected Logger                     logger;
     
-    // Linked list... Transports are in-order, so in most cases, non-dropped
-    // messages will arrive on FCFS basis
-    protected LinkedList<TrapMessage>    messagesInTransit      = new LinkedList<TrapMessage>();
+    // Kept in send order, and indexed by channel and message ID so acks are resolved without scanning.
+    protected TransitMessageQueue        messagesInTransit      = new TransitMessageQueue();
     
     // Internal buffer used to queue messages that must be sent on this transport
     protected LinkedList<TrapMessage>    transportMessageBuffer = new LinkedList<TrapMessage>();
@@ -131,7 +132,7 @@ public abstract class AbstractTransport implements TrapTransport, TrapKeepaliveD
     public void init()
     {
         this.state = TrapTransportState.DISCONNECTED;
-        this.messagesInTransit = new LinkedList<TrapMessage>();
+        this.messagesInTransit = new TransitMessageQueue();
         this.lastAlive = 0;
         this.keepalivePredictor.stop();
         this.keepalivePredictor.setDelegate(this);
@@ -216,6 +217,12 @@ public abstract class AbstractTransport implements TrapTransport, TrapKeepaliveD
         option = this.configuration.getIntOption("trap.keepalive.expiry", (int) this.keepalivePredictor.getKeepaliveExpiry());
         this.setKeepaliveExpiry(option);
         
+        option = this.getIntOption(TrapEndpoint.OPTION_MAX_MESSAGE_SIZE, this.decoder.getMaxMessageSize());
+        if (option >= TrapMessageImpl.HEADER_SIZE)
+            this.decoder.setMaxMessageSize(option);
+        else
+            this.logger.warn("Ignoring transport {} maximum message size {}; it must be at least {} bytes", this.getTransportName(), option, TrapMessageImpl.HEADER_SIZE);
+        
         // Note: Loggerprefix is a global setting; inherit from parent.
         String loggerString = this.configuration.getOption(OPTION_LOGGERPREFIX);
         if (loggerString != null)
@@ -629,77 +636,52 @@ public abstract class AbstractTransport implements TrapTransport, TrapKeepaliveD
         }
     }
     
-    ByteArrayOutputStream bos         = new ByteArrayOutputStream();
-    
     /**
-     * Call this when data is received.
-     * 
-     * @param data
+     * Incremental decoder for incoming data. Messages spread out over two or more incoming data blobs (e.g. socket
+     * reads) are reassembled here.
      */
-    int                   i           = 0;
+    protected TrapMessageDecoder decoder     = new TrapMessageDecoder();
     
     // There is no reason for receive to be publicly synchronized other than prevent it from
     // being called concurrently. We can order the requests using a lock better
-    private Object        receiveLock = new Object();
+    private Object               receiveLock = new Object();
+    private byte[]               bodyBuf;
     
+    /**
+     * Call this when data is received. The data may contain any number of complete or partial messages; partial
+     * messages are completed by subsequent calls.
+     * 
+     * @param data
+     *            The buffer holding the received data
+     * @param offset
+     *            The offset of the first received byte
+     * @param length
+     *            The number of received bytes
+     */
     public void receive(byte[] data, int offset, int length)
     {
         
         synchronized (this.receiveLock)
         {
-            int consumed = 0;
-            
-            //if (new String(data).contains("HTTP"))
-            //	System.out.println("Lolwut?");
-            
             try
             {
-                // We need to handle the case where message data is spread out over two or more incoming data blobs (e.g. socket, udp, etc)...
-                // Therefore, we'll need to do some buffer shuffling.
-                
-                this.bos.write(data, offset, length);
-                byte[] dataArray = this.bos.toByteArray();
+                this.decoder.feed(data, offset, length);
                 
-                do
-                {
-                    
-                    // Saving these for posterity. Essentially, this was an attempt to check the integrity of the buffers.
-                    // There may be a case to be made for a Trap Checksum, but I'm not going all the way there yet.
-                    //					if (dataArray[consumed] > 32)
-                    //						System.out.println("Potential break in the system here");
-                    
-                    TrapMessage m = new TrapMessageImpl();
-                    int thisLoop = m.deserialize(dataArray, consumed, dataArray.length - consumed);
-                    
-                    if (thisLoop == -1)
-                    {
-                        
-                        //						if (dataArray[consumed] > 32 || dataArray[consumed] == 5)
-                        //							System.out.println("Potential break in the system here");
-                        
-                        break;
-                    }
-                    
+                TrapMessage m;
+                while ((m = this.decoder.poll()) != null)
                     this.receiveMessage(m);
-                    
-                    consumed += thisLoop;
-                } while (consumed < dataArray.length);
-                
-                if (consumed > 0)
-                {
-                    this.bos = new ByteArrayOutputStream();
-                    try
-                    {
-                        this.bos.write(dataArray, consumed, dataArray.length - consumed);
-                    }
-                    catch (Throwable t)
-                    {
-                        System.out.println(t);
-                    }
-                }
+            }
+            catch (ProtocolException e)
+            {
+                // The peer announced a message we refuse to buffer. Drop the stream rather than trust the rest of it.
+                this.decoder.reset();
+                this.logger.warn("Transport Error: {} received a malformed message: {}. Terminating the transport.", this, e.getMessage());
+                this.sendTransportSpecific(this.createMessage().setOp(Operation.END));
+                this.internalDisconnect();
             }
             catch (UnsupportedEncodingException e)
             {
+                this.decoder.reset();
                 this.sendTransportSpecific(this.createMessage().setOp(Operation.END));
                 
                 // Close the transport, since it's invalid
@@ -709,26 +691,23 @@ public abstract class AbstractTransport implements TrapTransport, TrapKeepaliveD
             catch (UnsupportedOperationException e)
             {
                 // The transport has an erroneous buffer. Clear our local buffer, then disconnect.
+                this.decoder.reset();
                 this.logger.warn("Transport Error: {} received a Trap message with an unsupported operation. This means one of two things: either you are connecting to a newer version of Trap, or the data on this transport is corrupted.", this);
                 this.logger.warn("Transport Error: Dumping the data that caused this error in level DEBUG...");
                 
-                byte[] dataArray = this.bos.toByteArray();
-                
-                int start = consumed;
-                int end = Math.min(dataArray.length, consumed + 400);
+                int start = offset;
+                int end = Math.min(offset + length, offset + 400);
                 
                 StringBuffer sb = new StringBuffer();
                 sb.append("[");
                 
                 for (int i = start; i < end; i++)
                 {
-                    sb.append(dataArray[i]);
-                    sb.append(", ");
+                    if (i > start)
+                        sb.append(", ");
+                    sb.append(data[i]);
                 }
                 
-                sb.deleteCharAt(sb.length() - 1);
-                sb.deleteCharAt(sb.length() - 1);
-                
                 sb.append("]");
                 
                 this.logger.debug(sb.toString());
@@ -742,6 +721,37 @@ public abstract class AbstractTransport implements TrapTransport, TrapKeepaliveD
         }
     }
     
+    /**
+     * Call this with the body of a request that carries a whole batch of messages, such as an HTTP POST. The body is
+     * read to its end while holding the receive lock, so the bodies of requests that the peer has overlapped reach
+     * the decoder one at a time rather than interleaved.
+     * 
+     * @param is
+     *            The request body
+     * @return The number of reads that returned data. 0 means the body was empty.
+     * @throws IOException
+     *             If the body could not be read
+     */
+    protected int receive(InputStream is) throws IOException
+    {
+        int reads = 0;
+        int read;
+        
+        synchronized (this.receiveLock)
+        {
+            if (this.bodyBuf == null)
+                this.bodyBuf = new byte[4096];
+            
+            while ((read = is.read(this.bodyBuf)) > -1)
+            {
+                reads++;
+                this.receive(this.bodyBuf, 0, read);
+            }
+        }
+        
+        return reads;
+    }
+    
     public String toString()
     {
         return this.getTransportName() + "/" + this.getState() + "/" + Integer.toHexString(this.hashCode());
@@ -1534,45 +1544,27 @@ public abstract class AbstractTransport implements TrapTransport, TrapKeepaliveD
         if (messageID == 0)
             return;
         
-        try
+        synchronized (this.messagesInTransit)
         {
-            synchronized (this.messagesInTransit)
+            this.logger.trace("Transport {} received ack for message id C{}/{}. Got transit list: {}", new Object[] { this.getTransportName(), channelID, messageID, this.messagesInTransit });
+            
+            TrapMessage first = this.messagesInTransit.peek();
+            TrapMessage m = this.messagesInTransit.remove(channelID, messageID);
+            
+            if (m == null)
+                return;
+            
+            this.logger.trace("Removed transit message {}; new list is {}", m, this.messagesInTransit);
+            
+            if (m != first)
             {
-                this.logger.trace("Transport {} received ack for message id C{}/{}. Got transit list: {}", new Object[] { this.getTransportName(), channelID, messageID, this.messagesInTransit });
-                Iterator<TrapMessage> it = this.messagesInTransit.iterator();
-                
-                boolean first = true;
-                
-                while (it.hasNext())
-                {
-                    TrapMessage m = it.next();
-                    
-                    if (m.getMessageId() == messageID && m.getChannel() == channelID)
-                    {
-                        it.remove();
-                        this.logger.trace("Removed transit message {}; new list is {}", m, this.messagesInTransit);
-                        
-                        if (!first)
-                        {
-                            // This implies dropped messages!!!
-                            //this.logger.error("It appears we have dropped some messages on an otherwise working transport. Most likely, this transport is bugged; please report this. Transport was {}", this);
-                            // Solution: Resend.
-                            this.sendTransportSpecific(this.messagesInTransit.peek());
-                        }
-                        
-                        this.delegate.ttMessageSent(m, this, this.delegateContext);
-                        
-                        return;
-                    }
-                    
-                    first = false;
-                }
+                // This implies dropped messages!!!
+                //this.logger.error("It appears we have dropped some messages on an otherwise working transport. Most likely, this transport is bugged; please report this. Transport was {}", this);
+                // Solution: Resend.
+                this.sendTransportSpecific(this.messagesInTransit.peek());
             }
-        }
-        finally
-        {
-            //if (this.messagesInTransit.size() < 500)
-            //this.setState(TrapTransportState.AVAILABLE);
+            
+            this.delegate.ttMessageSent(m, this, this.delegateContext);
         }
     }
     
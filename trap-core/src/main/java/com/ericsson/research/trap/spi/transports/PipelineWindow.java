@@ -0,0 +1,158 @@
+package com.ericsson.research.trap.spi.transports;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.util.LinkedList;
+import java.util.Queue;
+
+import com.ericsson.research.trap.spi.TrapMessage;
+
+/**
+ * Schedules the uplink of a transport that can have several requests in flight at once, such as pipelined HTTP POSTs.
+ * Up to {@link #getWindow()} batches may be outstanding. Messages the far end can put back in order share the window;
+ * any other message (e.g. CLOSE) is sent alone once the window has drained, and nothing is sent past it until it
+ * completes.
+ * <p>
+ * This class is not thread safe; callers synchronize on their sending lock.
+ */
+public class PipelineWindow
+{
+    
+    private int     window   = 1;
+    private int     inFlight = 0;
+    private boolean barrier  = false; // A batch that must not be overlapped is in flight
+    
+    /**
+     * Sets the number of batches that may be in flight at once. Values below 1 are treated as 1.
+     */
+    public void setWindow(int window)
+    {
+        this.window = Math.max(1, window);
+    }
+    
+    public int getWindow()
+    {
+        return this.window;
+    }
+    
+    public int getInFlight()
+    {
+        return this.inFlight;
+    }
+    
+    /**
+     * @return <i>true</i> if no batch may be sent until one in flight has completed.
+     */
+    public boolean isFull()
+    {
+        return (this.inFlight >= this.window) || this.barrier;
+    }
+    
+    /**
+     * Takes the next batch off the queue and counts it as in flight. Each batch must be handed back to
+     * {@link #complete(LinkedList)} once it has been sent, or has failed.
+     * 
+     * @param queue
+     *            The messages waiting to be sent, in order
+     * @return The messages to send in one request, or <i>null</i> if the window is full or the head of the queue has
+     *         to wait for the window to drain
+     */
+    public LinkedList<TrapMessage> next(Queue<TrapMessage> queue)
+    {
+        if (this.isFull())
+            return null;
+        
+        LinkedList<TrapMessage> batch = new LinkedList<TrapMessage>();
+        boolean exclusive = false;
+        TrapMessage m;
+        
+        while ((m = queue.peek()) != null)
+        {
+            if (!canOverlap(m))
+            {
+                // Control messages must not overtake anything, so they go alone once the window is empty
+                if ((this.inFlight > 0) || !batch.isEmpty())
+                    break;
+                
+                exclusive = true;
+            }
+            
+            batch.add(queue.poll());
+            
+            if (exclusive)
+                break;
+        }
+        
+        if (batch.isEmpty())
+            return null;
+        
+        this.inFlight++;
+        this.barrier = exclusive;
+        return batch;
+    }
+    
+    /**
+     * Marks a batch returned by {@link #next(Queue)} as no longer in flight. Messages may have been appended to it
+     * since (e.g. to report them as failed), but its first message must be unchanged.
+     */
+    public void complete(LinkedList<TrapMessage> batch)
+    {
+        this.inFlight--;
+        
+        // Only an exclusive batch starts with a message that cannot overlap
+        if (!canOverlap(batch.getFirst()))
+            this.barrier = false;
+    }
+    
+    /**
+     * Messages that the far end can put back in order (or whose order does not matter) may share the window with
+     * other batches.
+     */
+    public static boolean canOverlap(TrapMessage m)
+    {
+        switch (m.getOp().getOp())
+        {
+            case TrapMessage.Operation.Value.MESSAGE:
+            case TrapMessage.Operation.Value.FRAGMENT_START:
+            case TrapMessage.Operation.Value.FRAGMENT_END:
+            case TrapMessage.Operation.Value.ACK:
+            case TrapMessage.Operation.Value.PING:
+            case TrapMessage.Operation.Value.PONG:
+                return true;
+                
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package com.ericsson.research.trap.spi.transports;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.util.AbstractCollection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.ericsson.research.trap.spi.TrapMessage;
+
+/**
+ * Tracks the messages a transport has sent but not yet seen acknowledged. Messages are kept in the order they were
+ * sent, and are also indexed per channel by message ID, so an acknowledgement can be resolved in constant time rather
+ * than by scanning every message in flight.
+ * <p>
+ * Message IDs on a channel are assigned sequentially, so the messages in flight occupy a contiguous window of IDs. Each
+ * channel's index is a ring of slots keyed by <i>messageId % capacity</i>, which is grown whenever the window exceeds
+ * it. Colliding entries (e.g. a message sent twice) are chained within their slot.
+ * <p>
+ * This class is not thread safe; callers synchronize on the instance, as with the list it replaces.
+ */
+public class TransitMessageQueue extends AbstractCollection<TrapMessage>
+{
+    
+    private static final int INITIAL_CAPACITY = 64;
+    
+    static final class Node
+    {
+        final TrapMessage message;
+        Node              prev;
+        Node              next;
+        Node              nextInSlot;
+        
+        Node(TrapMessage message)
+        {
+            this.message = message;
+        }
+    }
+    
+    static final class Ring
+    {
+        Node[] slots = new Node[INITIAL_CAPACITY];
+        int    size  = 0;
+        
+        int slot(long messageId)
+        {
+            return (int) (messageId & (this.slots.length - 1));
+        }
+        
+        void put(Node node)
+        {
+            if (this.size >= this.slots.length)
+                this.grow();
+            
+            int i = this.slot(node.message.getMessageId());
+            node.nextInSlot = this.slots[i];
+            this.slots[i] = node;
+            this.size++;
+        }
+        
+        Node remove(long messageId)
+        {
+            int i = this.slot(messageId);
+            Node prev = null;
+            
+            // The oldest entry for an ID is last in its chain, as put() prepends.
+            Node match = null;
+            Node matchPrev = null;
+            for (Node n = this.slots[i]; n != null; prev = n, n = n.nextInSlot)
+            {
+                if (n.message.getMessageId() == messageId)
+                {
+                    match = n;
+                    matchPrev = prev;
+                }
+            }
+            
+            if (match == null)
+                return null;
+            
+            if (matchPrev == null)
+                this.slots[i] = match.nextInSlot;
+            else
+                matchPrev.nextInSlot = match.nextInSlot;
+            
+            match.nextInSlot = null;
+            this.size--;
+            return match;
+        }
+        
+        private void grow()
+        {
+            Node[] old = this.slots;
+            this.slots = new Node[old.length << 1];
+            
+            for (int i = 0; i < old.length; i++)
+            {
+                // Walk each chain from the tail, so relative order within a slot is preserved.
+                Node n = old[i];
+                Node reversed = null;
+                while (n != null)
+                {
+                    Node next = n.nextInSlot;
+                    n.nextInSlot = reversed;
+                    reversed = n;
+                    n = next;
+                }
+                
+                for (n = reversed; n != null;)
+                {
+                    Node next = n.nextInSlot;
+                    int j = this.slot(n.message.getMessageId());
+                    n.nextInSlot = this.slots[j];
+                    this.slots[j] = n;
+                    n = next;
+                }
+            }
+        }
+    }
+    
+    private Ring[] channels = new Ring[8];
+    private Node   head;
+    private Node   tail;
+    private int    size;
+    
+    /**
+     * Appends a message to the end of the transit queue.
+     */
+    @Override
+    public boolean add(TrapMessage message)
+    {
+        int channel = message.getChannel();
+        
+        if (channel < 0)
+            throw new IllegalArgumentException("Invalid channel " + channel);
+        
+        if (channel >= this.channels.length)
+        {
+            Ring[] channels = new Ring[Math.max(channel + 1, this.channels.length << 1)];
+            System.arraycopy(this.channels, 0, channels, 0, this.channels.length);
+            this.channels = channels;
+        }
+        
+        Ring ring = this.channels[channel];
+        
+        if (ring == null)
+            ring = this.channels[channel] = new Ring();
+        
+        Node node = new Node(message);
+        ring.put(node);
+        
+        node.prev = this.tail;
+        if (this.tail == null)
+            this.head = node;
+        else
+            this.tail.next = node;
+        this.tail = node;
+        
+        this.size++;
+        return true;
+    }
+    
+    /**
+     * Removes the oldest message in transit with the given channel and message ID.
+     * 
+     * @return The removed message, or <i>null</i> if no such message is in transit.
+     */
+    public TrapMessage remove(int channelId, long messageId)
+    {
+        if (channelId < 0 || channelId >= this.channels.length || this.channels[channelId] == null)
+            return null;
+        
+        Node node = this.channels[channelId].remove(messageId);
+        
+        if (node == null)
+            return null;
+        
+        this.unlink(node);
+        return node.message;
+    }
+    
+    /**
+     * Returns the oldest message in transit, without removing it.
+     * 
+     * @return The oldest message, or <i>null</i> if the queue is empty.
+     */
+    public TrapMessage peek()
+    {
+        return this.head == null ? null : this.head.message;
+    }
+    
+    @Override
+    public int size()
+    {
+        return this.size;
+    }
+    
+    @Override
+    public void clear()
+    {
+        this.channels = new Ring[8];
+        this.head = this.tail = null;
+        this.size = 0;
+    }
+    
+    /**
+     * Iterates over the messages in the order they were sent.
+     */
+    @Override
+    public Iterator<TrapMessage> iterator()
+    {
+        return new Iterator<TrapMessage>() {
+            
+            Node next = TransitMessageQueue.this.head;
+            
+            public boolean hasNext()
+            {
+                return this.next != null;
+            }
+            
+            public TrapMessage next()
+            {
+                if (this.next == null)
+                    throw new NoSuchElementException();
+                
+                TrapMessage m = this.next.message;
+                this.next = this.next.next;
+                return m;
+            }
+            
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+    
+    private void unlink(Node node)
+    {
+        if (node.prev == null)
+            this.head = node.next;
+        else
+            node.prev.next = node.next;
+        
+        if (node.next == null)
+            this.tail = node.prev;
+        else
+            node.next.prev = node.prev;
+        
+        // node.next is left intact, so an iterator positioned on this node can still advance.
+        this.size--;
+    }
+}
@@ -0,0 +1,189 @@
+package com.ericsson.research.trap.impl;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ericsson.research.trap.TrapEndpoint;
+import com.ericsson.research.trap.impl.queues.ChannelMessageQueue;
+import com.ericsson.research.trap.impl.queues.WeightedChannelMessageQueue;
+import com.ericsson.research.trap.spi.TrapMessage;
+
+public class ChannelSchedulingTest
+{
+    
+    ListenerTrapEndpoint        ep;
+    WeightedChannelMessageQueue q;
+    
+    @Before
+    public void setUp() throws Exception
+    {
+        this.ep = new ListenerTrapEndpoint();
+        this.ep.configure(null);
+        this.q = new WeightedChannelMessageQueue();
+    }
+    
+    @Test
+    public void testWeightedShare() throws Exception
+    {
+        TrapChannelImpl bulk = this.channel(1, 3000);
+        TrapChannelImpl interactive = this.channel(2, 1000);
+        
+        this.fill(bulk, 1, 400, 1000);
+        this.fill(interactive, 2, 400, 1000);
+        this.q.rebuild(new TrapChannelImpl[] { bulk, interactive });
+        
+        long[] bytes = new long[3];
+        
+        for (int i = 0; i < 400; i++)
+        {
+            TrapMessage peeked = this.q.peek();
+            TrapMessage m = this.q.pop();
+            Assert.assertSame(peeked, m);
+            bytes[m.getChannel()] += m.length();
+        }
+        
+        // Both channels were busy throughout, so they should have split the messages according to their weights.
+        double ratio = (double) bytes[1] / (double) bytes[2];
+        Assert.assertTrue("Unexpected share " + ratio, ratio > 2.5 && ratio < 3.5);
+    }
+    
+    @Test
+    public void testLatencySensitivePreempts() throws Exception
+    {
+        TrapChannelImpl control = this.ep.getChannel(0);
+        TrapChannelImpl bulk = this.channel(1, 100000);
+        
+        this.fill(bulk, 1, 20, 1000);
+        this.q.rebuild(new TrapChannelImpl[] { control, bulk });
+        
+        this.q.peek();
+        Assert.assertEquals(1, this.q.pop().getChannel());
+        
+        // The bulk channel still has plenty of its weight left, but the control message should go first.
+        this.fill(control, 0, 1, 10);
+        this.q.peek();
+        Assert.assertEquals(0, this.q.pop().getChannel());
+        this.q.peek();
+        Assert.assertEquals(1, this.q.pop().getChannel());
+    }
+    
+    @Test
+    public void testMessageLargerThanWeight() throws Exception
+    {
+        TrapChannelImpl a = this.channel(1, 100);
+        TrapChannelImpl b = this.channel(2, 100);
+        
+        this.fill(a, 1, 3, 5000);
+        this.fill(b, 2, 3, 500);
+        this.q.rebuild(new TrapChannelImpl[] { a, b });
+        
+        int popped = 0;
+        while (this.q.peek() != null)
+        {
+            Assert.assertNotNull(this.q.pop());
+            popped++;
+        }
+        
+        Assert.assertEquals(6, popped);
+    }
+    
+    @Test
+    public void testSchedulerOption() throws Exception
+    {
+        Assert.assertTrue(this.ep.messageQueue instanceof ChannelMessageQueue);
+        
+        this.ep.setOption(TrapEndpoint.OPTION_SCHEDULER, TrapEndpoint.WEIGHTED_SCHEDULER);
+        this.ep.getChannel(1).send(this.message(10));
+        this.waitForRebuild();
+        Assert.assertTrue(this.ep.messageQueue instanceof WeightedChannelMessageQueue);
+        
+        this.ep.setOption(TrapEndpoint.OPTION_SCHEDULER, TrapEndpoint.PRIORITY_SCHEDULER);
+        this.ep.getChannel(1).send(this.message(10));
+        this.waitForRebuild();
+        Assert.assertTrue(this.ep.messageQueue instanceof ChannelMessageQueue);
+    }
+    
+    @Test
+    public void testSchedulingDelay() throws Exception
+    {
+        TrapChannelImpl c = this.ep.getChannel(1);
+        Assert.assertEquals(0, c.getSchedulingDelay());
+        
+        // Nothing will pick the message up, as the endpoint has no transports.
+        c.send(this.message(10));
+        Thread.sleep(100);
+        
+        Assert.assertTrue(c.getSchedulingDelay() >= 90);
+        Assert.assertTrue(c.getMaxSchedulingDelay() >= 90);
+        
+        Assert.assertNotNull(c.pop());
+        Assert.assertEquals(0, c.getSchedulingDelay());
+        Assert.assertTrue(c.getMaxSchedulingDelay() >= 90);
+    }
+    
+    private void waitForRebuild() throws InterruptedException
+    {
+        for (int i = 0; i < 100 && this.ep.messageQueueRebuild; i++)
+            Thread.sleep(10);
+    }
+    
+    private TrapChannelImpl channel(int id, int weight)
+    {
+        TrapChannelImpl c = this.ep.getChannel(id);
+        c.setWeight(weight);
+        c.setInFlightBytes(Integer.MAX_VALUE);
+        return c;
+    }
+    
+    private void fill(TrapChannelImpl c, int channelId, int count, int size) throws Exception
+    {
+        for (int i = 0; i < count; i++)
+        {
+            TrapMessage m = this.message(size);
+            m.setChannel(channelId);
+            c.getOutgoingMessageQueue().put(m);
+        }
+    }
+    
+    private TrapMessage message(int size)
+    {
+        TrapMessageImpl m = new TrapMessageImpl();
+        m.setData(new byte[size]);
+        return m;
+    }
+}
@@ -0,0 +1,171 @@
+package com.ericsson.research.trap.impl;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterOutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.ericsson.research.trap.spi.TrapMessage.Operation;
+
+public class CompressionPoolTest
+{
+	
+	private static byte[] testData(int length)
+	{
+		byte[] data = new byte[length];
+		Random r = new Random(length);
+		
+		// Compressible, but not trivially so
+		for (int i = 0; i < length; i++)
+			data[i] = (byte) ('a' + r.nextInt(8));
+		
+		return data;
+	}
+	
+	@Test
+	public void testStreamCompatibility() throws Exception
+	{
+		for (int length : new int[] { 0, 1, 100, 4096, 100000 })
+		{
+			byte[] data = testData(length);
+			
+			// Pooled deflate must be readable by a plain InflaterOutputStream...
+			byte[] deflated = CompressionPool.deflate(data, -1);
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			InflaterOutputStream ios = new InflaterOutputStream(bos);
+			ios.write(deflated);
+			ios.close();
+			Assert.assertArrayEquals(data, bos.toByteArray());
+			
+			// ...and vice versa
+			bos = new ByteArrayOutputStream();
+			DeflaterOutputStream dos = new DeflaterOutputStream(bos);
+			dos.write(data);
+			dos.close();
+			byte[] streamDeflated = bos.toByteArray();
+			
+			byte[] padded = new byte[streamDeflated.length + 10];
+			System.arraycopy(streamDeflated, 0, padded, 5, streamDeflated.length);
+			Assert.assertArrayEquals(data, CompressionPool.inflate(padded, 5, streamDeflated.length));
+		}
+	}
+	
+	@Test
+	public void testCompressionLevel() throws Exception
+	{
+		byte[] data = testData(100000);
+		
+		byte[] stored = CompressionPool.deflate(data, 0);
+		byte[] best = CompressionPool.deflate(data, 9);
+		
+		Assert.assertTrue(stored.length > data.length);
+		Assert.assertTrue(best.length < data.length / 2);
+		
+		// The level of a pooled context must not leak into the next use
+		Assert.assertArrayEquals(best, CompressionPool.deflate(data, 9));
+		Assert.assertArrayEquals(data, CompressionPool.inflate(stored, 0, stored.length));
+		Assert.assertArrayEquals(data, CompressionPool.inflate(best, 0, best.length));
+	}
+	
+	@Test
+	public void testMessageCompressionLevel() throws Exception
+	{
+		byte[] data = testData(10000);
+		TrapMessageImpl m = new TrapMessageImpl();
+		m.setOp(Operation.MESSAGE);
+		m.setData(data);
+		m.setCompressed(true);
+		
+		long defaultLength = m.length();
+		m.setCompressionLevel(0);
+		Assert.assertTrue(m.length() > defaultLength);
+		
+		TrapMessageImpl n = new TrapMessageImpl();
+		n.deserialize(m.serialize(), 0, (int) m.length());
+		Assert.assertArrayEquals(data, n.getData());
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidCompressionLevel()
+	{
+		new TrapMessageImpl().setCompressionLevel(10);
+	}
+	
+	@Test(timeout = 20000)
+	public void testConcurrentUse() throws Exception
+	{
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] threads = new Thread[CompressionPool.MAX_POOLED * 2];
+		
+		for (int i = 0; i < threads.length; i++)
+		{
+			final int level = i % 10;
+			threads[i] = new Thread() {
+				public void run()
+				{
+					try
+					{
+						for (int j = 0; j < 200; j++)
+						{
+							byte[] data = testData(j * 10);
+							byte[] deflated = CompressionPool.deflate(data, level);
+							byte[] inflated = CompressionPool.inflate(deflated, 0, deflated.length);
+							
+							if (!Arrays.equals(data, inflated))
+								throw new AssertionError("Round trip failed at level " + level);
+						}
+					}
+					catch (Throwable t)
+					{
+						failure.set(t);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		
+		for (Thread t : threads)
+			t.join();
+		
+		if (failure.get() != null)
+			throw new AssertionError(failure.get());
+	}
+}
@@ -0,0 +1,234 @@
+package com.ericsson.research.trap.impl;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.util.LinkedList;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.ericsson.research.trap.spi.TrapMessage;
+import com.ericsson.research.trap.spi.TrapMessage.Format;
+import com.ericsson.research.trap.spi.TrapMessage.Operation;
+
+public class TrapMessageDecoderTest
+{
+    
+    private TrapMessage createMessage(int id, int size, Format format)
+    {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++)
+            data[i] = (byte) ((i + id) % 100);
+        
+        TrapMessage m = new TrapMessageImpl();
+        m.setOp(Operation.MESSAGE);
+        m.setMessageId(id);
+        m.setData(data);
+        m.setFormat(format);
+        return m;
+    }
+    
+    private LinkedList<TrapMessage> decode(TrapMessageDecoder decoder, byte[] stream, int[] chunks) throws Exception
+    {
+        LinkedList<TrapMessage> rv = new LinkedList<TrapMessage>();
+        int offset = 0;
+        int c = 0;
+        
+        while (offset < stream.length)
+        {
+            int len = Math.min(chunks[c++ % chunks.length], stream.length - offset);
+            decoder.feed(stream, offset, len);
+            
+            TrapMessage m;
+            while ((m = decoder.poll()) != null)
+                rv.add(m);
+            
+            offset += len;
+        }
+        
+        return rv;
+    }
+    
+    private void verify(Format format, int[] chunks) throws Exception
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        LinkedList<TrapMessage> sent = new LinkedList<TrapMessage>();
+        
+        int[] sizes = new int[] { 0, 1, 5, 17, 100, 4000, 70000, 3 };
+        
+        for (int i = 0; i < sizes.length; i++)
+        {
+            TrapMessage m = this.createMessage(i + 1, sizes[i], format);
+            sent.add(m);
+            bos.write(m.serialize());
+        }
+        
+        TrapMessageDecoder decoder = new TrapMessageDecoder();
+        LinkedList<TrapMessage> received = this.decode(decoder, bos.toByteArray(), chunks);
+        
+        Assert.assertEquals(sent.size(), received.size());
+        Assert.assertEquals(0, decoder.buffered());
+        
+        for (int i = 0; i < sent.size(); i++)
+        {
+            Assert.assertEquals(sent.get(i).getMessageId(), received.get(i).getMessageId());
+            Assert.assertArrayEquals(sent.get(i).getData(), received.get(i).getData());
+        }
+    }
+    
+    @Test
+    public void testWholeStream() throws Exception
+    {
+        this.verify(Format.REGULAR, new int[] { Integer.MAX_VALUE });
+    }
+    
+    @Test
+    public void testSingleBytes() throws Exception
+    {
+        this.verify(Format.REGULAR, new int[] { 1 });
+        this.verify(Format.SEVEN_BIT_SAFE, new int[] { 1 });
+    }
+    
+    @Test
+    public void testSocketSizedReads() throws Exception
+    {
+        this.verify(Format.REGULAR, new int[] { 4096 });
+        this.verify(Format.SEVEN_BIT_SAFE, new int[] { 4096 });
+    }
+    
+    @Test
+    public void testRandomSplits() throws Exception
+    {
+        Random r = new Random(42);
+        int[] chunks = new int[100];
+        
+        for (int i = 0; i < chunks.length; i++)
+            chunks[i] = 1 + r.nextInt(200);
+        
+        this.verify(Format.REGULAR, chunks);
+        
+        // Splits inside the header
+        this.verify(Format.REGULAR, new int[] { 7, 9, 15, 2, 16, 31 });
+    }
+    
+    @Test
+    public void testPartialMessageBuffered() throws Exception
+    {
+        byte[] bs = this.createMessage(1, 100, Format.REGULAR).serialize();
+        TrapMessageDecoder decoder = new TrapMessageDecoder();
+        
+        decoder.feed(bs, 0, 10);
+        Assert.assertNull(decoder.poll());
+        Assert.assertEquals(10, decoder.buffered());
+        
+        decoder.feed(bs, 10, 50);
+        Assert.assertNull(decoder.poll());
+        Assert.assertEquals(60, decoder.buffered());
+        
+        decoder.feed(bs, 60, bs.length - 60);
+        Assert.assertNotNull(decoder.poll());
+        Assert.assertNull(decoder.poll());
+        Assert.assertEquals(0, decoder.buffered());
+    }
+    
+    @Test(expected = IllegalStateException.class)
+    public void testUnconsumedFeed() throws Exception
+    {
+        byte[] bs = this.createMessage(1, 100, Format.REGULAR).serialize();
+        TrapMessageDecoder decoder = new TrapMessageDecoder();
+        decoder.feed(bs, 0, bs.length);
+        decoder.feed(bs, 0, bs.length);
+    }
+    
+    @Test(timeout = 10000)
+    public void testLargeMessageLinear() throws Exception
+    {
+        // 10 MB arriving in 4 KB reads. Quadratic copying would take far longer than the timeout.
+        byte[] bs = this.createMessage(1, 10 * 1024 * 1024, Format.REGULAR).serialize();
+        
+        for (int i = 0; i < 5; i++)
+        {
+            TrapMessageDecoder decoder = new TrapMessageDecoder();
+            LinkedList<TrapMessage> received = this.decode(decoder, bs, new int[] { 4096 });
+            Assert.assertEquals(1, received.size());
+            Assert.assertEquals(10 * 1024 * 1024, received.getFirst().getData().length);
+        }
+    }
+    
+    @Test(expected = ProtocolException.class)
+    public void testOversizedMessageRejected() throws Exception
+    {
+        byte[] bs = this.createMessage(1, 1000, Format.REGULAR).serialize();
+        TrapMessageDecoder decoder = new TrapMessageDecoder();
+        decoder.setMaxMessageSize(500);
+        
+        // Only the header is needed to reject the message
+        decoder.feed(bs, 0, TrapMessageImpl.HEADER_SIZE);
+        decoder.poll();
+    }
+    
+    @Test
+    public void testForgedLengthNotPreallocated() throws Exception
+    {
+        // A header claiming a body of almost 4 GB must be rejected, and not allocated
+        byte[] bs = this.createMessage(1, 10, Format.REGULAR).serialize();
+        bs[12] = bs[13] = bs[14] = bs[15] = (byte) 0xFF;
+        
+        TrapMessageDecoder decoder = new TrapMessageDecoder();
+        decoder.feed(bs, 0, 10);
+        Assert.assertNull(decoder.poll());
+        decoder.feed(bs, 10, bs.length - 10);
+        
+        try
+        {
+            decoder.poll();
+            Assert.fail("Expected the forged length to be rejected");
+        }
+        catch (ProtocolException e)
+        {
+        }
+        
+        // Within the limit, the staging buffer follows the bytes that arrive rather than the announced length
+        bs[12] = 0x7F;
+        bs[15] = 0;
+        decoder.reset();
+        decoder.setMaxMessageSize(Integer.MAX_VALUE);
+        decoder.feed(bs, 0, bs.length);
+        Assert.assertNull(decoder.poll());
+        Assert.assertEquals(bs.length, decoder.buffered());
+    }
+}
@@ -0,0 +1,113 @@
+package com.ericsson.research.trap.impl;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DeflaterOutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.ericsson.research.trap.spi.TrapMessage.Operation;
+
+/**
+ * Measures the CPU cost of a compressed message on the send path. A compressed message is queried for its compressed
+ * data and length several times between being enqueued and acknowledged; this test performs the same sequence of calls
+ * and compares it against the cost of a single deflate pass.
+ */
+public class TrapMessagePerformanceTest
+{
+	
+	static final int	PAYLOAD_SIZE	= 4096;
+	static final int	WARMUP			= 2000;
+	static final int	MESSAGES		= 10000;
+	
+	@Test(timeout = 60000)
+	public void testCompressedSendPath() throws Exception
+	{
+		byte[] payload = new byte[PAYLOAD_SIZE];
+		for (int i = 0; i < payload.length; i++)
+			payload[i] = (byte) ('a' + (i % 13));
+		
+		this.sendPath(payload, WARMUP);
+		this.deflate(payload, WARMUP);
+		
+		long start = System.nanoTime();
+		long bytes = this.sendPath(payload, MESSAGES);
+		long sendPathTime = System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		this.deflate(payload, MESSAGES);
+		long deflateTime = System.nanoTime() - start;
+		
+		Assert.assertTrue(bytes > 0);
+		
+		System.out.println("Compressed send path: " + (sendPathTime / MESSAGES) + " ns/message; single deflate: " + (deflateTime / MESSAGES) + " ns/message");
+	}
+	
+	/*
+	 * Performs the calls the send path makes on a message: chunking check in TrapChannelImpl.send, length() in
+	 * ChannelMessageQueue.pop and TrapChannelImpl.pop, serialization on the transport and length() in messageSent.
+	 */
+	private long sendPath(byte[] payload, int count) throws Exception
+	{
+		long bytes = 0;
+		for (int i = 0; i < count; i++)
+		{
+			TrapMessageImpl m = new TrapMessageImpl();
+			m.setOp(Operation.MESSAGE);
+			m.setData(payload);
+			m.setCompressed(true);
+			
+			m.getCompressedData();
+			bytes += m.length();
+			bytes += m.length();
+			bytes += m.serialize().length;
+			bytes -= m.length();
+		}
+		return bytes;
+	}
+	
+	private void deflate(byte[] payload, int count) throws Exception
+	{
+		for (int i = 0; i < count; i++)
+		{
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			DeflaterOutputStream dos = new DeflaterOutputStream(bos);
+			dos.write(payload);
+			dos.finish();
+			dos.close();
+		}
+	}
+}
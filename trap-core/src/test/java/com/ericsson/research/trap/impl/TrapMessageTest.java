@@ -34,6 +34,8 @@ package com.ericsson.research.trap.impl;
  */
 
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import org.junit.Assert;
@@ -183,6 +185,41 @@ public class TrapMessageTest
 		Assert.assertEquals(Operation.CHALLENGE, n.getOp());
 	}
 	
+	@Test
+	public void testSliceSerialization() throws Exception
+	{
+		byte[] payload = "xxFoobar Foobar Foobarxx".getBytes();
+		
+		for (int compressed = 0; compressed < 2; compressed++)
+		{
+			TrapMessageImpl slice = new TrapMessageImpl();
+			slice.setOp(Operation.MESSAGE);
+			slice.setData(payload, 2, payload.length - 4);
+			slice.setCompressed(compressed == 1);
+			
+			TrapMessageImpl copy = new TrapMessageImpl();
+			copy.setOp(Operation.MESSAGE);
+			copy.setData(Arrays.copyOfRange(payload, 2, payload.length - 2));
+			copy.setCompressed(compressed == 1);
+			
+			Assert.assertEquals(copy.length(), slice.length());
+			Assert.assertArrayEquals(copy.serialize(), slice.serialize());
+			
+			ByteBuffer[] buffers = slice.serializeBuffers();
+			ByteBuffer joined = ByteBuffer.allocate((int) slice.length());
+			for (ByteBuffer b : buffers)
+				joined.put(b);
+			Assert.assertArrayEquals(copy.serialize(), joined.array());
+			
+			// The slice can be read without copying, and copied out on demand
+			byte[] dst = new byte[slice.getDataLength() + 1];
+			Assert.assertEquals(payload.length - 4, slice.copyData(dst, 1));
+			Assert.assertArrayEquals(copy.getData(), Arrays.copyOfRange(dst, 1, dst.length));
+			Assert.assertArrayEquals(copy.getData(), slice.getData());
+			Assert.assertArrayEquals(copy.serialize(), slice.serialize());
+		}
+	}
+	
 	@Test
 	public void testNullAuth() throws Exception
 	{
@@ -228,4 +265,175 @@ public class TrapMessageTest
 			sb.append((char) i);
 		new TrapMessageImpl().setAuthData(sb.toString());
 	}
+	
+	@Test
+	public void testCompressedDataCached() throws Exception
+	{
+		TrapMessageImpl m = new TrapMessageImpl();
+		m.setOp(Operation.MESSAGE);
+		m.setData("Foobar Foobar Foobar".getBytes());
+		m.setCompressed(true);
+		
+		byte[] compressed = m.getCompressedData();
+		
+		// Repeated queries must not deflate again
+		Assert.assertSame(compressed, m.getCompressedData());
+		m.length();
+		Assert.assertSame(compressed, m.getCompressedData());
+		
+		// The auth header does not affect the compressed body
+		m.setAuthData("Authenticate!");
+		Assert.assertSame(compressed, m.getCompressedData());
+	}
+	
+	@Test
+	public void testCacheInvalidation() throws Exception
+	{
+		TrapMessageImpl m = new TrapMessageImpl();
+		m.setOp(Operation.MESSAGE);
+		m.setData("Foobar".getBytes());
+		m.setCompressed(true);
+		m.setFormat(Format.REGULAR);
+		
+		Assert.assertEquals(m.serialize().length, m.length());
+		
+		byte[] compressed = m.getCompressedData();
+		m.setData("Some other data".getBytes());
+		Assert.assertNotSame(compressed, m.getCompressedData());
+		Assert.assertEquals(m.serialize().length, m.length());
+		
+		m.setAuthData("Authenticate!");
+		Assert.assertEquals(m.serialize().length, m.length());
+		
+		m.setAuthData(null);
+		Assert.assertEquals(m.serialize().length, m.length());
+		
+		m.setCompressed(false);
+		Assert.assertSame(m.getData(), m.getCompressedData());
+		Assert.assertEquals(m.serialize().length, m.length());
+		
+		TrapMessageImpl n = new TrapMessageImpl();
+		n.setData(new byte[100]);
+		n.setCompressed(true);
+		long l = n.length();
+		n.deserialize(m.serialize(), 0, (int) m.length());
+		Assert.assertTrue(l != n.length());
+		Assert.assertEquals(m.length(), n.length());
+	}
+	
+	@Test
+	public void testSetSameDataInvalidates() throws Exception
+	{
+		byte[] data = "Foobar Foobar Foobar".getBytes();
+		TrapMessageImpl m = new TrapMessageImpl();
+		m.setOp(Operation.MESSAGE);
+		m.setData(data);
+		m.setCompressed(true);
+		m.setFormat(Format.REGULAR);
+		
+		byte[] compressed = m.getCompressedData();
+		
+		// Modifying the array in place and setting it again must not reuse the old encoding
+		data[0] = 'G';
+		m.setData(data);
+		Assert.assertNotSame(compressed, m.getCompressedData());
+		
+		TrapMessageImpl n = new TrapMessageImpl(m.serialize());
+		Assert.assertArrayEquals(data, n.getData());
+	}
+	
+	@Test
+	public void testSerializeTo() throws Exception
+	{
+		TrapMessageImpl[] messages = new TrapMessageImpl[] {
+				(TrapMessageImpl) new TrapMessageImpl().setOp(Operation.MESSAGE).setData("Foobar".getBytes()).setChannel(3).setMessageId(42),
+				(TrapMessageImpl) new TrapMessageImpl().setOp(Operation.MESSAGE).setData("Foobar Foobar Foobar".getBytes()).setCompressed(true),
+				(TrapMessageImpl) new TrapMessageImpl().setOp(Operation.CHALLENGE).setAuthData("Authenticate!").setData("Foobar".getBytes()),
+				(TrapMessageImpl) new TrapMessageImpl().setOp(Operation.CHALLENGE).setAuthData("Authenticate!").setData("Foobar".getBytes()).setFormat(Format.SEVEN_BIT_SAFE),
+				(TrapMessageImpl) new TrapMessageImpl().setOp(Operation.OK) };
+		
+		for (TrapMessageImpl m : messages)
+		{
+			byte[] expected = m.serialize();
+			Assert.assertEquals(expected.length, m.length());
+			
+			// Into the middle of a larger (direct) buffer
+			ByteBuffer buf = ByteBuffer.allocateDirect(expected.length + 10);
+			buf.position(5);
+			m.serializeTo(buf);
+			Assert.assertEquals(5 + expected.length, buf.position());
+			
+			byte[] actual = new byte[expected.length];
+			buf.position(5);
+			buf.get(actual);
+			Assert.assertArrayEquals(expected, actual);
+			
+			// As gathering buffers
+			ByteBuffer[] bufs = m.serializeBuffers();
+			ByteBuffer joined = ByteBuffer.allocate(expected.length);
+			for (ByteBuffer b : bufs)
+				joined.put(b);
+			Assert.assertFalse(joined.hasRemaining());
+			Assert.assertArrayEquals(expected, joined.array());
+			
+			TrapMessageImpl n = new TrapMessageImpl();
+			Assert.assertEquals(expected.length, n.deserialize(actual, 0, actual.length));
+			Assert.assertEquals(m.getOp(), n.getOp());
+			Assert.assertArrayEquals(m.getData(), n.getData());
+		}
+	}
+	
+	@Test
+	public void testSerializeToOverflow() throws Exception
+	{
+		TrapMessageImpl m = new TrapMessageImpl();
+		m.setOp(Operation.MESSAGE);
+		m.setData("Foobar".getBytes());
+		
+		ByteBuffer buf = ByteBuffer.allocate((int) m.length() - 1);
+		
+		try
+		{
+			m.serializeTo(buf);
+			Assert.fail();
+		}
+		catch (BufferOverflowException e)
+		{
+		}
+		
+		// Nothing must have been written
+		Assert.assertEquals(0, buf.position());
+	}
+	
+	@Test
+	public void testSerializeBuffersSharesPayload() throws Exception
+	{
+		byte[] data = new byte[1024];
+		TrapMessageImpl m = new TrapMessageImpl();
+		m.setOp(Operation.MESSAGE);
+		m.setData(data);
+		
+		ByteBuffer[] bufs = m.serializeBuffers();
+		Assert.assertEquals(TrapMessageImpl.HEADER_SIZE, bufs[0].remaining());
+		Assert.assertSame(data, bufs[1].array());
+	}
+	
+	@Test
+	public void test7BitLength() throws Exception
+	{
+		TrapMessageImpl m = new TrapMessageImpl();
+		m.setOp(Operation.MESSAGE);
+		m.setData("Foobar Foobar Foobar Foobar".getBytes());
+		m.setCompressed(true);
+		
+		long compressedLength = m.length();
+		
+		// 7-bit messages are never compressed
+		m.setFormat(Format.SEVEN_BIT_SAFE);
+		Assert.assertEquals(m.serialize().length, m.length());
+		Assert.assertTrue(compressedLength != m.length());
+		
+		m.setFormat(Format.REGULAR);
+		Assert.assertEquals(compressedLength, m.length());
+	}
 }
@@ -0,0 +1,179 @@
+package com.ericsson.research.trap.impl.buffers;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.ericsson.research.trap.impl.TrapMessageImpl;
+import com.ericsson.research.trap.spi.TrapEndpointMessage;
+import com.ericsson.research.trap.spi.TrapMessage;
+
+/**
+ * Measures the incoming message buffer under heavy reordering, as seen when a channel is spread over several
+ * transports. Messages are written in shuffled windows and read back in order, wrapping the message ID range several
+ * times.
+ */
+public class TrapMessageBufferPerformanceTest
+{
+    
+    static final int MIN_ID   = 1;
+    static final int MAX_ID   = 100000;
+    static final int WINDOW   = 512;
+    static final int MESSAGES = 2000000;
+    
+    @Test(timeout = 60000)
+    public void testReorderedThroughput() throws Exception
+    {
+        TrapMessage[] messages = this.reordered(MESSAGES, WINDOW);
+        
+        // Warm up
+        this.run(messages);
+        
+        long start = System.nanoTime();
+        this.run(messages);
+        long time = System.nanoTime() - start;
+        
+        System.out.println("Reordered buffer throughput (window " + WINDOW + "): " + (time / MESSAGES) + " ns/message, " + (MESSAGES * 1000000000L / time) + " msg/s");
+    }
+    
+    @Test(timeout = 60000)
+    public void testConcurrentReader() throws Exception
+    {
+        final TrapMessage[] messages = this.reordered(MESSAGES, WINDOW);
+        final TrapMessageBufferImpl b = new TrapMessageBufferImpl(8, 65535, MIN_ID, MIN_ID, MAX_ID);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        
+        Thread reader = new Thread() {
+            public void run()
+            {
+                try
+                {
+                    TrapEndpointMessage out = new TrapEndpointMessage();
+                    int expected = MIN_ID;
+                    for (int i = 0; i < MESSAGES;)
+                    {
+                        if (!b.fetch(out))
+                        {
+                            Thread.yield();
+                            continue;
+                        }
+                        
+                        Assert.assertEquals(expected, out.getMessage().getMessageId());
+                        expected = expected == MAX_ID ? MIN_ID : expected + 1;
+                        i++;
+                    }
+                }
+                catch (Throwable t)
+                {
+                    error.set(t);
+                }
+            }
+        };
+        reader.start();
+        
+        for (int i = 0; i < messages.length; i++)
+        {
+            // Stay within the maximum buffer size
+            while (b.available() > 32768)
+                Thread.yield();
+            
+            b.put(messages[i], null);
+        }
+        
+        reader.join(TimeUnit.SECONDS.toMillis(50));
+        
+        if (error.get() != null)
+            throw new Exception(error.get());
+        
+        Assert.assertFalse(reader.isAlive());
+        Assert.assertEquals(0, b.available());
+    }
+    
+    private void run(TrapMessage[] messages)
+    {
+        TrapMessageBufferImpl b = new TrapMessageBufferImpl(8, 65535, MIN_ID, MIN_ID, MAX_ID);
+        TrapEndpointMessage out = new TrapEndpointMessage();
+        int expected = MIN_ID;
+        
+        for (int i = 0; i < messages.length; i++)
+        {
+            b.put(messages[i], null);
+            
+            while (b.fetch(out))
+            {
+                if (out.getMessage().getMessageId() != expected)
+                    Assert.fail("Expected message " + expected + " but got " + out.getMessage().getMessageId());
+                
+                expected = expected == MAX_ID ? MIN_ID : expected + 1;
+            }
+        }
+        
+        Assert.assertEquals(0, b.available());
+    }
+    
+    /*
+     * Creates count messages with wrapping IDs, shuffled within consecutive windows.
+     */
+    private TrapMessage[] reordered(int count, int window)
+    {
+        TrapMessage[] messages = new TrapMessage[count];
+        int id = MIN_ID;
+        
+        for (int i = 0; i < count; i++)
+        {
+            messages[i] = new TrapMessageImpl().setMessageId(id);
+            id = id == MAX_ID ? MIN_ID : id + 1;
+        }
+        
+        Random r = new Random(1);
+        for (int start = 0; start < count; start += window)
+        {
+            int end = Math.min(start + window, count);
+            for (int i = end - 1; i > start; i--)
+            {
+                int j = start + r.nextInt(i - start + 1);
+                TrapMessage tmp = messages[i];
+                messages[i] = messages[j];
+                messages[j] = tmp;
+            }
+        }
+        
+        return messages;
+    }
+}
@@ -39,6 +39,7 @@ import org.junit.Test;
 
 import com.ericsson.research.trap.impl.TrapMessageImpl;
 import com.ericsson.research.trap.spi.TrapEndpointMessage;
+import com.ericsson.research.trap.spi.TrapMessage;
 import com.ericsson.research.trap.spi.TrapMessageBuffer;
 
 public class TrapMessageBufferTest
@@ -70,10 +71,10 @@ public class TrapMessageBufferTest
         this.consume(b, 10, false);
         
         // Assert the buffer is empty.
-        TrapEndpointMessage[] buffer = b.buffer;
+        TrapMessage[] buffer = b.ring.messages;
         
-        for (TrapEndpointMessage m : buffer)
-            Assert.assertNull(m.getMessage());
+        for (TrapMessage m : buffer)
+            Assert.assertNull(m);
     }
     
     // Test some simple add/remove
@@ -95,10 +96,10 @@ public class TrapMessageBufferTest
         }
         
         // Assert the buffer is empty.
-        TrapEndpointMessage[] buffer = b.buffer;
+        TrapMessage[] buffer = b.ring.messages;
         
-        for (TrapEndpointMessage m : buffer)
-            Assert.assertNull(m.getMessage());
+        for (TrapMessage m : buffer)
+            Assert.assertNull(m);
     }
     
     @Test
@@ -310,7 +311,7 @@ public class TrapMessageBufferTest
         this.consume(b, 2, false);
         Assert.assertEquals(expect(null, null), b.toString());
         
-        Assert.assertEquals(2, b.buffer.length);
+        Assert.assertEquals(2, b.ring.capacity());
         
     }
     
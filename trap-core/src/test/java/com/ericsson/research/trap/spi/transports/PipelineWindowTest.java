@@ -0,0 +1,112 @@
+package com.ericsson.research.trap.spi.transports;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.util.LinkedList;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.ericsson.research.trap.impl.TrapMessageImpl;
+import com.ericsson.research.trap.spi.TrapMessage;
+import com.ericsson.research.trap.spi.TrapMessage.Operation;
+
+public class PipelineWindowTest
+{
+	
+	private static TrapMessage message(Operation op)
+	{
+		return new TrapMessageImpl().setOp(op);
+	}
+	
+	@Test
+	public void testWindowFills()
+	{
+		PipelineWindow w = new PipelineWindow();
+		w.setWindow(2);
+		LinkedList<TrapMessage> q = new LinkedList<TrapMessage>();
+		
+		q.add(message(Operation.MESSAGE));
+		LinkedList<TrapMessage> first = w.next(q);
+		Assert.assertEquals(1, first.size());
+		Assert.assertFalse(w.isFull());
+		
+		// Nothing queued, nothing to send
+		Assert.assertNull(w.next(q));
+		
+		q.add(message(Operation.MESSAGE));
+		q.add(message(Operation.ACK));
+		LinkedList<TrapMessage> second = w.next(q);
+		Assert.assertEquals(2, second.size());
+		Assert.assertTrue(w.isFull());
+		
+		q.add(message(Operation.MESSAGE));
+		Assert.assertNull(w.next(q));
+		
+		w.complete(first);
+		Assert.assertEquals(1, w.getInFlight());
+		Assert.assertNotNull(w.next(q));
+	}
+	
+	@Test
+	public void testControlMessagesGoAlone()
+	{
+		PipelineWindow w = new PipelineWindow();
+		w.setWindow(4);
+		LinkedList<TrapMessage> q = new LinkedList<TrapMessage>();
+		
+		TrapMessage close = message(Operation.CLOSE);
+		q.add(message(Operation.MESSAGE));
+		q.add(close);
+		q.add(message(Operation.MESSAGE));
+		
+		// The batch stops short of the CLOSE, which waits for the window to drain
+		LinkedList<TrapMessage> before = w.next(q);
+		Assert.assertEquals(1, before.size());
+		Assert.assertNull(w.next(q));
+		
+		w.complete(before);
+		LinkedList<TrapMessage> exclusive = w.next(q);
+		Assert.assertEquals(1, exclusive.size());
+		Assert.assertSame(close, exclusive.getFirst());
+		
+		// Nothing overtakes it
+		Assert.assertTrue(w.isFull());
+		Assert.assertNull(w.next(q));
+		
+		w.complete(exclusive);
+		Assert.assertFalse(w.isFull());
+		Assert.assertEquals(1, w.next(q).size());
+	}
+}
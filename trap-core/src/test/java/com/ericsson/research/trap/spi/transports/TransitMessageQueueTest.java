@@ -0,0 +1,183 @@
+package com.ericsson.research.trap.spi.transports;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.ericsson.research.trap.impl.TrapMessageImpl;
+import com.ericsson.research.trap.spi.TrapMessage;
+
+public class TransitMessageQueueTest
+{
+	
+	private static TrapMessage message(int channel, int id)
+	{
+		TrapMessage m = new TrapMessageImpl().setMessageId(id);
+		m.setChannel(channel);
+		return m;
+	}
+	
+	private static List<TrapMessage> contents(TransitMessageQueue q)
+	{
+		List<TrapMessage> rv = new ArrayList<TrapMessage>();
+		for (TrapMessage m : q)
+			rv.add(m);
+		return rv;
+	}
+	
+	@Test
+	public void testInOrder()
+	{
+		TransitMessageQueue q = new TransitMessageQueue();
+		TrapMessage[] ms = new TrapMessage[10];
+		
+		for (int i = 0; i < ms.length; i++)
+			q.add(ms[i] = message(1, i + 1));
+		
+		Assert.assertEquals(10, q.size());
+		
+		for (int i = 0; i < ms.length; i++)
+		{
+			Assert.assertSame(ms[i], q.peek());
+			Assert.assertSame(ms[i], q.remove(1, i + 1));
+		}
+		
+		Assert.assertEquals(0, q.size());
+		Assert.assertNull(q.peek());
+		Assert.assertFalse(q.iterator().hasNext());
+	}
+	
+	@Test
+	public void testOutOfOrderKeepsSendOrder()
+	{
+		TransitMessageQueue q = new TransitMessageQueue();
+		TrapMessage a = message(1, 1), b = message(2, 1), c = message(1, 2), d = message(2, 2);
+		
+		q.add(a);
+		q.add(b);
+		q.add(c);
+		q.add(d);
+		
+		// Same ID on another channel must not be confused
+		Assert.assertSame(b, q.remove(2, 1));
+		Assert.assertSame(a, q.peek());
+		Assert.assertEquals(3, q.size());
+		
+		List<TrapMessage> expected = new ArrayList<TrapMessage>();
+		expected.add(a);
+		expected.add(c);
+		expected.add(d);
+		Assert.assertEquals(expected, contents(q));
+		
+		Assert.assertSame(d, q.remove(2, 2));
+		Assert.assertSame(a, q.remove(1, 1));
+		Assert.assertSame(c, q.peek());
+	}
+	
+	@Test
+	public void testUnknown()
+	{
+		TransitMessageQueue q = new TransitMessageQueue();
+		q.add(message(1, 5));
+		
+		Assert.assertNull(q.remove(1, 6));
+		Assert.assertNull(q.remove(3, 5));
+		Assert.assertNull(q.remove(100, 5));
+		Assert.assertNull(q.remove(-1, 5));
+		Assert.assertEquals(1, q.size());
+	}
+	
+	@Test
+	public void testDuplicateRemovesOldest()
+	{
+		TransitMessageQueue q = new TransitMessageQueue();
+		TrapMessage first = message(0, 7), other = message(0, 8), second = message(0, 7);
+		
+		q.add(first);
+		q.add(other);
+		q.add(second);
+		
+		Assert.assertSame(first, q.remove(0, 7));
+		Assert.assertSame(second, q.remove(0, 7));
+		Assert.assertNull(q.remove(0, 7));
+		Assert.assertSame(other, q.peek());
+	}
+	
+	@Test
+	public void testSlidingWindowGrowth()
+	{
+		TransitMessageQueue q = new TransitMessageQueue();
+		int window = 1000;
+		int next = 1;
+		
+		// Keep a window far larger than the initial ring in flight, acking from the front as we go
+		for (; next <= window; next++)
+			q.add(message(1, next));
+		
+		for (int acked = 1; acked <= 5000; acked++)
+		{
+			Assert.assertEquals(acked, q.peek().getMessageId());
+			Assert.assertEquals(acked, q.remove(1, acked).getMessageId());
+			q.add(message(1, next++));
+		}
+		
+		Assert.assertEquals(window, q.size());
+		
+		int expected = 5001;
+		for (Iterator<TrapMessage> it = q.iterator(); it.hasNext();)
+			Assert.assertEquals(expected++, it.next().getMessageId());
+	}
+	
+	@Test
+	public void testClear()
+	{
+		TransitMessageQueue q = new TransitMessageQueue();
+		for (int i = 1; i < 100; i++)
+			q.add(message(i % 3, i));
+		
+		q.clear();
+		
+		Assert.assertEquals(0, q.size());
+		Assert.assertNull(q.peek());
+		Assert.assertNull(q.remove(1, 1));
+		
+		q.add(message(1, 1));
+		Assert.assertEquals(1, q.size());
+	}
+}
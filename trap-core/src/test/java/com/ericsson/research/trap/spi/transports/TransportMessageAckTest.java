@@ -35,7 +35,9 @@ package com.ericsson.research.trap.spi.transports;
 
 import java.util.Collection;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
+import org.junit.Assert;
 import org.junit.Test;
 
 import com.ericsson.research.trap.TrapException;
@@ -136,6 +138,71 @@ public class TransportMessageAckTest
 		}
 
 	}
+
+	@Test(timeout=10000)
+	public void testOutOfOrderAckResends() throws Exception
+	{
+
+		final LinkedBlockingQueue<TrapMessage> resent = new LinkedBlockingQueue<TrapMessage>();
+		final LinkedBlockingQueue<TrapMessage> sent = new LinkedBlockingQueue<TrapMessage>();
+
+		StubbedTransport t = new StubbedTransport() {
+
+			@Override
+			public void internalSend(TrapMessage message, boolean expectMore) throws TrapTransportException
+			{
+				resent.add(message);
+			}
+
+			public void flushTransport()
+			{
+			}
+		};
+
+		t.delegate = new TrapTransportDelegate() {
+
+			public void ttStateChanged(TrapTransportState newState, TrapTransportState oldState, TrapTransport transport, Object context)
+			{
+			}
+
+			public void ttMessagesFailedSending(Collection<TrapMessage> messages, TrapTransport transport, Object context)
+			{
+			}
+
+			public void ttMessageSent(TrapMessage message, TrapTransport transport, Object context)
+			{
+				sent.add(message);
+			}
+
+			public void ttMessageReceived(TrapMessage message, TrapTransport transport, Object context)
+			{
+			}
+
+			public void ttNeedTransport(TrapMessage message, TrapTransport transport, Object context)
+			{
+			}
+		};
+
+		TrapMessage[] ms = new TrapMessage[3];
+		for (int i = 0; i < ms.length; i++)
+		{
+			ms[i] = new TrapMessageImpl().setMessageId(i + 1);
+			t.addTransitMessage(ms[i]);
+		}
+
+		// Acking the second message first implies the first was dropped, so it is sent again.
+		t.removeTransitMessageById(2, 0);
+		Assert.assertSame(ms[1], sent.take());
+		Assert.assertSame(ms[0], resent.take());
+
+		t.removeTransitMessageById(1, 0);
+		t.removeTransitMessageById(3, 0);
+		Assert.assertSame(ms[0], sent.take());
+		Assert.assertSame(ms[2], sent.take());
+		Assert.assertEquals(0, t.messagesInTransit.size());
+		Assert.assertTrue(resent.isEmpty());
+
+	}
 }
 
 abstract class StubbedTransport extends AbstractTransport
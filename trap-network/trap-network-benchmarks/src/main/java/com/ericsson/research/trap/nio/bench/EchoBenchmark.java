@@ -0,0 +1,136 @@
+package com.ericsson.research.trap.nio.bench;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ericsson.research.trap.nio.Nio;
+import com.ericsson.research.trap.nio.SocketFactory;
+import com.ericsson.research.trap.nio.SocketOptions;
+
+/**
+ * Echo throughput and latency over a set of open connections. One operation sends a message on every connection and
+ * waits for all of the echoes, so the operation rate times the connection count is the message rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class EchoBenchmark implements EchoClient.Listener
+{
+
+	@Param({ "nio1", "nio2" })
+	public String	                backend;
+
+	@Param({ "false", "true" })
+	public boolean	                tls;
+
+	@Param({ "1", "100", "1000", "10000" })
+	public int	                    connections;
+
+	@Param({ "64", "16384" })
+	public int	                    size;
+
+	private EchoServer	            server;
+	private EchoClient[]	        clients;
+	private volatile CountDownLatch	echoes;
+
+	@Setup
+	public void setUp() throws Exception
+	{
+		SocketFactory factory = Nio.factory(this.backend);
+		SSLContext sslc = this.tls ? LoadGenerator.sslContext() : null;
+		SocketOptions options = LoadGenerator.options();
+
+		this.server = new EchoServer(factory, sslc, options);
+		this.clients = EchoClient.open(factory, sslc, options, this.server.getAddress(), this.connections, this.size, 128, 30000, this);
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		if (this.clients != null)
+			EchoClient.close(this.clients);
+
+		if (this.server != null)
+			this.server.close();
+	}
+
+	@Benchmark
+	public void echo() throws InterruptedException
+	{
+		CountDownLatch echoes = this.echoes = new CountDownLatch(this.clients.length);
+
+		for (EchoClient client : this.clients)
+			client.ping();
+
+		if (!echoes.await(30, TimeUnit.SECONDS))
+			throw new IllegalStateException(echoes.getCount() + " echoes were lost");
+	}
+
+	@Override
+	public void connected(EchoClient client, long nanos)
+	{
+	}
+
+	@Override
+	public void echoed(EchoClient client, long nanos)
+	{
+		this.echoes.countDown();
+	}
+
+	@Override
+	public void failed(EchoClient client, Throwable exc)
+	{
+		exc.printStackTrace();
+	}
+}
@@ -0,0 +1,290 @@
+package com.ericsson.research.trap.nio.bench;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+
+import com.ericsson.research.trap.nio.Socket;
+import com.ericsson.research.trap.nio.Socket.SocketHandler;
+import com.ericsson.research.trap.nio.SocketFactory;
+import com.ericsson.research.trap.nio.SocketOptions;
+
+/**
+ * A client that sends a fixed size message and waits for it to be echoed back before sending the next. The first
+ * round trip starts as soon as the socket is open, so it includes any TLS handshake.
+ */
+public class EchoClient implements SocketHandler
+{
+
+	public interface Listener
+	{
+		/**
+		 * The first round trip has completed.
+		 * 
+		 * @param nanos
+		 *            The time since {@link EchoClient#open(InetSocketAddress)} was called.
+		 */
+		void connected(EchoClient client, long nanos);
+
+		/**
+		 * A round trip started by {@link EchoClient#ping()} has completed.
+		 */
+		void echoed(EchoClient client, long nanos);
+
+		void failed(EchoClient client, Throwable exc);
+	}
+
+	private final Socket	    sock;
+	private final ByteBuffer	message;
+	private final Listener	    listener;
+	private final AtomicInteger	writers	  = new AtomicInteger();
+	private boolean	            connected	= false;
+	private boolean	            closing	  = false;
+	private int	                received;
+	private long	            sentAt;
+
+	public EchoClient(SocketFactory factory, SSLContext sslc, SocketOptions options, int size, Listener listener) throws IOException
+	{
+		this.sock = sslc == null ? factory.client(options) : factory.sslClient(sslc, options);
+		this.message = ByteBuffer.allocate(size);
+		this.listener = listener;
+
+		while (this.message.hasRemaining())
+			this.message.put((byte) this.message.position());
+
+		this.sock.setHandler(this);
+	}
+
+	public void open(InetSocketAddress remote) throws IOException
+	{
+		this.sentAt = System.nanoTime();
+		this.sock.open(remote);
+	}
+
+	/**
+	 * Starts a round trip. Must not be called while one is in progress.
+	 */
+	public void ping()
+	{
+		this.received = 0;
+		this.message.clear();
+		this.sentAt = System.nanoTime();
+		this.flush();
+	}
+
+	public synchronized void close()
+	{
+		this.closing = true;
+		this.sock.close();
+	}
+
+	void flush()
+	{
+		if (this.writers.getAndIncrement() != 0)
+			return;
+
+		do
+		{
+			if (this.message.hasRemaining())
+				this.sock.send(this.message);
+		} while (this.writers.decrementAndGet() != 0);
+	}
+
+	@Override
+	public void opened(Socket sock)
+	{
+		this.received = 0;
+		this.message.clear();
+		this.flush();
+	}
+
+	@Override
+	public void received(ByteBuffer data, Socket sock)
+	{
+		this.received += data.remaining();
+		data.position(data.limit());
+
+		if (this.received < this.message.capacity())
+			return;
+
+		long nanos = System.nanoTime() - this.sentAt;
+
+		if (this.listener == null)
+			return;
+
+		if (!this.connected)
+		{
+			this.connected = true;
+			this.listener.connected(this, nanos);
+		}
+		else
+			this.listener.echoed(this, nanos);
+	}
+
+	@Override
+	public void sent(Socket sock)
+	{
+		this.flush();
+	}
+
+	@Override
+	public void closed(Socket sock)
+	{
+		this.failed(new IOException("Connection closed"));
+	}
+
+	@Override
+	public void error(Throwable exc, Socket sock)
+	{
+		this.failed(exc);
+	}
+
+	private void failed(Throwable exc)
+	{
+		synchronized (this)
+		{
+			if (this.closing)
+				return;
+			this.closing = true;
+		}
+
+		if (this.listener != null)
+			this.listener.failed(this, exc);
+	}
+
+	/**
+	 * Opens a number of clients, and waits until every one has completed its first round trip.
+	 * 
+	 * @param concurrency
+	 *            The number of clients that may be connecting at once. Opening too many at once overflows the
+	 *            server's accept backlog.
+	 * @param timeout
+	 *            How long to wait for each connection, in milliseconds.
+	 * @param listener
+	 *            Notified of each connection and later round trip. May be <i>null</i>.
+	 * @throws IOException
+	 *             If any client fails to connect.
+	 * @throws TimeoutException
+	 *             If any client takes longer than the timeout to connect.
+	 */
+	public static EchoClient[] open(SocketFactory factory, SSLContext sslc, SocketOptions options, InetSocketAddress remote, int count, int size,
+	        int concurrency, long timeout, final Listener listener) throws IOException, InterruptedException, TimeoutException
+	{
+		final Semaphore connecting = new Semaphore(concurrency);
+		final CountDownLatch connected = new CountDownLatch(count);
+		final Throwable[] failure = new Throwable[1];
+
+		Listener opener = new Listener() {
+
+			@Override
+			public void connected(EchoClient client, long nanos)
+			{
+				connecting.release();
+				connected.countDown();
+
+				if (listener != null)
+					listener.connected(client, nanos);
+			}
+
+			@Override
+			public void echoed(EchoClient client, long nanos)
+			{
+				if (listener != null)
+					listener.echoed(client, nanos);
+			}
+
+			@Override
+			public void failed(EchoClient client, Throwable exc)
+			{
+				synchronized (failure)
+				{
+					if (failure[0] == null)
+						failure[0] = exc;
+				}
+
+				connecting.release();
+				connected.countDown();
+
+				if (listener != null)
+					listener.failed(client, exc);
+			}
+		};
+
+		EchoClient[] clients = new EchoClient[count];
+
+		try
+		{
+			for (int i = 0; i < count; i++)
+			{
+				if (!connecting.tryAcquire(timeout, TimeUnit.MILLISECONDS))
+					throw new TimeoutException("Timed out opening client " + i + " of " + count);
+
+				clients[i] = new EchoClient(factory, sslc, options, size, opener);
+				clients[i].open(remote);
+			}
+
+			if (!connected.await(timeout, TimeUnit.MILLISECONDS))
+				throw new TimeoutException("Timed out waiting for " + connected.getCount() + " of " + count + " clients to connect");
+
+			synchronized (failure)
+			{
+				if (failure[0] != null)
+					throw new IOException("Client failed to connect", failure[0]);
+			}
+		}
+		catch (IOException | InterruptedException | TimeoutException | RuntimeException e)
+		{
+			close(clients);
+			throw e;
+		}
+
+		return clients;
+	}
+
+	public static void close(EchoClient[] clients)
+	{
+		for (EchoClient client : clients)
+			if (client != null)
+				client.close();
+	}
+}
@@ -0,0 +1,173 @@
+package com.ericsson.research.trap.nio.bench;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+
+import com.ericsson.research.trap.nio.ServerSocket;
+import com.ericsson.research.trap.nio.ServerSocket.ServerSocketHandler;
+import com.ericsson.research.trap.nio.Socket;
+import com.ericsson.research.trap.nio.Socket.SocketHandler;
+import com.ericsson.research.trap.nio.SocketFactory;
+import com.ericsson.research.trap.nio.SocketOptions;
+
+/**
+ * A loopback server that echoes everything it receives.
+ */
+public class EchoServer implements ServerSocketHandler
+{
+
+	private final ServerSocket	server;
+
+	/**
+	 * Starts listening on an ephemeral port on 127.0.0.1.
+	 * 
+	 * @param sslc
+	 *            The TLS context, or <i>null</i> for plain sockets.
+	 */
+	public EchoServer(SocketFactory factory, SSLContext sslc, SocketOptions options) throws IOException
+	{
+		this.server = sslc == null ? factory.server(this, options) : factory.sslServer(sslc, this, options);
+		this.server.listen("127.0.0.1", 0);
+	}
+
+	public InetSocketAddress getAddress() throws IOException
+	{
+		return this.server.getInetAddress();
+	}
+
+	public void close()
+	{
+		this.server.close();
+	}
+
+	@Override
+	public void accept(Socket sock, ServerSocket ss)
+	{
+		new Echo(sock);
+	}
+
+	@Override
+	public void error(Throwable exc, ServerSocket ss)
+	{
+		// Pending accepts fail when the server is closed
+		if (!ss.isClosed())
+			exc.printStackTrace();
+	}
+
+	static class Echo implements SocketHandler
+	{
+
+		private final ConcurrentLinkedQueue<ByteBuffer>	echoes	= new ConcurrentLinkedQueue<ByteBuffer>();
+		private final AtomicInteger		                writers	= new AtomicInteger();
+		private final Socket		                    sock;
+
+		Echo(Socket sock)
+		{
+			this.sock = sock;
+			sock.setHandler(this);
+		}
+
+		/**
+		 * Writes queued echoes until the socket stops accepting them. Lock free, as sockets may call back into their
+		 * handler while holding their own locks; a caller that finds another thread writing leaves it another pass.
+		 */
+		void flush()
+		{
+			if (this.writers.getAndIncrement() != 0)
+				return;
+
+			do
+			{
+				for (;;)
+				{
+					ByteBuffer buf = this.echoes.peek();
+
+					if (buf == null)
+						break;
+
+					if (!buf.hasRemaining())
+					{
+						this.echoes.poll();
+						continue;
+					}
+
+					this.sock.send(buf);
+
+					// The socket is full; sent() resumes
+					if (buf.hasRemaining())
+						break;
+				}
+			} while (this.writers.decrementAndGet() != 0);
+		}
+
+		@Override
+		public void received(ByteBuffer data, Socket sock)
+		{
+			ByteBuffer buf = ByteBuffer.allocate(data.remaining());
+			buf.put(data);
+			buf.flip();
+			this.echoes.add(buf);
+			this.flush();
+		}
+
+		@Override
+		public void sent(Socket sock)
+		{
+			this.flush();
+		}
+
+		@Override
+		public void opened(Socket sock)
+		{
+		}
+
+		@Override
+		public void closed(Socket sock)
+		{
+		}
+
+		@Override
+		public void error(Throwable exc, Socket sock)
+		{
+			sock.close();
+		}
+	}
+}
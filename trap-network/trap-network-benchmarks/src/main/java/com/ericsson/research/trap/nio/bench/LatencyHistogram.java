@@ -0,0 +1,108 @@
+package com.ericsson.research.trap.nio.bench;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread safe histogram of durations, in nanoseconds. Each power of two is split into {@value #SUB_BUCKETS} buckets,
+ * so percentiles are accurate to within about 3%.
+ */
+public class LatencyHistogram
+{
+
+	static final int	          SUB_BITS	  = 5;
+	static final int	          SUB_BUCKETS	= 1 << SUB_BITS;
+
+	private final AtomicLongArray	counts	  = new AtomicLongArray(64 << SUB_BITS);
+
+	static int index(long nanos)
+	{
+		if (nanos < SUB_BUCKETS)
+			return (int) Math.max(nanos, 0);
+
+		int exp = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return ((exp - SUB_BITS + 1) << SUB_BITS) + sub;
+	}
+
+	/**
+	 * The smallest value that falls in a bucket.
+	 */
+	static long value(int index)
+	{
+		int bucket = index >>> SUB_BITS;
+		int sub = index & (SUB_BUCKETS - 1);
+
+		if (bucket == 0)
+			return sub;
+
+		return ((long) SUB_BUCKETS + sub) << (bucket - 1);
+	}
+
+	public void record(long nanos)
+	{
+		this.counts.incrementAndGet(index(nanos));
+	}
+
+	public long count()
+	{
+		long count = 0;
+		for (int i = 0; i < this.counts.length(); i++)
+			count += this.counts.get(i);
+		return count;
+	}
+
+	/**
+	 * @param percentile
+	 *            Between 0 and 100.
+	 * @return The duration that the given percentage of the recorded durations did not exceed, or 0 if nothing was
+	 *         recorded.
+	 */
+	public long percentile(double percentile)
+	{
+		long target = (long) Math.ceil(this.count() * percentile / 100);
+		long seen = 0;
+
+		for (int i = 0; i < this.counts.length(); i++)
+		{
+			seen += this.counts.get(i);
+
+			if (seen >= target && seen > 0)
+				return i + 1 < this.counts.length() ? value(i + 1) - 1 : Long.MAX_VALUE;
+		}
+
+		return 0;
+	}
+}
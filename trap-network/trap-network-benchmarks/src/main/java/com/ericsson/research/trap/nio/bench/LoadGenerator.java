@@ -0,0 +1,274 @@
+package com.ericsson.research.trap.nio.bench;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+
+import com.ericsson.research.trap.nio.Nio;
+import com.ericsson.research.trap.nio.SocketFactory;
+import com.ericsson.research.trap.nio.SocketOptions;
+import com.ericsson.research.trap.utils.SSLUtil;
+import com.ericsson.research.trap.utils.SSLUtil.SSLMaterial;
+
+/**
+ * Puts sustained echo load on a socket backend over loopback. A number of clients connect to an {@link EchoServer},
+ * then each sends a message, waits for the echo, and sends the next, for a fixed time. Reports the connection setup
+ * rate, the echo throughput and the round trip latency percentiles.
+ * <p>
+ * Usage: <code>LoadGenerator [-backend nio1|nio2] [-tls] [-connections 1,100,10000] [-size bytes] [-seconds s]</code>.
+ * A list of connection counts runs once for each.
+ * <p>
+ * The TLS runs use TLSv1.2 where the backend honours {@link SocketOptions#setSslProtocols(String...)}. nio1 always
+ * uses TLSv1, which newer JVMs disable by default (see <code>jdk.tls.disabledAlgorithms</code>). Ten thousand
+ * connections need a file descriptor limit above twenty thousand.
+ */
+public class LoadGenerator
+{
+
+	public static class Result
+	{
+		public String	        backend;
+		public boolean	        tls;
+		public int	            connections;
+		public int	            size;
+
+		/**
+		 * Connections per second, including the first round trip (and any TLS handshake).
+		 */
+		public double	        setupRate;
+		public long	            messages;
+		public double	        messageRate;
+		public double	        bytesRate;
+		public LatencyHistogram	latency;
+
+		@Override
+		public String toString()
+		{
+			return String.format("%s%s %6d conns %6d B: setup %8.0f conn/s, echo %9.0f msg/s %8.2f MB/s, rtt us p50 %7d p90 %7d p99 %7d p99.9 %7d",
+			        backend, tls ? "+tls" : "    ", connections, size, setupRate, messageRate, bytesRate / (1024 * 1024), micros(50), micros(90),
+			        micros(99), micros(99.9));
+		}
+
+		long micros(double percentile)
+		{
+			return TimeUnit.NANOSECONDS.toMicros(latency.percentile(percentile));
+		}
+	}
+
+	private final String	    backend;
+	private final SocketFactory	factory;
+	private final boolean	    tls;
+	private int	                connections	= 1;
+	private int	                size	    = 1024;
+	private int	                concurrency	= 128;
+	private long	            duration	= 10000;
+
+	/**
+	 * @param backend
+	 *            The socket backend, as accepted by {@link Nio#factory(String)}.
+	 */
+	public LoadGenerator(String backend, boolean tls)
+	{
+		this.backend = backend;
+		this.factory = Nio.factory(backend);
+		this.tls = tls;
+	}
+
+	public LoadGenerator setConnections(int connections)
+	{
+		this.connections = connections;
+		return this;
+	}
+
+	public LoadGenerator setSize(int size)
+	{
+		this.size = size;
+		return this;
+	}
+
+	/**
+	 * Sets the number of clients that may be connecting at once.
+	 */
+	public LoadGenerator setConcurrency(int concurrency)
+	{
+		this.concurrency = concurrency;
+		return this;
+	}
+
+	/**
+	 * Sets how long to generate load for, in milliseconds, after all clients have connected.
+	 */
+	public LoadGenerator setDuration(long duration)
+	{
+		this.duration = duration;
+		return this;
+	}
+
+	public Result run() throws Exception
+	{
+		SSLContext sslc = this.tls ? sslContext() : null;
+		SocketOptions options = options();
+		EchoServer server = new EchoServer(this.factory, sslc, options);
+
+		final LatencyHistogram latency = new LatencyHistogram();
+		final AtomicLong messages = new AtomicLong();
+		final CountDownLatch stopped = new CountDownLatch(this.connections);
+		final AtomicBoolean running = new AtomicBoolean();
+
+		EchoClient.Listener listener = new EchoClient.Listener() {
+
+			@Override
+			public void connected(EchoClient client, long nanos)
+			{
+			}
+
+			@Override
+			public void echoed(EchoClient client, long nanos)
+			{
+				if (running.get())
+				{
+					latency.record(nanos);
+					messages.incrementAndGet();
+					client.ping();
+				}
+				else
+					stopped.countDown();
+			}
+
+			@Override
+			public void failed(EchoClient client, Throwable exc)
+			{
+				stopped.countDown();
+			}
+		};
+
+		EchoClient[] clients = null;
+
+		try
+		{
+			long start = System.nanoTime();
+			clients = EchoClient.open(this.factory, sslc, options, server.getAddress(), this.connections, this.size, this.concurrency, 30000, listener);
+			long setup = System.nanoTime() - start;
+
+			running.set(true);
+			start = System.nanoTime();
+
+			for (EchoClient client : clients)
+				client.ping();
+
+			Thread.sleep(this.duration);
+			running.set(false);
+			long elapsed = System.nanoTime() - start;
+
+			// Let the last round trips finish before closing
+			stopped.await(10, TimeUnit.SECONDS);
+
+			Result result = new Result();
+			result.backend = this.backend;
+			result.tls = this.tls;
+			result.connections = this.connections;
+			result.size = this.size;
+			result.setupRate = this.connections * 1e9 / setup;
+			result.messages = messages.get();
+			result.messageRate = result.messages * 1e9 / elapsed;
+			result.bytesRate = result.messageRate * this.size;
+			result.latency = latency;
+			return result;
+		}
+		finally
+		{
+			if (clients != null)
+				EchoClient.close(clients);
+			server.close();
+		}
+	}
+
+	/**
+	 * The socket options used by the benchmarks: no Nagle delays, and TLSv1.2 where supported.
+	 */
+	public static SocketOptions options()
+	{
+		return new SocketOptions().setOption(SocketOptions.TCP_NODELAY, true).setSslProtocols("TLSv1.2");
+	}
+
+	/**
+	 * A TLS context with the bundled self signed test certificate.
+	 */
+	public static SSLContext sslContext()
+	{
+		return SSLUtil.getContext(new SSLMaterial("pkcs12", "sel_Ericcson.pkcs12", "Ericcson"), new SSLMaterial("jks", "sel_Ericcson.keystore", "Ericcson"));
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		String backend = "nio2";
+		boolean tls = false;
+		String connections = "1,10,100,1000";
+		int size = 1024;
+		int seconds = 10;
+
+		for (int i = 0; i < args.length; i++)
+		{
+			if ("-backend".equals(args[i]))
+				backend = args[++i];
+			else if ("-tls".equals(args[i]))
+				tls = true;
+			else if ("-connections".equals(args[i]))
+				connections = args[++i];
+			else if ("-size".equals(args[i]))
+				size = Integer.parseInt(args[++i]);
+			else if ("-seconds".equals(args[i]))
+				seconds = Integer.parseInt(args[++i]);
+			else
+			{
+				System.err.println("Usage: LoadGenerator [-backend nio1|nio2] [-tls] [-connections 1,100,10000] [-size bytes] [-seconds s]");
+				System.exit(1);
+			}
+		}
+
+		for (String count : connections.split(","))
+		{
+			LoadGenerator generator = new LoadGenerator(backend, tls).setConnections(Integer.parseInt(count.trim())).setSize(size)
+			        .setDuration(TimeUnit.SECONDS.toMillis(seconds));
+			System.out.println(generator.run());
+		}
+
+		System.exit(0);
+	}
+}
@@ -0,0 +1,90 @@
+package com.ericsson.research.trap.nio.bench;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.ericsson.research.trap.nio.bench.LoadGenerator.Result;
+
+public class LoadGeneratorTest
+{
+
+	@Test
+	public void testHistogram()
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		for (long i = 1; i <= 1000; i++)
+			histogram.record(i * 1000);
+
+		Assert.assertEquals(1000, histogram.count());
+		assertNear(500000, histogram.percentile(50));
+		assertNear(990000, histogram.percentile(99));
+		assertNear(1000000, histogram.percentile(100));
+		Assert.assertEquals(0, new LatencyHistogram().percentile(99));
+	}
+
+	private static void assertNear(long expected, long actual)
+	{
+		Assert.assertTrue(expected + " ~ " + actual, Math.abs(expected - actual) <= expected / 16);
+	}
+
+	@Test(timeout = 60000)
+	public void testNio1() throws Exception
+	{
+		this.check(new LoadGenerator("nio1", false).setConnections(20).setDuration(500).run());
+	}
+
+	@Test(timeout = 60000)
+	public void testNio2() throws Exception
+	{
+		this.check(new LoadGenerator("nio2", false).setConnections(20).setDuration(500).run());
+	}
+
+	@Test(timeout = 60000)
+	public void testNio2TLS() throws Exception
+	{
+		this.check(new LoadGenerator("nio2", true).setConnections(20).setSize(20000).setDuration(500).run());
+	}
+
+	private void check(Result result)
+	{
+		System.out.println(result);
+		Assert.assertTrue(result.messages > 0);
+		Assert.assertTrue(result.setupRate > 0);
+		Assert.assertTrue(result.latency.percentile(99) > 0);
+	}
+}
@@ -33,26 +33,45 @@ package com.ericsson.research.trap.nio;
  * ##_END_LICENSE_##
  */
 
+/**
+ * Entry point to the socket implementations. The default factory is the nio2 one if it is on the classpath, otherwise
+ * the nio1 one. The {@value #PROPERTY_FACTORY} system property selects a specific backend instead.
+ */
 public abstract class Nio
 {
 	
-	static SocketFactory factory;
+	/**
+	 * System property naming the default backend, as accepted by {@link #factory(String)}.
+	 */
+	public static final String	PROPERTY_FACTORY	= "trap.nio.factory";
+	
+	static final String	       NIO1	            = "com.ericsson.research.trap.nio.impl.nio1.Nio1SocketFactory";
+	static final String	       NIO2	            = "com.ericsson.research.trap.nio.impl.nio2.Nio2SocketFactory";
+	
+	static SocketFactory	   factory;
 	static
 	{
-		try
-		{
-			factory = (SocketFactory) Class.forName("com.ericsson.research.trap.nio.impl.nio2.Nio2SocketFactory").newInstance();
-		}
-		catch (Throwable e)
+		String backend = System.getProperty(PROPERTY_FACTORY);
+		
+		if (backend != null)
+			factory = factory(backend);
+		else
 		{
 			try
-            {
-	            factory = (SocketFactory) Class.forName("com.ericsson.research.trap.nio.impl.nio1.Nio1SocketFactory").newInstance();
-            }
-            catch (Throwable e1)
-            {
-	            throw new Error("Could not load any default socket factory", e);
-            }
+			{
+				factory = (SocketFactory) Class.forName(NIO2).newInstance();
+			}
+			catch (Throwable e)
+			{
+				try
+				{
+					factory = (SocketFactory) Class.forName(NIO1).newInstance();
+				}
+				catch (Throwable e1)
+				{
+					throw new Error("Could not load any default socket factory", e);
+				}
+			}
 		}
 	}
 	
@@ -60,4 +79,31 @@ public abstract class Nio
 		return factory;
 	}
 	
+	/**
+	 * Creates a factory for a specific backend.
+	 * 
+	 * @param backend
+	 *            <i>nio1</i>, <i>nio2</i>, or the class name of a {@link SocketFactory}.
+	 * @throws IllegalArgumentException
+	 *             If the backend could not be loaded.
+	 */
+	public static SocketFactory factory(String backend)
+	{
+		String className = backend;
+		
+		if ("nio1".equals(backend))
+			className = NIO1;
+		else if ("nio2".equals(backend))
+			className = NIO2;
+		
+		try
+		{
+			return (SocketFactory) Class.forName(className).newInstance();
+		}
+		catch (Exception e)
+		{
+			throw new IllegalArgumentException("Could not load socket factory " + backend, e);
+		}
+	}
+	
 }
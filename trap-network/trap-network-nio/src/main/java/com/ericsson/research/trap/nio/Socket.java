@@ -59,10 +59,55 @@ public interface Socket {
         
     }
     
+    /**
+     * Optional extension of {@link SocketHandler} for handlers that want to know when the socket stops accepting data.
+     * A socket with a bounded write queue becomes unwritable when the queue reaches its high watermark, and writable
+     * again once it has drained to its low watermark. Sockets without a bounded queue never call this.
+     */
+    public interface WritabilityHandler extends SocketHandler {
+        
+        public void writabilityChanged(boolean writable, Socket sock);
+        
+    }
+    
+    /**
+     * Optional extension of {@link SocketHandler} for handlers that take ownership of the buffers they receive. A plain
+     * handler must consume or copy the data before {@link SocketHandler#received(ByteBuffer, Socket)} returns, since
+     * the socket reads into the same buffer again. A zero copy handler may keep the buffer, and parse it in place,
+     * until it hands it back with {@link Socket#release(ByteBuffer)}; the socket reads into another buffer meanwhile.
+     * Buffers that are never released are simply not reused.
+     */
+    public interface ZeroCopyHandler extends SocketHandler {
+        
+    }
+    
     public void setHandler(SocketHandler handler);
     
+    /**
+     * Sends as much of <i>src</i> as the socket will accept, advancing its position. Data that was not accepted must
+     * be sent again after {@link SocketHandler#sent(Socket)}. The socket may keep a reference to the accepted part of
+     * the buffer until it has been written, so its contents must not be changed.
+     */
     public void send(ByteBuffer src);
     
+    /**
+     * Gathering variant of {@link #send(ByteBuffer)}. Sends the remaining bytes of each buffer in turn, in a single
+     * write where the socket supports it. Buffers that were not accepted, entirely or in part, must be sent again after
+     * {@link SocketHandler#sent(Socket)}.
+     */
+    public void send(ByteBuffer[] srcs);
+    
+    /**
+     * Hands a buffer received by a {@link ZeroCopyHandler} back to the socket, which may then reuse it. The buffer must
+     * not be used after it has been released.
+     */
+    public void release(ByteBuffer buf);
+    
+    /**
+     * @return <i>false</i> if {@link #send(ByteBuffer)} will currently not accept any data.
+     */
+    public boolean isWritable();
+    
     public void open(InetSocketAddress remote) throws IOException;
     
     public void open(InetAddress host, int port) throws IOException;
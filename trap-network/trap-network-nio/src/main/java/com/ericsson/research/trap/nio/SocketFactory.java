@@ -40,15 +40,27 @@ import javax.net.ssl.SSLContext;
 
 import com.ericsson.research.trap.nio.ServerSocket.ServerSocketHandler;
 
+/**
+ * Creates sockets. The variants that take {@link SocketOptions} apply them to the sockets they create; passing
+ * <i>null</i> is the same as calling the variant without options.
+ */
 public interface SocketFactory
 {
     
     Socket client() throws IOException;
     
+    Socket client(SocketOptions options) throws IOException;
+    
     Socket sslClient(SSLContext sslc) throws IOException;
     
+    Socket sslClient(SSLContext sslc, SocketOptions options) throws IOException;
+    
     ServerSocket sslServer(SSLContext sslc, ServerSocketHandler handler) throws IOException;
     
+    ServerSocket sslServer(SSLContext sslc, ServerSocketHandler handler, SocketOptions options) throws IOException;
+    
     ServerSocket server(ServerSocketHandler handler) throws IOException;
     
+    ServerSocket server(ServerSocketHandler handler, SocketOptions options) throws IOException;
+    
 }
@@ -0,0 +1,186 @@
+package com.ericsson.research.trap.nio;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Options for sockets created by a {@link SocketFactory}. Socket option names follow
+ * <code>java.net.StandardSocketOptions</code> (e.g. {@link #TCP_NODELAY}), and values are Booleans or Integers, or
+ * strings that parse as such. Options that the socket implementation does not support are ignored.
+ * <p>
+ * The options also size the I/O threads that complete operations on the sockets, and the number of accept loops on
+ * server sockets. Sockets with the same thread settings share their threads. Not every factory honours these.
+ */
+public class SocketOptions
+{
+    
+    public static final String        TCP_NODELAY    = "TCP_NODELAY";
+    public static final String        SO_SNDBUF      = "SO_SNDBUF";
+    public static final String        SO_RCVBUF      = "SO_RCVBUF";
+    public static final String        SO_REUSEADDR   = "SO_REUSEADDR";
+    public static final String        SO_REUSEPORT   = "SO_REUSEPORT";
+    public static final String        SO_KEEPALIVE   = "SO_KEEPALIVE";
+    
+    /**
+     * Completion threads are a fixed pool of {@link #getThreads()} threads.
+     */
+    public static final String        THREADS_FIXED  = "fixed";
+    
+    /**
+     * Completion threads are a cached pool, starting with {@link #getThreads()} threads.
+     */
+    public static final String        THREADS_CACHED = "cached";
+    
+    private final Map<String, Object> options        = new LinkedHashMap<String, Object>();
+    private int                       threads        = 0;
+    private String                    threadPool     = THREADS_FIXED;
+    private int                       acceptLoops    = 1;
+    private int                       lowWatermark   = 32 * 1024;
+    private int                       highWatermark  = 64 * 1024;
+    private String[]                  sslProtocols   = null;
+    
+    public SocketOptions setOption(String name, Object value)
+    {
+        if (value == null)
+            this.options.remove(name);
+        else
+            this.options.put(name, value);
+        return this;
+    }
+    
+    public Object getOption(String name)
+    {
+        return this.options.get(name);
+    }
+    
+    public Map<String, Object> getOptions()
+    {
+        return Collections.unmodifiableMap(this.options);
+    }
+    
+    /**
+     * Sets the number of completion threads. 0 (the default) uses the platform's default threads.
+     */
+    public SocketOptions setThreads(int threads)
+    {
+        this.threads = threads;
+        return this;
+    }
+    
+    public int getThreads()
+    {
+        return this.threads;
+    }
+    
+    /**
+     * Sets the type of completion thread pool, {@link #THREADS_FIXED} or {@link #THREADS_CACHED}.
+     */
+    public SocketOptions setThreadPool(String threadPool)
+    {
+        if (!THREADS_FIXED.equals(threadPool) && !THREADS_CACHED.equals(threadPool))
+            throw new IllegalArgumentException("Unknown thread pool type " + threadPool);
+        
+        this.threadPool = threadPool;
+        return this;
+    }
+    
+    public String getThreadPool()
+    {
+        return this.threadPool;
+    }
+    
+    /**
+     * Sets the number of concurrent accept loops on a server socket. More than one loop requires {@link #SO_REUSEPORT}
+     * support, as each loop listens on its own socket bound to the same address.
+     */
+    public SocketOptions setAcceptLoops(int acceptLoops)
+    {
+        this.acceptLoops = Math.max(1, acceptLoops);
+        return this;
+    }
+    
+    public int getAcceptLoops()
+    {
+        return this.acceptLoops;
+    }
+    
+    /**
+     * Sets the bounds of the socket's write queue, in bytes. The socket stops accepting data once the queued bytes
+     * reach the high watermark, and accepts data again when they have drained to the low watermark. Not every factory
+     * has a bounded write queue.
+     */
+    public SocketOptions setWriteWatermarks(int low, int high)
+    {
+        if (low < 0 || high <= 0 || low > high)
+            throw new IllegalArgumentException("Invalid write watermarks " + low + "/" + high);
+        
+        this.lowWatermark = low;
+        this.highWatermark = high;
+        return this;
+    }
+    
+    public int getWriteLowWatermark()
+    {
+        return this.lowWatermark;
+    }
+    
+    public int getWriteHighWatermark()
+    {
+        return this.highWatermark;
+    }
+    
+    /**
+     * Sets the protocols TLS sockets may use, e.g. "TLSv1.2". Null (the default) leaves the choice to the factory.
+     * Session tickets require a protocol that supports them, such as TLSv1.3.
+     */
+    public SocketOptions setSslProtocols(String... sslProtocols)
+    {
+        this.sslProtocols = sslProtocols != null && sslProtocols.length > 0 ? sslProtocols.clone() : null;
+        return this;
+    }
+    
+    public String[] getSslProtocols()
+    {
+        return this.sslProtocols == null ? null : this.sslProtocols.clone();
+    }
+    
+    public String toString()
+    {
+        return "SocketOptions" + this.options + ", threads=" + this.threads + " (" + this.threadPool + "), acceptLoops=" + this.acceptLoops + ", watermarks=" + this.lowWatermark + "/" + this.highWatermark;
+    }
+    
+}
@@ -37,6 +37,7 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 
@@ -45,7 +46,7 @@ public class ManagedSocket implements NioEndpoint {
 	public static enum State { NOT_CONNECTED, CONNECTING, CONNECTED, DISCONNECTING }
 	
 	private State mState;
-	private NioManager	nioManager = NioManager.instance();
+	private NioManager	nioManager;
 	private SelectionKey	key;
 	private InetSocketAddress mSocketAddress;
 	private ManagedSocketClient mClient;
@@ -56,10 +57,14 @@ public class ManagedSocket implements NioEndpoint {
 	
 	protected ManagedSocket(boolean connected)
 	{
+		// Accepted sockets are handed their NioManager by the one that accepted them
 		if (connected)
 			this.mState = State.CONNECTED;
 		else
+		{
 			this.mState = State.NOT_CONNECTED;
+			this.nioManager = NioManager.instance();
+		}
 	}
 
 	public void registerClient(ManagedSocketClient client) {
@@ -110,6 +115,24 @@ public class ManagedSocket implements NioEndpoint {
 		
 		this.nioManager.send(this.key, data, size);
 	}
+
+	/**
+	 * Queues the remaining bytes of a buffer for sending. Unlike {@link #write(byte[], int)}, the data is not copied;
+	 * the buffer belongs to the socket once this method returns.
+	 * 
+	 * @param data
+	 *            The data to send
+	 * @throws IOException
+	 *             If the socket is not connected, or is closed
+	 */
+	public void write(ByteBuffer data) throws IOException
+	{
+		
+		if (this.key == null)
+			throw new IOException("Socket not connected");
+		
+		this.nioManager.send(this.key, data);
+	}
 	
 	public void disconnect() {
 		if (this.mState == State.NOT_CONNECTED)
@@ -180,7 +203,7 @@ public class ManagedSocket implements NioEndpoint {
 	 */
 	protected void finalize() throws Throwable
 	{
-		if (this.mState != State.NOT_CONNECTED)
+		if (this.mState != State.NOT_CONNECTED && this.nioManager != null)
 		{
 			this.mState = State.DISCONNECTING;
 			this.nioManager.close(this.key);
@@ -53,11 +53,26 @@ import java.util.LinkedList;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Runs the nio1 sockets. There is one NioManager per selector thread; {@link #instance()} hands them out round robin,
+ * and accepted connections are spread across them as well, so that a busy server is not limited to a single core. The
+ * number of selector threads defaults to the number of processors, and can be set with the system property
+ * {@value #PROPERTY_SELECTORS}.
+ * <p>
+ * Other threads hand work to a selector thread through lock-free queues, and only wake it up when it has something new
+ * to do.
+ */
 public class NioManager implements Runnable
 {
     
+    /**
+     * System property holding the number of selector threads to start.
+     */
+    public static final String                                       PROPERTY_SELECTORS                               = "trap.nio1.selectors";
+    
     private static final int                                         MAX_OUTGOING_SOCKETS                             = 15;
     private static final String                                      KEY_METADATA_LAST_OUTPUT_BUFFER_CHANGE_TIMESTAMP = "KEY_METADATA_LAST_OUTPUT_BUFFER_CHANGE_TIMESTAMP";
     private static final String                                      KEY_METADATA_LAST_OUTPUT_BUFFER_SIZE             = "KEY_METADATA_LAST_OUTPUT_BUFFER_SIZE";
@@ -67,37 +82,78 @@ public class NioManager implements Runnable
     private static final long                                        SOCKET_WRITE_TIMEOUT                             = 15000;
     private static final String                                      KEY_METADATA_LAST_WRITE_TIMESTAMP                = "KEY_METADATA_LAST_WRITE_TIMESTAMP";
     
-    private static NioManager                                        instance;
+    private static volatile NioManager[]                             instances;
+    private static final AtomicInteger                               nextInstance                                     = new AtomicInteger();
     
     private final ByteBuffer                                         readBuffer                                       = ByteBuffer.allocate(8192);
-    private final Map<SelectionKey, LinkedBlockingQueue<ByteBuffer>> outputBuffers                                    = new ConcurrentHashMap<SelectionKey, LinkedBlockingQueue<ByteBuffer>>();
+    private final Map<SelectionKey, OutputQueue>                     outputBuffers                                    = new ConcurrentHashMap<SelectionKey, OutputQueue>();
     private final Map<SelectionKey, NioReference<NioEndpoint>>       sockets                                          = new ConcurrentHashMap<SelectionKey, NioReference<NioEndpoint>>();
-    private final Collection<NioWaitingSocket>                       waitingSockets                                   = new ConcurrentLinkedQueue<NioWaitingSocket>();
-    private final Collection<SelectionKey>                           closeKeys                                        = new ConcurrentLinkedQueue<SelectionKey>();
-    private final Collection<SelectionKey>                           writeKeys                                        = new ConcurrentLinkedQueue<SelectionKey>();
+    private final ConcurrentLinkedQueue<NioWaitingSocket>            waitingSockets                                   = new ConcurrentLinkedQueue<NioWaitingSocket>();
+    private final ConcurrentLinkedQueue<AcceptedSocket>              acceptedSockets                                  = new ConcurrentLinkedQueue<AcceptedSocket>();
+    private final ConcurrentLinkedQueue<SelectionKey>                closeKeys                                        = new ConcurrentLinkedQueue<SelectionKey>();
+    private final ConcurrentLinkedQueue<SelectionKey>                writeKeys                                        = new ConcurrentLinkedQueue<SelectionKey>();
     private final Map<SelectionKey, NioWaitingSocket>                connectingSockets                                = new ConcurrentHashMap<SelectionKey, NioWaitingSocket>();
     
+    private final int                                                index;
     private Selector                                                 selector;
-    private Thread                                                   nioThread                                        = null;
+    private volatile Thread                                          nioThread                                        = null;
     
-    public static synchronized NioManager instance()
+    /**
+     * Fetches a NioManager to register a new socket with. Successive calls return the selector threads in turn.
+     * 
+     * @return A running NioManager
+     */
+    public static NioManager instance()
     {
-        if (instance == null)
-            instance = new NioManager();
-        if (instance.nioThread == null)
-            instance.start();
-        return instance;
+        NioManager[] managers = instances;
+        
+        if (managers == null)
+            managers = managers();
+        
+        NioManager manager = managers[(nextInstance.getAndIncrement() & Integer.MAX_VALUE) % managers.length];
+        
+        if (manager.nioThread == null)
+        {
+            synchronized (NioManager.class)
+            {
+                if (manager.nioThread == null)
+                    manager.start();
+            }
+        }
+        
+        return manager;
     }
     
-    private NioManager()
+    private static synchronized NioManager[] managers()
     {
+        if (instances == null)
+        {
+            int count = Integer.getInteger(PROPERTY_SELECTORS, Runtime.getRuntime().availableProcessors()).intValue();
+            NioManager[] managers = new NioManager[Math.max(1, count)];
+            
+            for (int i = 0; i < managers.length; i++)
+                managers[i] = new NioManager(i);
+            
+            instances = managers;
+        }
+        
+        return instances;
     }
     
-    public static void reset() throws IOException
+    private NioManager(int index)
     {
-        if (instance != null)
-            instance.stop();
-        instance = null;
+        this.index = index;
+    }
+    
+    public static synchronized void reset() throws IOException
+    {
+        if (instances != null)
+        {
+            for (NioManager manager : instances)
+                if (manager.selector != null)
+                    manager.stop();
+        }
+        instances = null;
     }
     
     public void start()
@@ -111,7 +167,7 @@ public class NioManager implements Runnable
             e.printStackTrace();
             return;
         }
-        this.nioThread = new Thread(this);
+        this.nioThread = new Thread(this, "trap-nio1-" + this.index);
         this.nioThread.start();
     }
     
@@ -127,15 +183,14 @@ public class NioManager implements Runnable
             try
             {
                 
-                if (!this.writeKeys.isEmpty())
+                SelectionKey writeKey;
+                while ((writeKey = this.writeKeys.poll()) != null)
                 {
-                    synchronized (this.writeKeys)
-                    {
-                        for (SelectionKey key : this.writeKeys)
-                            if (key.isValid())
-                                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
-                        this.writeKeys.clear();
-                    }
+                    OutputQueue queue = this.outputBuffers.get(writeKey);
+                    if (queue != null)
+                        queue.scheduled.set(false);
+                    if (writeKey.isValid())
+                        writeKey.interestOps(writeKey.interestOps() | SelectionKey.OP_WRITE);
                 }
                 
                 synchronized (this.selector)
@@ -144,9 +199,9 @@ public class NioManager implements Runnable
                     // So the iterators below don't tell the whole truth, and it is right that a closeKey can trigger a waitingSocket
                     // Therefore, since I ignore the call to wakeup to not block the thread in some circumstances, I need to make
                     // this check here.
-                    if (this.waitingSockets.isEmpty() && this.closeKeys.isEmpty())
+                    if (this.waitingSockets.isEmpty() && this.acceptedSockets.isEmpty() && this.closeKeys.isEmpty())
                     {
-                        if ((this.connectingSockets.size() == 0) && (this.writeKeys.size() == 0))
+                        if (this.connectingSockets.isEmpty() && this.writeKeys.isEmpty())
                             this.selector.select(10000); // Once every ten seconds is acceptable to wake up just in case a race would cause a deadlock.
                         else
                             this.selector.select(1000); // If sockets are connecting, wake up more often to check their timeouts.
@@ -212,46 +267,59 @@ public class NioManager implements Runnable
                 //              }
                 
                 // Add waiting socket, if applicable
-                if (!this.waitingSockets.isEmpty())
+                NioWaitingSocket waitingSocket;
+                while ((waitingSocket = this.waitingSockets.poll()) != null)
                 {
-                    synchronized (this.waitingSockets)
+                    boolean accept = (waitingSocket.getOps() & SelectionKey.OP_ACCEPT) != 0;
+                    if (accept && (this.connectingSockets.size() > MAX_OUTGOING_SOCKETS))
+                        continue;
+                    NioEndpoint endpoint = waitingSocket.getSocket();
+                    try
+                    {
+                        SelectionKey key = waitingSocket.createChannel().register(this.selector, waitingSocket.getOps());
+                        endpoint.setNioManager(this, key);
+                        this.outputBuffers.put(key, new OutputQueue());
+                        this.sockets.put(key, new NioReference<NioEndpoint>(endpoint));
+                        if (accept)
+                            endpoint.notifyConnected();
+                        else
+                            this.connectingSockets.put(key, waitingSocket);
+                    }
+                    catch (Exception e)
+                    {
+                        endpoint.notifyError(e);
+                    }
+                    finally
                     {
-                        Iterator<NioWaitingSocket> it = this.waitingSockets.iterator();
-                        while (it.hasNext())
+                        synchronized (waitingSocket)
                         {
-                            NioWaitingSocket waitingSocket = it.next();
-                            it.remove();
-                            boolean accept = (waitingSocket.getOps() & SelectionKey.OP_ACCEPT) != 0;
-                            if (accept && (this.connectingSockets.size() > MAX_OUTGOING_SOCKETS))
-                                continue;
-                            NioEndpoint endpoint = waitingSocket.getSocket();
-                            try
-                            {
-                                SelectionKey key = waitingSocket.createChannel().register(this.selector, waitingSocket.getOps());
-                                endpoint.setNioManager(this, key);
-                                this.outputBuffers.put(key, new LinkedBlockingQueue<ByteBuffer>());
-                                this.sockets.put(key, new NioReference<NioEndpoint>(endpoint));
-                                if (accept)
-                                    endpoint.notifyConnected();
-                                else
-                                    this.connectingSockets.put(key, waitingSocket);
-                            }
-                            catch (Exception e)
-                            {
-                                endpoint.notifyError(e);
-                            }
-                            finally
-                            {
-                                synchronized (waitingSocket)
-                                {
-                                    waitingSocket.setDone(true);
-                                    waitingSocket.notifyAll();
-                                }
-                            }
+                            waitingSocket.setDone(true);
+                            waitingSocket.notifyAll();
                         }
                     }
                 }
                 
+                // Register sockets accepted by other selector threads
+                AcceptedSocket accepted;
+                while ((accepted = this.acceptedSockets.poll()) != null)
+                {
+                    try
+                    {
+                        this.register(accepted.channel, accepted.endpoint, accepted.parent);
+                    }
+                    catch (IOException e)
+                    {
+                        try
+                        {
+                            accepted.channel.close();
+                        }
+                        catch (IOException e1)
+                        {
+                        }
+                        accepted.parent.notifyError(e);
+                    }
+                }
+                
                 if (!this.connectingSockets.isEmpty())
                 {
                     // Check timeouts on sockets that are connecting.
@@ -273,124 +341,115 @@ public class NioManager implements Runnable
                 {
                     // Closed notifications will wait
                     LinkedList<NioEndpoint> closedEndpoints = new LinkedList<NioEndpoint>();
-                    synchronized (this.closeKeys)
+                    Iterator<SelectionKey> it = this.closeKeys.iterator();
+                    while (it.hasNext())
                     {
-                        Iterator<SelectionKey> it = this.closeKeys.iterator();
-                        while (it.hasNext())
+                        SelectionKey key = it.next();
+                        Collection<ByteBuffer> ob = this.outputBuffers.get(key);
+                        
+                        HashMap<String, Object> metadata = this.getMetadata(key);
+                        
+                        /*
+                         * This case covers the case where we are flushing data.
+                         * This is verified every second, but in some cases, sockets can get
+                         * stuck in this case. What we'll do is verify no data was sent over a certain period
+                         * and, if true, remove the socket anyway
+                         */
+                        if ((ob != null) && !ob.isEmpty() && key.channel().isOpen())
                         {
-                            SelectionKey key = it.next();
-                            Collection<ByteBuffer> ob = this.outputBuffers.get(key);
                             
-                            HashMap<String, Object> metadata = this.getMetadata(key);
+                            Long lastChange = (Long) metadata.get(KEY_METADATA_LAST_OUTPUT_BUFFER_CHANGE_TIMESTAMP);
+                            Integer lastSize = (Integer) metadata.get(KEY_METADATA_LAST_OUTPUT_BUFFER_SIZE);
+                            Integer lastBufRemaining = (Integer) metadata.get(KEY_METADATA_LAST_BUFFER_REMAINING);
+                            
+                            ByteBuffer first = ob.iterator().next();
+                            
+                            int size = ob.size();
+                            int remaining = first.remaining();
+                            long cTime = System.currentTimeMillis();
                             
-                            /*
-                             * This case covers the case where we are flushing data.
-                             * This is verified every second, but in some cases, sockets can get
-                             * stuck in this case. What we'll do is verify no data was sent over a certain period
-                             * and, if true, remove the socket anyway
-                             */
-                            if ((ob != null) && !ob.isEmpty() && key.channel().isOpen())
+                            if (lastChange == null)
+                                lastChange = cTime;
+                            
+                            if (lastSize == null)
+                                lastSize = size;
+                            
+                            if (lastBufRemaining == null)
+                                lastBufRemaining = remaining;
+                            
+                            // Now for some verification
+                            
+                            long endTime = lastChange.longValue() + SOCKET_CLOSE_TIMEOUT;
+                            boolean doContinue = true;
+                            
+                            // We're within the timeout window!!!
+                            if (cTime >= endTime)
                             {
-                                
-                                Long lastChange = (Long) metadata.get(KEY_METADATA_LAST_OUTPUT_BUFFER_CHANGE_TIMESTAMP);
-                                Integer lastSize = (Integer) metadata.get(KEY_METADATA_LAST_OUTPUT_BUFFER_SIZE);
-                                Integer lastBufRemaining = (Integer) metadata.get(KEY_METADATA_LAST_BUFFER_REMAINING);
-                                
-                                ByteBuffer first = ob.iterator().next();
-                                
-                                int size = ob.size();
-                                int remaining = first.remaining();
-                                long cTime = System.currentTimeMillis();
-                                
-                                if (lastChange == null)
-                                    lastChange = cTime;
-                                
-                                if (lastSize == null)
-                                    lastSize = size;
-                                
-                                if (lastBufRemaining == null)
-                                    lastBufRemaining = remaining;
-                                
-                                // Now for some verification
-                                
-                                long endTime = lastChange.longValue() + SOCKET_CLOSE_TIMEOUT;
-                                boolean doContinue = true;
-                                
-                                // We're within the timeout window!!!
-                                if (cTime >= endTime)
+                                if (size == lastSize.intValue())
                                 {
-                                    if (size == lastSize.intValue())
+                                    // Nest the ifs so it's easier to debug
+                                    
+                                    if (remaining == lastBufRemaining)
                                     {
-                                        // Nest the ifs so it's easier to debug
-                                        
-                                        if (remaining == lastBufRemaining)
-                                        {
-                                            // Same number of buffers, same index, time is
-                                            doContinue = false;
-                                        }
+                                        // Same number of buffers, same index, time is
+                                        doContinue = false;
                                     }
                                 }
-                                
-                                // Update the params. Technically, this means we'll only perform the comparison after 30 seconds,
-                                // leading to an effective timeout time of 59 seconds (or 2*socket_close_timeout) but this way simplifies
-                                // the calculations necessary
-                                if (doContinue)
-                                {
-                                    metadata.put(KEY_METADATA_LAST_OUTPUT_BUFFER_CHANGE_TIMESTAMP, cTime);
-                                    metadata.put(KEY_METADATA_LAST_OUTPUT_BUFFER_SIZE, size);
-                                    metadata.put(KEY_METADATA_LAST_BUFFER_REMAINING, remaining);
-                                    continue;
-                                }
-                            }
-                            
-                            NioEndpoint socket = null;
-                            try
-                            {
-                                socket = this.sockets.remove(key).get();
-                            }
-                            catch (Exception e)
-                            {
                             }
                             
-                            try
-                            {
-                                key.channel().close();
-                            }
-                            catch (IOException e)
-                            {
-                                e.printStackTrace();
-                            }
-                            
-                            key.cancel();
-                            
-                            synchronized (this.outputBuffers)
+                            // Update the params. Technically, this means we'll only perform the comparison after 30 seconds,
+                            // leading to an effective timeout time of 59 seconds (or 2*socket_close_timeout) but this way simplifies
+                            // the calculations necessary
+                            if (doContinue)
                             {
-                                this.outputBuffers.remove(key);
+                                metadata.put(KEY_METADATA_LAST_OUTPUT_BUFFER_CHANGE_TIMESTAMP, cTime);
+                                metadata.put(KEY_METADATA_LAST_OUTPUT_BUFFER_SIZE, size);
+                                metadata.put(KEY_METADATA_LAST_BUFFER_REMAINING, remaining);
+                                continue;
                             }
-                            
-                            it.remove();
-                            
-                            if (socket != null)
-                                closedEndpoints.add(socket);
                         }
+                        
+                        NioEndpoint socket = null;
+                        try
+                        {
+                            socket = this.sockets.remove(key).get();
+                        }
+                        catch (Exception e)
+                        {
+                        }
+                        
+                        try
+                        {
+                            key.channel().close();
+                        }
+                        catch (IOException e)
+                        {
+                            e.printStackTrace();
+                        }
+                        
+                        key.cancel();
+                        
+                        this.outputBuffers.remove(key);
+                        
+                        it.remove();
+                        
+                        if (socket != null)
+                            closedEndpoints.add(socket);
                     }
                     
                     if (!this.writeKeys.isEmpty())
                     {
-                        synchronized (this.writeKeys)
+                        long now = System.currentTimeMillis();
+                        for (SelectionKey key : this.writeKeys)
                         {
-                            long now = System.currentTimeMillis();
-                            for (SelectionKey key : this.writeKeys)
-                            {
-                                HashMap<String, Object> metadata = this.getMetadata(key);
-                                Long lastWrite = (Long) metadata.get(KEY_METADATA_LAST_WRITE_TIMESTAMP);
-                                
-                                if (lastWrite == null)
-                                    lastWrite = now;
-                                
-                                if ((lastWrite.longValue() + SOCKET_WRITE_TIMEOUT) < now)
-                                    this.close(key);
-                            }
+                            HashMap<String, Object> metadata = this.getMetadata(key);
+                            Long lastWrite = (Long) metadata.get(KEY_METADATA_LAST_WRITE_TIMESTAMP);
+                            
+                            if (lastWrite == null)
+                                lastWrite = now;
+                            
+                            if ((lastWrite.longValue() + SOCKET_WRITE_TIMEOUT) < now)
+                                this.close(key);
                         }
                     }
                     
@@ -416,6 +475,7 @@ public class NioManager implements Runnable
                 this.outputBuffers.clear();
                 this.sockets.clear();
                 this.waitingSockets.clear();
+                this.acceptedSockets.clear();
                 this.closeKeys.clear();
                 this.writeKeys.clear();
                 this.connectingSockets.clear();
@@ -461,10 +521,7 @@ public class NioManager implements Runnable
                 {
                     if (nws.getRetries() > 0)
                     {
-                        synchronized (this.waitingSockets)
-                        {
-                            this.waitingSockets.add(nws);
-                        }
+                        this.waitingSockets.add(nws);
                         nws.setRetries(nws.getRetries() - 1);
                         return;
                     }
@@ -488,7 +545,7 @@ public class NioManager implements Runnable
         SocketChannel socketChannel = (SocketChannel) key.channel();
         try
         {
-            LinkedBlockingQueue<ByteBuffer> queue = this.outputBuffers.get(key);
+            OutputQueue queue = this.outputBuffers.get(key);
             // Write until there's not more data ...
             while (!queue.isEmpty())
             {
@@ -513,13 +570,10 @@ public class NioManager implements Runnable
             {
                 // We wrote away all data, so we're no longer interested
                 // in writing on this socket. Switch back to waiting for
-                // data.
-                synchronized (this.writeKeys)
-                {
-                    // Wrap in synchronized block prevents us from overwriting the result from the main run loop that is clearing writeKeys.
-                    if (queue.isEmpty())
-                        key.interestOps(SelectionKey.OP_READ);
-                }
+                // data. A sender that queues more data after this point
+                // also queues the key, and the run loop turns writing
+                // back on.
+                key.interestOps(SelectionKey.OP_READ);
             }
             
             HashMap<String, Object> metadata = this.getMetadata(key);
@@ -540,7 +594,7 @@ public class NioManager implements Runnable
         if (numRead <= -1)
         {
             // This key will never flush anything
-            LinkedBlockingQueue<ByteBuffer> queue = this.outputBuffers.get(key);
+            OutputQueue queue = this.outputBuffers.get(key);
             queue.clear();
             this.close(key);
         }
@@ -556,10 +610,7 @@ public class NioManager implements Runnable
     {
         if (key == null)
             return;
-        synchronized (this.closeKeys)
-        {
-            this.closeKeys.add(key);
-        }
+        this.closeKeys.add(key);
         
         if (Thread.currentThread() != this.nioThread)
             this.selector.wakeup();
@@ -575,36 +626,73 @@ public class NioManager implements Runnable
             return;
         }
         
-        NioEndpoint newPoint = endpoint.createAcceptChild();
         SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+        if (channel == null)
+            return;
         channel.configureBlocking(false);
+        NioEndpoint newPoint = endpoint.createAcceptChild();
+        
+        // Spread accepted sockets over the selector threads
+        NioManager manager = instance();
+        
+        if (manager == this)
+            this.register(channel, newPoint, endpoint);
+        else
+        {
+            manager.acceptedSockets.add(new AcceptedSocket(channel, newPoint, endpoint));
+            manager.selector.wakeup();
+        }
+    }
+    
+    private void register(SocketChannel channel, NioEndpoint endpoint, NioEndpoint parent) throws IOException
+    {
         SelectionKey channelKey = channel.register(this.selector, SelectionKey.OP_READ);
-        newPoint.setNioManager(this, channelKey);
-        this.sockets.put(channelKey, new NioReference<NioEndpoint>(newPoint));
-        this.outputBuffers.put(channelKey, new LinkedBlockingQueue<ByteBuffer>());
-        endpoint.notifyAccepted(newPoint);
+        endpoint.setNioManager(this, channelKey);
+        this.sockets.put(channelKey, new NioReference<NioEndpoint>(endpoint));
+        this.outputBuffers.put(channelKey, new OutputQueue());
+        parent.notifyAccepted(endpoint);
     }
     
     protected void send(SelectionKey key, byte[] data, int size) throws IOException
+    {
+        // The caller may reuse the array once we return
+        byte[] mData = new byte[size];
+        System.arraycopy(data, 0, mData, 0, size);
+        this.send(key, ByteBuffer.wrap(mData));
+    }
+    
+    /**
+     * Queues a buffer for sending. The buffer is not copied; the caller must not touch it again.
+     * 
+     * @param key
+     *            The key of the socket to send on
+     * @param data
+     *            The data to send
+     * @throws IOException
+     *             If the socket is closed
+     */
+    protected void send(SelectionKey key, ByteBuffer data) throws IOException
     {
         if (!key.isValid())
             throw new IOException("Transport is no longer available");
         if (this.closeKeys.contains(key))
             throw new IOException("Cannot send to a closed socket.");
-        // Wrap the data in a buffer outside the synchronized to not block the main thread.
-        byte[] mData = new byte[size];
-        System.arraycopy(data, 0, mData, 0, size);
-        ByteBuffer byteBuffer = ByteBuffer.wrap(mData);
         
-        this.outputBuffers.get(key).add(byteBuffer);
+        OutputQueue queue = this.outputBuffers.get(key);
         
-        synchronized (this.writeKeys)
+        if (queue == null)
+            throw new IOException("Transport is no longer available");
+        
+        queue.add(data);
+        
+        // Only the first send since the run loop last looked needs to queue the key
+        if (queue.scheduled.compareAndSet(false, true))
         {
             this.writeKeys.add(key);
+            
+            if (Thread.currentThread() != this.nioThread)
+                this.selector.wakeup();
         }
-        
-        if (Thread.currentThread() != this.nioThread)
-            this.selector.wakeup();
     }
     
     public void open(NioEndpoint socket, InetSocketAddress remote)
@@ -615,10 +703,7 @@ public class NioManager implements Runnable
     public void open(NioEndpoint socket, InetSocketAddress remote, boolean wait)
     {
         NioWaitingSocket waitingSocket = new NioWaitingSocket(socket, remote, false, SelectionKey.OP_CONNECT);
-        synchronized (this.waitingSockets)
-        {
-            this.waitingSockets.add(waitingSocket);
-        }
+        this.waitingSockets.add(waitingSocket);
         
         if (Thread.currentThread() != this.nioThread)
             this.selector.wakeup();
@@ -648,13 +733,10 @@ public class NioManager implements Runnable
         if (!endpoint.canAccept())
             throw new IllegalArgumentException("Received endpoint of type " + endpoint.getClass() + " that cannot accept");
         NioWaitingSocket waitingSocket = new NioWaitingSocket(endpoint, local, true, SelectionKey.OP_ACCEPT);
-        synchronized (this.waitingSockets)
-        {
-            this.waitingSockets.add(waitingSocket);
-            
-            if (Thread.currentThread() != this.nioThread)
-                this.selector.wakeup();
-        }
+        this.waitingSockets.add(waitingSocket);
+        
+        if (Thread.currentThread() != this.nioThread)
+            this.selector.wakeup();
         if (wait && !this.nioThread.equals(Thread.currentThread()))
         {
             synchronized (waitingSocket)
@@ -675,6 +757,30 @@ public class NioManager implements Runnable
         }
     }
     
+    /**
+     * The data waiting to be written on a socket. <i>scheduled</i> is set while the socket's key is in the writeKeys
+     * queue, so that it is only queued once.
+     */
+    static class OutputQueue extends ConcurrentLinkedQueue<ByteBuffer>
+    {
+        private static final long serialVersionUID = 1L;
+        final AtomicBoolean       scheduled        = new AtomicBoolean(false);
+    }
+    
+    static class AcceptedSocket
+    {
+        final SocketChannel channel;
+        final NioEndpoint   endpoint;
+        final NioEndpoint   parent;
+        
+        AcceptedSocket(SocketChannel channel, NioEndpoint endpoint, NioEndpoint parent)
+        {
+            this.channel = channel;
+            this.endpoint = endpoint;
+            this.parent = parent;
+        }
+    }
+    
     class NioReference<T extends NioEndpoint> extends WeakReference<T>
     {
         
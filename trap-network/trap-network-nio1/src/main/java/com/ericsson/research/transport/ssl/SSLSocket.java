@@ -170,6 +170,32 @@ public class SSLSocket extends ManagedSocket implements Runnable, NioEndpoint
         }
     }
     
+    @Override
+    public void write(ByteBuffer data) throws IOException
+    {
+        if (super.getState() == State.NOT_CONNECTED)
+            return;
+        
+        int size = data.remaining();
+        
+        synchronized (this.writeLock)
+        {
+            if (this.clientWriteBuf.position() + size >= this.clientWriteBuf.limit())
+            {
+                // Grow the buffer
+                this.clientWriteBuf = this.grow(this.clientWriteBuf, Math.max(growSize, size));
+            }
+            
+            this.clientWriteBuf.put(data);
+        }
+        
+        synchronized (this)
+        {
+            this.needsWrap = true;
+            this.executor.execute(this);
+        }
+    }
+    
     public synchronized void run()
     {
         try
@@ -334,7 +360,7 @@ public class SSLSocket extends ManagedSocket implements Runnable, NioEndpoint
         {
             byte[] mData = new byte[this.netWriteBuf.position()];
             System.arraycopy(this.netWriteBuf.array(), 0, mData, 0, this.netWriteBuf.position());
-            super.write(mData, mData.length);
+            super.write(ByteBuffer.wrap(mData));
             this.netWriteBuf.clear();
             
         }
@@ -45,7 +45,11 @@ import com.ericsson.research.trap.nio.ServerSocket;
 import com.ericsson.research.trap.nio.ServerSocket.ServerSocketHandler;
 import com.ericsson.research.trap.nio.Socket;
 import com.ericsson.research.trap.nio.SocketFactory;
+import com.ericsson.research.trap.nio.SocketOptions;
 
+/**
+ * Socket factory on top of the NioManager. Socket options are not supported, and are ignored.
+ */
 public class Nio1SocketFactory implements SocketFactory
 {
 
@@ -73,4 +77,28 @@ public class Nio1SocketFactory implements SocketFactory
 	    return new ServerSocketWrapper(new ManagedServerSocket(), handler, false);
     }
 
+	@Override
+    public Socket client(SocketOptions options) throws IOException
+    {
+	    return this.client();
+    }
+
+	@Override
+    public Socket sslClient(SSLContext sslc, SocketOptions options) throws IOException
+    {
+	    return this.sslClient(sslc);
+    }
+
+	@Override
+    public ServerSocket sslServer(SSLContext sslc, ServerSocketHandler handler, SocketOptions options) throws IOException
+    {
+	    return this.sslServer(sslc, handler);
+    }
+
+	@Override
+    public ServerSocket server(ServerSocketHandler handler, SocketOptions options) throws IOException
+    {
+	    return this.server(handler);
+    }
+
 }
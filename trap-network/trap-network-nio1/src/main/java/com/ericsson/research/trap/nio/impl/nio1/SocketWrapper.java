@@ -37,6 +37,7 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import com.ericsson.research.transport.ManagedSocket;
 import com.ericsson.research.transport.ManagedSocketClient;
@@ -65,25 +66,47 @@ public class SocketWrapper implements Socket, ManagedSocketClient
 	@Override
 	public void send(ByteBuffer src)
 	{
-		if (src.hasArray())
+		// The buffer is queued as-is rather than copied; callers hand over each buffer they send.
+		try
 		{
-			try
-            {
-	            socket.write(src.array());
-            }
-            catch (IOException e)
-            {
-            	handler.error(e, this);
-            }
-			src.clear();
-			src.limit(0);
+			socket.write(src.slice());
+		}
+		catch (IOException e)
+		{
+			handler.error(e, this);
+		}
+		src.position(src.limit());
+		
+		handler.sent(this);
+	}
+
+	@Override
+	public void send(ByteBuffer[] srcs)
+	{
+		// The selector writes queued buffers one at a time, so there is nothing to gather
+		try
+		{
+			for (ByteBuffer src : srcs)
+			{
+				if (src.hasRemaining())
+					socket.write(src.slice());
+				src.position(src.limit());
+			}
+		}
+		catch (IOException e)
+		{
+			handler.error(e, this);
 		}
-		else
-			throw new RuntimeException("Whoops! Need to implement this wrapper (or do I?)");
 		
 		handler.sent(this);
 	}
 
+	@Override
+	public void release(ByteBuffer buf)
+	{
+		// Received buffers are never reused
+	}
+
 	@Override
 	public void open(InetSocketAddress remote) throws IOException
 	{
@@ -114,6 +137,13 @@ public class SocketWrapper implements Socket, ManagedSocketClient
 		return secure;
 	}
 
+	@Override
+	public boolean isWritable()
+	{
+		// The nio1 write queue is unbounded
+		return true;
+	}
+
 	@Override
 	public InetSocketAddress getLocalSocketAddress() throws IOException
 	{
@@ -141,7 +171,11 @@ public class SocketWrapper implements Socket, ManagedSocketClient
 	@Override
     public void notifySocketData(byte[] data, int size)
     {
-		handler.received(ByteBuffer.wrap(data, 0, size), this);
+		// The data is in a buffer shared by the selector thread, so owners get their own copy
+		if (handler instanceof ZeroCopyHandler)
+			handler.received(ByteBuffer.wrap(Arrays.copyOf(data, size)), this);
+		else
+			handler.received(ByteBuffer.wrap(data, 0, size), this);
     }
 
 	@Override
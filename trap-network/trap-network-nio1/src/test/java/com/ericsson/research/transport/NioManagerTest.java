@@ -0,0 +1,175 @@
+package com.ericsson.research.transport;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class NioManagerTest extends TestCase
+{
+	
+	private static final int	CLIENTS	= 16;
+	private static final int	BYTES	= 256 * 1024;
+	
+	public void testManyClients() throws Exception
+	{
+		final byte[] bytes = new byte[BYTES];
+		for (int i = 0; i < BYTES; i++)
+			bytes[i] = (byte) (i % 200);
+		
+		final CountDownLatch bound = new CountDownLatch(1);
+		final CountDownLatch echoed = new CountDownLatch(CLIENTS);
+		final AtomicInteger errors = new AtomicInteger();
+		final Set<Selector> selectors = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<Selector, Boolean>()));
+		final List<ManagedSocket> sockets = Collections.synchronizedList(new LinkedList<ManagedSocket>());
+		
+		ManagedServerSocket server = new ManagedServerSocket();
+		server.registerClient(new ManagedServerSocketClient() {
+			
+			public void notifyAccept(final ManagedSocket socket)
+			{
+				// Hold on to the socket, or it may be collected
+				sockets.add(socket);
+				selectors.add(socket.getKey().selector());
+				socket.registerClient(new ManagedSocketClient() {
+					
+					public void notifySocketData(byte[] data, int size)
+					{
+						try
+						{
+							socket.write(data, size);
+						}
+						catch (IOException e)
+						{
+							errors.incrementAndGet();
+						}
+					}
+					
+					public void notifyError(Exception e)
+					{
+						errors.incrementAndGet();
+					}
+					
+					public void notifyDisconnected()
+					{
+					}
+					
+					public void notifyConnected()
+					{
+					}
+				});
+			}
+			
+			public void notifyBound(ManagedServerSocket socket)
+			{
+				bound.countDown();
+			}
+			
+			public void notifyError(Exception e)
+			{
+				errors.incrementAndGet();
+			}
+		});
+		server.listen("127.0.0.1", 0);
+		Assert.assertTrue(bound.await(5, TimeUnit.SECONDS));
+		
+		for (int i = 0; i < CLIENTS; i++)
+		{
+			final ManagedSocket client = new ManagedSocket();
+			sockets.add(client);
+			client.registerClient(new ManagedSocketClient() {
+				
+				int	received	= 0;
+				
+				public void notifySocketData(byte[] data, int size)
+				{
+					for (int j = 0; j < size; j++)
+						if (bytes[this.received + j] != data[j])
+							errors.incrementAndGet();
+					
+					this.received += size;
+					
+					if (this.received == BYTES)
+						echoed.countDown();
+				}
+				
+				public void notifyError(Exception e)
+				{
+					errors.incrementAndGet();
+				}
+				
+				public void notifyDisconnected()
+				{
+				}
+				
+				public void notifyConnected()
+				{
+					try
+					{
+						// Queue the data in chunks, each handed over without a copy
+						for (int j = 0; j < BYTES; j += 8192)
+							client.write(ByteBuffer.wrap(bytes, j, Math.min(8192, BYTES - j)).slice());
+					}
+					catch (IOException e)
+					{
+						errors.incrementAndGet();
+					}
+				}
+			});
+			client.connect(server.getInetAddress());
+		}
+		
+		Assert.assertTrue(echoed.await(30, TimeUnit.SECONDS));
+		Assert.assertEquals(0, errors.get());
+		
+		int expected = Math.min(CLIENTS, Integer.getInteger(NioManager.PROPERTY_SELECTORS, Runtime.getRuntime().availableProcessors()).intValue());
+		Assert.assertEquals(expected, selectors.size());
+		
+		for (ManagedSocket socket : sockets)
+			socket.disconnect();
+		server.close();
+	}
+}
@@ -0,0 +1,200 @@
+package com.ericsson.research.trap.nio.impl.nio2;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A shared pool of equally sized direct buffers. Buffers are carved out of larger direct slabs, so the JVM sees a
+ * handful of big allocations rather than one per connection. Sockets borrow a buffer only while they have data to
+ * read or write, and return it once they are idle, so the pool grows with the number of <i>active</i> connections
+ * rather than the number of open ones.
+ * <p>
+ * Slabs are never freed; the pool stays at its high-water mark. Use {@link #getCapacity()},
+ * {@link #getInUse()} and {@link #getHighWater()} to monitor it.
+ * <p>
+ * The pool keeps track of the buffers it has lent out. Releasing a buffer twice, or one the pool never lent, is
+ * ignored, so the same memory can never be handed to two borrowers.
+ *
+ * @author Vladimir Katardjiev
+ */
+public class BufferPool
+{
+
+	/**
+	 * The number of bytes allocated at a time when the pool runs out of buffers.
+	 */
+	public static final int	                                    SLAB_SIZE	= 1024 * 1024;
+
+	private static final ConcurrentHashMap<Integer, BufferPool>	pools	  = new ConcurrentHashMap<Integer, BufferPool>();
+
+	private final int	                                        bufferSize;
+	private final int	                                        slabBuffers;
+	private final ArrayDeque<ByteBuffer>	                    free	  = new ArrayDeque<ByteBuffer>();
+	private final Set<ByteBuffer>	                            borrowed	= Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+	private final AtomicInteger	                                inUse	  = new AtomicInteger();
+	private final AtomicInteger	                                highWater	= new AtomicInteger();
+	private volatile int	                                    capacity	= 0;
+
+	/**
+	 * Fetches the shared pool for buffers of the given size, creating it if needed.
+	 *
+	 * @param bufferSize
+	 *            The capacity of each buffer in the pool
+	 * @return The shared pool
+	 */
+	public static BufferPool get(int bufferSize)
+	{
+		BufferPool pool = pools.get(bufferSize);
+
+		if (pool == null)
+		{
+			pool = new BufferPool(bufferSize);
+			BufferPool old = pools.putIfAbsent(bufferSize, pool);
+			if (old != null)
+				pool = old;
+		}
+
+		return pool;
+	}
+
+	BufferPool(int bufferSize)
+	{
+		this.bufferSize = bufferSize;
+		this.slabBuffers = Math.max(1, SLAB_SIZE / bufferSize);
+	}
+
+	/**
+	 * Borrows a cleared buffer from the pool. The buffer must be handed back using {@link #release(ByteBuffer)} once
+	 * it is no longer used, and must not be touched afterwards.
+	 *
+	 * @return A buffer of {@link #getBufferSize()} bytes
+	 */
+	public ByteBuffer acquire()
+	{
+		ByteBuffer buf;
+
+		synchronized (free)
+		{
+			if (free.isEmpty())
+				grow();
+			buf = free.pop();
+			borrowed.add(buf);
+		}
+
+		int used = inUse.incrementAndGet();
+		int max;
+		while (used > (max = highWater.get()))
+			if (highWater.compareAndSet(max, used))
+				break;
+
+		return buf;
+	}
+
+	/**
+	 * Returns a buffer to the pool. Buffers that are not currently borrowed from this pool, including ones that have
+	 * already been released, are left alone.
+	 *
+	 * @param buf
+	 *            A buffer previously obtained from {@link #acquire()}
+	 * @return <i>true</i> if the buffer was returned to the pool
+	 */
+	public boolean release(ByteBuffer buf)
+	{
+		synchronized (free)
+		{
+			if (!borrowed.remove(buf))
+				return false;
+
+			buf.clear();
+			free.push(buf);
+		}
+
+		inUse.decrementAndGet();
+		return true;
+	}
+
+	private void grow()
+	{
+		ByteBuffer slab = ByteBuffer.allocateDirect(slabBuffers * bufferSize);
+
+		for (int i = 0; i < slabBuffers; i++)
+		{
+			slab.limit((i + 1) * bufferSize);
+			slab.position(i * bufferSize);
+			free.push(slab.slice());
+		}
+
+		capacity += slabBuffers;
+	}
+
+	/**
+	 * @return The capacity, in bytes, of the buffers in this pool
+	 */
+	public int getBufferSize()
+	{
+		return bufferSize;
+	}
+
+	/**
+	 * @return The number of buffers the pool has allocated, whether borrowed or not
+	 */
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * @return The number of buffers currently borrowed
+	 */
+	public int getInUse()
+	{
+		return inUse.get();
+	}
+
+	/**
+	 * @return The largest number of buffers that have been borrowed at the same time
+	 */
+	public int getHighWater()
+	{
+		return highWater.get();
+	}
+
+}
@@ -33,11 +33,14 @@ package com.ericsson.research.trap.nio.impl.nio2;
  * ##_END_LICENSE_##
  */
 
+import java.nio.channels.AsynchronousChannelGroup;
 import java.nio.channels.AsynchronousServerSocketChannel;
 import java.nio.channels.AsynchronousSocketChannel;
 
 import javax.net.ssl.SSLContext;
 
+import com.ericsson.research.trap.nio.SocketOptions;
+
 public class Nio2SSLServerSocket extends Nio2ServerSocket {
 	private final SSLContext sslc;
 	
@@ -46,10 +49,15 @@ public class Nio2SSLServerSocket extends Nio2ServerSocket {
 		this.sslc = sslc;
 	}
 
+	public Nio2SSLServerSocket(AsynchronousServerSocketChannel ss, ServerSocketHandler handler, SSLContext sslc, AsynchronousChannelGroup group, SocketOptions options) {
+		super(ss, handler, group, options);
+		this.sslc = sslc;
+	}
+
 	@Override
     Nio2SocketBase createAcceptSocket(AsynchronousSocketChannel channel)
     {
-	    return new Nio2SSLSocket(channel, sslc, false);
+	    return new Nio2SSLSocket(channel, sslc, false, options);
     }
 	
 	
@@ -38,6 +38,8 @@ package com.ericsson.research.trap.nio.impl.nio2;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLContext;
@@ -46,32 +48,76 @@ import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLEngineResult.HandshakeStatus;
 import javax.net.ssl.SSLException;
 
+import com.ericsson.research.trap.nio.SocketOptions;
+import com.ericsson.research.trap.nio.impl.nio2.Nio2SocketFactory.DaemonThreadFactory;
+
+/**
+ * A TLS socket on an {@link SSLEngine}. Client engines are created when the socket connects, with the remote host and
+ * port, so the context's client session cache can resume earlier sessions with the same server.
+ * <p>
+ * The engine's delegated tasks (the expensive key exchange and certificate work) run on a small shared pool rather than
+ * on the completion thread. The {@value #PROPERTY_TASK_THREADS} system property sets its size, which defaults to the
+ * number of processors. If its queue is full, the tasks run on the calling thread.
+ */
 public class Nio2SSLSocket extends Nio2SocketBase
 {
 
-	private static HandshakeStatus	hsStatus;
-	private final ByteBuffer	    decodeBuf;
-	private final SSLEngine	        engine;
-	private final static ByteBuffer	zero	  = ByteBuffer.allocate(0);
+	public static final String	             PROPERTY_TASK_THREADS	= "trap.nio2.ssltasks";
+	static final String[]	                 DEFAULT_PROTOCOLS	  = { "TLSv1" };
+	static final ThreadPoolExecutor	         tasks;
+
+	static
+	{
+		int threads = Math.max(1, Integer.getInteger(PROPERTY_TASK_THREADS, Runtime.getRuntime().availableProcessors()));
+		tasks = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(1024), new DaemonThreadFactory("trap-nio2-ssl-"),
+		        new ThreadPoolExecutor.CallerRunsPolicy());
+		tasks.allowCoreThreadTimeOut(true);
+	}
+
+	private volatile HandshakeStatus	     hsStatus;
+	private final SSLContext	             sslc;
+	private final boolean	                 clientMode;
+	private final String[]	                 protocols;
+	SSLEngine	                             engine;
+	private final static ByteBuffer[]	     zero	              = { ByteBuffer.allocate(0) };
+
+	// Guarded by this. A read that needed tasks waits for them with its data still in readBuf.
+	private boolean	                         tasksRunning	      = false;
+	private boolean	                         readPaused	          = false;
+	private boolean	                         pausedFilled	      = false;
 
 	public Nio2SSLSocket(AsynchronousSocketChannel sock, SSLContext sslc, boolean clientMode)
+	{
+		this(sock, sslc, clientMode, null);
+	}
+
+	public Nio2SSLSocket(AsynchronousSocketChannel sock, SSLContext sslc, boolean clientMode, SocketOptions options)
 	{
 		super(sock);
-		this.engine = sslc.createSSLEngine();
-		this.engine.setUseClientMode(clientMode);
-		String[] procols = { "TLSv1" };
-		this.engine.setEnabledProtocols(procols);
+		this.sslc = sslc;
+		this.clientMode = clientMode;
+		this.protocols = options != null && options.getSslProtocols() != null ? options.getSslProtocols() : DEFAULT_PROTOCOLS;
+
+		// Servers find sessions to resume by ID, and do not need to know the peer
+		if (!clientMode)
+			this.initEngine(null, -1);
+	}
+
+	private void initEngine(String host, int port)
+	{
+		engine = host == null ? sslc.createSSLEngine() : sslc.createSSLEngine(host, port);
+		engine.setUseClientMode(clientMode);
+		engine.setEnabledProtocols(protocols);
 
 		int packetBufferSize = engine.getSession().getPacketBufferSize();
-		decodeBuf	= ByteBuffer.allocateDirect(packetBufferSize);
-		readBuf = ByteBuffer.allocateDirect(packetBufferSize);
-		
-		for (int i = 0; i < 2; i++)
-		{
-			writeBufs[i] = ByteBuffer.allocateDirect(packetBufferSize);
-			writeBufs[i].limit(0);
-		}
-		writeBufs[0].clear();
+		pool = BufferPool.get(packetBufferSize);
+	}
+
+	@Override
+	void open()
+	{
+		this.initEngine(remote.getHostString(), remote.getPort());
+		super.open();
 	}
 
 	@Override
@@ -81,13 +127,32 @@ public class Nio2SSLSocket extends Nio2SocketBase
 		if (src.remaining() == 0)
 			return;
 
-		_sslSend(src);
+		_sslSend(new ByteBuffer[] { src });
+	}
+
+	/**
+	 * Wraps the buffers together, so small buffers share TLS records.
+	 */
+	@Override
+	public synchronized void send(ByteBuffer[] srcs)
+	{
+		for (ByteBuffer src : srcs)
+		{
+			if (src.hasRemaining())
+			{
+				_sslSend(srcs);
+				return;
+			}
+		}
 	}
 
-	private synchronized void _sslSend(ByteBuffer src)
+	private synchronized void _sslSend(ByteBuffer[] srcs)
 	{
 		ByteBuffer buf = writeBufs[writeBuf];
 
+		if (buf == null)
+			buf = writeBufs[writeBuf] = pool.acquire();
+
 		if (buf.remaining() == 0)
 			return;
 
@@ -95,7 +160,7 @@ public class Nio2SSLSocket extends Nio2SocketBase
 
 		try
 		{
-			SSLEngineResult result = this.engine.wrap(src, buf);
+			SSLEngineResult result = this.engine.wrap(srcs, buf);
 
 			switch (result.getStatus())
 			{
@@ -111,7 +176,7 @@ public class Nio2SSLSocket extends Nio2SocketBase
 				break;
 
 			}
-			hsStatus = runDelegatedTasks(result);
+			hsStatus = this.hsStatus = result.getHandshakeStatus();
 
 		}
 		catch (SSLException e)
@@ -124,17 +189,18 @@ public class Nio2SSLSocket extends Nio2SocketBase
 		needsWriting.getAndSet(true);
 		_write();
 
+		// The handshake continues once the tasks are done
+		if (runDelegatedTasks(hsStatus))
+			return;
+
 		switch (hsStatus)
 		{
 		case FINISHED:
-			if (src == zero)
+			if (srcs == zero)
 				handler.sent(this);
 			break;
 		case NOT_HANDSHAKING:
-			send(src);
-			break;
-		case NEED_TASK:
-			handler.error(new SSLException("TASK required once all were run"), this);
+			send(srcs);
 			break;
 		case NEED_UNWRAP:
 			break;
@@ -148,20 +214,76 @@ public class Nio2SSLSocket extends Nio2SocketBase
 
 	}
 
-	private HandshakeStatus runDelegatedTasks(SSLEngineResult result)
+	/**
+	 * Starts the engine's delegated tasks on the task pool, if it needs any. The handshake is resumed when they are
+	 * done.
+	 * 
+	 * @return <i>true</i> if the engine is waiting for tasks, and the caller must not continue the handshake.
+	 */
+	private boolean runDelegatedTasks(HandshakeStatus status)
 	{
-		HandshakeStatus hsStatus = Nio2SSLSocket.hsStatus = result.getHandshakeStatus();
-		if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK)
+		if (status != HandshakeStatus.NEED_TASK)
+			return false;
+
+		synchronized (this)
+		{
+			if (tasksRunning)
+				return true;
+			tasksRunning = true;
+		}
+
+		tasks.execute(new Runnable() {
+
+			@Override
+			public void run()
+			{
+				try
+				{
+					Runnable task;
+					while ((task = engine.getDelegatedTask()) != null)
+						task.run();
+				}
+				catch (RuntimeException e)
+				{
+					handler.error(e, Nio2SSLSocket.this);
+					_close();
+					return;
+				}
+
+				tasksDone();
+			}
+		});
+
+		return true;
+	}
+
+	private void tasksDone()
+	{
+		boolean resumeRead;
+		synchronized (this)
+		{
+			tasksRunning = false;
+			resumeRead = readPaused;
+			readPaused = false;
+		}
+
+		switch (hsStatus = engine.getHandshakeStatus())
 		{
-			Runnable runnable;
-			while ((runnable = engine.getDelegatedTask()) != null)
+		case NEED_WRAP:
+			_sslSend(zero);
+			break;
+		case NOT_HANDSHAKING:
+			synchronized (this)
 			{
-				runnable.run();
+				handler.sent(this);
 			}
-			hsStatus = engine.getHandshakeStatus();
-			Nio2SSLSocket.hsStatus = hsStatus;
+			break;
+		default:
+			break;
 		}
-		return hsStatus;
+
+		if (resumeRead)
+			_unwrap(pausedFilled);
 	}
 
 	@Override
@@ -179,88 +301,152 @@ public class Nio2SSLSocket extends Nio2SocketBase
 			@Override
 			public void completed(Integer result, Nio2SSLSocket attachment)
 			{
-				try
+				if (result == -1)
 				{
+					releaseRead();
+					handler.closed(Nio2SSLSocket.this);
+					return;
+				}
 
-					
-					if (result == -1)
-					{
-						handler.closed(Nio2SSLSocket.this);
-						return;
-					}
-					
-					readBuf.flip();
+				boolean filled = !readBuf.hasRemaining();
+				readBuf.flip();
+				_unwrap(filled);
+			}
 
-					unwrapLoop: while (readBuf.hasRemaining())
-					{
+			@Override
+			public void failed(Throwable exc, Nio2SSLSocket attachment)
+			{
+				releaseRead();
+				handler.error(exc, Nio2SSLSocket.this);
+				_close();
+			}
+		});
+	}
 
-						SSLEngineResult unwrap = engine.unwrap(readBuf, decodeBuf);
+	/**
+	 * Decodes the records in {@link #readBuf} (in read mode), then reads more. Stops early if the engine needs its
+	 * delegated tasks run; {@link #tasksDone()} picks up from there.
+	 * 
+	 * @param filled
+	 *            <i>true</i> if the last read filled the buffer
+	 */
+	void _unwrap(boolean filled)
+	{
+		ByteBuffer decodeBuf = null;
+		try
+		{
+			decodeBuf = pool.acquire();
+			boolean underflow = false;
 
-						switch (unwrap.getStatus())
-						{
-						case BUFFER_OVERFLOW:
-							throw new RuntimeException("Buffer overflow that should not happen");
-
-						case BUFFER_UNDERFLOW:
-							readBuf.compact();
-							break unwrapLoop;
-
-						case CLOSED:
-							return;
-						case OK:
-							decodeBuf.flip();
-							if (decodeBuf.hasRemaining())
-								handler.received(decodeBuf, Nio2SSLSocket.this);
-							decodeBuf.clear();
-
-							break;
-						default:
-							break;
-						}
+			unwrapLoop: while (readBuf.hasRemaining())
+			{
 
-						HandshakeStatus hsStatus = runDelegatedTasks(unwrap);
+				SSLEngineResult unwrap = engine.unwrap(readBuf, decodeBuf);
 
-						switch (hsStatus)
-						{
-						case FINISHED:
-							synchronized (Nio2SSLSocket.this)
-							{
-								handler.sent(Nio2SSLSocket.this);
-							}
-							break;
-						case NEED_TASK:
-							break;
-						case NEED_UNWRAP:
-							break;
-						case NEED_WRAP:
-							_sslSend(zero);
-							break;
-						case NOT_HANDSHAKING:
-							break;
-						default:
-							break;
+				switch (unwrap.getStatus())
+				{
+				case BUFFER_OVERFLOW:
+					throw new RuntimeException("Buffer overflow that should not happen");
 
+				case BUFFER_UNDERFLOW:
+					readBuf.compact();
+					underflow = true;
+					break unwrapLoop;
+
+				case CLOSED:
+					releaseRead();
+					return;
+				case OK:
+					decodeBuf.flip();
+					if (decodeBuf.hasRemaining())
+					{
+						if (handler instanceof ZeroCopyHandler)
+						{
+							ByteBuffer data = handOver(decodeBuf);
+							decodeBuf = pool.acquire();
+							handler.received(data, Nio2SSLSocket.this);
 						}
+						else
+							handler.received(decodeBuf, Nio2SSLSocket.this);
 					}
-					if (!readBuf.hasRemaining())
-						readBuf.clear();
+					decodeBuf.clear();
 
-					_read();
+					break;
+				default:
+					break;
 				}
-				catch (Exception exc)
+
+				HandshakeStatus hsStatus = this.hsStatus = unwrap.getHandshakeStatus();
+
+				if (hsStatus == HandshakeStatus.NEED_TASK)
 				{
-					handler.error(exc, Nio2SSLSocket.this);
-					_close();
+					synchronized (this)
+					{
+						readPaused = true;
+						pausedFilled = filled;
+					}
+					runDelegatedTasks(hsStatus);
+					return;
 				}
-			}
 
-			@Override
-			public void failed(Throwable exc, Nio2SSLSocket attachment)
-			{
-				handler.error(exc, Nio2SSLSocket.this);
-				_close();
+				switch (hsStatus)
+				{
+				case FINISHED:
+					synchronized (Nio2SSLSocket.this)
+					{
+						handler.sent(Nio2SSLSocket.this);
+					}
+					break;
+				case NEED_UNWRAP:
+					break;
+				case NEED_WRAP:
+					_sslSend(zero);
+					break;
+				case NOT_HANDSHAKING:
+					break;
+				default:
+					break;
+
+				}
 			}
-		});
+			if (!underflow)
+				readBuf.clear();
+
+			// A partial record that filled the buffer needs a larger one to complete
+			resizeRead(filled || !readBuf.hasRemaining());
+
+			_read();
+		}
+		catch (Exception exc)
+		{
+			releaseRead();
+			handler.error(exc, Nio2SSLSocket.this);
+			_close();
+		}
+		finally
+		{
+			if (decodeBuf != null)
+				pool.release(decodeBuf);
+		}
+	}
+
+	/**
+	 * Returns the write buffers to the pool once everything has been written.
+	 */
+	synchronized void releaseWriteBuffers()
+	{
+		int cBuf = (writeBuf + 1) % 2;
+		if (writeBufs[cBuf] != null)
+		{
+			pool.release(writeBufs[cBuf]);
+			writeBufs[cBuf] = null;
+		}
+
+		if (writeBufs[writeBuf] != null && writeBufs[writeBuf].position() == 0)
+		{
+			pool.release(writeBufs[writeBuf]);
+			writeBufs[writeBuf] = null;
+		}
 	}
 
 	synchronized void _write()
@@ -276,27 +462,36 @@ public class Nio2SSLSocket extends Nio2SocketBase
 			int cBuf = (writeBuf + 1) % 2;
 			ByteBuffer buf = writeBufs[cBuf];
 
-			if (buf.remaining() == 0)
+			while (buf == null || buf.remaining() == 0)
 			{
 
 				// Maybe we need to flip the buffers for more data
 				if (!needsWriting.compareAndSet(true, false))
 				{
+					releaseWriteBuffers();
 					isWriting.getAndSet(false);
 					return;
 				}
 
 				// Clear the buffer so it can be used again
-				buf.clear();
+				if (buf != null)
+					buf.clear();
 
 				// We do. Flip the buffers to get more data to write.
 				writeBuf = (writeBuf + 1) % 2;
 				cBuf = (writeBuf + 1) % 2;
 				buf = writeBufs[cBuf];
+				if (buf == null)
+					continue;
+
 				buf.flip();
 
 				if (hsStatus == HandshakeStatus.FINISHED || hsStatus == HandshakeStatus.NOT_HANDSHAKING)
 					handler.sent(this);
+
+				// A handshake record that did not fit in the last buffer can be wrapped now
+				if (hsStatus == HandshakeStatus.NEED_WRAP)
+					_sslSend(zero);
 			}
 
 			final ByteBuffer mBuf = buf;
@@ -314,6 +509,7 @@ public class Nio2SSLSocket extends Nio2SocketBase
 				@Override
 				public void failed(Throwable exc, Nio2SSLSocket attachment)
 				{
+					releaseWriteBuffers();
 					isWriting.getAndSet(false);
 					handler.error(exc, Nio2SSLSocket.this);
 				}
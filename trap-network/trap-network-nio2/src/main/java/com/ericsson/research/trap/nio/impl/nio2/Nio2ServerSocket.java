@@ -37,21 +37,44 @@ package com.ericsson.research.trap.nio.impl.nio2;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.nio.channels.AsynchronousChannelGroup;
 import java.nio.channels.AsynchronousServerSocketChannel;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import com.ericsson.research.trap.nio.ServerSocket;
+import com.ericsson.research.trap.nio.SocketOptions;
 
+/**
+ * Server socket on NIO.2. With more than one accept loop (see {@link SocketOptions#setAcceptLoops(int)}), one extra
+ * channel per loop is bound to the same address using SO_REUSEPORT, and the kernel spreads incoming connections over
+ * them. Each channel has an accept outstanding at all times.
+ */
 public class Nio2ServerSocket implements ServerSocket
 {
-    private final AsynchronousServerSocketChannel ss;
-    private final ServerSocketHandler handler;
+    private final AsynchronousServerSocketChannel       ss;
+    private final ServerSocketHandler                   handler;
+    private final AsynchronousChannelGroup              group;
+    final SocketOptions                                 options;
+    private final List<AsynchronousServerSocketChannel> channels = new CopyOnWriteArrayList<AsynchronousServerSocketChannel>();
     
     public Nio2ServerSocket(AsynchronousServerSocketChannel ss, ServerSocketHandler handler)
+    {
+        this(ss, handler, null, null);
+    }
+    
+    public Nio2ServerSocket(AsynchronousServerSocketChannel ss, ServerSocketHandler handler, AsynchronousChannelGroup group, SocketOptions options)
     {
         this.ss = ss;
         this.handler = handler;
+        this.group = group;
+        this.options = options;
+        this.channels.add(ss);
     }
     
     public InetSocketAddress getInetAddress() throws IOException
@@ -76,25 +99,68 @@ public class Nio2ServerSocket implements ServerSocket
     
     public void listen(InetSocketAddress address) throws IOException
     {
+        int loops = this.options == null ? 1 : this.options.getAcceptLoops();
+        SocketOption<?> reusePort = Nio2SocketFactory.findOption(ss, SocketOptions.SO_REUSEPORT);
+        
+        if (loops > 1 && reusePort == null)
+        {
+            Logger.getLogger(Nio2ServerSocket.class.getName()).log(Level.WARNING, "SO_REUSEPORT is not supported; using a single accept loop");
+            loops = 1;
+        }
+        
+        Nio2SocketFactory.apply(ss, this.options);
+        if (loops > 1)
+            setTrue(ss, reusePort);
         ss.bind(address);
-        _accept();
+        
+        // Bind the other loops to the address we actually got, in case the port was picked for us.
+        InetSocketAddress bound = (InetSocketAddress) ss.getLocalAddress();
+        
+        for (int i = 1; i < loops; i++)
+        {
+            AsynchronousServerSocketChannel channel = AsynchronousServerSocketChannel.open(this.group);
+            Nio2SocketFactory.apply(channel, this.options);
+            setTrue(channel, reusePort);
+            channel.bind(bound);
+            this.channels.add(channel);
+        }
+        
+        for (AsynchronousServerSocketChannel channel : this.channels)
+            _accept(channel);
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static void setTrue(AsynchronousServerSocketChannel channel, SocketOption<?> option) throws IOException
+    {
+        channel.setOption((SocketOption<Boolean>) option, Boolean.TRUE);
     }
     
-    private void _accept()
+    private void _accept(final AsynchronousServerSocketChannel channel)
     {
-        if (!ss.isOpen())
+        if (!channel.isOpen())
             return;
         
-        ss.accept(this, new CompletionHandler<AsynchronousSocketChannel, Nio2ServerSocket>()
+        channel.accept(this, new CompletionHandler<AsynchronousSocketChannel, Nio2ServerSocket>()
         {
             
             @Override
             public void completed(AsynchronousSocketChannel sock, Nio2ServerSocket arg1)
             {
+                // Only one accept may be outstanding per channel. Start the next one before handling this connection.
+                _accept(channel);
+                
+                try
+                {
+                    Nio2SocketFactory.apply(sock, options);
+                }
+                catch (IOException e)
+                {
+                    handler.error(e, arg1);
+                }
+                
                 Nio2SocketBase n2s = createAcceptSocket(sock);
                 handler.accept(n2s, arg1);
                 n2s._read();
-                _accept();
             }
             
             @Override
@@ -103,7 +169,7 @@ public class Nio2ServerSocket implements ServerSocket
                 handler.error(exc, arg1);
                 try
                 {
-                    ss.close();
+                    channel.close();
                 }
                 catch (IOException e)
                 {
@@ -114,20 +180,23 @@ public class Nio2ServerSocket implements ServerSocket
     }
     
     Nio2SocketBase createAcceptSocket(AsynchronousSocketChannel channel) {
-    	return new Nio2Socket(channel);
+    	return new Nio2Socket(channel, options);
     }
 
 	@Override
     public void close()
     {
-		try
-        {
-	        ss.close();
-        }
-        catch (IOException e)
-        {
-        	handler.error(e, this);
-        }
+		for (AsynchronousServerSocketChannel channel : this.channels)
+		{
+    		try
+            {
+    	        channel.close();
+            }
+            catch (IOException e)
+            {
+            	handler.error(e, this);
+            }
+		}
     }
 
     @Override
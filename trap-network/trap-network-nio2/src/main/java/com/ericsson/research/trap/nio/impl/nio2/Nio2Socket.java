@@ -43,28 +43,50 @@ import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.ericsson.research.trap.nio.SocketOptions;
 
 /**
+ * A plain TCP socket. Sent buffers are queued as they are, without copying, and written with gathering writes. The
+ * queue is bounded by a high and a low watermark; once the queued bytes reach the high watermark, {@link #send(ByteBuffer)}
+ * stops accepting data until the queue has drained to the low watermark. Handlers that implement
+ * {@link WritabilityHandler} are told when this happens. Handlers that implement {@link ZeroCopyHandler} are handed the
+ * read buffers themselves.
  *
  * @author Vladimir Katardjiev
  */
 public class Nio2Socket extends Nio2SocketBase
 {
 
-	ReadWriteLock[]	rws	= new ReadWriteLock[2];
+	// Most platforms accept at least this many buffers in one writev()
+	static final int	          MAX_GATHER	= 64;
+
+	final ArrayDeque<ByteBuffer>	pending	   = new ArrayDeque<ByteBuffer>();
+	final ByteBuffer[]	          gather	   = new ByteBuffer[MAX_GATHER];
+	long	                      pendingBytes	= 0;
+	boolean	                      writing	   = false;
+	volatile boolean	          writable	   = true;
+	final int	                  lowWatermark;
+	final int	                  highWatermark;
 
 	public Nio2Socket(AsynchronousSocketChannel sock)
+	{
+		this(sock, null);
+	}
+
+	public Nio2Socket(AsynchronousSocketChannel sock, SocketOptions options)
 	{
 		super(sock);
 
-		for (int i = 0; i < 2; i++)
-		{
-			rws[i] = new ReentrantReadWriteLock();
-		}
+		if (options == null)
+			options = new SocketOptions();
+
+		this.lowWatermark = options.getWriteLowWatermark();
+		this.highWatermark = options.getWriteHighWatermark();
 	}
 
 	@Override
@@ -74,40 +96,51 @@ public class Nio2Socket extends Nio2SocketBase
 		if (src.remaining() == 0)
 			return;
 
-		ByteBuffer buf;
-		Lock lock;
-		synchronized (writeBufs)
-		{
-			buf = writeBufs[writeBuf];
-			lock = rws[writeBuf].writeLock();
-			lock.lock();
-		}
+		send(new ByteBuffer[] { src });
+	}
 
-		try
+	@Override
+	public void send(ByteBuffer[] srcs)
+	{
+		boolean changed = false;
+		boolean queued = false;
+
+		synchronized (pending)
 		{
-			if (buf.remaining() == 0)
+			if (!writable)
 				return;
 
-			if (src.remaining() > buf.remaining())
+			for (ByteBuffer src : srcs)
 			{
-				int lim = src.limit();
-				src.limit(src.position() + buf.remaining());
-				buf.put(src);
-				src.limit(lim);
+				if (!src.hasRemaining())
+					continue;
+
+				ByteBuffer buf = src.slice();
+				src.position(src.limit());
+
+				pending.add(buf);
+				pendingBytes += buf.remaining();
+				queued = true;
 			}
-			else
+
+			if (pendingBytes >= highWatermark)
 			{
-				buf.put(src);
+				writable = false;
+				changed = true;
 			}
-			needsWriting.getAndSet(true);
-		}
-		finally
-		{
-			lock.unlock();
 		}
-		_write();
 
-		send(src);
+		if (changed)
+			writabilityChanged();
+
+		if (queued)
+			_write();
+	}
+
+	@Override
+	public boolean isWritable()
+	{
+		return writable;
 	}
 
 	@Override
@@ -128,19 +161,30 @@ public class Nio2Socket extends Nio2SocketBase
 				
 				if (result == -1)
 				{
+					releaseRead();
 					handler.closed(Nio2Socket.this);
 					return;
 				}
 				
 				try
 				{
+					boolean filled = !readBuf.hasRemaining();
 					readBuf.flip();
-					handler.received(readBuf, Nio2Socket.this);
-					readBuf.clear();
+
+					if (handler instanceof ZeroCopyHandler)
+						handler.received(handOverRead(filled), Nio2Socket.this);
+					else
+					{
+						handler.received(readBuf, Nio2Socket.this);
+						readBuf.clear();
+						resizeRead(filled);
+					}
+
 					_read();
 				}
 				catch (Exception exc)
 				{
+					releaseRead();
 					handler.error(exc, Nio2Socket.this);
 					_close();
 				}
@@ -149,6 +193,7 @@ public class Nio2Socket extends Nio2SocketBase
 			@Override
 			public void failed(Throwable exc, Nio2Socket attachment)
 			{
+				releaseRead();
 				if (!(exc instanceof ClosedChannelException))
 				{
 					handler.error(exc, Nio2Socket.this);
@@ -158,89 +203,103 @@ public class Nio2Socket extends Nio2SocketBase
 		});
 	}
 
-	int	lastWriteRemaining	= 0;
+	/*
+	 * Notifications are sent outside the queue lock, so they can overtake each other. Always report the current state.
+	 */
+	void writabilityChanged()
+	{
+		SocketHandler h = handler;
+		if (h instanceof WritabilityHandler)
+			((WritabilityHandler) h).writabilityChanged(writable, this);
+	}
 
+	/**
+	 * Starts a write of the queued buffers, unless one is already in progress. The write completion continues with
+	 * whatever has been queued in the meantime, so neither sending nor writing recurses.
+	 */
 	void _write()
 	{
+		int n = 0;
 
-		// Cut off repeat entries
-		synchronized (isWriting)
+		synchronized (pending)
 		{
-			if (!isWriting.compareAndSet(false, true))
+			if (writing)
 				return;
-		}
-
-		try
-		{
 
-			int cBuf = (writeBuf + 1) % 2;
-			ByteBuffer buf = writeBufs[cBuf];
-
-			if (buf.remaining() == 0)
+			Iterator<ByteBuffer> it = pending.iterator();
+			while (it.hasNext() && n < MAX_GATHER)
 			{
-				boolean sentNotification = false;
-				synchronized (isWriting)
-				{
-					// Maybe we need to flip the buffers for more data
-					if (!needsWriting.compareAndSet(true, false))
-					{
-						isWriting.getAndSet(false);
-						sentNotification = true;
-					}
-				}
-				
-				if (sentNotification) {
-                    handler.sent(Nio2Socket.this);
-                    return;
-				}
-
-				// Clear the buffer so it can be used again
-				buf.clear();
+				ByteBuffer buf = it.next();
 
-				// We do. Flip the buffers to get more data to write.
-				synchronized (writeBufs)
+				if (!buf.hasRemaining())
 				{
-					writeBuf = (writeBuf + 1) % 2;
-					cBuf = (writeBuf + 1) % 2;
-					buf = writeBufs[cBuf];
-					rws[cBuf].readLock().lock();
+					it.remove();
+					continue;
 				}
-				rws[cBuf].readLock().unlock();
 
-				// Ensure the other thread finishes flushing
-
-				buf.flip();
-
-				lastWriteRemaining = buf.remaining();
-
-				handler.sent(this);
+				gather[n++] = buf;
 			}
 
-			final ByteBuffer mBuf = buf;
+			if (n == 0)
+				return;
 
-			sock.write(mBuf, this, new CompletionHandler<Integer, Nio2Socket>()
+			writing = true;
+		}
+
+		try
+		{
+			sock.write(gather, 0, n, 128, TimeUnit.DAYS, this, new CompletionHandler<Long, Nio2Socket>()
 			{
 
 				@Override
-				public void completed(Integer result, Nio2Socket attachment)
+				public void completed(Long result, Nio2Socket attachment)
 				{
-					lastWriteRemaining = mBuf.remaining();
-					isWriting.getAndSet(false);
+					boolean changed = false;
+					boolean drained;
+
+					synchronized (pending)
+					{
+						writing = false;
+						Arrays.fill(gather, null);
+						pendingBytes -= result;
+						drained = pendingBytes <= lowWatermark;
+
+						if (drained && !writable)
+						{
+							writable = true;
+							changed = true;
+						}
+					}
+
+					if (changed)
+						writabilityChanged();
+
 					_write();
+
+					if (drained)
+						handler.sent(Nio2Socket.this);
 				}
 
 				@Override
 				public void failed(Throwable exc, Nio2Socket attachment)
 				{
-					isWriting.getAndSet(false);
+					synchronized (pending)
+					{
+						writing = false;
+						Arrays.fill(gather, null);
+						pending.clear();
+						pendingBytes = 0;
+					}
 					handler.error(exc, Nio2Socket.this);
 				}
 			});
-
 		}
 		catch (RuntimeException e)
 		{
-			isWriting.getAndSet(false);
+			synchronized (pending)
+			{
+				writing = false;
+			}
 			throw e;
 		}
 	}
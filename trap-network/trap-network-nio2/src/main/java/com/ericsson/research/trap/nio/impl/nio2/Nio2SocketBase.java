@@ -40,6 +40,9 @@ import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -50,28 +53,121 @@ public abstract class Nio2SocketBase implements Socket
 {
 
 	static final int	            BUF_SIZE	 = 16 * 1024;
+	static final int	            IDLE_BUF_SIZE	= 1024;
 	final AsynchronousSocketChannel	sock;
 	InetSocketAddress	            remote;
 	SocketHandler	                handler;
-	ByteBuffer	                    readBuf	     = ByteBuffer.allocateDirect(BUF_SIZE);
+	BufferPool	                    pool	     = BufferPool.get(BUF_SIZE);
+	ByteBuffer	                    idleBuf	     = ByteBuffer.allocate(IDLE_BUF_SIZE);
+	ByteBuffer	                    readBuf	     = idleBuf;
 	final ByteBuffer[]	            writeBufs	 = new ByteBuffer[2];
 	volatile int	                writeBuf	 = 0;
 	final AtomicBoolean	            isWriting	 = new AtomicBoolean(false);
 	final AtomicBoolean	            needsWriting	= new AtomicBoolean(false);
+	// Pooled buffers lent to a ZeroCopyHandler and not yet released by it
+	final Set<ByteBuffer>	        handedOver	 = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>()));
 
 	public Nio2SocketBase(AsynchronousSocketChannel sock)
 	{
 		this.sock = sock;
-		for (int i = 0; i < 2; i++)
+	}
+
+	/**
+	 * Picks the buffer for the next read. Idle connections read into a small heap buffer, which does not pin any
+	 * direct memory while the read is outstanding. A read that fills its buffer suggests more data is waiting, so the
+	 * connection borrows a pooled buffer until a read comes back short again. A pending read cannot be cancelled, so
+	 * if the data ends exactly at the end of the buffer, the pooled buffer is held until more data arrives.
+	 * <p>
+	 * Any unconsumed data in {@link #readBuf} (which must be in write mode) is carried over.
+	 *
+	 * @param filled
+	 *            <i>true</i> if the last read filled the buffer
+	 */
+	void resizeRead(boolean filled)
+	{
+		if (filled)
+		{
+			if (readBuf == idleBuf)
+			{
+				ByteBuffer buf = pool.acquire();
+				idleBuf.flip();
+				buf.put(idleBuf);
+				idleBuf.clear();
+				readBuf = buf;
+			}
+		}
+		else if (readBuf != idleBuf && readBuf.position() <= idleBuf.capacity())
 		{
-			writeBufs[i] = ByteBuffer.allocateDirect(BUF_SIZE);
-			writeBufs[i].limit(0);
+			readBuf.flip();
+			idleBuf.put(readBuf);
+			pool.release(readBuf);
+			readBuf = idleBuf;
 		}
-		writeBufs[0].clear();
+	}
+
+	/**
+	 * Returns the read buffer to the pool. Called when no further reads will be issued.
+	 */
+	void releaseRead()
+	{
+		if (readBuf != idleBuf)
+		{
+			pool.release(readBuf);
+			readBuf = idleBuf;
+		}
+	}
+
+	/**
+	 * Hands {@link #readBuf} (in read mode) over to a {@link ZeroCopyHandler}, and picks the buffer for the next read
+	 * as {@link #resizeRead(boolean)} would. A handed over idle buffer is replaced, and left to the garbage collector
+	 * once the handler is done with it.
+	 *
+	 * @param filled
+	 *            <i>true</i> if the last read filled the buffer
+	 * @return The buffer to hand over
+	 */
+	ByteBuffer handOverRead(boolean filled)
+	{
+		ByteBuffer data = readBuf;
+
+		if (data == idleBuf)
+			idleBuf = ByteBuffer.allocate(IDLE_BUF_SIZE);
+		else
+			handedOver.add(data);
+
+		readBuf = filled ? pool.acquire() : idleBuf;
+		return data;
+	}
+
+	/**
+	 * Records a pooled buffer as lent to a {@link ZeroCopyHandler}, so that {@link #release(ByteBuffer)} will accept it
+	 * back exactly once.
+	 */
+	ByteBuffer handOver(ByteBuffer buf)
+	{
+		handedOver.add(buf);
+		return buf;
+	}
+
+	/**
+	 * Returns a buffer lent out by this socket to the pool. Buffers this socket did not lend, or that were already
+	 * released, are ignored, so a handler that releases a buffer twice cannot return memory another socket is using.
+	 */
+	@Override
+	public void release(ByteBuffer buf)
+	{
+		if (handedOver.remove(buf))
+			pool.release(buf);
 	}
 
 	abstract void _read();
 
+	@Override
+	public boolean isWritable()
+	{
+		return true;
+	}
+
 	void open()
 	{
 		sock.connect(remote, this, new CompletionHandler<Void, Nio2SocketBase>()
@@ -39,8 +39,17 @@ package com.ericsson.research.trap.nio.impl.nio2;
  */
 
 import java.io.IOException;
+import java.net.SocketOption;
+import java.nio.channels.AsynchronousChannelGroup;
 import java.nio.channels.AsynchronousServerSocketChannel;
 import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.NetworkChannel;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.net.ssl.SSLContext;
 
@@ -48,40 +57,172 @@ import com.ericsson.research.trap.nio.ServerSocket;
 import com.ericsson.research.trap.nio.ServerSocket.ServerSocketHandler;
 import com.ericsson.research.trap.nio.Socket;
 import com.ericsson.research.trap.nio.SocketFactory;
+import com.ericsson.research.trap.nio.SocketOptions;
 
 /**
+ * Creates sockets on NIO.2 asynchronous channels. Sockets created with the same thread settings in their
+ * {@link SocketOptions} share one {@link AsynchronousChannelGroup}; sockets without thread settings use the JVM's
+ * default group.
  *
  * @author Vladimir Katardjiev
  */
 public class Nio2SocketFactory implements SocketFactory {
     
+    private static final HashMap<String, AsynchronousChannelGroup> groups = new HashMap<String, AsynchronousChannelGroup>();
+    
 	@Override
     public Socket client() throws IOException {
 
-        AsynchronousSocketChannel channel = AsynchronousSocketChannel.open();
-        return new Nio2Socket(channel);
+        return this.client(null);
+        
+    }
+
+	@Override
+    public Socket client(SocketOptions options) throws IOException {
+
+        AsynchronousSocketChannel channel = AsynchronousSocketChannel.open(group(options));
+        apply(channel, options);
+        return new Nio2Socket(channel, options);
         
     }
 
     @Override
     public ServerSocket server(ServerSocketHandler handler) throws IOException
     {
-        AsynchronousServerSocketChannel ss = AsynchronousServerSocketChannel.open();
-        return new Nio2ServerSocket(ss, handler);
+        return this.server(handler, null);
+    }
+
+    @Override
+    public ServerSocket server(ServerSocketHandler handler, SocketOptions options) throws IOException
+    {
+        AsynchronousChannelGroup group = group(options);
+        AsynchronousServerSocketChannel ss = AsynchronousServerSocketChannel.open(group);
+        return new Nio2ServerSocket(ss, handler, group, options);
     }
 
 	@Override
     public Socket sslClient(SSLContext sslc) throws IOException
     {
-        AsynchronousSocketChannel channel = AsynchronousSocketChannel.open();
-	    return new Nio2SSLSocket(channel, sslc, true);
+	    return this.sslClient(sslc, null);
+    }
+
+	@Override
+    public Socket sslClient(SSLContext sslc, SocketOptions options) throws IOException
+    {
+        AsynchronousSocketChannel channel = AsynchronousSocketChannel.open(group(options));
+        apply(channel, options);
+	    return new Nio2SSLSocket(channel, sslc, true, options);
     }
 
 	@Override
     public ServerSocket sslServer(SSLContext sslc, ServerSocketHandler handler) throws IOException
     {
-        AsynchronousServerSocketChannel ss = AsynchronousServerSocketChannel.open();
-	    return new Nio2SSLServerSocket(ss, handler, sslc);
+	    return this.sslServer(sslc, handler, null);
+    }
+
+	@Override
+    public ServerSocket sslServer(SSLContext sslc, ServerSocketHandler handler, SocketOptions options) throws IOException
+    {
+        AsynchronousChannelGroup group = group(options);
+        AsynchronousServerSocketChannel ss = AsynchronousServerSocketChannel.open(group);
+	    return new Nio2SSLServerSocket(ss, handler, sslc, group, options);
+    }
+    
+    /**
+     * Returns the shared channel group for the thread settings in the options, or null for the default group.
+     */
+    static AsynchronousChannelGroup group(SocketOptions options) throws IOException
+    {
+        if (options == null || options.getThreads() <= 0)
+            return null;
+        
+        String key = options.getThreadPool() + "/" + options.getThreads();
+        
+        synchronized (groups)
+        {
+            AsynchronousChannelGroup group = groups.get(key);
+            
+            if (group == null || group.isShutdown())
+            {
+                ThreadFactory factory = new DaemonThreadFactory("trap-nio2-" + key + "-");
+                
+                if (SocketOptions.THREADS_CACHED.equals(options.getThreadPool()))
+                    group = AsynchronousChannelGroup.withCachedThreadPool(Executors.newCachedThreadPool(factory), options.getThreads());
+                else
+                    group = AsynchronousChannelGroup.withFixedThreadPool(options.getThreads(), factory);
+                
+                groups.put(key, group);
+            }
+            
+            return group;
+        }
+    }
+    
+    /**
+     * Sets the options the channel supports. Unsupported options, and options with malformed values, are skipped.
+     */
+    @SuppressWarnings("unchecked")
+    static void apply(NetworkChannel channel, SocketOptions options) throws IOException
+    {
+        if (options == null)
+            return;
+        
+        for (SocketOption<?> option : channel.supportedOptions())
+        {
+            Object value = options.getOption(option.name());
+            
+            if (value == null)
+                continue;
+            
+            try
+            {
+                if (value instanceof String)
+                {
+                    if (option.type() == Boolean.class)
+                        value = Boolean.valueOf(((String) value).trim());
+                    else if (option.type() == Integer.class)
+                        value = Integer.valueOf(((String) value).trim());
+                }
+                
+                channel.setOption((SocketOption<Object>) option, value);
+            }
+            catch (IllegalArgumentException e)
+            {
+                // Also covers NumberFormatException, and values of the wrong type or range
+                Logger.getLogger(Nio2SocketFactory.class.getName()).log(Level.WARNING, "Ignoring socket option {0}={1}: {2}", new Object[] { option.name(), value, e.getMessage() });
+            }
+        }
+    }
+    
+    /**
+     * Finds a supported option by name. Used for options that are not available in all JDKs.
+     */
+    static SocketOption<?> findOption(NetworkChannel channel, String name)
+    {
+        for (SocketOption<?> option : channel.supportedOptions())
+            if (option.name().equals(name))
+                return option;
+        
+        return null;
+    }
+    
+    static class DaemonThreadFactory implements ThreadFactory
+    {
+        private final String        prefix;
+        private final AtomicInteger count = new AtomicInteger();
+        
+        DaemonThreadFactory(String prefix)
+        {
+            this.prefix = prefix;
+        }
+        
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, this.prefix + this.count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
     }
     
 }
@@ -0,0 +1,206 @@
+package com.ericsson.research.trap.nio.impl.nio2;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.ericsson.research.trap.nio.ServerSocket;
+import com.ericsson.research.trap.nio.ServerSocket.ServerSocketHandler;
+import com.ericsson.research.trap.nio.Socket;
+import com.ericsson.research.trap.nio.Socket.SocketHandler;
+
+public class BufferPoolTest
+{
+
+	@Test
+	public void testAcquireRelease() throws Exception
+	{
+		BufferPool pool = new BufferPool(4096);
+		int slab = BufferPool.SLAB_SIZE / 4096;
+		ByteBuffer[] acquired = new ByteBuffer[slab + 1];
+
+		for (int i = 0; i < acquired.length; i++)
+		{
+			acquired[i] = pool.acquire();
+			Assert.assertTrue(acquired[i].isDirect());
+			Assert.assertEquals(4096, acquired[i].capacity());
+			Assert.assertEquals(4096, acquired[i].remaining());
+
+			// Slices must not overlap
+			acquired[i].putInt(0, i);
+		}
+
+		for (int i = 0; i < acquired.length; i++)
+			Assert.assertEquals(i, acquired[i].getInt(0));
+
+		Assert.assertEquals(2 * slab, pool.getCapacity());
+		Assert.assertEquals(slab + 1, pool.getInUse());
+		Assert.assertEquals(slab + 1, pool.getHighWater());
+
+		for (int i = 0; i < acquired.length; i++)
+		{
+			acquired[i].position(100);
+			pool.release(acquired[i]);
+		}
+
+		Assert.assertEquals(0, pool.getInUse());
+		Assert.assertEquals(slab + 1, pool.getHighWater());
+
+		// Released buffers are reused, cleared, rather than growing the pool
+		for (int i = 0; i < acquired.length; i++)
+		{
+			ByteBuffer buf = pool.acquire();
+			Assert.assertEquals(0, buf.position());
+		}
+
+		Assert.assertEquals(2 * slab, pool.getCapacity());
+	}
+
+	@Test
+	public void testReleaseOnlyBorrowed() throws Exception
+	{
+		BufferPool pool = new BufferPool(4096);
+		ByteBuffer buf = pool.acquire();
+
+		// Foreign buffers, even ones that look like pooled ones, are not taken in
+		Assert.assertFalse(pool.release(ByteBuffer.allocateDirect(4096)));
+		Assert.assertEquals(1, pool.getInUse());
+
+		Assert.assertTrue(pool.release(buf));
+		Assert.assertFalse(pool.release(buf));
+		Assert.assertEquals(0, pool.getInUse());
+
+		// A double release must not let two borrowers share the buffer
+		ByteBuffer a = pool.acquire();
+		ByteBuffer b = pool.acquire();
+		Assert.assertNotSame(a, b);
+	}
+
+	@Test(timeout = 15000)
+	public void testIdleConnectionsReturnBuffers() throws Exception
+	{
+		BufferPool pool = BufferPool.get(Nio2SocketBase.BUF_SIZE);
+		int baseline = pool.getInUse();
+
+		final int size = 256 * 1024;
+		final int tail = 10;
+		final CountDownLatch echoed = new CountDownLatch(1);
+		final ByteBuffer sendBuf = ByteBuffer.allocate(size + tail);
+		for (int i = 0; i < size + tail; i++)
+			sendBuf.put((byte) i);
+		sendBuf.flip();
+		sendBuf.limit(size);
+
+		ServerSocket server = new Nio2SocketFactory().server(new ServerSocketHandler() {
+
+			@Override
+			public void accept(Socket sock, ServerSocket ss)
+			{
+				new SocketTestUtil.EchoHandler(sock);
+			}
+
+			@Override
+			public void error(Throwable exc, ServerSocket ss)
+			{
+			}
+		});
+		server.listen("127.0.0.1", 0);
+
+		Socket client = new Nio2SocketFactory().client();
+		client.setHandler(new SocketHandler() {
+
+			int	received	= 0;
+
+			@Override
+			public void sent(Socket sock)
+			{
+				if (sendBuf.hasRemaining())
+					sock.send(sendBuf);
+			}
+
+			@Override
+			public void received(ByteBuffer data, Socket sock)
+			{
+				while (data.hasRemaining())
+					Assert.assertEquals((byte) received++, data.get());
+
+				// A read that fills its buffer keeps a pooled one until more data arrives. Finish with a short
+				// message so that both ends end on a short read.
+				if (received == size)
+				{
+					sendBuf.limit(size + tail);
+					sock.send(sendBuf);
+				}
+
+				if (received == size + tail)
+					echoed.countDown();
+			}
+
+			@Override
+			public void opened(Socket sock)
+			{
+				sock.send(sendBuf);
+			}
+
+			@Override
+			public void error(Throwable exc, Socket sock)
+			{
+			}
+
+			@Override
+			public void closed(Socket sock)
+			{
+			}
+		});
+		client.open(server.getInetAddress());
+
+		Assert.assertTrue(echoed.await(10, TimeUnit.SECONDS));
+		Assert.assertTrue(pool.getHighWater() > baseline);
+
+		// Both ends are now idle, with no reads or writes needing a pooled buffer
+		for (int i = 0; i < 100 && pool.getInUse() > baseline; i++)
+			Thread.sleep(10);
+
+		Assert.assertEquals(baseline, pool.getInUse());
+
+		client.close();
+		server.close();
+	}
+}
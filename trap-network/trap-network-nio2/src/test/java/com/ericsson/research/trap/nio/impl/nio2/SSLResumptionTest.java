@@ -0,0 +1,209 @@
+package com.ericsson.research.trap.nio.impl.nio2;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+import java.nio.ByteBuffer;
+import java.util.Enumeration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ericsson.research.trap.nio.ServerSocket;
+import com.ericsson.research.trap.nio.ServerSocket.ServerSocketHandler;
+import com.ericsson.research.trap.nio.Socket;
+import com.ericsson.research.trap.nio.Socket.SocketHandler;
+import com.ericsson.research.trap.nio.SocketOptions;
+import com.ericsson.research.trap.utils.SSLUtil;
+import com.ericsson.research.trap.utils.SSLUtil.SSLMaterial;
+
+/**
+ * Compares the rate of full and resumed TLS handshakes.
+ */
+public class SSLResumptionTest
+{
+
+	private static final int	HANDSHAKES	= 40;
+
+	private SSLContext	     serverContext;
+	private SSLContext	     clientContext;
+	private ServerSocket	 server;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		serverContext = context();
+		clientContext = context();
+	}
+
+	@After
+	public void tearDown()
+	{
+		if (server != null)
+			server.close();
+	}
+
+	private static SSLContext context()
+	{
+		return SSLUtil.getContext(new SSLMaterial("pkcs12", "src/test/resources/sel_Ericcson.pkcs12", "Ericcson"), new SSLMaterial("jks",
+		        "src/test/resources/sel_Ericcson.keystore", "Ericcson"));
+	}
+
+	@Test(timeout = 60000)
+	public void testResumeTLS12() throws Exception
+	{
+		this.compare("TLSv1.2");
+	}
+
+	@Test(timeout = 60000)
+	public void testResumeTLS13() throws Exception
+	{
+		this.compare("TLSv1.3");
+	}
+
+	private void compare(String protocol) throws Exception
+	{
+		final SocketOptions options = new SocketOptions().setSslProtocols(protocol).setOption(SocketOptions.TCP_NODELAY, true);
+
+		server = new Nio2SocketFactory().sslServer(serverContext, new ServerSocketHandler() {
+
+			@Override
+			public void accept(Socket sock, ServerSocket ss)
+			{
+				new SocketTestUtil.EchoHandler(sock);
+			}
+
+			@Override
+			public void error(Throwable exc, ServerSocket ss)
+			{
+			}
+		}, options);
+		server.listen("127.0.0.1", 0);
+
+		// Warm up
+		this.handshake(options);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < HANDSHAKES; i++)
+		{
+			this.flushSessions();
+			this.handshake(options);
+		}
+		long full = System.nanoTime() - start;
+
+		this.flushSessions();
+		SSLSession first = this.handshake(options);
+
+		start = System.nanoTime();
+		SSLSession last = null;
+		for (int i = 0; i < HANDSHAKES; i++)
+			last = this.handshake(options);
+		long resumed = System.nanoTime() - start;
+
+		System.out.println(protocol + " handshakes/s: full " + (HANDSHAKES * 1000000000L / full) + ", resumed " + (HANDSHAKES * 1000000000L / resumed));
+
+		Assert.assertEquals(protocol, last.getProtocol());
+
+		// TLSv1.3 resumes from a ticket, with a new session ID but the original creation time
+		Assert.assertEquals(first.getCreationTime(), last.getCreationTime());
+	}
+
+	private void flushSessions()
+	{
+		SSLSessionContext sessions = clientContext.getClientSessionContext();
+		for (Enumeration<byte[]> ids = sessions.getIds(); ids.hasMoreElements();)
+		{
+			SSLSession session = sessions.getSession(ids.nextElement());
+			if (session != null)
+				session.invalidate();
+		}
+	}
+
+	/**
+	 * Connects, exchanges a byte and disconnects.
+	 */
+	private SSLSession handshake(SocketOptions options) throws Exception
+	{
+		final CountDownLatch echoed = new CountDownLatch(1);
+		final ByteBuffer ping = ByteBuffer.wrap(new byte[] { 42 });
+		final Nio2SSLSocket client = (Nio2SSLSocket) new Nio2SocketFactory().sslClient(clientContext, options);
+
+		client.setHandler(new SocketHandler() {
+
+			@Override
+			public void sent(Socket sock)
+			{
+				// Data sent during the handshake is not consumed
+				if (ping.hasRemaining())
+					sock.send(ping);
+			}
+
+			@Override
+			public void received(ByteBuffer data, Socket sock)
+			{
+				echoed.countDown();
+			}
+
+			@Override
+			public void opened(Socket sock)
+			{
+				sock.send(ping);
+			}
+
+			@Override
+			public void error(Throwable exc, Socket sock)
+			{
+			}
+
+			@Override
+			public void closed(Socket sock)
+			{
+			}
+		});
+		client.open(server.getInetAddress());
+
+		Assert.assertTrue(echoed.await(10, TimeUnit.SECONDS));
+
+		SSLSession session = client.engine.getSession();
+		client.close();
+		return session;
+	}
+}
@@ -0,0 +1,150 @@
+package com.ericsson.research.trap.nio.impl.nio2;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.ericsson.research.trap.nio.ServerSocket;
+import com.ericsson.research.trap.nio.ServerSocket.ServerSocketHandler;
+import com.ericsson.research.trap.nio.Socket;
+import com.ericsson.research.trap.nio.SocketOptions;
+
+public class SocketOptionsTest
+{
+
+	@Test
+	public void testApply() throws Exception
+	{
+		AsynchronousSocketChannel channel = AsynchronousSocketChannel.open();
+		try
+		{
+			SocketOptions options = new SocketOptions();
+			options.setOption(SocketOptions.TCP_NODELAY, "true");
+			options.setOption(SocketOptions.SO_KEEPALIVE, Boolean.TRUE);
+			options.setOption("NOT_AN_OPTION", "42");
+
+			Nio2SocketFactory.apply(channel, options);
+
+			Assert.assertTrue(channel.getOption(StandardSocketOptions.TCP_NODELAY));
+			Assert.assertTrue(channel.getOption(StandardSocketOptions.SO_KEEPALIVE));
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+
+	@Test
+	public void testMalformedOptionsSkipped() throws Exception
+	{
+		AsynchronousSocketChannel channel = AsynchronousSocketChannel.open();
+		try
+		{
+			SocketOptions options = new SocketOptions();
+			options.setOption(SocketOptions.SO_SNDBUF, "abc");
+			options.setOption(SocketOptions.SO_RCVBUF, "-1");
+			options.setOption(SocketOptions.TCP_NODELAY, "true");
+
+			// Bad values are logged and skipped; the remaining options still apply
+			Nio2SocketFactory.apply(channel, options);
+
+			Assert.assertTrue(channel.getOption(StandardSocketOptions.TCP_NODELAY));
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+
+	@Test
+	public void testSharedGroups() throws Exception
+	{
+		Assert.assertNull(Nio2SocketFactory.group(null));
+		Assert.assertNull(Nio2SocketFactory.group(new SocketOptions()));
+
+		AsynchronousChannelGroup a = Nio2SocketFactory.group(new SocketOptions().setThreads(2));
+		AsynchronousChannelGroup b = Nio2SocketFactory.group(new SocketOptions().setThreads(2));
+		AsynchronousChannelGroup c = Nio2SocketFactory.group(new SocketOptions().setThreads(2).setThreadPool(SocketOptions.THREADS_CACHED));
+
+		Assert.assertNotNull(a);
+		Assert.assertSame(a, b);
+		Assert.assertNotSame(a, c);
+	}
+
+	@Test(timeout = 10000)
+	public void testAcceptLoops() throws Exception
+	{
+		final int clients = 50;
+		final CountDownLatch accepted = new CountDownLatch(clients);
+		SocketOptions options = new SocketOptions().setThreads(4).setAcceptLoops(4);
+		options.setOption(SocketOptions.TCP_NODELAY, Boolean.TRUE);
+
+		ServerSocket server = new Nio2SocketFactory().server(new ServerSocketHandler() {
+
+			@Override
+			public void accept(Socket sock, ServerSocket ss)
+			{
+				accepted.countDown();
+			}
+
+			@Override
+			public void error(Throwable exc, ServerSocket ss)
+			{
+			}
+		}, options);
+
+		server.listen("127.0.0.1", 0);
+		InetSocketAddress address = server.getInetAddress();
+
+		java.net.Socket[] sockets = new java.net.Socket[clients];
+		for (int i = 0; i < clients; i++)
+			sockets[i] = new java.net.Socket(address.getAddress(), address.getPort());
+
+		Assert.assertTrue(accepted.await(5, TimeUnit.SECONDS));
+
+		for (int i = 0; i < clients; i++)
+			sockets[i].close();
+		server.close();
+		Assert.assertTrue(server.isClosed());
+	}
+}
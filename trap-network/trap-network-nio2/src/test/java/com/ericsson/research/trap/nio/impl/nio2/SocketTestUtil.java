@@ -55,16 +55,25 @@ public class SocketTestUtil
 
 		void _write()
 		{
+			for (;;)
+			{
+				ByteBuffer buf = echoes.peek();
 
-			ByteBuffer buf = echoes.peek();
+				if (buf == null)
+					return;
 
-			if (buf == null)
-				return;
-			
-			if (buf.remaining() == 0)
-				return;
+				if (buf.remaining() == 0)
+				{
+					echoes.poll();
+					continue;
+				}
 
-			sock.send(buf);
+				sock.send(buf);
+
+				// The socket is full; sent() resumes
+				if (buf.hasRemaining())
+					return;
+			}
 		}
 
 		@Override
@@ -98,7 +107,6 @@ public class SocketTestUtil
 		@Override
 		public void sent(Socket attachment)
 		{
-			echoes.poll();
 			_write();
 
 		}
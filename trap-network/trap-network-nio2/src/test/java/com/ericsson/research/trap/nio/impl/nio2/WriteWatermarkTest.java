@@ -0,0 +1,197 @@
+package com.ericsson.research.trap.nio.impl.nio2;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.ericsson.research.trap.nio.Socket;
+import com.ericsson.research.trap.nio.Socket.WritabilityHandler;
+import com.ericsson.research.trap.nio.SocketOptions;
+
+public class WriteWatermarkTest
+{
+
+	@Test(timeout = 20000)
+	public void testSlowReader() throws Exception
+	{
+		final int low = 16 * 1024;
+		final int high = 64 * 1024;
+		final int chunk = 4 * 1024;
+		final int total = 4 * 1024 * 1024;
+
+		final ServerSocket server = new ServerSocket();
+		server.setReceiveBufferSize(8192);
+		server.bind(new InetSocketAddress("127.0.0.1", 0));
+		final CountDownLatch unwritable = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(1);
+		final AtomicInteger changes = new AtomicInteger();
+		final AtomicInteger maxQueued = new AtomicInteger();
+
+		SocketOptions options = new SocketOptions().setWriteWatermarks(low, high);
+		options.setOption(SocketOptions.SO_SNDBUF, 8192);
+
+		final Nio2Socket client = (Nio2Socket) new Nio2SocketFactory().client(options);
+		client.setHandler(new WritabilityHandler() {
+
+			int	       produced	= 0;
+			ByteBuffer	next	= null;
+
+			// Write completions may call sent() on the sending thread, so this can be reentered
+			synchronized void fill(Socket sock)
+			{
+				for (;;)
+				{
+					if (next == null)
+					{
+						if (produced == total)
+							return;
+
+						next = ByteBuffer.allocate(chunk);
+						for (int i = 0; i < chunk; i++)
+							next.put((byte) (produced + i));
+						next.flip();
+						produced += chunk;
+					}
+
+					ByteBuffer buf = next;
+					sock.send(buf);
+
+					synchronized (client.pending)
+					{
+						if (client.pendingBytes > maxQueued.get())
+							maxQueued.set((int) client.pendingBytes);
+					}
+
+					// Either all or nothing is accepted
+					if (buf.hasRemaining())
+					{
+						Assert.assertEquals(chunk, buf.remaining());
+						return;
+					}
+
+					if (next == buf)
+						next = null;
+				}
+			}
+
+			@Override
+			public void writabilityChanged(boolean writable, Socket sock)
+			{
+				changes.incrementAndGet();
+				if (!writable)
+					unwritable.countDown();
+			}
+
+			@Override
+			public void sent(Socket sock)
+			{
+				fill(sock);
+			}
+
+			@Override
+			public void received(ByteBuffer data, Socket sock)
+			{
+			}
+
+			@Override
+			public void opened(Socket sock)
+			{
+				fill(sock);
+			}
+
+			@Override
+			public void error(Throwable exc, Socket sock)
+			{
+				exc.printStackTrace();
+			}
+
+			@Override
+			public void closed(Socket sock)
+			{
+			}
+		});
+		client.open(new InetSocketAddress("127.0.0.1", server.getLocalPort()));
+
+		java.net.Socket peer = server.accept();
+
+		// Nobody is reading, so the queue must fill up and stop accepting data
+		Assert.assertTrue(unwritable.await(10, TimeUnit.SECONDS));
+		Assert.assertFalse(client.isWritable());
+		Assert.assertTrue(maxQueued.get() < high + chunk);
+
+		final InputStream is = peer.getInputStream();
+		new Thread() {
+			public void run()
+			{
+				try
+				{
+					byte[] buf = new byte[chunk];
+					int received = 0;
+					while (received < total)
+					{
+						int read = is.read(buf);
+						if (read < 0)
+							return;
+						for (int i = 0; i < read; i++)
+							Assert.assertEquals((byte) (received + i), buf[i]);
+						received += read;
+					}
+					done.countDown();
+				}
+				catch (Throwable e)
+				{
+					e.printStackTrace();
+				}
+			}
+		}.start();
+
+		Assert.assertTrue(done.await(15, TimeUnit.SECONDS));
+		Assert.assertTrue(client.isWritable());
+		Assert.assertTrue(changes.get() >= 2);
+		Assert.assertTrue(maxQueued.get() < high + chunk);
+
+		client.close();
+		peer.close();
+		server.close();
+	}
+}
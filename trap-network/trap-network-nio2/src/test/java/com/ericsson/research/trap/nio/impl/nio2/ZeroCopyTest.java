@@ -0,0 +1,269 @@
+package com.ericsson.research.trap.nio.impl.nio2;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.ericsson.research.trap.nio.ServerSocket;
+import com.ericsson.research.trap.nio.ServerSocket.ServerSocketHandler;
+import com.ericsson.research.trap.nio.Socket;
+import com.ericsson.research.trap.nio.Socket.SocketHandler;
+import com.ericsson.research.trap.nio.Socket.ZeroCopyHandler;
+import com.ericsson.research.trap.nio.SocketFactory;
+import com.ericsson.research.trap.nio.SocketOptions;
+import com.ericsson.research.trap.nio.impl.nio1.Nio1SocketFactory;
+import com.ericsson.research.trap.utils.SSLUtil;
+import com.ericsson.research.trap.utils.SSLUtil.SSLMaterial;
+
+/**
+ * Gathering sends, and receivers that keep the buffers they are handed.
+ */
+public class ZeroCopyTest
+{
+
+	private static final int	GATHERS	= 500;
+	private static final int[]	PARTS	= { 7, 1000, 3 };
+
+	private ServerSocket	    server;
+	private Socket	            client;
+
+	@After
+	public void tearDown()
+	{
+		if (client != null)
+			client.close();
+
+		if (server != null)
+			server.close();
+	}
+
+	@Test(timeout = 30000)
+	public void testNio2() throws Exception
+	{
+		this.transfer(new Nio2SocketFactory(), null);
+	}
+
+	@Test(timeout = 30000)
+	public void testNio2SSL() throws Exception
+	{
+		SSLContext sslc = SSLUtil.getContext(new SSLMaterial("pkcs12", "src/test/resources/sel_Ericcson.pkcs12", "Ericcson"), new SSLMaterial("jks",
+		        "src/test/resources/sel_Ericcson.keystore", "Ericcson"));
+		this.transfer(new Nio2SocketFactory(), sslc);
+	}
+
+	@Test(timeout = 30000)
+	public void testNio1() throws Exception
+	{
+		this.transfer(new Nio1SocketFactory(), null);
+	}
+
+	static byte expected(long index)
+	{
+		return (byte) (index % 251);
+	}
+
+	private void transfer(SocketFactory factory, SSLContext sslc) throws Exception
+	{
+		final int total = GATHERS * (PARTS[0] + PARTS[1] + PARTS[2]);
+		final List<ByteBuffer> kept = new ArrayList<ByteBuffer>();
+		final CountDownLatch done = new CountDownLatch(1);
+		final Socket[] accepted = new Socket[1];
+		SocketOptions options = new SocketOptions().setSslProtocols("TLSv1.2");
+
+		ServerSocketHandler acceptor = new ServerSocketHandler() {
+
+			@Override
+			public void accept(Socket sock, ServerSocket ss)
+			{
+				accepted[0] = sock;
+				sock.setHandler(new ZeroCopyHandler() {
+
+					int	received	= 0;
+
+					@Override
+					public void received(ByteBuffer data, Socket sock)
+					{
+						// Keep every buffer without copying; they are checked once everything has arrived
+						synchronized (kept)
+						{
+							kept.add(data);
+						}
+
+						received += data.remaining();
+						if (received >= total)
+							done.countDown();
+					}
+
+					@Override
+					public void sent(Socket sock)
+					{
+					}
+
+					@Override
+					public void opened(Socket sock)
+					{
+					}
+
+					@Override
+					public void closed(Socket sock)
+					{
+					}
+
+					@Override
+					public void error(Throwable exc, Socket sock)
+					{
+					}
+				});
+			}
+
+			@Override
+			public void error(Throwable exc, ServerSocket ss)
+			{
+			}
+		};
+
+		server = sslc == null ? factory.server(acceptor, options) : factory.sslServer(sslc, acceptor, options);
+		server.listen("127.0.0.1", 0);
+
+		client = sslc == null ? factory.client(options) : factory.sslClient(sslc, options);
+		client.setHandler(new Sender());
+		client.open(server.getInetAddress());
+
+		Assert.assertTrue(done.await(20, TimeUnit.SECONDS));
+
+		long index = 0;
+		synchronized (kept)
+		{
+			for (ByteBuffer buf : kept)
+			{
+				while (buf.hasRemaining())
+					Assert.assertEquals("Byte " + index, expected(index++), buf.get());
+				accepted[0].release(buf);
+			}
+		}
+
+		Assert.assertEquals(total, index);
+	}
+
+	/**
+	 * Sends each message as a header, body and trailer in one gathering send. Sockets may call sent() while holding
+	 * their own locks, so a thread that finds another one sending leaves it to make another pass instead of blocking.
+	 */
+	static class Sender implements SocketHandler
+	{
+
+		final AtomicInteger	senders	= new AtomicInteger();
+		volatile Socket		sock;
+		long		        index	= 0;
+		int		            sent	= 0;
+		ByteBuffer[]		parts;
+
+		void next()
+		{
+			if (senders.getAndIncrement() != 0)
+				return;
+
+			do
+			{
+				for (;;)
+				{
+					if (parts == null)
+					{
+						if (sent == GATHERS)
+							break;
+
+						parts = new ByteBuffer[PARTS.length];
+						for (int i = 0; i < PARTS.length; i++)
+						{
+							parts[i] = ByteBuffer.allocate(PARTS[i]);
+							while (parts[i].hasRemaining())
+								parts[i].put(expected(index++));
+							parts[i].flip();
+						}
+						sent++;
+					}
+
+					sock.send(parts);
+
+					if (parts[parts.length - 1].hasRemaining())
+						break;
+
+					parts = null;
+				}
+			} while (senders.decrementAndGet() != 0);
+		}
+
+		@Override
+		public void opened(Socket sock)
+		{
+			this.sock = sock;
+			next();
+		}
+
+		@Override
+		public void sent(Socket sock)
+		{
+			if (this.sock != null)
+				next();
+		}
+
+		@Override
+		public void received(ByteBuffer data, Socket sock)
+		{
+		}
+
+		@Override
+		public void closed(Socket sock)
+		{
+		}
+
+		@Override
+		public void error(Throwable exc, Socket sock)
+		{
+			exc.printStackTrace();
+		}
+	}
+}
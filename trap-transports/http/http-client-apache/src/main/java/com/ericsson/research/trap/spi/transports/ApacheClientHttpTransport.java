@@ -33,14 +33,18 @@ package com.ericsson.research.trap.spi.transports;
  * ##_END_LICENSE_##
  */
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.StringWriter;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import org.apache.http.HttpEntity;
@@ -48,8 +52,9 @@ import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
 
 import com.ericsson.research.trap.TrapException;
 import com.ericsson.research.trap.spi.TrapMessage;
@@ -57,6 +62,7 @@ import com.ericsson.research.trap.spi.TrapTransportException;
 import com.ericsson.research.trap.spi.TrapTransportPriority;
 import com.ericsson.research.trap.spi.TrapTransportProtocol;
 import com.ericsson.research.trap.spi.TrapTransportState;
+import com.ericsson.research.trap.utils.ThreadPool;
 
 public class ApacheClientHttpTransport extends AbstractTransport implements Runnable
 {
@@ -66,7 +72,10 @@ public class ApacheClientHttpTransport extends AbstractTransport implements Runn
     protected boolean                running         = true;
     LinkedBlockingQueue<TrapMessage> messagesToSend  = new LinkedBlockingQueue<TrapMessage>();
     protected long                   expirationDelay = 28000;
+    protected boolean                streaming       = false;                                    // Ask for a chunked GET that stays open
     private DefaultHttpClient        postclient;
+    protected PipelineWindow         window          = new PipelineWindow();                     // POSTs that may be in flight at once; guarded by sendingLock
+    protected Object                 sendingLock     = new Object();
     
     public ApacheClientHttpTransport()
     {
@@ -129,6 +138,22 @@ public class ApacheClientHttpTransport extends AbstractTransport implements Runn
         catch (Exception e)
         {
         }
+        
+        this.streaming = "true".equals(this.getOption("streaming"));
+        
+        String newWindow = this.getOption("window");
+        try
+        {
+            int window = Integer.parseInt(newWindow);
+            
+            synchronized (this.sendingLock)
+            {
+                this.window.setWindow(window);
+            }
+        }
+        catch (Exception e)
+        {
+        }
     }
     
     @Override
@@ -221,7 +246,11 @@ public class ApacheClientHttpTransport extends AbstractTransport implements Runn
                     t.setDaemon(true);
                     t.start();
                     
-                    this.postclient = new DefaultHttpClient();
+                    // One pooled connection per POST in the window, each kept alive between POSTs
+                    PoolingClientConnectionManager pool = new PoolingClientConnectionManager();
+                    pool.setDefaultMaxPerRoute(this.window.getWindow());
+                    pool.setMaxTotal(this.window.getWindow());
+                    this.postclient = new DefaultHttpClient(pool);
                     
                     // Change state to connected
                     this.setState(TrapTransportState.CONNECTED);
@@ -262,6 +291,22 @@ public class ApacheClientHttpTransport extends AbstractTransport implements Runn
                 }
         }
         
+        // The disconnect must not overtake the POSTs still in flight
+        synchronized (this.sendingLock)
+        {
+            long end = System.currentTimeMillis() + 5000;
+            
+            try
+            {
+                while ((this.window.getInFlight() > 0) && (System.currentTimeMillis() < end))
+                    this.sendingLock.wait(end - System.currentTimeMillis());
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
         this.running = false;
         try
         {
@@ -363,6 +408,10 @@ public class ApacheClientHttpTransport extends AbstractTransport implements Runn
         
         urlStr += "?expires=" + this.expirationDelay;
         
+        // Servers that cannot stream ignore this and answer with a regular longpoll
+        if (this.streaming)
+            urlStr += "&stream=true";
+        
         URI uri = URI.create(urlStr);
         return new HttpGet(uri);
     }
@@ -380,59 +429,133 @@ public class ApacheClientHttpTransport extends AbstractTransport implements Runn
     @Override
     public void flushTransport()
     {
-        synchronized (this.messagesToSend)
+        synchronized (this.sendingLock)
         {
-            try
+            // Keep up to window POSTs in flight. The server reorders their messages by id.
+            LinkedList<TrapMessage> next;
+            
+            while ((next = this.window.next(this.messagesToSend)) != null)
             {
-                if (this.logger.isTraceEnabled())
-                    this.logger.trace("[HTTP] Flushing {} messages", this.messagesToSend.size());
-                
-                // Don't bother if we have no messages to send...
-                if (this.messagesToSend.size() == 0)
-                    return;
-                
-                ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                
-                for (TrapMessage m : this.messagesToSend)
-                {
-                    bos.write(m.serialize());
-                }
-                
-                byte[] body = bos.toByteArray();
+                final LinkedList<TrapMessage> batch = next;
                 
-                HttpPost post = new HttpPost(this.activeUrl);
+                if (this.window.isFull() && (this.getState() == TrapTransportState.AVAILABLE))
+                    this.setState(TrapTransportState.UNAVAILABLE);
                 
-                ByteArrayEntity bae = new org.apache.http.entity.ByteArrayEntity(body);
-                post.setEntity(bae);
-                
-                HttpResponse response = this.postclient.execute(post);
-                int responseCode = response.getStatusLine().getStatusCode();
-                HttpEntity entity = response.getEntity();
-                if (entity != null)
-                {
-                    InputStream is = entity.getContent();
+                ThreadPool.executeCached(new Runnable() {
                     
-                    @SuppressWarnings("unused")
-                    int read = 0;
-                    while ((read = is.read()) != -1)
-                        ;
-                    is.close();
-                }
-                
-                if (responseCode >= 400)
-                    throw new IOException("Failed sending due to response code: " + responseCode);
-                this.messagesToSend.clear();
-            }
-            catch (IOException e)
-            {
-                e.printStackTrace();
-                //throw new TrapTransportException(message, this.state);
-                this.delegate.ttMessagesFailedSending(this.messagesToSend, this, this.delegateContext);
-                this.messagesToSend.clear();
+                    public void run()
+                    {
+                        try
+                        {
+                            ApacheClientHttpTransport.this.post(batch);
+                        }
+                        catch (IOException e)
+                        {
+                            ApacheClientHttpTransport.this.logger.debug("Failed to POST {} messages", batch.size(), e);
+                            ApacheClientHttpTransport.this.delegate.ttMessagesFailedSending(batch, ApacheClientHttpTransport.this, ApacheClientHttpTransport.this.delegateContext);
+                        }
+                        finally
+                        {
+                            synchronized (ApacheClientHttpTransport.this.sendingLock)
+                            {
+                                ApacheClientHttpTransport.this.window.complete(batch);
+                                ApacheClientHttpTransport.this.sendingLock.notifyAll();
+                                
+                                if (ApacheClientHttpTransport.this.getState() == TrapTransportState.UNAVAILABLE)
+                                    ApacheClientHttpTransport.this.setState(TrapTransportState.AVAILABLE);
+                            }
+                            
+                            synchronized (ApacheClientHttpTransport.this.messagesToSend)
+                            {
+                                if (!ApacheClientHttpTransport.this.messagesToSend.isEmpty())
+                                    ApacheClientHttpTransport.this.flushTransport();
+                            }
+                        }
+                    }
+                });
             }
-            finally
+        }
+    }
+    
+    /*
+     * Sends one batch over the pooled client. The response is consumed so the connection can be reused.
+     */
+    protected void post(LinkedList<TrapMessage> batch) throws IOException
+    {
+        if (this.logger.isTraceEnabled())
+            this.logger.trace("[HTTP] Flushing {} messages", batch.size());
+        
+        HttpPost post = new HttpPost(this.activeUrl);
+        post.setEntity(new MessagesEntity(batch));
+        
+        HttpResponse response = this.postclient.execute(post);
+        int responseCode = response.getStatusLine().getStatusCode();
+        HttpEntity entity = response.getEntity();
+        if (entity != null)
+        {
+            InputStream is = entity.getContent();
+            
+            @SuppressWarnings("unused")
+            int read = 0;
+            while ((read = is.read()) != -1)
+                ;
+            is.close();
+        }
+        
+        if (responseCode >= 400)
+            throw new IOException("Failed sending due to response code: " + responseCode);
+    }
+    
+    /*
+     * Writes the messages straight into the request, without assembling the body first.
+     */
+    static class MessagesEntity extends AbstractHttpEntity
+    {
+        private final LinkedList<TrapMessage> messages;
+        private final long                    length;
+        
+        MessagesEntity(LinkedList<TrapMessage> messages)
+        {
+            this.messages = messages;
+            
+            long length = 0;
+            for (TrapMessage m : messages)
+                length += m.length();
+            
+            this.length = length;
+        }
+        
+        public boolean isRepeatable()
+        {
+            return true;
+        }
+        
+        public long getContentLength()
+        {
+            return this.length;
+        }
+        
+        public InputStream getContent() throws IOException
+        {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream((int) this.length);
+            this.writeTo(bos);
+            return new ByteArrayInputStream(bos.toByteArray());
+        }
+        
+        public void writeTo(OutputStream os) throws IOException
+        {
+            for (TrapMessage m : this.messages)
             {
+                for (ByteBuffer b : m.serializeBuffers())
+                    os.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
             }
+            
+            os.flush();
+        }
+        
+        public boolean isStreaming()
+        {
+            return false;
         }
     }
     
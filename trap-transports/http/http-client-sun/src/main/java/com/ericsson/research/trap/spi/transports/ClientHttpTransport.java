@@ -33,7 +33,7 @@ package com.ericsson.research.trap.spi.transports;
  * ##_END_LICENSE_##
  */
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -43,6 +43,7 @@ import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -69,11 +70,12 @@ public class ClientHttpTransport extends AbstractTransport
     protected URL                    activeUrl;
     protected boolean                running         = true;
     LinkedBlockingQueue<TrapMessage> messagesToSend  = new LinkedBlockingQueue<TrapMessage>();
-    protected boolean                sending         = false;
+    protected PipelineWindow         window          = new PipelineWindow();                     // POSTs that may be in flight at once; guarded by sendingLock
     protected long                   expirationDelay = 28000;
     protected HTTPPoller             poller          = null;
     protected Object                 sendingLock     = new Object();
     private boolean                  ignoreCertificates;
+    protected boolean                streaming       = false;                                    // Ask for a chunked GET that stays open
     
     public ClientHttpTransport()
     {
@@ -153,6 +155,21 @@ public class ClientHttpTransport extends AbstractTransport
         }
         
         this.ignoreCertificates = this.getBooleanOption(CERT_IGNORE_INVALID, false);
+        this.streaming = "true".equals(this.getOption("streaming"));
+        
+        String newWindow = this.getOption("window");
+        try
+        {
+            int window = Integer.parseInt(newWindow);
+            
+            synchronized (this.sendingLock)
+            {
+                this.window.setWindow(window);
+            }
+        }
+        catch (Exception e)
+        {
+        }
     }
     
     @Override
@@ -377,6 +394,10 @@ public class ClientHttpTransport extends AbstractTransport
         
         urlStr += "?expires=" + this.expirationDelay;
         
+        // Servers that cannot stream ignore this and answer with a regular longpoll, which the poller reads the same way.
+        if (this.streaming)
+            urlStr += "&stream=true";
+        
         URI uri = URI.create(urlStr);
         URL url = uri.toURL();
         HttpURLConnection c = (HttpURLConnection) url.openConnection();
@@ -427,14 +448,14 @@ public class ClientHttpTransport extends AbstractTransport
     {
         synchronized (this.sendingLock)
         {
-            if (!this.sending)
+            // Keep up to window POSTs in flight. The server reorders their messages by id.
+            LinkedList<TrapMessage> next;
+            
+            while ((next = this.window.next(this.messagesToSend)) != null)
             {
+                final LinkedList<TrapMessage> batch = next;
                 
-                if (this.messagesToSend.size() == 0)
-                    return;
-                
-                this.sending = true;
-                if (this.getState() == TrapTransportState.AVAILABLE)
+                if (this.window.isFull() && (this.getState() == TrapTransportState.AVAILABLE))
                     this.setState(TrapTransportState.UNAVAILABLE);
                 
                 ThreadPool.executeCached(new Runnable() {
@@ -443,75 +464,25 @@ public class ClientHttpTransport extends AbstractTransport
                     {
                         try
                         {
-                            synchronized (ClientHttpTransport.this.messagesToSend)
-                            {
-                                
-                                try
-                                {
-                                    if (ClientHttpTransport.this.logger.isTraceEnabled())
-                                        ClientHttpTransport.this.logger.trace("[HTTP] Flushing {} messages", ClientHttpTransport.this.messagesToSend.size());
-                                    
-                                    // Don't bother if we have no messages to send...
-                                    if (ClientHttpTransport.this.messagesToSend.size() == 0)
-                                        return;
-                                    
-                                    ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                                    
-                                    for (TrapMessage m : ClientHttpTransport.this.messagesToSend)
-                                    {
-                                        bos.write(m.serialize());
-                                        ClientHttpTransport.this.delegate.ttMessageSent(m, ClientHttpTransport.this, ClientHttpTransport.this.delegateContext);
-                                    }
-                                    
-                                    byte[] body = bos.toByteArray();
-                                    
-                                    HttpURLConnection c = (HttpURLConnection) ClientHttpTransport.this.activeUrl.openConnection();
-                                    ClientHttpTransport.this.checkInsecure(c);
-                                    c.setRequestMethod("POST");
-                                    c.setDoOutput(true);
-                                    c.setFixedLengthStreamingMode(body.length);
-                                    OutputStream os = c.getOutputStream();
-                                    os.write(body);
-                                    os.flush();
-                                    os.close();
-                                    int responseCode = c.getResponseCode();
-                                    
-                                    if (responseCode >= 400)
-                                        throw new IOException("Failed sending due to response code: " + responseCode);
-                                    ClientHttpTransport.this.messagesToSend.clear();
-                                }
-                                catch (IOException e)
-                                {
-                                    LinkedList<TrapMessage> faileds = new LinkedList<TrapMessage>(ClientHttpTransport.this.messagesToSend);
-                                    
-                                    // Clear the queue. This will cause a NullPointerException 
-                                    ClientHttpTransport.this.messagesToSend = null;
-                                    throw new TrapTransportException(faileds, ClientHttpTransport.this.state);
-                                    
-                                }
-                            }
+                            ClientHttpTransport.this.post(batch);
                         }
-                        catch (TrapTransportException e)
+                        catch (IOException e)
                         {
-                            synchronized (ClientHttpTransport.this.sendingLock)
-                            {
-                                if (ClientHttpTransport.this.getState() == TrapTransportState.UNAVAILABLE)
-                                    ClientHttpTransport.this.setState(TrapTransportState.AVAILABLE);
-                                
-                                ClientHttpTransport.this.sending = false;
-                            }
-                            ClientHttpTransport.this.delegate.ttMessagesFailedSending(e.failedMessages, ClientHttpTransport.this, ClientHttpTransport.this.delegateContext);
+                            ClientHttpTransport.this.logger.debug("Failed to POST {} messages", batch.size(), e);
+                            
+                            // Anything still queued would go the same way
+                            ClientHttpTransport.this.messagesToSend.drainTo(batch);
+                            ClientHttpTransport.this.delegate.ttMessagesFailedSending(batch, ClientHttpTransport.this, ClientHttpTransport.this.delegateContext);
                             ClientHttpTransport.this.forceError();
                         }
                         finally
                         {
-                            
                             synchronized (ClientHttpTransport.this.sendingLock)
                             {
+                                ClientHttpTransport.this.window.complete(batch);
+                                
                                 if (ClientHttpTransport.this.getState() == TrapTransportState.UNAVAILABLE)
                                     ClientHttpTransport.this.setState(TrapTransportState.AVAILABLE);
-                                
-                                ClientHttpTransport.this.sending = false;
                             }
                             
                             synchronized (ClientHttpTransport.this.messagesToSend)
@@ -526,6 +497,56 @@ public class ClientHttpTransport extends AbstractTransport
         }
     }
     
+    /*
+     * Sends one batch. The body is written straight from the messages, and the response is drained so that the
+     * connection goes back to the keep-alive cache for the next POST.
+     */
+    protected void post(LinkedList<TrapMessage> batch) throws IOException
+    {
+        if (this.logger.isTraceEnabled())
+            this.logger.trace("[HTTP] Flushing {} messages", batch.size());
+        
+        long length = 0;
+        
+        for (TrapMessage m : batch)
+        {
+            length += m.length();
+            this.delegate.ttMessageSent(m, this, this.delegateContext);
+        }
+        
+        HttpURLConnection c = (HttpURLConnection) this.activeUrl.openConnection();
+        this.checkInsecure(c);
+        c.setRequestMethod("POST");
+        c.setDoOutput(true);
+        c.setFixedLengthStreamingMode((int) length);
+        
+        OutputStream os = new BufferedOutputStream(c.getOutputStream());
+        
+        for (TrapMessage m : batch)
+        {
+            for (ByteBuffer b : m.serializeBuffers())
+                os.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+        }
+        
+        os.close();
+        
+        int responseCode = c.getResponseCode();
+        
+        if (responseCode >= 400)
+        {
+            c.disconnect();
+            throw new IOException("Failed sending due to response code: " + responseCode);
+        }
+        
+        InputStream is = c.getInputStream();
+        byte[] buf = new byte[256];
+        
+        while (is.read(buf) > -1)
+            ;
+        
+        is.close();
+    }
+    
     protected void setState(TrapTransportState newState)
     {
         if (this.getState() == TrapTransportState.DISCONNECTED || this.getState() == TrapTransportState.ERROR)
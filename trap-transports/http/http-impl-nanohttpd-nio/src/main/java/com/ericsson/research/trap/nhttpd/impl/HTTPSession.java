@@ -200,23 +200,7 @@ public class HTTPSession implements Request, SocketHandler, Runnable
 	public void finish(ResponseImpl r)
 	{
 
-		try
-		{
-			// Read any (eventual) message body, to prevent downstream
-			// corruption
-			if (body != null)
-			{
-				byte[] buf = new byte[4096];
-				while (body.read(buf) > -1)
-					;
-			}
-		}
-		catch (Exception e)
-		{
-			e.printStackTrace();
-			sock.close();
-		}
-		body = null;
+		drainBody();
 		try
 		{
 			cookies.unloadQueue(r);
@@ -237,6 +221,46 @@ public class HTTPSession implements Request, SocketHandler, Runnable
 		}
 	}
 
+	/**
+	 * Sends one chunk of a streamed response, sending the headers first if
+	 * this is the first chunk. The response is ended by
+	 * {@link #finish(ResponseImpl)} as usual. Callers must not send chunks of
+	 * the same response concurrently.
+	 */
+	public void sendChunk(ResponseImpl r, byte[] data) throws IOException
+	{
+		if (!r.isStreaming())
+		{
+			drainBody();
+			cookies.unloadQueue(r);
+			r.setRequestMethod(method);
+			r.startChunked(outputStream);
+		}
+
+		r.writeChunk(outputStream, data);
+	}
+
+	private void drainBody()
+	{
+		try
+		{
+			// Read any (eventual) message body, to prevent downstream
+			// corruption
+			if (body != null)
+			{
+				byte[] buf = new byte[4096];
+				while (body.read(buf) > -1)
+					;
+			}
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+			sock.close();
+		}
+		body = null;
+	}
+
 	static class LimitedInputStream extends InputStream
 	{
 		private InputStream	src;
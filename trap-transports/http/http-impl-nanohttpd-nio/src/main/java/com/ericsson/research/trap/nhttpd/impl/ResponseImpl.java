@@ -49,6 +49,10 @@ public class ResponseImpl implements Response
 	private boolean	            async	        = false;
 	private byte[]	            responseData;
 	private HTTPSession request;
+	/**
+	 * Set once the headers of a streamed (sendChunk) response have been sent
+	 */
+	private boolean	            streaming	    = false;
 
 	/**
 	 * Uninitialised response
@@ -82,39 +86,18 @@ public class ResponseImpl implements Response
 	 */
 	protected void send(OutputStream outputStream)
 	{
-		String mime = mimeType;
-		SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
-		gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
-
 		try
 		{
-			if (status == -1)
-			{
-				throw new Error("sendResponse(): Status can't be null.");
-			}
-			PrintWriter pw = new PrintWriter(outputStream);
-			pw.print("HTTP/1.1 " + StatusCodes.statusText(status) + " \r\n");
-
-			if (mime != null)
-			{
-				pw.print("Content-Type: " + mime + "\r\n");
-			}
-
-			if (header == null || header.get("Date") == null)
-			{
-				pw.print("Date: " + gmtFrmt.format(new Date()) + "\r\n");
-			}
-
-			if (header != null)
+			if (streaming)
 			{
-				for (String key : header.keySet())
-				{
-					String value = header.get(key);
-					pw.print(key + ": " + value + "\r\n");
-				}
+				// The headers and body went out with sendChunk(); only the terminating chunk is left
+				outputStream.write("0\r\n\r\n".getBytes());
+				outputStream.flush();
+				return;
 			}
 
-			sendConnectionHeaderIfNotAlreadyPresent(pw, header);
+			PrintWriter pw = new PrintWriter(outputStream);
+			printHeaders(pw);
 
 			if (requestMethod != Method.HEAD && (chunkedTransfer && responseData == null))
 			{
@@ -141,6 +124,72 @@ public class ResponseImpl implements Response
 		}
 	}
 
+	/**
+	 * Starts a chunked response of unknown length. Called by the session before the first chunk.
+	 */
+	protected void startChunked(OutputStream outputStream)
+	{
+		PrintWriter pw = new PrintWriter(outputStream);
+		printHeaders(pw);
+		pw.print("Transfer-Encoding: chunked\r\n");
+		pw.print("\r\n");
+		pw.flush();
+		streaming = true;
+	}
+
+	/**
+	 * Writes one chunk of a response started with {@link #startChunked(OutputStream)}.
+	 */
+	protected void writeChunk(OutputStream outputStream, byte[] data) throws IOException
+	{
+		if (data.length == 0)
+			return;
+
+		outputStream.write(String.format("%x\r\n", data.length).getBytes());
+		outputStream.write(data);
+		outputStream.write("\r\n".getBytes());
+		outputStream.flush();
+	}
+
+	protected boolean isStreaming()
+	{
+		return streaming;
+	}
+
+	private void printHeaders(PrintWriter pw)
+	{
+		String mime = mimeType;
+		SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+		gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+		if (status == -1)
+		{
+			throw new Error("sendResponse(): Status can't be null.");
+		}
+		pw.print("HTTP/1.1 " + StatusCodes.statusText(status) + " \r\n");
+
+		if (mime != null)
+		{
+			pw.print("Content-Type: " + mime + "\r\n");
+		}
+
+		if (header == null || header.get("Date") == null)
+		{
+			pw.print("Date: " + gmtFrmt.format(new Date()) + "\r\n");
+		}
+
+		if (header != null)
+		{
+			for (String key : header.keySet())
+			{
+				String value = header.get(key);
+				pw.print(key + ": " + value + "\r\n");
+			}
+		}
+
+		sendConnectionHeaderIfNotAlreadyPresent(pw, header);
+	}
+
 	protected void sendContentLengthHeaderIfNotAlreadyPresent(PrintWriter pw, Map<String, String> header, int size)
 	{
 		if (!headerAlreadySent(header, "content-length"))
@@ -191,7 +240,7 @@ public class ResponseImpl implements Response
 			outputStream.write(buff, 0, read);
 			outputStream.write(CRLF);
 		}
-		outputStream.write(String.format("0\r\n\r\n").getBytes());
+		outputStream.write("0\r\n\r\n".getBytes());
 		outputStream.flush();
 	}
 
@@ -327,6 +376,12 @@ public class ResponseImpl implements Response
 		request.finish(this);
     }
 
+	@Override
+	public void sendChunk(byte[] data) throws IOException
+	{
+		request.sendChunk(this, data);
+	}
+
 	@Override
     public Response setData(String data)
     {
@@ -70,6 +70,9 @@ public class HTTPServletTransport extends AbstractTransport implements HTTPHandl
     private HTTPReaper               reaper                = new HTTPReaper();
     long                             expirationDelay       = 28000;                                 // Almost 30 seconds
     long                             reregistrationTimeout = 10 * 1000;                             // Ten seconds reregistration timeout
+    long                             streamLimit           = 1024 * 1024;                           // Bytes per streaming GET before it is recycled
+    private boolean                  streaming             = false;
+    private long                     streamed              = 0;
                                                                                                      
     public HTTPServletTransport(HTTPServletListener listener, String id)
     {
@@ -120,6 +123,15 @@ public class HTTPServletTransport extends AbstractTransport implements HTTPHandl
         catch (Exception e)
         {
         }
+        
+        String newStreamLimit = this.getOption("streamLimit");
+        try
+        {
+            this.streamLimit = Long.parseLong(newStreamLimit);
+        }
+        catch (Exception e)
+        {
+        }
     }
     
     @Override
@@ -152,6 +164,9 @@ public class HTTPServletTransport extends AbstractTransport implements HTTPHandl
     {
         synchronized (this.sendLock)
         {
+            // A streaming longpoll stays open; the messages are written to it as they come.
+            if (this.streamLongpoll())
+                return;
             
             // kick the sending thread
             if (this.getState() == TrapTransportState.AVAILABLE)
@@ -254,7 +269,10 @@ public class HTTPServletTransport extends AbstractTransport implements HTTPHandl
                     }
                 }
                 
-                if (this.messagesToSend.size() > 0)
+                this.streaming = "true".equals(session.request().getParameter("stream"));
+                this.streamed = 0;
+                
+                if (!this.streaming && (this.messagesToSend.size() > 0))
                 {
                     this.longpoll = session;
                     this.finishLongpoll(false);
@@ -282,6 +300,10 @@ public class HTTPServletTransport extends AbstractTransport implements HTTPHandl
                 else if (this.getState() == TrapTransportState.CONNECTING)
                     this.setState(TrapTransportState.CONNECTED);
                 
+                // Anything queued while there was no GET goes out right away
+                if (this.streaming)
+                    this.streamLongpoll();
+                
                 ThreadPool.executeAfter(new Runnable() {
                     
                     @Override
@@ -290,16 +312,19 @@ public class HTTPServletTransport extends AbstractTransport implements HTTPHandl
                         synchronized (HTTPServletTransport.this.sendLock)
                         {
                             // Wrap up the session, if not already done so.
-                            if (!session.isFinished())
+                            if (session == HTTPServletTransport.this.longpoll)
                             {
-                                if (session == HTTPServletTransport.this.longpoll)
-                                {
-                                    HTTPServletTransport.this.finishLongpoll(true);
-                                }
-                                else
+                                HTTPServletTransport.this.finishLongpoll(true);
+                            }
+                            else
+                            {
+                                synchronized (session)
                                 {
-                                    session.response().setStatus(400);
-                                    session.finish();
+                                    if (!session.isFinished())
+                                    {
+                                        session.response().setStatus(400);
+                                        session.finish();
+                                    }
                                 }
                             }
                         }
@@ -336,106 +361,199 @@ public class HTTPServletTransport extends AbstractTransport implements HTTPHandl
             if (this.longpoll == null)
                 return;
             
-            try
+            // The session's monitor guards its response, which the container may complete concurrently
+            synchronized (this.longpoll)
             {
-                
-                // Switch the queues around. This will allow the servlet to continue queueing messages
-                // while we flush the latest batch. This should allow higher performance.
-                synchronized (this.sendQueueLock)
+                try
                 {
-                    if (this.messagesToSend.size() > 0)
+                    if (this.longpoll.isFinished())
                     {
-                        LinkedBlockingQueue<TrapMessage> flushing = this.messagesToSend;
-                        this.messagesToSend = this.flushedMessages;
-                        this.flushedMessages = flushing;
+                        // The container completed it first (timeout or client error). The messages wait for the next longpoll.
+                        this.logger.debug("Longpoll was completed before it could be answered");
+                        return;
                     }
-                }
-                
-                if (this.flushedMessages.size() > 0)
-                {
                     
-                    try
+                    // Switch the queues around. This will allow the servlet to continue queueing messages
+                    // while we flush the latest batch. This should allow higher performance.
+                    synchronized (this.sendQueueLock)
+                    {
+                        if (this.messagesToSend.size() > 0)
+                        {
+                            LinkedBlockingQueue<TrapMessage> flushing = this.messagesToSend;
+                            this.messagesToSend = this.flushedMessages;
+                            this.flushedMessages = flushing;
+                        }
+                    }
+                    
+                    if (this.flushedMessages.size() > 0)
                     {
                         
-                        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                        
-                        for (TrapMessage m : this.flushedMessages)
+                        try
                         {
-                            if (this.logger.isTraceEnabled())
+                            
+                            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                            
+                            for (TrapMessage m : this.flushedMessages)
                             {
-                                this.logger.trace("Flushing message with id {}", m.getMessageId());
+                                if (this.logger.isTraceEnabled())
+                                {
+                                    this.logger.trace("Flushing message with id {}", m.getMessageId());
+                                }
+                                
+                                bos.write(m.serialize());
                             }
                             
-                            bos.write(m.serialize());
+                            byte[] body = bos.toByteArray();
+                            
+                            // A stream has already committed its headers; the rest is its last chunk
+                            if (this.streamed == 0)
+                            {
+                                this.longpoll.response().setStatus(201);
+                                this.longpoll.response().setContentLength(body.length);
+                            }
+                            ServletOutputStream os = this.longpoll.response().getOutputStream();
+                            os.write(body);
+                            os.flush();
+                            os.close();
+                            this.longpoll.finish();
                         }
-                        
-                        byte[] body = bos.toByteArray();
-                        
-                        this.longpoll.response().setStatus(201);
-                        this.longpoll.response().setContentLength(body.length);
-                        ServletOutputStream os = this.longpoll.response().getOutputStream();
-                        os.write(body);
-                        os.flush();
-                        os.close();
-                        this.longpoll.finish();
-                    }
-                    catch (Exception e)
-                    {
-                        this.logger.debug("Error during serialization of messages", e);
-                        if (this.flushedMessages.size() > 0)
+                        catch (Exception e)
                         {
-                            // Recombulate the flushing queue with the flushed, to make one coherent queue of failed messages.
-                            synchronized (this.sendQueueLock)
+                            this.logger.debug("Error during serialization of messages", e);
+                            if (this.flushedMessages.size() > 0)
                             {
-                                this.flushedMessages.addAll(this.messagesToSend);
-                                this.messagesToSend.clear();
-                                LinkedBlockingQueue<TrapMessage> tmp = this.flushedMessages;
-                                this.flushedMessages = this.messagesToSend;
-                                this.messagesToSend = tmp;
-                                
-                                LinkedList<TrapMessage> failedMessages = new LinkedList<TrapMessage>();
-                                
-                                for (TrapMessage m : this.messagesToSend)
-                                    if (m.getMessageId() != 0)
-                                        failedMessages.add(m);
-                                
-                                this.delegate.ttMessagesFailedSending(failedMessages, this, this.delegateContext);
+                                // Recombulate the flushing queue with the flushed, to make one coherent queue of failed messages.
+                                synchronized (this.sendQueueLock)
+                                {
+                                    this.flushedMessages.addAll(this.messagesToSend);
+                                    this.messagesToSend.clear();
+                                    LinkedBlockingQueue<TrapMessage> tmp = this.flushedMessages;
+                                    this.flushedMessages = this.messagesToSend;
+                                    this.messagesToSend = tmp;
+                                    
+                                    LinkedList<TrapMessage> failedMessages = new LinkedList<TrapMessage>();
+                                    
+                                    for (TrapMessage m : this.messagesToSend)
+                                        if (m.getMessageId() != 0)
+                                            failedMessages.add(m);
+                                    
+                                    this.delegate.ttMessagesFailedSending(failedMessages, this, this.delegateContext);
+                                }
                             }
+                            this.longpoll.response().setStatus(500);
+                            this.longpoll.response().setContentLength(0);
+                            this.longpoll.finish();
+                        }
+                        finally
+                        {
+                            this.flushedMessages.clear();
                         }
-                        this.longpoll.response().setStatus(500);
-                        this.longpoll.response().setContentLength(0);
-                        this.longpoll.finish();
                     }
-                    finally
+                    else
                     {
-                        this.flushedMessages.clear();
+                        if (timeout)
+                        {
+                            if (this.streamed == 0)
+                            {
+                                this.longpoll.response().setStatus(204);
+                                this.longpoll.response().setContentLength(0);
+                            }
+                            this.longpoll.finish();
+                        }
                     }
                 }
-                else
+                finally
                 {
-                    if (timeout)
+                    
+                    if (this.longpoll.isFinished())
+                        this.longpoll = null;
+                    
+                    // Also flip to unavailable when this GET expires...
+                    if ((this.getState() == TrapTransportState.CONNECTED) || (this.getState() == TrapTransportState.AVAILABLE))
                     {
-                        this.longpoll.response().setStatus(204);
-                        this.longpoll.response().setContentLength(0);
-                        this.longpoll.finish();
+                        this.oldState = this.getState();
+                        this.setState(TrapTransportState.UNAVAILABLE);
                     }
                 }
             }
-            finally
+            
+        }
+    }
+    
+    /*
+     * Writes the queue to a streaming longpoll without completing it. Returns false when the longpoll should be
+     * finished the classic way instead: there is no stream, the transport is going away, or the stream has used up
+     * its byte budget. Must be called with the sendLock held.
+     */
+    private boolean streamLongpoll()
+    {
+        if ((this.longpoll == null) || !this.streaming)
+            return false;
+        
+        if ((this.getState() != TrapTransportState.AVAILABLE) && (this.getState() != TrapTransportState.CONNECTED))
+            return false;
+        
+        synchronized (this.longpoll)
+        {
+            if (this.longpoll.isFinished())
+                return false;
+            
+            LinkedList<TrapMessage> messages = new LinkedList<TrapMessage>();
+            boolean first = (this.streamed == 0);
+            
+            synchronized (this.sendQueueLock)
             {
+                long bytes = 0;
                 
-                if (this.longpoll.isFinished())
-                    this.longpoll = null;
+                for (TrapMessage m : this.messagesToSend)
+                    bytes += m.length();
                 
-                // Also flip to unavailable when this GET expires...
-                if ((this.getState() == TrapTransportState.CONNECTED) || (this.getState() == TrapTransportState.AVAILABLE))
-                {
-                    this.oldState = this.getState();
-                    this.setState(TrapTransportState.UNAVAILABLE);
-                }
+                if (bytes == 0)
+                    return true;
+                
+                // Recycle the stream; the client reconnects with a fresh GET
+                if ((this.streamed + bytes) >= this.streamLimit)
+                    return false;
+                
+                this.messagesToSend.drainTo(messages);
+                this.streamed += bytes;
             }
             
+            try
+            {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                
+                for (TrapMessage m : messages)
+                    bos.write(m.serialize());
+                
+                // No content length, so the container sends the body chunked
+                if (first)
+                    this.longpoll.response().setStatus(201);
+                ServletOutputStream os = this.longpoll.response().getOutputStream();
+                os.write(bos.toByteArray());
+                os.flush();
+            }
+            catch (IOException e)
+            {
+                this.logger.debug("Could not write to the streaming longpoll", e);
+                
+                LinkedList<TrapMessage> failedMessages = new LinkedList<TrapMessage>();
+                
+                for (TrapMessage m : messages)
+                    if (m.getMessageId() != 0)
+                        failedMessages.add(m);
+                
+                this.delegate.ttMessagesFailedSending(failedMessages, this, this.delegateContext);
+                this.longpoll.finish();
+                return false;
+            }
         }
+        
+        // The stream that carried OPENED is still there, so there is no next GET to make us available
+        if (this.getState() == TrapTransportState.CONNECTED)
+            this.setState(TrapTransportState.AVAILABLE);
+        
+        return true;
     }
     
     void mDisconnect()
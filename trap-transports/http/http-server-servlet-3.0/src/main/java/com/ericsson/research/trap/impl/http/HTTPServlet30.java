@@ -39,6 +39,8 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
@@ -60,13 +62,27 @@ public class HTTPServlet30 extends HttpServlet
     private String                 path             = "/_trap30";
     private String                 ctxPath;
     
-    // Async is developed, but has a race condition. We'll disable it.
-    private static boolean         useAsync         = false;
+    // Longpolls are parked with startAsync() rather than holding a container thread. Set init-param async=false to
+    // fall back to the 2.5 handling.
+    private boolean                useAsync         = true;
+    
+    // Safety net only (init-param asyncTimeout); the transport answers its longpolls well before this.
+    private long                   asyncTimeout     = 30000;
     
     @Override
     public void init(ServletConfig arg0) throws ServletException
     {
         super.init(arg0);
+        this.useAsync = !"false".equals(arg0.getInitParameter("async"));
+        
+        try
+        {
+            this.asyncTimeout = Long.parseLong(arg0.getInitParameter("asyncTimeout"));
+        }
+        catch (Exception e)
+        {
+        }
+        
         ServletContext ctx = this.getServletContext();
         this.ctxPath = ctx.getContextPath() + this.path;
         HTTPServletAdaptor.addServletContext(this.ctxPath);
@@ -117,7 +133,7 @@ public class HTTPServlet30 extends HttpServlet
         AsyncSession asess;
         final CountDownLatch latch = new CountDownLatch(1);
         
-        if (useAsync && "GET".equalsIgnoreCase(req.getMethod()))
+        if (this.useAsync && "GET".equalsIgnoreCase(req.getMethod()))
         {
             asess = new AsyncSession(req, resp);
         }
@@ -175,12 +191,18 @@ public class HTTPServlet30 extends HttpServlet
         HTTPServletUtil.addCorsHeaders(req, resp);
         String[] ctx = HTTPServletUtil.getContexts(req, this.path);
         asess.asyncContext = req.startAsync();
-        asess.asyncContext.setTimeout(30000);
+        asess.asyncContext.setTimeout(this.asyncTimeout);
+        asess.asyncContext.addListener(asess);
         HTTPServletAdaptor.handle(asess, ctx[0], ctx[1], ctx[2]);
         
     }
     
-    class AsyncSession implements HTTPSession
+    /*
+     * An HTTP session backed by an AsyncContext. The session's monitor guards the response: the transport writes the
+     * longpoll and calls finish() while holding it, and container timeouts and errors take it too before they answer.
+     * Whichever comes first completes the context; the other finds the session finished and leaves it alone.
+     */
+    class AsyncSession implements HTTPSession, AsyncListener
     {
         
         AsyncContext        asyncContext = null;
@@ -238,5 +260,44 @@ public class HTTPServlet30 extends HttpServlet
             return this.latch.get() <= 0;
         }
         
+        @Override
+        public void onComplete(AsyncEvent event) throws IOException
+        {
+            this.latch.set(0);
+        }
+        
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException
+        {
+            synchronized (this)
+            {
+                if (this.isFinished())
+                    return;
+                
+                HTTPServlet30.this.logger.debug("AsyncContext timed out before the transport answered it");
+                this.response().setStatus(204);
+                this.response().setContentLength(0);
+                this.finish();
+            }
+        }
+        
+        @Override
+        public void onError(AsyncEvent event) throws IOException
+        {
+            synchronized (this)
+            {
+                if (this.isFinished())
+                    return;
+                
+                HTTPServlet30.this.logger.debug("AsyncContext failed: {}", event.getThrowable());
+                this.finish();
+            }
+        }
+        
+        @Override
+        public void onStartAsync(AsyncEvent event) throws IOException
+        {
+        }
+        
     }
 }
@@ -41,6 +41,7 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
 
 import javax.net.ssl.SSLContext;
@@ -59,6 +60,7 @@ import com.ericsson.research.trap.spi.TrapTransportState;
 import com.ericsson.research.trap.utils.SSLUtil;
 import com.ericsson.research.trap.utils.SSLUtil.SSLMaterial;
 import com.ericsson.research.trap.utils.StringUtil;
+import com.ericsson.research.trap.utils.ThreadPool;
 import com.ericsson.research.trap.utils.UID;
 import com.ericsson.research.trap.utils.WeakMap;
 import com.sun.net.httpserver.Headers;
@@ -363,6 +365,28 @@ public class ListenerHttpTransport extends AbstractListenerTransport implements
         return "http" + (this.secure ? "s" : "") + "://" + hostName + ":" + port + "/";
     }
     
+    /*
+     * Runs work for an exchange that its handler has already returned from, such as answering a parked longpoll.
+     */
+    void execute(Runnable task)
+    {
+        ExecutorService exec = this.exec;
+        
+        if (exec != null)
+        {
+            try
+            {
+                exec.execute(task);
+                return;
+            }
+            catch (RejectedExecutionException e)
+            {
+            }
+        }
+        
+        ThreadPool.executeCached(task);
+    }
+    
     public void unregister(ServerHttpTransport serverHttpTransport, HttpContext httpContext)
     {
         try
@@ -55,6 +55,7 @@ import com.ericsson.research.trap.spi.TrapMessage;
 import com.ericsson.research.trap.spi.TrapTransportException;
 import com.ericsson.research.trap.spi.TrapTransportProtocol;
 import com.ericsson.research.trap.spi.TrapTransportState;
+import com.ericsson.research.trap.utils.Future;
 import com.ericsson.research.trap.utils.ThreadPool;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpContext;
@@ -71,6 +72,15 @@ public class ServerHttpTransport extends AbstractTransport implements com.sun.ne
     private TrapTransportState          oldState;
     
     boolean                             send                  = false;
+    boolean                             async                 = true;                                  // Park GETs instead of their threads
+    private HttpExchange                longpoll;
+    private OutputStream                longpollBody;
+    private Future                      longpollExpiry;
+    private boolean                     longpollStreaming;
+    private long                        longpollWritten;
+    long                                streamLimit           = 1024 * 1024;                           // Bytes per streaming GET before it is recycled
+    private final LinkedList<LongpollWrite> longpollWrites    = new LinkedList<LongpollWrite>();
+    private boolean                     writing               = false;
     private final ListenerHttpTransport parent;
     private final String                path;
     private Logger jLogger; 
@@ -140,6 +150,17 @@ public class ServerHttpTransport extends AbstractTransport implements com.sun.ne
         catch (Exception e)
         {
         }
+        
+        this.async = !"false".equals(this.getOption("async"));
+        
+        String newStreamLimit = this.getOption("streamLimit");
+        try
+        {
+            this.streamLimit = Long.parseLong(newStreamLimit);
+        }
+        catch (Exception e)
+        {
+        }
     }
     
     @Override
@@ -175,10 +196,10 @@ public class ServerHttpTransport extends AbstractTransport implements com.sun.ne
             // Release longpoll (the client won't)
             this.send = true;
             this.notifyAll();
+            this.completeLongpoll();
         }
     }
     
-    byte[]              readBuf = new byte[4096];
     private HttpContext httpContext;
     
     /*
@@ -300,13 +321,8 @@ public class ServerHttpTransport extends AbstractTransport implements com.sun.ne
                     // Shove the body up
                     InputStream is = ex.getRequestBody();
                     
-                    int received = 0;
-                    int read = 0;
-                    while ((read = is.read(this.readBuf)) > -1)
-                    {
-                        received++;
-                        super.receive(this.readBuf, 0, read);
-                    }
+                    // Clients may overlap their POSTs; each body reaches the decoder in one piece
+                    int received = this.receive(is);
                     
                     if (received == 0)
                     {
@@ -319,6 +335,7 @@ public class ServerHttpTransport extends AbstractTransport implements com.sun.ne
                             // Release longpoll (the client won't)
                             this.send = true;
                             this.notifyAll();
+                            this.completeLongpoll();
                         }
                         
                         Headers requestHeaders = ex.getRequestHeaders();
@@ -367,6 +384,14 @@ public class ServerHttpTransport extends AbstractTransport implements com.sun.ne
                 OutputStream os = null;
                 os = ex.getResponseBody();
                 
+                if (this.async)
+                {
+                    // Streaming needs a parked GET. Otherwise the client gets a classic longpoll, which it handles the same way.
+                    boolean streaming = "true".equals(params.get("stream"));
+                    this.parkLongpoll(ex, os, endTime - System.currentTimeMillis(), streaming);
+                    return;
+                }
+                
                 synchronized (this)
                 {
                     
@@ -517,6 +542,7 @@ public class ServerHttpTransport extends AbstractTransport implements com.sun.ne
             {
                 this.send = true;
                 this.notifyAll();
+                this.completeLongpoll();
             }
         }
         else
@@ -561,6 +587,18 @@ public class ServerHttpTransport extends AbstractTransport implements com.sun.ne
     @Override
     public synchronized void flushTransport()
     {
+        // A streaming longpoll stays open; the messages are written to it as they come.
+        if ((this.longpoll != null) && this.longpollStreaming)
+        {
+            this.streamLongpoll();
+            
+            // The stream that carried OPENED is still there, so there is no next GET to make us available
+            if ((this.longpoll != null) && (this.getState() == TrapTransportState.CONNECTED))
+                this.setState(TrapTransportState.AVAILABLE);
+            
+            return;
+        }
+        
         // kick the sending thread
         if (this.getState() == TrapTransportState.AVAILABLE)
         {
@@ -569,6 +607,261 @@ public class ServerHttpTransport extends AbstractTransport implements com.sun.ne
         }
         this.send = true;
         this.notifyAll();
+        this.completeLongpoll();
+    }
+    
+    /*
+     * Parks a GET without a thread. The exchange is answered by completeLongpoll(), either when flushTransport() has
+     * data for it, or when it expires. Mirrors the state handling of the blocking loop in handle(). A streaming GET is
+     * instead written to on every flush, and only completed once it has carried streamLimit bytes or expires.
+     */
+    private synchronized void parkLongpoll(final HttpExchange ex, OutputStream os, long waitTime, boolean streaming)
+    {
+        if (this.longpoll != null)
+        {
+            // The client only keeps one longpoll, so the old one has been abandoned. Retire it empty; the queue stays for the new one.
+            this.logger.warn("Replacing a longpoll that is still running");
+            if (this.longpollExpiry != null)
+                this.longpollExpiry.cancel();
+            this.writeLongpoll(this.longpoll, this.longpollBody, new LinkedList<TrapMessage>(), true);
+        }
+        
+        this.longpoll = ex;
+        this.longpollBody = os;
+        this.longpollStreaming = streaming;
+        this.longpollWritten = 0;
+        
+        if ((waitTime <= 0) || (!streaming && (this.send == true)) || (this.getState() == TrapTransportState.DISCONNECTED) || (this.getState() == TrapTransportState.DISCONNECTING) || (this.getState() == TrapTransportState.ERROR))
+        {
+            this.completeLongpoll();
+            return;
+        }
+        
+        // Becoming available may flush the transport (and complete the longpoll) right away.
+        if (this.getState() == TrapTransportState.UNAVAILABLE)
+        {
+            if (this.oldState == TrapTransportState.CONNECTED)
+                this.setState(TrapTransportState.AVAILABLE);
+            else
+                this.setState(this.oldState);
+        }
+        else if (this.getState() == TrapTransportState.CONNECTED)
+            this.setState(TrapTransportState.AVAILABLE);
+        
+        if (streaming && (this.longpoll == ex))
+        {
+            // Anything queued while there was no GET goes out right away
+            this.send = false;
+            this.streamLongpoll();
+        }
+        
+        if (this.longpoll != ex)
+            return;
+        
+        this.longpollExpiry = ThreadPool.executeAfter(new Runnable() {
+            
+            @Override
+            public void run()
+            {
+                synchronized (ServerHttpTransport.this)
+                {
+                    if (ServerHttpTransport.this.longpoll == ex)
+                        ServerHttpTransport.this.completeLongpoll();
+                }
+            }
+        }, waitTime);
+    }
+    
+    /*
+     * Writes the queue to the streaming longpoll, or completes it with the queue once it has used up its byte budget.
+     * Must be called with the lock held.
+     */
+    private void streamLongpoll()
+    {
+        long bytes = 0;
+        
+        for (TrapMessage m : this.messagesToSend)
+            bytes += m.length();
+        
+        if (bytes == 0)
+            return;
+        
+        this.longpollWritten += bytes;
+        
+        // Recycle the stream; the client reconnects with a fresh GET
+        if (this.longpollWritten >= this.streamLimit)
+        {
+            this.completeLongpoll();
+            return;
+        }
+        
+        LinkedList<TrapMessage> messages = new LinkedList<TrapMessage>();
+        this.messagesToSend.drainTo(messages);
+        
+        this.writeLongpoll(this.longpoll, this.longpollBody, messages, false);
+    }
+    
+    /*
+     * Answers the parked GET, if any, with everything queued so far. Must be called with the lock held; the response
+     * itself is written by the HTTP server's executor.
+     */
+    private void completeLongpoll()
+    {
+        HttpExchange ex = this.longpoll;
+        
+        if (ex == null)
+            return;
+        
+        LinkedList<TrapMessage> messages = new LinkedList<TrapMessage>();
+        this.messagesToSend.drainTo(messages);
+        
+        this.writeLongpoll(ex, this.longpollBody, messages, true);
+        this.releaseLongpoll();
+        this.send = false;
+    }
+    
+    /*
+     * Forgets the parked GET and flips to unavailable until the next one. Must be called with the lock held.
+     */
+    private void releaseLongpoll()
+    {
+        if (this.longpollExpiry != null)
+            this.longpollExpiry.cancel();
+        
+        this.longpoll = null;
+        this.longpollBody = null;
+        this.longpollExpiry = null;
+        
+        // Also flip to unavailable when this GET expires...
+        if ((this.getState() == TrapTransportState.CONNECTED) || (this.getState() == TrapTransportState.AVAILABLE))
+        {
+            this.oldState = this.getState();
+            this.setState(TrapTransportState.UNAVAILABLE);
+        }
+    }
+    
+    /*
+     * Queues a write to a longpoll. Writes run one at a time on the HTTP server's executor, so a stream receives its
+     * batches in order. Must be called with the lock held.
+     */
+    private void writeLongpoll(HttpExchange ex, OutputStream os, LinkedList<TrapMessage> messages, boolean close)
+    {
+        this.longpollWrites.add(new LongpollWrite(ex, os, messages, close));
+        
+        if (this.writing)
+            return;
+        
+        this.writing = true;
+        this.parent.execute(this.writer);
+    }
+    
+    private final Runnable writer = new Runnable() {
+        
+        @Override
+        public void run()
+        {
+            for (;;)
+            {
+                LongpollWrite w;
+                
+                synchronized (ServerHttpTransport.this)
+                {
+                    w = ServerHttpTransport.this.longpollWrites.poll();
+                    
+                    if (w == null)
+                    {
+                        ServerHttpTransport.this.writing = false;
+                        return;
+                    }
+                }
+                
+                try
+                {
+                    w.run();
+                }
+                catch (RuntimeException e)
+                {
+                    // Keep draining; a stuck writer would stall every later longpoll
+                    ServerHttpTransport.this.logger.warn("Unhandled exception while writing a longpoll", e);
+                }
+            }
+        }
+    };
+    
+    class LongpollWrite implements Runnable
+    {
+        final HttpExchange            ex;
+        final OutputStream            os;
+        final LinkedList<TrapMessage> messages;
+        final boolean                 close;
+        
+        LongpollWrite(HttpExchange ex, OutputStream os, LinkedList<TrapMessage> messages, boolean close)
+        {
+            this.ex = ex;
+            this.os = os;
+            this.messages = messages;
+            this.close = close;
+        }
+        
+        @Override
+        public void run()
+        {
+            boolean failed = false;
+            
+            try
+            {
+                // Serialize all messages
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                
+                for (TrapMessage m : this.messages)
+                {
+                    if (ServerHttpTransport.this.logger.isTraceEnabled())
+                        ServerHttpTransport.this.logger.trace("Flushing message with id {}", new Long(m.getMessageId()));
+                    
+                    bos.write(m.serialize());
+                }
+                
+                this.os.write(bos.toByteArray());
+                
+                if (!this.close)
+                    this.os.flush();
+            }
+            catch (Exception e)
+            {
+                failed = true;
+                ServerHttpTransport.this.logger.debug("Exception while writing a longpoll response: ", e);
+                LinkedList<TrapMessage> failedMessages = new LinkedList<TrapMessage>();
+                
+                for (TrapMessage m : this.messages)
+                    if (m.getMessageId() != 0)
+                        failedMessages.add(m);
+                
+                ServerHttpTransport.this.delegate.ttMessagesFailedSending(failedMessages, ServerHttpTransport.this, ServerHttpTransport.this.delegateContext);
+                
+                // A broken stream cannot take any more writes
+                synchronized (ServerHttpTransport.this)
+                {
+                    if (ServerHttpTransport.this.longpoll == this.ex)
+                        ServerHttpTransport.this.releaseLongpoll();
+                }
+            }
+            finally
+            {
+                if (this.close || failed)
+                {
+                    try
+                    {
+                        this.os.close();
+                    }
+                    catch (IOException e)
+                    {
+                    }
+                    
+                    this.ex.close();
+                    ServerHttpTransport.this.logger.trace("Longpoll ended...");
+                }
+            }
+        }
     }
     
 }
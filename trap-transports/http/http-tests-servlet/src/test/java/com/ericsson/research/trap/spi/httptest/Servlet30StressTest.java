@@ -0,0 +1,204 @@
+package com.ericsson.research.trap.spi.httptest;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.container.test.api.OverProtocol;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.ArchivePaths;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.spec.WebArchive;
+import org.jboss.shrinkwrap.resolver.api.maven.Maven;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.ericsson.research.trap.TrapClient;
+import com.ericsson.research.trap.TrapEndpoint;
+import com.ericsson.research.trap.TrapException;
+import com.ericsson.research.trap.TrapFactory;
+import com.ericsson.research.trap.TrapListener;
+import com.ericsson.research.trap.TrapState;
+import com.ericsson.research.trap.delegates.OnAccept;
+import com.ericsson.research.trap.delegates.OnData;
+import com.ericsson.research.trap.utils.ThreadPool;
+
+/*
+ * Many clients longpolling the Servlet 3.0 transport at once while they all send. The server echoes every message, so
+ * each POST races the delivery to a parked GET. With synchronous longpolls, the clients would need a container thread
+ * each.
+ */
+@RunWith(Arquillian.class)
+public class Servlet30StressTest implements OnAccept
+{
+	
+	TrapListener			listener;
+	ArrayList<TrapClient>	clients		= new ArrayList<TrapClient>();
+	AtomicInteger			accepted	= new AtomicInteger(0);
+	AtomicInteger			echoed		= new AtomicInteger(0);
+	
+	static
+	{
+		System.setProperty("jbossHome", "target/jboss-7.1.1.Final");
+	}
+	
+	@Deployment
+	@OverProtocol("Servlet 3.0")
+	public static WebArchive createDeployment()
+	{
+		WebArchive archive = ShrinkWrap.create(WebArchive.class);
+		archive.addAsResource("log4j.properties", ArchivePaths.create("log4j.properties"));
+		
+		File[] files = Maven.resolver().offline().loadPomFromFile("pom.xml").resolve("com.ericsson.research.trap.transports:http-server-servlet-3.0", "com.ericsson.research.trap.transports:http-client-sun").withTransitivity().asFile();
+		archive.addAsLibraries(files);
+		
+		return archive;
+	}
+	
+	@Before
+	public void setUp() throws Throwable
+	{
+		this.listener = TrapFactory.createListener(null);
+		this.listener.disableAllTransports();
+		this.listener.enableTransport("http");
+		
+		this.listener.configureTransport("http", "autoconfig.port", "14512");
+		
+		this.listener.listen(this);
+	}
+	
+	@After
+	public void cleanUp() throws Throwable
+	{
+		for (TrapClient c : this.clients)
+			c.close();
+		
+		this.listener.close();
+	}
+	
+	@Test(timeout = 120000)
+	public void testConcurrentPollsAndSends() throws Exception
+	{
+		boolean stress = "true".equals(System.getProperty("trap.stresstest"));
+		this.performStressTest(stress ? 500 : 100, stress ? 1000 : 100);
+	}
+	
+	public void performStressTest(int clients, final int messages) throws Exception
+	{
+		String cfg = this.listener.getClientConfiguration();
+		
+		OnData counter = new OnData() {
+			
+			public void trapData(byte[] data, int channel, TrapEndpoint endpoint, Object context)
+			{
+				Servlet30StressTest.this.echoed.incrementAndGet();
+			}
+		};
+		
+		// Connect one at a time; a burst of connects only tests the listen backlog
+		for (int i = 0; i < clients; i++)
+		{
+			TrapClient c = TrapFactory.createClient(cfg, true);
+			c.setDelegate(counter, true);
+			c.open();
+			this.clients.add(c);
+			
+			while (c.getState() != TrapState.OPEN)
+				Thread.sleep(10);
+		}
+		
+		while (this.accepted.get() < clients)
+			Thread.sleep(10);
+		
+		long start = System.currentTimeMillis();
+		final byte[] bytes = "Helloes".getBytes();
+		
+		for (final TrapClient c : this.clients)
+		{
+			ThreadPool.executeCached(new Runnable() {
+				
+				public void run()
+				{
+					for (int i = 0; i < messages; i++)
+					{
+						try
+						{
+							c.send(bytes);
+						}
+						catch (TrapException e)
+						{
+							e.printStackTrace();
+						}
+					}
+				}
+			});
+		}
+		
+		int expected = clients * messages;
+		
+		while (this.echoed.get() < expected)
+			Thread.sleep(10);
+		
+		long time = System.currentTimeMillis() - start;
+		System.out.println(clients + " clients echoed " + expected + " messages in " + time + " ms");
+		
+		Thread.sleep(100);
+		Assert.assertEquals(expected, this.echoed.get());
+	}
+	
+	public void incomingTrapConnection(TrapEndpoint endpoint, TrapListener listener, Object context)
+	{
+		endpoint.setDelegate(new OnData() {
+			
+			public void trapData(byte[] data, int channel, TrapEndpoint endpoint, Object context)
+			{
+				try
+				{
+					endpoint.send(data);
+				}
+				catch (TrapException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		}, true);
+		this.accepted.incrementAndGet();
+	}
+}
@@ -0,0 +1,197 @@
+package com.ericsson.research.trap.spi.httptest;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.ericsson.research.trap.TrapClient;
+import com.ericsson.research.trap.TrapEndpoint;
+import com.ericsson.research.trap.TrapFactory;
+import com.ericsson.research.trap.TrapListener;
+import com.ericsson.research.trap.TrapState;
+import com.ericsson.research.trap.delegates.OnAccept;
+import com.ericsson.research.trap.delegates.OnData;
+import com.ericsson.research.trap.spi.transports.ServerHttpTransport;
+
+/*
+ * Holds many concurrent longpolls against the sun HTTP server and counts the server threads they occupy. Blocking
+ * longpolls park one executor thread each; asynchronous ones park none, so they can exceed the executor size.
+ */
+public class LongpollLoadTest implements OnAccept, OnData
+{
+	TrapListener								listener;
+	ArrayList<TrapClient>						clients		= new ArrayList<TrapClient>();
+	ConcurrentLinkedQueue<TrapEndpoint>			accepted	= new ConcurrentLinkedQueue<TrapEndpoint>();
+	AtomicInteger								received	= new AtomicInteger(0);
+	Set<Thread>									previous;
+	
+	@Test(timeout = 60000)
+	public void testAsync() throws Exception
+	{
+		int clients = "true".equals(System.getProperty("trap.stresstest")) ? 1000 : 100;
+		
+		int parked = this.performLoadTest(true, clients);
+		
+		Assert.assertEquals("Asynchronous longpolls should not hold server threads", 0, parked);
+	}
+	
+	@Test(timeout = 60000)
+	public void testBlocking() throws Exception
+	{
+		// Stay below the 25 executor threads; beyond that, blocking longpolls starve each other.
+		int clients = 20;
+		
+		int parked = this.performLoadTest(false, clients);
+		
+		Assert.assertEquals("Blocking longpolls should hold one server thread each", clients, parked);
+	}
+	
+	int performLoadTest(boolean async, int clients) throws Exception
+	{
+		// Earlier listeners may still be winding down their threads
+		this.previous = new HashSet<Thread>(Thread.getAllStackTraces().keySet());
+		
+		this.listener = TrapFactory.createListener(null);
+		this.listener.configureTransport("http", "async", Boolean.toString(async));
+		this.listener.listen(this);
+		
+		String cfg = this.listener.getClientConfiguration();
+		
+		// Connect one at a time; a burst of connects overflows the listen backlog
+		for (int i = 0; i < clients; i++)
+		{
+			TrapClient c = TrapFactory.createClient(cfg, true);
+			c.setDelegate(this, true);
+			c.open();
+			this.clients.add(c);
+			
+			while (c.getState() != TrapState.OPEN)
+				Thread.sleep(10);
+		}
+		
+		while (this.accepted.size() < clients)
+			Thread.sleep(10);
+		
+		// Let every client settle into its longpoll
+		int parked = 0;
+		for (long end = System.currentTimeMillis() + 5000; System.currentTimeMillis() < end;)
+		{
+			parked = this.parkedThreads();
+			if (parked == (async ? 0 : clients))
+				break;
+			Thread.sleep(100);
+		}
+		
+		int threads = this.serverThreads();
+		
+		// Every longpoll must still be answered when there is data
+		for (TrapEndpoint ep : this.accepted)
+			ep.send(new byte[] { 42 });
+		
+		while (this.received.get() < clients)
+			Thread.sleep(10);
+		
+		System.out.println((async ? "Asynchronous" : "Blocking") + " longpolls: " + clients + " clients, " + threads + " server threads, " + parked + " parked in handle()");
+		
+		return parked;
+	}
+	
+	int serverThreads()
+	{
+		int threads = 0;
+		
+		for (Thread t : Thread.getAllStackTraces().keySet())
+			if (this.isServerThread(t))
+				threads++;
+		
+		return threads;
+	}
+	
+	int parkedThreads()
+	{
+		int parked = 0;
+		
+		for (Map.Entry<Thread, StackTraceElement[]> e : Thread.getAllStackTraces().entrySet())
+		{
+			if (!this.isServerThread(e.getKey()))
+				continue;
+			
+			for (StackTraceElement frame : e.getValue())
+			{
+				if (frame.getClassName().equals(ServerHttpTransport.class.getName()) && frame.getMethodName().equals("handle"))
+				{
+					parked++;
+					break;
+				}
+			}
+		}
+		
+		return parked;
+	}
+	
+	boolean isServerThread(Thread t)
+	{
+		return t.getName().startsWith("http-") && !this.previous.contains(t);
+	}
+	
+	@After
+	public void tearDown()
+	{
+		for (TrapClient c : this.clients)
+			c.close();
+		
+		if (this.listener != null)
+			this.listener.close();
+	}
+	
+	public void incomingTrapConnection(TrapEndpoint endpoint, TrapListener listener, Object context)
+	{
+		endpoint.setDelegate(this, true);
+		this.accepted.add(endpoint);
+	}
+	
+	public void trapData(byte[] data, int channel, TrapEndpoint endpoint, Object context)
+	{
+		this.received.incrementAndGet();
+	}
+}
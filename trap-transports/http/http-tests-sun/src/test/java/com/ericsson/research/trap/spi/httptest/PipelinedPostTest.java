@@ -0,0 +1,185 @@
+package com.ericsson.research.trap.spi.httptest;
+
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.ericsson.research.trap.TrapClient;
+import com.ericsson.research.trap.TrapEndpoint;
+import com.ericsson.research.trap.TrapFactory;
+import com.ericsson.research.trap.TrapListener;
+import com.ericsson.research.trap.TrapState;
+import com.ericsson.research.trap.delegates.OnAccept;
+import com.ericsson.research.trap.delegates.OnData;
+import com.ericsson.research.trap.impl.ClientTrapEndpoint;
+import com.ericsson.research.trap.spi.TrapMessage;
+import com.ericsson.research.trap.spi.transports.ClientHttpTransport;
+
+/*
+ * Uploads a stream of messages with one and with several POSTs in flight. Each POST is delayed to stand in for a round
+ * trip, which loopback does not have. Overlapping POSTs may arrive out of order, but the server endpoint must still
+ * deliver the messages in order.
+ */
+public class PipelinedPostTest implements OnAccept, OnData
+{
+	TrapListener	listener;
+	TrapClient		c;
+	TrapEndpoint	s;
+	DelayedHttpTransport	transport;
+	AtomicInteger	received	= new AtomicInteger(0);
+	int				expected	= 0;
+	boolean			ordered		= true;
+	
+	@Test(timeout = 60000)
+	public void testSingle() throws Exception
+	{
+		this.performTest(1, 200);
+		
+		Assert.assertEquals(1, this.transport.maxInFlight);
+	}
+	
+	@Test(timeout = 60000)
+	public void testWindow() throws Exception
+	{
+		this.performTest(4, 200);
+		
+		Assert.assertTrue("POSTs should overlap, but at most " + this.transport.maxInFlight + " were in flight", this.transport.maxInFlight > 1);
+		Assert.assertTrue("The window was exceeded: " + this.transport.maxInFlight, this.transport.maxInFlight <= 4);
+	}
+	
+	long performTest(int window, int messages) throws Exception
+	{
+		this.listener = TrapFactory.createListener(null);
+		this.listener.listen(this);
+		
+		String cfg = this.listener.getClientConfiguration() + "\ntrap.transport.http.window=" + window;
+		this.c = TrapFactory.createClient(cfg, true);
+		this.c.setDelegate(this, true);
+		this.transport = new DelayedHttpTransport();
+		((ClientTrapEndpoint) this.c).removeTransport(this.c.getTransport("http"));
+		((ClientTrapEndpoint) this.c).addTransport(this.transport);
+		this.c.open();
+		
+		while (this.c.getState() != TrapState.OPEN)
+			Thread.sleep(10);
+		
+		long start = System.currentTimeMillis();
+		
+		for (int i = 0; i < messages; i++)
+		{
+			byte[] data = new byte[512];
+			data[0] = (byte) i;
+			data[1] = (byte) (i >> 8);
+			this.c.send(data);
+			
+			// Trickle the messages, so that they are spread over many POSTs
+			if ((i % 10) == 0)
+				Thread.sleep(1);
+		}
+		
+		while (this.received.get() < messages)
+			Thread.sleep(1);
+		
+		long time = System.currentTimeMillis() - start;
+		System.out.println("Window " + window + ": " + messages + " messages uploaded in " + time + " ms, " + this.transport.posts.get() + " POSTs, up to " + this.transport.maxInFlight + " in flight");
+		Assert.assertTrue("Messages arrived out of order", this.ordered);
+		
+		return time;
+	}
+	
+	@After
+	public void tearDown()
+	{
+		if (this.c != null)
+			this.c.close();
+		
+		if (this.listener != null)
+			this.listener.close();
+	}
+	
+	public void incomingTrapConnection(TrapEndpoint endpoint, TrapListener listener, Object context)
+	{
+		endpoint.setDelegate(this, true);
+		this.s = endpoint;
+	}
+	
+	public void trapData(byte[] data, int channel, TrapEndpoint endpoint, Object context)
+	{
+		int i = (data[0] & 0xFF) | ((data[1] & 0xFF) << 8);
+		
+		if (i != (this.expected++ & 0xFFFF))
+			this.ordered = false;
+		
+		this.received.incrementAndGet();
+	}
+	
+	class DelayedHttpTransport extends ClientHttpTransport
+	{
+		AtomicInteger	posts		= new AtomicInteger(0);
+		AtomicInteger	current		= new AtomicInteger(0);
+		int				maxInFlight	= 0;
+		
+		protected void post(LinkedList<TrapMessage> batch) throws IOException
+		{
+			int n = this.current.incrementAndGet();
+			
+			synchronized (this)
+			{
+				this.maxInFlight = Math.max(this.maxInFlight, n);
+			}
+			
+			try
+			{
+				Thread.sleep(5);
+				super.post(batch);
+				this.posts.incrementAndGet();
+			}
+			catch (InterruptedException e)
+			{
+				throw new IOException(e);
+			}
+			finally
+			{
+				this.current.decrementAndGet();
+			}
+		}
+	}
+}
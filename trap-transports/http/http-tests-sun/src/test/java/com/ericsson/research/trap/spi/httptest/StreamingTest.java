@@ -0,0 +1,179 @@
+package com.ericsson.research.trap.spi.httptest;
+
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.ericsson.research.trap.TrapClient;
+import com.ericsson.research.trap.TrapEndpoint;
+import com.ericsson.research.trap.TrapFactory;
+import com.ericsson.research.trap.TrapListener;
+import com.ericsson.research.trap.TrapState;
+import com.ericsson.research.trap.delegates.OnAccept;
+import com.ericsson.research.trap.delegates.OnData;
+import com.ericsson.research.trap.impl.ClientTrapEndpoint;
+import com.ericsson.research.trap.spi.transports.ClientHttpTransport;
+
+/*
+ * Sends server messages one at a time, each waiting for the previous one to arrive. A classic longpoll needs a new GET
+ * for every message; a streaming GET carries them all until it runs out of its byte budget.
+ */
+public class StreamingTest implements OnAccept, OnData
+{
+	TrapListener			listener;
+	TrapClient				c;
+	TrapEndpoint			s;
+	CountingHttpTransport	transport;
+	AtomicInteger			received	= new AtomicInteger(0);
+	int						expected	= 0;
+	boolean					ordered		= true;
+	
+	@Test(timeout = 30000)
+	public void testStreaming() throws Exception
+	{
+		int messages = 500;
+		int gets = this.performTest(true, true, messages);
+		
+		// 500 messages of 256 bytes with a 16k budget recycle the stream about 8 times
+		Assert.assertTrue("Streaming should not need a GET per message, but used " + gets, gets < (messages / 10));
+	}
+	
+	@Test(timeout = 30000)
+	public void testFallback() throws Exception
+	{
+		// A blocking server does not stream, so the client falls back to classic longpolls and still gets everything in order
+		this.performTest(false, true, 100);
+	}
+	
+	@Test(timeout = 30000)
+	public void testLongpoll() throws Exception
+	{
+		int messages = 100;
+		int gets = this.performTest(true, false, messages);
+		
+		// The odd GET may find its message already queued
+		Assert.assertTrue("Classic longpolls need about a GET per message, but used " + gets, gets > (messages / 2));
+	}
+	
+	int performTest(boolean async, boolean streaming, int messages) throws Exception
+	{
+		this.listener = TrapFactory.createListener(null);
+		this.listener.configureTransport("http", "async", Boolean.toString(async));
+		this.listener.configureTransport("http", "streamLimit", "16384");
+		this.listener.listen(this);
+		
+		// Set in the configuration rather than on the transport, as the client configuration is replaced on open
+		String cfg = this.listener.getClientConfiguration() + "\ntrap.transport.http.streaming=" + streaming;
+		this.c = TrapFactory.createClient(cfg, true);
+		this.c.setDelegate(this, true);
+		this.transport = new CountingHttpTransport();
+		((ClientTrapEndpoint) this.c).removeTransport(this.c.getTransport("http"));
+		((ClientTrapEndpoint) this.c).addTransport(this.transport);
+		this.c.open();
+		
+		synchronized (this)
+		{
+			while (this.s == null)
+				this.wait();
+		}
+		
+		while (this.c.getState() != TrapState.OPEN)
+			Thread.sleep(10);
+		
+		int before = this.transport.gets.get();
+		long start = System.currentTimeMillis();
+		
+		for (int i = 0; i < messages; i++)
+		{
+			byte[] data = new byte[256];
+			data[0] = (byte) i;
+			this.s.send(data);
+			
+			while (this.received.get() <= i)
+				Thread.sleep(1);
+		}
+		
+		int gets = this.transport.gets.get() - before;
+		
+		System.out.println((streaming ? "Streaming" : "Longpoll") + (async ? "" : " (blocking server)") + ": " + messages + " messages in " + (System.currentTimeMillis() - start) + " ms over " + gets + " GETs");
+		Assert.assertTrue("Messages arrived out of order", this.ordered);
+		
+		return gets;
+	}
+	
+	@After
+	public void tearDown()
+	{
+		if (this.c != null)
+			this.c.close();
+		
+		if (this.listener != null)
+			this.listener.close();
+	}
+	
+	public synchronized void incomingTrapConnection(TrapEndpoint endpoint, TrapListener listener, Object context)
+	{
+		endpoint.setDelegate(this, true);
+		this.s = endpoint;
+		this.notifyAll();
+	}
+	
+	public void trapData(byte[] data, int channel, TrapEndpoint endpoint, Object context)
+	{
+		if (data[0] != (byte) this.expected++)
+			this.ordered = false;
+		
+		this.received.incrementAndGet();
+	}
+	
+	class CountingHttpTransport extends ClientHttpTransport
+	{
+		AtomicInteger	gets	= new AtomicInteger(0);
+		
+		// Only the connect and the poller open connections this way; POSTs go straight to the active URL.
+		protected HttpURLConnection openConnection(URL u) throws IOException
+		{
+			this.gets.incrementAndGet();
+			return super.openConnection(u);
+		}
+	}
+}
@@ -35,6 +35,7 @@ package com.ericsson.research.trap.spi.transports;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
@@ -79,6 +80,7 @@ public class ServerHttpTransport extends AbstractTransport implements Runnable,
 																										// killed
 																										// for
 																										// inactivity
+	long	                            streamLimit	          = 1024 * 1024;	                        // Bytes per streaming GET before it is recycled
 	LinkedBlockingQueue<TrapMessage>	messagesToSend	      = new LinkedBlockingQueue<TrapMessage>();
 	private TrapTransportState	        oldState;
 
@@ -152,6 +154,15 @@ public class ServerHttpTransport extends AbstractTransport implements Runnable,
 		catch (Exception e)
 		{
 		}
+
+		String newStreamLimit = this.getOption("streamLimit");
+		try
+		{
+			this.streamLimit = Long.parseLong(newStreamLimit);
+		}
+		catch (Exception e)
+		{
+		}
 	}
 
 	@Override
@@ -185,9 +196,10 @@ public class ServerHttpTransport extends AbstractTransport implements Runnable,
 		flushTransport();
 	}
 
-	byte[]	             readBuf	= new byte[4096];
 	private Response	 response;
 	private Request	request;
+	private boolean	     streaming	= false;
+	private long	     streamed	= 0;
 
 	/*
 	 * HTTP transport will only switch to available when a GET is present. Thus,
@@ -300,13 +312,8 @@ public class ServerHttpTransport extends AbstractTransport implements Runnable,
 					// Shove the body up
 					InputStream is = request.getInputStream();
 
-					int received = 0;
-					int read = 0;
-					while ((read = is.read(this.readBuf)) > -1)
-					{
-						received++;
-						super.receive(this.readBuf, 0, read);
-					}
+					// Clients may overlap their POSTs; each body reaches the decoder in one piece
+					int received = this.receive(is);
 
 					if (received == 0)
 					{
@@ -389,19 +396,29 @@ public class ServerHttpTransport extends AbstractTransport implements Runnable,
 
 					this.request = request;
 					this.response = response;
+					this.streaming = "true".equals(params.get("stream"));
+					this.streamed = 0;
 					
 					long delay = expirationDelay;
 
-					if (!messagesToSend.isEmpty())
+					// A streaming GET takes the queue right away and stays open; a classic one is answered shortly
+					if (this.streaming)
+						this.flushTransport();
+					else if (!messagesToSend.isEmpty())
 						delay = 10;
 					
+					final Response longpoll = response;
 					ThreadPool.executeAfter(new Runnable()
 					{
 						
 						@Override
 						public void run()
 						{
-							flushTransport();
+							synchronized (ServerHttpTransport.this)
+							{
+								if (ServerHttpTransport.this.response == longpoll)
+									completeLongpoll();
+							}
 						}
 					}, delay);
 				}
@@ -499,6 +516,65 @@ public class ServerHttpTransport extends AbstractTransport implements Runnable,
 
 	@Override
 	public synchronized void flushTransport()
+	{
+		// A streaming longpoll stays open; the messages are written to it as they come.
+		if (this.streaming && (this.response != null) && this.streamLongpoll())
+			return;
+
+		this.completeLongpoll();
+	}
+
+	/*
+	 * Writes the queue as a chunk of the streaming longpoll. Returns false when the longpoll should be completed
+	 * instead: the transport is going away, the stream has used up its byte budget, or the write failed. Must be
+	 * called with the lock held.
+	 */
+	private boolean streamLongpoll()
+	{
+		if ((this.getState() != TrapTransportState.AVAILABLE) && (this.getState() != TrapTransportState.CONNECTED))
+			return false;
+
+		long bytes = 0;
+
+		for (TrapMessage m : this.messagesToSend)
+			bytes += m.length();
+
+		if (bytes == 0)
+			return true;
+
+		// Recycle the stream; the client reconnects with a fresh GET
+		if (this.streamed + bytes >= this.streamLimit)
+			return false;
+
+		try
+		{
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+
+			for (TrapMessage m : this.messagesToSend)
+				bos.write(m.serialize());
+
+			this.response.sendChunk(bos.toByteArray());
+		}
+		catch (IOException e)
+		{
+			this.logger.debug("Could not write to the streaming longpoll: {}", e.getMessage());
+			return false;
+		}
+
+		this.messagesToSend.clear();
+		this.streamed += bytes;
+
+		// The stream that carried OPENED is still there, so there is no next GET to make us available
+		if (this.getState() == TrapTransportState.CONNECTED)
+			this.setState(TrapTransportState.AVAILABLE);
+
+		return true;
+	}
+
+	/*
+	 * Answers the longpoll, if any, with everything queued so far. Must be called with the lock held.
+	 */
+	private void completeLongpoll()
 	{
 		
 		if (request == null || response == null)
@@ -526,7 +602,11 @@ public class ServerHttpTransport extends AbstractTransport implements Runnable,
 
 			byte[] body = bos.toByteArray();
 
-			response.setData(body);
+			// A stream has already sent its headers, so the rest goes out as its last chunk
+			if (this.streamed > 0)
+				response.sendChunk(body);
+			else
+				response.setData(body);
 
 			this.messagesToSend.clear();
 		}
@@ -1,5 +1,6 @@
 package com.ericsson.research.trap.nhttpd;
 
+import java.io.IOException;
 import java.io.InputStream;
 
 /**
@@ -108,6 +109,20 @@ public interface Response
 	 */
 	public abstract void sendAsyncResponse();
 
+	/**
+	 * Sends data as one chunk of a chunked response, right away. The first call
+	 * sends the status line and headers. The response stays open until
+	 * {@link #sendAsyncResponse()} is called, which then only sends the
+	 * terminating chunk. Only valid for asynchronous responses that have not
+	 * been given any data.
+	 * 
+	 * @param data
+	 *            The chunk to send
+	 * @throws IOException
+	 *             If the connection has failed
+	 */
+	public abstract void sendChunk(byte[] data) throws IOException;
+
 	/**
 	 * Accessor for the asynchronous state of a Request.
 	 * 
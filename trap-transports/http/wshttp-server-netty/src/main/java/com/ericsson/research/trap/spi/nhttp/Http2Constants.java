@@ -1,4 +1,4 @@
-package com.ericsson.research.trap.utils;
+package com.ericsson.research.trap.spi.nhttp;
 
 /*
  * ##_BEGIN_LICENSE_##
@@ -33,36 +33,16 @@ package com.ericsson.research.trap.utils;
  * ##_END_LICENSE_##
  */
 
-import java.util.concurrent.ScheduledFuture;
-
-public class FutureImpl implements Future
+public class Http2Constants
 {
+	/*
+	 * These config strings are configurable as trap.transport.http2.h2uri = http://abcd
+	 */
+	public static final String	CONFIG_URI			= "h2uri";
+	public static final String	CONFIG_MULTIPLEX	= "multiplex";
 	
-	private ScheduledFuture<?>	t;
-
-	public FutureImpl(ScheduledFuture<?> scheduledFuture)
-	{
-		this.t = scheduledFuture;
-	}
-	
-	public boolean cancel()
-	{
-		return this.cancel(false);
-	}
-
-	public boolean cancel(boolean mayInterruptIfRunning)
-	{
-		return this.t.cancel(mayInterruptIfRunning);
-	}
-	
-	public boolean isCancelled()
-	{
-		return this.t.isCancelled();
-	}
-	
-	public boolean isDone()
-	{
-		return this.t.isDone();
-	}
-
+	/*
+	 * The resource a client opens its stream on. Any other path on an HTTP/2 connection is refused.
+	 */
+	public static final String	REGISTER_RESOURCE	= "_connectTrapH2";
 }
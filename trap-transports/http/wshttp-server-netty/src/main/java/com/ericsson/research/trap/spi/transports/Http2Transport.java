@@ -0,0 +1,468 @@
+package com.ericsson.research.trap.spi.transports;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import com.ericsson.research.trap.TrapException;
+import com.ericsson.research.trap.auth.TrapContextKeys;
+import com.ericsson.research.trap.spi.TrapMessage;
+import com.ericsson.research.trap.spi.TrapTransport;
+import com.ericsson.research.trap.spi.TrapTransportException;
+import com.ericsson.research.trap.spi.TrapTransportPriority;
+import com.ericsson.research.trap.spi.TrapTransportProtocol;
+import com.ericsson.research.trap.spi.TrapTransportState;
+import com.ericsson.research.trap.spi.nhttp.Http2Constants;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+
+/**
+ * Trap over HTTP/2. A session is one long-lived stream, with the uplink in the request body and the downlink in the
+ * response body, so there are no polls and no per-message requests. By default, all sessions to the same host and port
+ * share one TCP connection. Set <i>multiplex</i> to false to give a session a connection of its own.
+ * <p>
+ * The server speaks HTTP/2 with prior knowledge on the same port as {@link ListenerHttpTransport}, over TLS or in the
+ * clear depending on the URI scheme.
+ */
+public class Http2Transport extends AbstractTransport
+{
+    
+    private static final NioEventLoopGroup                      nioGroup    = new NioEventLoopGroup();
+    private static final HashMap<String, Http2TransportHandler> connections = new HashMap<String, Http2TransportHandler>();
+    private static final HashMap<String, PendingConnection>     connecting  = new HashMap<String, PendingConnection>();
+                                                                            
+    private Http2TransportHandler                               handler;
+    private int                                                 streamId;
+    private boolean                                             multiplex   = true;
+    private final ArrayList<ByteBuf>                            pending     = new ArrayList<ByteBuf>();
+                                                                            
+    // Create a new Http2Transport for connecting (=client)
+    public Http2Transport()
+    {
+        this.transportPriority = TrapTransportPriority.HTTP2;
+    }
+    
+    // Create a new Http2Transport for an incoming stream (=server)
+    Http2Transport(Http2TransportHandler handler, int streamId)
+    {
+        this();
+        this.bind(handler, streamId);
+    }
+    
+    public boolean canConnect()
+    {
+        return true;
+    }
+    
+    public String getTransportName()
+    {
+        return "http2";
+    }
+    
+    @Override
+    public String getProtocolName()
+    {
+        return TrapTransportProtocol.HTTP;
+    }
+    
+    @Override
+    public void init()
+    {
+        super.init();
+        this.handler = null;
+        this.streamId = 0;
+        
+        // Also called by the superclass constructor, before our fields are set
+        if (this.pending != null)
+            this.releasePending();
+    }
+    
+    synchronized void bind(Http2TransportHandler handler, int streamId)
+    {
+        this.handler = handler;
+        this.streamId = streamId;
+    }
+    
+    public void internalSend(TrapMessage message, boolean expectMore) throws TrapTransportException
+    {
+        if (this.logger.isTraceEnabled())
+            this.logger.trace("Now sending message ({}) with id [{}]", message.getOp().toString(), message.getMessageId());
+            
+        if (this.handler == null)
+            throw new TrapTransportException(message, this.getState());
+            
+        try
+        {
+            ByteBuf data = Unpooled.wrappedBuffer(message.serializeBuffers());
+            
+            synchronized (this.pending)
+            {
+                this.pending.add(data);
+            }
+            
+            if (!expectMore)
+                this.flushTransport();
+        }
+        catch (IOException e)
+        {
+            this.logger.debug(e.toString());
+            this.setState(TrapTransportState.ERROR);
+            throw new TrapTransportException(message, this.state);
+        }
+    }
+    
+    @Override
+    public void flushTransport()
+    {
+        synchronized (this.pending)
+        {
+            Http2TransportHandler handler = this.handler;
+            
+            if (this.pending.isEmpty() || (handler == null))
+                return;
+                
+            // One DATA write for the whole batch; the codec splits it into frames as the window allows.
+            ByteBuf data = Unpooled.wrappedBuffer(this.pending.toArray(new ByteBuf[this.pending.size()]));
+            this.pending.clear();
+            
+            // Queued under the lock, so concurrent flushes cannot reorder batches.
+            handler.write(this.streamId, data, true);
+        }
+    }
+    
+    private void releasePending()
+    {
+        synchronized (this.pending)
+        {
+            for (ByteBuf data : this.pending)
+                data.release();
+            this.pending.clear();
+        }
+    }
+    
+    @Override
+    protected boolean isClientConfigured()
+    {
+        String uriStr = this.getOption(Http2Constants.CONFIG_URI);
+        
+        if (uriStr == null)
+            return false;
+            
+        return uriStr.startsWith("http://") || uriStr.startsWith("https://");
+    }
+    
+    @Override
+    protected void internalConnect() throws TrapException
+    {
+        URI uri = URI.create(this.getOption(Http2Constants.CONFIG_URI));
+        boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+        int port = uri.getPort() != -1 ? uri.getPort() : secure ? 443 : 80;
+        String path = uri.getRawPath();
+        
+        if (uri.getRawQuery() != null)
+            path += "?" + uri.getRawQuery();
+            
+        try
+        {
+            Http2TransportHandler handler = this.connection(uri.getHost(), port, secure);
+            handler.open(this, uri.getScheme(), uri.getHost() + ":" + port, path);
+        }
+        catch (Exception e)
+        {
+            throw new TrapException(e);
+        }
+    }
+    
+    /*
+     * A connection that is still being set up. Sessions to the same host wait for it instead of opening their own.
+     */
+    private static class PendingConnection
+    {
+        final Http2TransportHandler handler;
+        final ChannelFuture         future;
+        
+        PendingConnection(Http2TransportHandler handler, ChannelFuture future)
+        {
+            this.handler = handler;
+            this.future = future;
+        }
+    }
+    
+    /*
+     * Finds a connection to share, or makes a new one. The lock is only held to look up and register connections; the
+     * connect itself is waited for outside it, so a slow host does not hold up sessions to any other.
+     */
+    private Http2TransportHandler connection(String host, int port, boolean secure) throws Exception
+    {
+        final String key = host + ":" + port + (secure ? "/tls" : "");
+        
+        if (this.multiplex)
+        {
+            synchronized (connections)
+            {
+                Http2TransportHandler handler = connections.get(key);
+                
+                if ((handler != null) && handler.isUsable())
+                    return handler;
+            }
+        }
+        
+        // Resolving the host and building the TLS context may take a while, so neither is done under the lock
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        SslContext sslc = secure ? this.sslContext() : null;
+        PendingConnection pending;
+        
+        if (!this.multiplex)
+        {
+            pending = this.connect(address, host, sslc);
+        }
+        else
+        {
+            synchronized (connections)
+            {
+                Http2TransportHandler handler = connections.get(key);
+                
+                if ((handler != null) && handler.isUsable())
+                    return handler;
+                    
+                pending = connecting.get(key);
+                
+                if (pending == null)
+                {
+                    final PendingConnection started = this.connect(address, host, sslc);
+                    connecting.put(key, started);
+                    
+                    started.future.addListener(future -> {
+                        synchronized (connections)
+                        {
+                            connecting.remove(key, started);
+                            
+                            if (!future.isSuccess())
+                                return;
+                                
+                            connections.put(key, started.handler);
+                            started.future.channel().closeFuture().addListener(closed -> {
+                                synchronized (connections)
+                                {
+                                    connections.remove(key, started.handler);
+                                }
+                            });
+                        }
+                    });
+                    
+                    pending = started;
+                }
+            }
+        }
+        
+        pending.future.sync();
+        return pending.handler;
+    }
+    
+    private SslContext sslContext() throws IOException
+    {
+        SslContextBuilder builder = SslContextBuilder.forClient();
+        
+        if (this.getBooleanOption(TrapTransport.CERT_IGNORE_INVALID, false))
+            builder.trustManager(InsecureTrustManagerFactory.INSTANCE);
+            
+        return builder.build();
+    }
+    
+    /*
+     * Starts connecting, without waiting for it.
+     */
+    private PendingConnection connect(InetSocketAddress address, final String host, final SslContext sslc)
+    {
+        final Http2TransportHandler handler = new Http2TransportHandler(null);
+        
+        Bootstrap b = new Bootstrap();
+        b.group(nioGroup).channel(NioSocketChannel.class).handler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel ch)
+            {
+                ChannelPipeline p = ch.pipeline();
+                if (sslc != null)
+                {
+                    p.addLast(sslc.newHandler(ch.alloc(), host, address.getPort()));
+                }
+                p.addLast(handler);
+            }
+        });
+        
+        return new PendingConnection(handler, b.connect(address));
+    }
+    
+    @Override
+    protected void internalDisconnect()
+    {
+        Http2TransportHandler handler;
+        
+        synchronized (this)
+        {
+            if ((this.getState() != TrapTransportState.DISCONNECTING) && (this.getState() != TrapTransportState.DISCONNECTED)
+                && (this.getState() != TrapTransportState.ERROR))
+                this.setState(TrapTransportState.DISCONNECTING);
+                
+            handler = this.handler;
+        }
+        
+        if (handler == null)
+            return;
+            
+        // Send what is queued, then end our side. The stream closes when the peer ends its side.
+        this.flushTransport();
+        handler.close(this.streamId);
+    }
+    
+    public void notifyOpen()
+    {
+        this.fillContext(this.contextMap, this.contextKeys);
+        this.setState(TrapTransportState.CONNECTED);
+    }
+    
+    /*
+     * The stream stops being writable when the peer's flow control window is used up, or the socket is backed up. Being
+     * unavailable meanwhile keeps the endpoint from piling more messages onto this transport; they stay in the endpoint
+     * queue, or go to another transport. Called from the event loop.
+     */
+    synchronized void notifyWritable(boolean writable)
+    {
+        if (!writable && (this.getState() == TrapTransportState.AVAILABLE))
+            this.setState(TrapTransportState.UNAVAILABLE);
+        else if (writable && (this.getState() == TrapTransportState.UNAVAILABLE))
+            this.setState(TrapTransportState.AVAILABLE);
+    }
+    
+    public void notifyData(ByteBuf data)
+    {
+        int length = data.readableBytes();
+        
+        if (data.hasArray())
+        {
+            this.receive(data.array(), data.arrayOffset() + data.readerIndex(), length);
+        }
+        else
+        {
+            byte[] buf = new byte[length];
+            data.getBytes(data.readerIndex(), buf);
+            this.receive(buf, 0, length);
+        }
+    }
+    
+    public synchronized void notifyClose()
+    {
+        if ((this.getState() != TrapTransportState.ERROR) && (this.getState() != TrapTransportState.DISCONNECTED))
+            this.setState(TrapTransportState.DISCONNECTED);
+            
+        this.handler = null;
+        this.releasePending();
+    }
+    
+    public synchronized void notifyError()
+    {
+        if (this.getState() != TrapTransportState.DISCONNECTED)
+            this.setState(TrapTransportState.ERROR);
+            
+        Http2TransportHandler handler = this.handler;
+        this.handler = null;
+        this.releasePending();
+        
+        if (handler != null)
+            handler.close(this.streamId);
+    }
+    
+    @Override
+    public void fillAuthenticationKeys(HashSet<String> keys)
+    {
+        super.fillAuthenticationKeys(keys);
+        keys.add(TrapContextKeys.LocalIP);
+        keys.add(TrapContextKeys.RemoteIP);
+        keys.add(TrapContextKeys.LocalPort);
+        keys.add(TrapContextKeys.RemotePort);
+    }
+    
+    @Override
+    public void fillContext(Map<String, Object> context, Collection<String> filter)
+    {
+        super.fillContext(context, filter);
+        
+        Http2TransportHandler handler = this.handler;
+        
+        if (handler == null)
+            return;
+            
+        InetSocketAddress local = (InetSocketAddress) handler.channel().localAddress();
+        InetSocketAddress remote = (InetSocketAddress) handler.channel().remoteAddress();
+        
+        if (filter.contains(TrapContextKeys.LocalIP))
+            context.put(TrapContextKeys.LocalIP, local.getAddress().getHostAddress());
+            
+        if (filter.contains(TrapContextKeys.LocalPort))
+            context.put(TrapContextKeys.LocalPort, local.getPort());
+            
+        if (filter.contains(TrapContextKeys.RemoteIP))
+            context.put(TrapContextKeys.RemoteIP, remote.getAddress().getHostAddress());
+            
+        if (filter.contains(TrapContextKeys.RemotePort))
+            context.put(TrapContextKeys.RemotePort, remote.getPort());
+    }
+    
+    protected void updateConfig()
+    {
+        String mString = this.getOption(Http2Constants.CONFIG_MULTIPLEX);
+        if (mString != null)
+            this.multiplex = Boolean.parseBoolean(mString);
+            
+        super.updateConfig();
+    }
+}
@@ -0,0 +1,366 @@
+package com.ericsson.research.trap.spi.transports;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.ericsson.research.trap.spi.nhttp.Http2Constants;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http2.DefaultHttp2Connection;
+import io.netty.handler.codec.http2.DefaultHttp2ConnectionDecoder;
+import io.netty.handler.codec.http2.DefaultHttp2ConnectionEncoder;
+import io.netty.handler.codec.http2.DefaultHttp2FrameReader;
+import io.netty.handler.codec.http2.DefaultHttp2FrameWriter;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2ConnectionAdapter;
+import io.netty.handler.codec.http2.Http2ConnectionEncoder;
+import io.netty.handler.codec.http2.Http2ConnectionHandler;
+import io.netty.handler.codec.http2.Http2Error;
+import io.netty.handler.codec.http2.Http2Exception;
+import io.netty.handler.codec.http2.Http2FrameAdapter;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2RemoteFlowController;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2Stream;
+import io.netty.util.AsciiString;
+import io.netty.util.ByteString;
+import io.netty.util.CharsetUtil;
+
+/**
+ * One HTTP/2 connection, carrying any number of {@link Http2Transport} sessions. Each session is a single stream: the
+ * request body is the uplink and the response body is the downlink, so neither direction ever waits on the other, and
+ * sessions only share the connection's flow control window.
+ * <p>
+ * The same handler serves both ends. A server handler accepts streams opened on {@link Http2Constants#REGISTER_RESOURCE}
+ * and hands them to its {@link ServerHttp2Transport}; a client handler opens streams on behalf of its transports. The
+ * codec is not thread safe, so every frame is written from the channel's event loop, in the order it was queued.
+ * <p>
+ * Data that the peer's flow control window or the socket cannot take yet is held by the codec. Each transport is told
+ * when its stream stops or starts being writable, so it can turn unavailable instead of queueing without limit.
+ */
+class Http2TransportHandler extends Http2ConnectionHandler
+{
+    
+    /**
+     * Receive window for each stream, and for the connection as a whole. The 64k default would stall a loaded
+     * connection on window updates long before the link is full.
+     */
+    static final int                           WINDOW_SIZE  = 1024 * 1024;
+    
+    /**
+     * How long a client connection with no streams left is kept around for the next session.
+     */
+    static final long                          IDLE_TIMEOUT = 5000;
+    
+    private static final AsciiString           METHOD       = new AsciiString("POST");
+    private static final AsciiString           CONTENT_TYPE = new AsciiString("content-type");
+    private static final AsciiString           OCTET_STREAM = new AsciiString("application/octet-stream");
+    
+    private final Map<Integer, Http2Transport> streams      = new ConcurrentHashMap<Integer, Http2Transport>();
+    private final ServerHttp2Transport         listener;
+    private ChannelHandlerContext              ctx;
+    private boolean                            windowOpened = false;
+                                                            
+    /**
+     * Creates the handler for one end of a connection.
+     * 
+     * @param listener
+     *            The listener to hand incoming streams to, or <i>null</i> for a client connection.
+     */
+    Http2TransportHandler(ServerHttp2Transport listener)
+    {
+        this(new DefaultHttp2ConnectionEncoder(new DefaultHttp2Connection(listener != null), new DefaultHttp2FrameWriter()), listener);
+    }
+    
+    private Http2TransportHandler(Http2ConnectionEncoder encoder, ServerHttp2Transport listener)
+    {
+        super(new DefaultHttp2ConnectionDecoder(encoder.connection(), encoder, new DefaultHttp2FrameReader()), encoder,
+              new Http2Settings().initialWindowSize(WINDOW_SIZE));
+        this.listener = listener;
+        this.decoder().frameListener(new FrameListener());
+        this.connection().addListener(new Http2ConnectionAdapter() {
+            
+            @Override
+            public void onStreamClosed(Http2Stream stream)
+            {
+                Http2Transport transport = Http2TransportHandler.this.streams.remove(stream.id());
+                
+                if (transport != null)
+                    transport.notifyClose();
+                    
+                Http2TransportHandler.this.scheduleIdleClose();
+            }
+        });
+        this.encoder().flowController().listener(new Http2RemoteFlowController.Listener() {
+            
+            @Override
+            public void streamWritten(Http2Stream stream, int writtenBytes)
+            {
+            }
+            
+            // Covers both the stream's window and the channel's writability
+            @Override
+            public void writabilityChanged(Http2Stream stream)
+            {
+                Http2Transport transport = Http2TransportHandler.this.streams.get(stream.id());
+                
+                if (transport != null)
+                    transport.notifyWritable(Http2TransportHandler.this.encoder().flowController().isWritable(stream));
+            }
+        });
+    }
+    
+    Channel channel()
+    {
+        return this.ctx.channel();
+    }
+    
+    /**
+     * Checks if a client may open another stream on this connection.
+     */
+    boolean isUsable()
+    {
+        return (this.ctx != null) && this.ctx.channel().isActive() && !this.connection().goAwayReceived()
+            && this.connection().local().canCreateStream();
+    }
+    
+    /**
+     * Opens a new stream for a client transport. The transport is notified when the server answers.
+     */
+    void open(final Http2Transport transport, final String scheme, final String authority, final String path)
+    {
+        this.execute(() -> {
+            
+            if (!this.connection().local().canCreateStream())
+            {
+                transport.notifyError();
+                return;
+            }
+            
+            int streamId = this.connection().local().nextStreamId();
+            this.streams.put(streamId, transport);
+            transport.bind(this, streamId);
+            
+            Http2Headers headers = new DefaultHttp2Headers().method(METHOD).scheme(new AsciiString(scheme))
+                .authority(new AsciiString(authority)).path(new AsciiString(path));
+            headers.add(CONTENT_TYPE, OCTET_STREAM);
+            
+            this.encoder().writeHeaders(this.ctx, streamId, headers, 0, false, this.ctx.newPromise()).addListener(future -> {
+                if (!future.isSuccess() && (this.streams.remove(streamId) != null))
+                    transport.notifyError();
+            });
+            this.ctx.channel().flush();
+        });
+    }
+    
+    /**
+     * Queues data on a stream. Writes are sent in the order they are queued.
+     */
+    void write(int streamId, ByteBuf data, boolean flush)
+    {
+        this.execute(() -> {
+            this.encoder().writeData(this.ctx, streamId, data, 0, false, this.ctx.newPromise());
+            
+            if (flush)
+                this.ctx.channel().flush();
+        });
+    }
+    
+    /**
+     * Ends our side of a stream, after any data already queued on it. The stream closes once the peer ends its side.
+     */
+    void close(int streamId)
+    {
+        this.execute(() -> this.endStream(this.ctx, streamId));
+    }
+    
+    private void endStream(ChannelHandlerContext ctx, int streamId)
+    {
+        Http2Stream stream = this.connection().stream(streamId);
+        
+        if ((stream == null) || !stream.localSideOpen())
+            return;
+            
+        this.encoder().writeData(ctx, streamId, Unpooled.EMPTY_BUFFER, 0, true, ctx.newPromise());
+        ctx.channel().flush();
+    }
+    
+    private void execute(Runnable task)
+    {
+        // Always queue, even from the event loop, so a write can never overtake one queued earlier.
+        this.ctx.executor().execute(task);
+    }
+    
+    private void scheduleIdleClose()
+    {
+        if ((this.listener != null) || !this.streams.isEmpty())
+            return;
+            
+        this.ctx.executor().schedule(() -> {
+            if (this.streams.isEmpty() && (this.connection().numActiveStreams() == 0))
+                this.ctx.close();
+        }, IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+    
+    /*
+     * Streams get a large window from our settings. The connection window can only be grown with a WINDOW_UPDATE, and
+     * that must not precede the preface, so it is sent once the channel is up.
+     */
+    private void openConnectionWindow(ChannelHandlerContext ctx) throws Http2Exception
+    {
+        if (this.windowOpened || !ctx.channel().isActive())
+            return;
+            
+        this.windowOpened = true;
+        this.decoder().flowController().incrementWindowSize(this.connection().connectionStream(),
+                                                            WINDOW_SIZE - Http2CodecUtil.DEFAULT_WINDOW_SIZE);
+        ctx.channel().flush();
+    }
+    
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception
+    {
+        this.ctx = ctx;
+        super.handlerAdded(ctx);
+        this.openConnectionWindow(ctx);
+    }
+    
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception
+    {
+        super.channelActive(ctx);
+        this.openConnectionWindow(ctx);
+    }
+    
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception
+    {
+        super.channelInactive(ctx);
+        
+        for (Integer streamId : this.streams.keySet())
+        {
+            Http2Transport transport = this.streams.remove(streamId);
+            
+            if (transport != null)
+                transport.notifyClose();
+        }
+    }
+    
+    private Http2Transport accept(ChannelHandlerContext ctx, int streamId, Http2Headers headers)
+    {
+        ByteString path = headers.path();
+        
+        if ((path == null) || !path.toString(CharsetUtil.US_ASCII).startsWith("/" + Http2Constants.REGISTER_RESOURCE))
+        {
+            this.encoder().writeHeaders(ctx, streamId, new DefaultHttp2Headers().status(HttpResponseStatus.NOT_FOUND.codeAsText()), 0, true,
+                                        ctx.newPromise());
+            ctx.channel().flush();
+            return null;
+        }
+        
+        Http2Transport transport = this.listener.accept(this, streamId);
+        this.streams.put(streamId, transport);
+        
+        Http2Headers response = new DefaultHttp2Headers().status(HttpResponseStatus.OK.codeAsText());
+        response.add(CONTENT_TYPE, OCTET_STREAM);
+        this.encoder().writeHeaders(ctx, streamId, response, 0, false, ctx.newPromise());
+        ctx.channel().flush();
+        
+        transport.notifyOpen();
+        return transport;
+    }
+    
+    class FrameListener extends Http2FrameAdapter
+    {
+        
+        @Override
+        public void onHeadersRead(ChannelHandlerContext ctx, int streamId, Http2Headers headers, int padding, boolean endStream)
+            throws Http2Exception
+        {
+            Http2Transport transport = Http2TransportHandler.this.streams.get(streamId);
+            
+            if (transport == null)
+            {
+                if (Http2TransportHandler.this.listener != null)
+                    Http2TransportHandler.this.accept(ctx, streamId, headers);
+                else
+                    Http2TransportHandler.this.resetStream(ctx, streamId, Http2Error.REFUSED_STREAM.code(), ctx.newPromise());
+            }
+            else if (HttpResponseStatus.OK.codeAsText().equals(headers.status()))
+            {
+                transport.notifyOpen();
+            }
+            else
+            {
+                transport.notifyError();
+                Http2TransportHandler.this.resetStream(ctx, streamId, Http2Error.CANCEL.code(), ctx.newPromise());
+                return;
+            }
+            
+            if (endStream)
+                Http2TransportHandler.this.endStream(ctx, streamId);
+        }
+        
+        @Override
+        public void onHeadersRead(ChannelHandlerContext ctx, int streamId, Http2Headers headers, int streamDependency, short weight,
+                                  boolean exclusive, int padding, boolean endStream) throws Http2Exception
+        {
+            this.onHeadersRead(ctx, streamId, headers, padding, endStream);
+        }
+        
+        @Override
+        public int onDataRead(ChannelHandlerContext ctx, int streamId, ByteBuf data, int padding, boolean endOfStream) throws Http2Exception
+        {
+            int processed = data.readableBytes() + padding;
+            Http2Transport transport = Http2TransportHandler.this.streams.get(streamId);
+            
+            if ((transport != null) && data.isReadable())
+                transport.notifyData(data);
+                
+            // The peer is done with this session; finish our side too so the stream can close.
+            if (endOfStream)
+                Http2TransportHandler.this.endStream(ctx, streamId);
+                
+            return processed;
+        }
+    }
+}
@@ -31,6 +31,7 @@ import java.net.URI;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -62,6 +63,8 @@ import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufInputStream;
 import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandler;
@@ -74,14 +77,20 @@ import io.netty.channel.EventLoopGroup;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.ByteToMessageDecoder;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.codec.http2.Http2CodecUtil;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
 import io.netty.handler.ssl.SslContext;
@@ -194,6 +203,7 @@ public class ListenerHttpTransport extends AbstractListenerTransport implements
     
     HTTPChannelAdapter       adapter   = new HTTPChannelAdapter();
     ServerWebSocketTransport webSocket = null;
+    ServerHttp2Transport     http2     = null;
     
     @Override
     public String getTransportName()
@@ -322,6 +332,10 @@ public class ListenerHttpTransport extends AbstractListenerTransport implements
                         {
                             p.addLast(finalSslCtx.newHandler(ch.alloc()));
                         }
+                        if (http2 != null)
+                        {
+                            p.addLast(new Http2PrefaceDetector());
+                        }
                         p.addLast(new HttpServerCodec());
                         p.addLast(new HttpObjectAggregator(256 * 1024));
                         p.addLast(adapter);
@@ -454,6 +468,55 @@ public class ListenerHttpTransport extends AbstractListenerTransport implements
     
     }
     
+    /**
+     * Watches the first bytes on a connection. A client that opens with the HTTP/2 connection preface gets the HTTP/2
+     * pipeline instead of the HTTP/1.1 one. Anything else passes through untouched.
+     */
+    class Http2PrefaceDetector extends ByteToMessageDecoder
+    {
+        
+        private final ByteBuf preface = Http2CodecUtil.connectionPrefaceBuf();
+        private boolean       decided = false;
+        
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception
+        {
+            // The decoder may call us again after we have removed ourselves
+            if (this.decided)
+                return;
+                
+            int length = Math.min(in.readableBytes(), this.preface.readableBytes());
+            ServerHttp2Transport listener = http2;
+            
+            if ((listener == null) || !ByteBufUtil.equals(in, in.readerIndex(), this.preface, this.preface.readerIndex(), length))
+            {
+                this.decided = true;
+                ctx.pipeline().remove(this);
+                return;
+            }
+            
+            if (length < this.preface.readableBytes())
+                return;
+                
+            // Everything after us is the HTTP/1.1 stack. The HTTP/2 handler reads the preface itself; removing us
+            // hands it the buffered bytes.
+            this.decided = true;
+            ChannelPipeline p = ctx.pipeline();
+            
+            while (p.last() != this)
+                p.removeLast();
+                
+            p.addLast(listener.createHandler());
+            p.remove(this);
+        }
+        
+        @Override
+        protected void handlerRemoved0(ChannelHandlerContext ctx) throws Exception
+        {
+            this.preface.release();
+        }
+    }
+    
     /**
      * Converts a Netty HTTP channel into the Request/Response interface for Trap
      * 
@@ -493,7 +556,8 @@ public class ListenerHttpTransport extends AbstractListenerTransport implements
                 @Override
                 public String getUri()
                 {
-                    return msg.uri();
+                    // Like nhttpd, without the query string; the handlers route on the path alone
+                    return queryStringDecoder.path();
                 }
                 
                 @Override
@@ -563,6 +627,7 @@ public class ListenerHttpTransport extends AbstractListenerTransport implements
                 
                 private InputStream data;
                 boolean sent = false;
+                boolean streaming = false;
                 
                 @Override
                 public Response setStatus(int status)
@@ -605,7 +670,7 @@ public class ListenerHttpTransport extends AbstractListenerTransport implements
                     {
                         throw new RuntimeException(e);
                     }
-                    return null;
+                    return this;
                 }
                 
                 @Override
@@ -628,6 +693,27 @@ public class ListenerHttpTransport extends AbstractListenerTransport implements
                     return this;
                 }
                 
+                @Override
+                public synchronized void sendChunk(byte[] chunk) throws IOException
+                {
+                    if (sent || !ctx.channel().isActive())
+                        throw new IOException("Response already completed");
+                    
+                    if (!streaming)
+                    {
+                        DefaultHttpResponse head = new DefaultHttpResponse(HttpVersion.HTTP_1_1, httpResp.status());
+                        head.headers().set(httpResp.headers());
+                        head.headers().remove(HttpHeaderNames.CONTENT_LENGTH);
+                        head.headers().set(HttpHeaderNames.TRANSFER_ENCODING, HttpHeaderValues.CHUNKED);
+                        ctx.write(head);
+                        streaming = true;
+                    }
+                    
+                    if (chunk.length > 0)
+                        ctx.write(new DefaultHttpContent(Unpooled.wrappedBuffer(chunk)));
+                    ctx.flush();
+                }
+                
                 @Override
                 public synchronized void sendAsyncResponse()
                 {
@@ -635,6 +721,14 @@ public class ListenerHttpTransport extends AbstractListenerTransport implements
                         return;
                     sent = true;
                     
+                    if (streaming)
+                    {
+                        // The head went out in sendChunk; httpResp was never written, so drop both references
+                        ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+                        httpResp.release(2);
+                        return;
+                    }
+                    
                     if (data != null)
                     {
                         httpResp.content().clear();
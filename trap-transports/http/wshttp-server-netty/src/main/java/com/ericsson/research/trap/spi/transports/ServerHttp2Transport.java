@@ -0,0 +1,175 @@
+package com.ericsson.research.trap.spi.transports;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.net.InetSocketAddress;
+import java.util.Collection;
+
+import com.ericsson.research.trap.TrapException;
+import com.ericsson.research.trap.impl.TrapEndpointImpl;
+import com.ericsson.research.trap.spi.ListenerTrapTransport;
+import com.ericsson.research.trap.spi.ListenerTrapTransportDelegate;
+import com.ericsson.research.trap.spi.TrapConfiguration;
+import com.ericsson.research.trap.spi.TrapMessage;
+import com.ericsson.research.trap.spi.TrapTransport;
+import com.ericsson.research.trap.spi.TrapTransportDelegate;
+import com.ericsson.research.trap.spi.TrapTransportProtocol;
+import com.ericsson.research.trap.spi.TrapTransportState;
+import com.ericsson.research.trap.spi.nhttp.Http2Constants;
+
+/**
+ * Accepts {@link Http2Transport} sessions on the port of the {@link ListenerHttpTransport}. Connections that open with
+ * the HTTP/2 preface are handed over to HTTP/2; everything else is served as before.
+ */
+public class ServerHttp2Transport extends AbstractListenerTransport implements ListenerTrapTransport
+{
+    private ListenerTrapTransportDelegate listenerDelegate;
+    private Object                        listenerContext;
+    private ListenerHttpTransport         server;
+                                          
+    public String getTransportName()
+    {
+        return "http2";
+    }
+    
+    @Override
+    public String getProtocolName()
+    {
+        return TrapTransportProtocol.HTTP;
+    }
+    
+    public void listen(ListenerTrapTransportDelegate listener, Object context) throws TrapException
+    {
+        
+        TrapEndpointImpl ep = (TrapEndpointImpl) listener;
+        Collection<TrapTransport> transports = ep.getTransports();
+        
+        this.server = null;
+        
+        for (TrapTransport t : transports)
+            if (t instanceof ListenerHttpTransport)
+                this.server = (ListenerHttpTransport) t;
+                
+        if (this.server == null)
+            throw new TrapException("Could not locate the appropriate server!");
+            
+        this.server.http2 = this;
+        
+        this.listenerDelegate = listener;
+        this.listenerContext = context;
+        
+        this.delegate = new TrapTransportDelegate() {
+            
+            @Override
+            public void ttStateChanged(TrapTransportState newState, TrapTransportState oldState, TrapTransport transport, Object context)
+            {
+            }
+            
+            @Override
+            public void ttMessageReceived(TrapMessage message, TrapTransport transport, Object context)
+            {
+            }
+            
+            @Override
+            public void ttMessageSent(TrapMessage message, TrapTransport transport, Object context)
+            {
+            }
+            
+            @Override
+            public void ttMessagesFailedSending(Collection<TrapMessage> messages, TrapTransport transport, Object context)
+            {
+            }
+            
+            @Override
+            public void ttNeedTransport(TrapMessage message, TrapTransport transport, Object context)
+            {
+            }
+        };
+        
+    }
+    
+    public void getClientConfiguration(TrapConfiguration destination, String defaultHost)
+    {
+        
+        if (this.server == null || this.server.ch == null)
+            return;
+            
+        InetSocketAddress address = (InetSocketAddress) this.server.ch.localAddress();
+        
+        // Check for pre-existing port
+        String port = this.getOption("autoconfig.port");
+        
+        if (port == null)
+            port = Integer.toString(address.getPort());
+            
+        String hostName = this.getOption("autoconfig.host");
+        
+        if (hostName == null)
+            hostName = defaultHost;
+            
+        if (hostName == null)
+            hostName = this.getHostName(address.getAddress(), this.server.defaultHost, true);
+            
+        String targetUri = "http" + (this.server.secure ? "s" : "") + "://" + hostName + ":" + port + "/" + Http2Constants.REGISTER_RESOURCE;
+        
+        destination.setOption(this.prefix, Http2Constants.CONFIG_URI, targetUri);
+        
+    }
+    
+    @Override
+    protected void internalDisconnect()
+    {
+        if (this.server != null && this.server.http2 == this)
+            this.server.http2 = null;
+    }
+    
+    @Override
+    public void flushTransport()
+    {
+    
+    }
+    
+    Http2TransportHandler createHandler()
+    {
+        return new Http2TransportHandler(this);
+    }
+    
+    Http2Transport accept(Http2TransportHandler handler, int streamId)
+    {
+        Http2Transport transport = new Http2Transport(handler, streamId);
+        this.listenerDelegate.ttsIncomingConnection(transport, this, this.listenerContext);
+        return transport;
+    }
+    
+}
@@ -0,0 +1,341 @@
+package com.ericsson.research.trap.spi.sockettest;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.ericsson.research.trap.TrapClient;
+import com.ericsson.research.trap.TrapEndpoint;
+import com.ericsson.research.trap.TrapFactory;
+import com.ericsson.research.trap.TrapListener;
+import com.ericsson.research.trap.TrapState;
+import com.ericsson.research.trap.auth.TrapContextKeys;
+import com.ericsson.research.trap.delegates.OnAccept;
+import com.ericsson.research.trap.delegates.OnData;
+import com.ericsson.research.trap.spi.TrapTransport;
+import com.ericsson.research.trap.utils.JDKLoggerConfig;
+
+public class Http2Test implements OnAccept
+{
+	
+	static TrapListener	listener;
+	static String		cfg;
+	TrapEndpoint		incomingEP;
+	
+	@BeforeClass
+	public static void setUp() throws Throwable
+	{
+		JDKLoggerConfig.initForPrefixes(Level.INFO, "com", "io");
+		listener = TrapFactory.createListener(null);
+		listener.listen(new Http2Test());
+		
+		// Only HTTP/2, so the test cannot pass on another transport
+		cfg = listener.getClientConfiguration() + "\ntrap.transport.websocket.enabled=false";
+	}
+	
+	@AfterClass
+	public static void tearDown() throws Exception
+	{
+		listener.close();
+	}
+	
+	@Test(timeout = 20000)
+	public void testExchange() throws Exception
+	{
+		Http2Test test = new Http2Test();
+		listener.setDelegate(test, true);
+		
+		Counter clientData = new Counter();
+		TrapClient c = this.open(cfg, clientData);
+		TrapEndpoint s = test.accept();
+		Counter serverData = new Counter();
+		s.setDelegate(serverData, true);
+		
+		Assert.assertTrue(cfg.contains("trap.transport.http2.h2uri = http://"));
+		Assert.assertTrue(s.getTransportAuthenticationContexts().containsKey("http2"));
+		
+		int messages = 1000;
+		
+		for (int i = 0; i < messages; i++)
+		{
+			c.send(ByteBuffer.allocate(4).putInt(i).array());
+			s.send(ByteBuffer.allocate(4).putInt(i).array());
+		}
+		
+		serverData.await(messages);
+		clientData.await(messages);
+		
+		Assert.assertFalse(serverData.outOfOrder);
+		Assert.assertFalse(clientData.outOfOrder);
+		
+		c.close();
+		s.close();
+	}
+	
+	@Test(timeout = 20000)
+	public void testMultiplex() throws Exception
+	{
+		Http2Test test = new Http2Test();
+		listener.setDelegate(test, true);
+		
+		TrapClient c1 = this.open(cfg, new Counter());
+		TrapEndpoint s1 = test.accept();
+		Counter data1 = new Counter();
+		s1.setDelegate(data1, true);
+		
+		Counter data2 = new Counter();
+		TrapClient c2 = this.open(cfg, data2);
+		TrapEndpoint s2 = test.accept();
+		s2.setDelegate(new Counter(), true);
+		
+		// Both sessions arrive from the same client port, i.e. over the same TCP connection
+		Object port1 = s1.getTransportAuthenticationContexts().get("http2").get(TrapContextKeys.RemotePort);
+		Object port2 = s2.getTransportAuthenticationContexts().get("http2").get(TrapContextKeys.RemotePort);
+		Assert.assertNotNull(port1);
+		Assert.assertEquals(port1, port2);
+		
+		// Closing one session leaves the other one working
+		c1.close();
+		while (s1.getState() != TrapState.CLOSED)
+			Thread.sleep(10);
+		
+		for (int i = 0; i < 100; i++)
+			s2.send(ByteBuffer.allocate(4).putInt(i).array());
+		
+		data2.await(100);
+		Assert.assertFalse(data2.outOfOrder);
+		Assert.assertEquals(0, data1.received.get());
+		
+		c2.close();
+	}
+	
+	@Test(timeout = 20000)
+	public void testSecure() throws Exception
+	{
+		Http2Test test = new Http2Test();
+		TrapListener secureListener = TrapFactory.createListener(null);
+		secureListener.setOption(TrapTransport.CERT_USE_INSECURE_TEST, "true");
+		secureListener.listen(test);
+		
+		String secureCfg = secureListener.getClientConfiguration() + "\ntrap.transport.websocket.enabled=false";
+		Assert.assertTrue(secureCfg.contains("trap.transport.http2.h2uri = https://"));
+		
+		Counter clientData = new Counter();
+		TrapClient c = TrapFactory.createClient(secureCfg, true);
+		c.setDelegate(clientData, true);
+		c.setOption(TrapTransport.CERT_IGNORE_INVALID, "true");
+		c.open();
+		
+		TrapEndpoint s = test.accept();
+		s.setDelegate(new Counter(), true);
+		
+		while (c.getState() != TrapState.OPEN)
+			Thread.sleep(10);
+		
+		for (int i = 0; i < 1000; i++)
+			s.send(ByteBuffer.allocate(4).putInt(i).array());
+		
+		clientData.await(1000);
+		Assert.assertFalse(clientData.outOfOrder);
+		
+		c.close();
+		secureListener.close();
+	}
+	
+	@Test(timeout = 20000)
+	public void testConcurrentConnect() throws Exception
+	{
+		// A listener of its own, so no connection to it exists yet
+		Http2Test test = new Http2Test();
+		TrapListener freshListener = TrapFactory.createListener(null);
+		freshListener.listen(test);
+		String freshCfg = freshListener.getClientConfiguration() + "\ntrap.transport.websocket.enabled=false";
+		
+		// Opened together, the sessions wait for the one connect rather than making their own
+		TrapClient[] clients = new TrapClient[4];
+		for (int i = 0; i < clients.length; i++)
+		{
+			clients[i] = TrapFactory.createClient(freshCfg, true);
+			clients[i].setDelegate(new Counter(), true);
+			clients[i].open();
+		}
+		
+		TrapEndpoint[] endpoints = new TrapEndpoint[clients.length];
+		for (int i = 0; i < endpoints.length; i++)
+		{
+			endpoints[i] = test.accept();
+			endpoints[i].setDelegate(new Counter(), true);
+		}
+		
+		for (TrapClient c : clients)
+			while (c.getState() != TrapState.OPEN)
+				Thread.sleep(10);
+				
+		Object port = null;
+		for (TrapEndpoint s : endpoints)
+		{
+			Object p = s.getTransportAuthenticationContexts().get("http2").get(TrapContextKeys.RemotePort);
+			Assert.assertNotNull(p);
+			
+			if (port == null)
+				port = p;
+			Assert.assertEquals(port, p);
+		}
+		
+		for (TrapClient c : clients)
+			c.close();
+		freshListener.close();
+	}
+	
+	@Test(timeout = 30000)
+	public void testBackpressure() throws Exception
+	{
+		Http2Test test = new Http2Test();
+		listener.setDelegate(test, true);
+		
+		Counter clientData = new Counter();
+		TrapClient c = this.open(cfg, clientData);
+		TrapEndpoint s = test.accept();
+		s.setDelegate(new Counter(), true);
+		
+		// Far more than the flow control window and the socket buffer take, so the stream runs out of credit
+		int messages = 2000;
+		
+		for (int i = 0; i < messages; i++)
+			s.send(ByteBuffer.allocate(16 * 1024).putInt(i).array());
+		
+		clientData.await(messages);
+		Assert.assertFalse(clientData.outOfOrder);
+		
+		c.close();
+	}
+	
+	@Test(timeout = 30000)
+	public void testPerformance() throws Exception
+	{
+		Http2Test test = new Http2Test();
+		listener.setDelegate(test, true);
+		
+		Counter clientData = new Counter();
+		TrapClient c = this.open(cfg, clientData);
+		TrapEndpoint s = test.accept();
+		s.setDelegate(new Counter(), true);
+		
+		byte[] bytes = "Helloes".getBytes();
+		int messages = 100000;
+		long start = System.currentTimeMillis();
+		
+		for (int i = 0; i < messages; i++)
+			s.send(bytes);
+		
+		clientData.await(messages);
+		long time = Math.max(1, System.currentTimeMillis() - start);
+		System.out.println("HTTP/2: " + messages + " messages in " + time + " ms (" + (messages * 1000L / time) + " msg/s)");
+		
+		c.close();
+	}
+	
+	TrapClient open(String config, OnData delegate) throws Exception
+	{
+		TrapClient c = TrapFactory.createClient(config, true);
+		c.setDelegate(delegate, true);
+		c.open();
+		
+		while (c.getState() != TrapState.OPEN)
+			Thread.sleep(10);
+		
+		return c;
+	}
+	
+	protected synchronized TrapEndpoint accept() throws InterruptedException
+	{
+		try
+		{
+			while (this.incomingEP == null)
+				this.wait();
+			
+			return this.incomingEP;
+		}
+		finally
+		{
+			this.incomingEP = null;
+			this.notifyAll();
+		}
+	}
+	
+	public synchronized void incomingTrapConnection(TrapEndpoint endpoint, TrapListener listener, Object context)
+	{
+		try
+		{
+			// Sessions may arrive together; hold each until the previous one is taken
+			while (this.incomingEP != null)
+				this.wait();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return;
+		}
+		
+		this.incomingEP = endpoint;
+		this.notifyAll();
+	}
+	
+	static class Counter implements OnData
+	{
+		AtomicInteger		received	= new AtomicInteger(0);
+		volatile boolean	outOfOrder	= false;
+		
+		public void trapData(byte[] data, int channel, TrapEndpoint endpoint, Object context)
+		{
+			int expected = this.received.getAndIncrement();
+			
+			if ((data.length >= 4) && (ByteBuffer.wrap(data).getInt() != expected))
+				this.outOfOrder = true;
+		}
+		
+		void await(int messages) throws InterruptedException
+		{
+			while (this.received.get() < messages)
+				Thread.sleep(10);
+		}
+	}
+}
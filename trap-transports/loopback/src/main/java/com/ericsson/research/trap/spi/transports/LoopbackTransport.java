@@ -246,6 +246,11 @@ public class LoopbackTransport extends AbstractTransport implements ListenerTrap
             this.logger.trace("Sending {}/{} on transport {} for {}.", new Object[] { message.getOp(), message.getMessageId(), this, this.delegate });
         
         this.internalSend(message, expectMore);
+        
+        // Loopback messages cannot be lost in transit, so they are sent as soon as they are handed over. Without this,
+        // the channel never gets its in-flight bytes back and stops sending once the window is full.
+        if (message.getMessageId() != 0)
+            this.delegate.ttMessageSent(message, this, this.delegateContext);
     }
     
     /*
@@ -293,6 +293,32 @@ public class AsynchronousTransportTest implements OnAccept, OnData
         Assert.assertFalse(this.c.isAlive(0, false, false, 0).get());
     }
     
+    @Test(timeout = 10000)
+    public void testChunking() throws Exception
+    {
+        this.messages = 1;
+        byte[] buf = new byte[32 * 1024 + 123];
+        for (int i = 0; i < buf.length; i++)
+            buf[i] = (byte) (i * (Math.random() + 1));
+        this.c.getChannel(1).setChunkSize(1024);
+        this.c.send(buf, 1, false);
+        byte[] data = this.receive();
+        Assert.assertArrayEquals(buf, data);
+    }
+    
+    @Test(timeout = 10000)
+    public void testCompressedChunking() throws Exception
+    {
+        this.messages = 1;
+        byte[] buf = new byte[32 * 1024 + 123];
+        for (int i = 0; i < buf.length; i++)
+            buf[i] = (byte) (i * (Math.random() + 1));
+        this.c.getChannel(1).setChunkSize(1024);
+        this.c.send(buf, 1, true);
+        byte[] data = this.receive();
+        Assert.assertArrayEquals(buf, data);
+    }
+    
     protected synchronized TrapEndpoint accept() throws InterruptedException
     {
         try
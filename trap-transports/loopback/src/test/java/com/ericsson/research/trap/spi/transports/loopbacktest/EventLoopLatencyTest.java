@@ -0,0 +1,212 @@
+package com.ericsson.research.trap.spi.transports.loopbacktest;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.ericsson.research.trap.TrapClient;
+import com.ericsson.research.trap.TrapEndpoint;
+import com.ericsson.research.trap.TrapException;
+import com.ericsson.research.trap.TrapFactory;
+import com.ericsson.research.trap.TrapListener;
+import com.ericsson.research.trap.TrapState;
+import com.ericsson.research.trap.delegates.OnAccept;
+import com.ericsson.research.trap.delegates.OnData;
+import com.ericsson.research.trap.utils.JDKLoggerConfig;
+
+/**
+ * Compares round trip latency with endpoints pinned to event loops against the default cached thread pool. Several
+ * connections ping-pong concurrently, each with one message in flight.
+ */
+public class EventLoopLatencyTest implements OnAccept, OnData
+{
+
+	static final int	CONNECTIONS	= 8;
+	static final int	WARMUP		= 2000;
+	static final int	ROUNDS		= 10000;
+
+	List<TrapEndpoint>	servers		= new CopyOnWriteArrayList<TrapEndpoint>();
+
+	@BeforeClass
+	public static void setLoggerLevel()
+	{
+		JDKLoggerConfig.initForPrefixes(Level.INFO);
+	}
+
+	@Test(timeout = 120000)
+	public void testRoundTripLatency() throws Exception
+	{
+		long[] pool = this.measure(false);
+		long[] loop = this.measure(true);
+
+		System.out.println("Round trip latency over " + CONNECTIONS + " connections (us)\tp50\tp90\tp99\tp99.9");
+		System.out.println("Cached thread pool\t\t\t\t\t" + this.percentiles(pool));
+		System.out.println("Event loop\t\t\t\t\t\t" + this.percentiles(loop));
+	}
+
+	private long[] measure(boolean eventLoop) throws Exception
+	{
+		String option = TrapEndpoint.OPTION_EVENT_LOOP + " = " + eventLoop + "\n";
+
+		TrapListener listener = TrapFactory.createListener(option);
+		listener.disableAllTransports();
+		listener.enableTransport("loopback");
+		listener.listen(this);
+
+		String cfg = listener.getClientConfiguration() + option;
+		CountDownLatch done = new CountDownLatch(CONNECTIONS);
+		Pinger[] pingers = new Pinger[CONNECTIONS];
+
+		for (int i = 0; i < CONNECTIONS; i++)
+		{
+			TrapClient c = TrapFactory.createClient(cfg, true);
+			c.disableAllTransports();
+			c.enableTransport("loopback");
+			pingers[i] = new Pinger(c, done);
+			c.setDelegate(pingers[i], true);
+			c.open();
+
+			while (c.getState() != TrapState.OPEN)
+				Thread.sleep(5);
+		}
+
+		for (int i = 0; i < CONNECTIONS; i++)
+			pingers[i].ping();
+
+		Assert.assertTrue(done.await(60, TimeUnit.SECONDS));
+
+		long[] samples = new long[CONNECTIONS * ROUNDS];
+		for (int i = 0; i < CONNECTIONS; i++)
+		{
+			System.arraycopy(pingers[i].samples, 0, samples, i * ROUNDS, ROUNDS);
+			pingers[i].client.close();
+		}
+
+		for (TrapEndpoint s : this.servers)
+			s.close();
+
+		this.servers.clear();
+		listener.close();
+		Arrays.sort(samples);
+		return samples;
+	}
+
+	private String percentiles(long[] sorted)
+	{
+		double[] p = { 0.5, 0.9, 0.99, 0.999 };
+		StringBuilder sb = new StringBuilder();
+
+		for (int i = 0; i < p.length; i++)
+			sb.append(TimeUnit.NANOSECONDS.toMicros(sorted[(int) (p[i] * (sorted.length - 1))])).append('\t');
+
+		return sb.toString();
+	}
+
+	public void incomingTrapConnection(TrapEndpoint endpoint, TrapListener listener, Object context)
+	{
+		// The listener only holds accepted endpoints weakly
+		this.servers.add(endpoint);
+		endpoint.setDelegate(this, true);
+	}
+
+	// Echo on the server side
+	public void trapData(byte[] data, int channel, TrapEndpoint endpoint, Object context)
+	{
+		try
+		{
+			endpoint.send(data);
+		}
+		catch (TrapException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	static class Pinger implements OnData
+	{
+		final TrapClient		client;
+		final CountDownLatch	done;
+		final long[]			samples	= new long[ROUNDS];
+		int						count	= 0;
+
+		Pinger(TrapClient client, CountDownLatch done)
+		{
+			this.client = client;
+			this.done = done;
+		}
+
+		void ping()
+		{
+			long now = System.nanoTime();
+			byte[] data = new byte[8];
+
+			for (int i = 0; i < 8; i++)
+				data[i] = (byte) (now >>> (56 - 8 * i));
+
+			try
+			{
+				this.client.send(data);
+			}
+			catch (TrapException e)
+			{
+				e.printStackTrace();
+			}
+		}
+
+		public void trapData(byte[] data, int channel, TrapEndpoint endpoint, Object context)
+		{
+			long sent = 0;
+
+			for (int i = 0; i < 8; i++)
+				sent = (sent << 8) | (data[i] & 0xFF);
+
+			if (this.count >= WARMUP)
+				this.samples[this.count - WARMUP] = System.nanoTime() - sent;
+
+			if (++this.count < WARMUP + ROUNDS)
+				this.ping();
+			else
+				this.done.countDown();
+		}
+	}
+}
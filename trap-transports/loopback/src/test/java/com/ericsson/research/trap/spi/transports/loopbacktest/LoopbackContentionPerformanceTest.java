@@ -0,0 +1,212 @@
+package com.ericsson.research.trap.spi.transports.loopbacktest;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import com.ericsson.research.trap.TrapClient;
+import com.ericsson.research.trap.TrapEndpoint;
+import com.ericsson.research.trap.TrapFactory;
+import com.ericsson.research.trap.TrapListener;
+import com.ericsson.research.trap.TrapObject;
+import com.ericsson.research.trap.TrapState;
+import com.ericsson.research.trap.delegates.OnAccept;
+import com.ericsson.research.trap.delegates.OnData;
+import com.ericsson.research.trap.spi.transports.AsynchronousLoopbackTransport;
+import com.ericsson.research.trap.utils.JDKLoggerConfig;
+import com.ericsson.research.trap.utils.ThreadPool;
+
+/**
+ * Measures send throughput when many application threads share a single endpoint, i.e. how well the send path scales
+ * under contention on the channel and endpoint locks.
+ */
+@RunWith(Parameterized.class)
+public class LoopbackContentionPerformanceTest implements OnAccept, OnData
+{
+	
+	static final int								MESSAGES	= 64000;
+	
+	TrapEndpoint									incomingEP;
+	static TrapListener								listener;
+	static TrapClient								c;
+	static TrapEndpoint								s;
+	private static LoopbackContentionPerformanceTest	instance;
+	
+	AtomicInteger									receivingCount	= new AtomicInteger(0);
+	
+	private final int								threads;
+	
+	public LoopbackContentionPerformanceTest(int threads)
+	{
+		this.threads = threads;
+	}
+	
+	@BeforeClass
+	public static void setUp() throws Throwable
+	{
+		
+		JDKLoggerConfig.initForPrefixes(Level.INFO);
+		
+		instance = new LoopbackContentionPerformanceTest(1);
+		
+		listener = TrapFactory.createListener(null);
+		listener.disableAllTransports();
+		listener.enableTransport(AsynchronousLoopbackTransport.name);
+		
+		listener.listen(instance);
+		
+		String cfg = listener.getClientConfiguration();
+		c = TrapFactory.createClient(cfg, true);
+		c.disableAllTransports();
+		c.enableTransport(AsynchronousLoopbackTransport.name);
+		c.setDelegate(instance, true);
+		c.setAsync(false);
+		c.open();
+		
+		s = instance.accept();
+		s.setAsync(false);
+		
+		while (c.getState() != TrapState.OPEN)
+			Thread.sleep(10);
+	}
+	
+	@Parameterized.Parameters
+	public static List<Object[]> data()
+	{
+		return Arrays.asList(new Object[][] { { 1 }, { 8 }, { 64 } });
+	}
+	
+	@Test(timeout = 120000)
+	public void testContendedSend() throws Exception
+	{
+		// Warm up once so the first parameter does not pay for JIT compilation.
+		this.performMessageTests();
+		
+		long start = System.nanoTime();
+		this.performMessageTests();
+		long elapsed = System.nanoTime() - start;
+		
+		System.out.println(this.threads + " sender thread(s): " + (MESSAGES * 1000000000L / Math.max(1, elapsed)) + " msg/s");
+	}
+	
+	public void performMessageTests() throws Exception
+	{
+		
+		final byte[] bytes = "Helloes".getBytes();
+		final int perThread = MESSAGES / this.threads;
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicInteger errors = new AtomicInteger(0);
+		
+		instance.receivingCount = new AtomicInteger(0);
+		
+		for (int i = 0; i < this.threads; i++)
+		{
+			ThreadPool.executeCached(new Runnable() {
+				
+				public void run()
+				{
+					try
+					{
+						start.await();
+						for (int k = 0; k < perThread; k++)
+							LoopbackContentionPerformanceTest.s.send(bytes);
+					}
+					catch (Throwable e)
+					{
+						errors.incrementAndGet();
+						e.printStackTrace();
+					}
+				}
+				
+			});
+		}
+		
+		start.countDown();
+		
+		while (instance.receivingCount.get() != perThread * this.threads && errors.get() == 0)
+			Thread.sleep(1);
+		
+		Assert.assertEquals(0, errors.get());
+	}
+	
+	protected synchronized TrapEndpoint accept() throws InterruptedException
+	{
+		try
+		{
+			while (this.incomingEP == null)
+				this.wait();
+			
+			return this.incomingEP;
+		}
+		finally
+		{
+			this.incomingEP = null;
+		}
+	}
+	
+	public synchronized void incomingTrapConnection(TrapEndpoint endpoint, TrapListener listener, Object context)
+	{
+		this.incomingEP = endpoint;
+		endpoint.setDelegate(this, true);
+		this.notify();
+	}
+	
+	public void trapData(byte[] data, int channel, TrapEndpoint endpoint, Object context)
+	{
+		instance.receivingCount.incrementAndGet();
+	}
+	
+	public void trapObject(TrapObject object, int channel, TrapEndpoint endpoint, Object context)
+	{
+	}
+	
+	public void trapStateChange(TrapState newState, TrapState oldState, TrapEndpoint endpoint, Object context)
+	{
+	}
+	
+	public void trapFailedSending(@SuppressWarnings("rawtypes") Collection datas, TrapEndpoint endpoint, Object context)
+	{
+	}
+}
@@ -47,11 +47,13 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.net.ssl.SSLContext;
 
+import com.ericsson.research.trap.TrapEndpoint;
 import com.ericsson.research.trap.TrapException;
 import com.ericsson.research.trap.auth.TrapContextKeys;
 import com.ericsson.research.trap.nio.Nio;
 import com.ericsson.research.trap.nio.Socket;
-import com.ericsson.research.trap.nio.Socket.SocketHandler;
+import com.ericsson.research.trap.nio.Socket.WritabilityHandler;
+import com.ericsson.research.trap.spi.TrapConstants;
 import com.ericsson.research.trap.spi.TrapMessage;
 import com.ericsson.research.trap.spi.TrapTransport;
 import com.ericsson.research.trap.spi.TrapTransportException;
@@ -60,7 +62,7 @@ import com.ericsson.research.trap.spi.TrapTransportProtocol;
 import com.ericsson.research.trap.spi.TrapTransportState;
 import com.ericsson.research.trap.utils.SSLUtil;
 
-public class SocketTransport extends AbstractTransport implements SocketHandler
+public class SocketTransport extends AbstractTransport implements WritabilityHandler
 {
 
 	private Socket	      socket;
@@ -167,10 +169,11 @@ public class SocketTransport extends AbstractTransport implements SocketHandler
 					sslc = SSLUtil.getInsecure();
 				else
 					sslc = SSLContext.getDefault();
-				this.socket = Nio.factory().sslClient(sslc);
+				SocketConstants.configureSessionCache(this, sslc);
+				this.socket = Nio.factory().sslClient(sslc, SocketConstants.getSocketOptions(this));
 			}
 			else
-				this.socket = Nio.factory().client();
+				this.socket = Nio.factory().client(SocketConstants.getSocketOptions(this));
 			// Set us for callbacks
 			this.socket.setHandler(this);
 			// Ask it to connect. We will get a callback later on.
@@ -213,12 +216,51 @@ public class SocketTransport extends AbstractTransport implements SocketHandler
 
 	boolean	                          queued	= false;
 
+	/*
+	 * Messages sent with expectMore are serialized back to back into this buffer, so that a batch of small messages
+	 * becomes a single socket write. The socket takes ownership of every buffer it is sent, so the batch buffer is kept
+	 * and reused as scratch space, and only the bytes actually batched are handed over. Guarded by the queue monitor.
+	 */
+	ByteBuffer	                      batch	    = null;
+	int	                              batchSize	= TrapConstants.BATCH_MAX_BYTES_DEFAULT;
+
+	@Override
+	protected void updateConfig()
+	{
+		super.updateConfig();
+		this.batchSize = this.getIntOption(TrapEndpoint.OPTION_BATCH_MAX_BYTES, this.batchSize);
+	}
+
 	public void internalSend(TrapMessage message, boolean expectMore) throws TrapTransportException
 	{
-		byte[] msg;
 		try
 		{
-			msg = message.serialize();
+			long length = message.length();
+
+			// The buffers of one message must not be interleaved with those of another
+			synchronized (queue)
+			{
+				if (expectMore && length <= this.batchSize)
+				{
+					if (this.batch != null && this.batch.remaining() < length)
+						this.sealBatch();
+
+					if (this.batch == null || this.batch.capacity() != this.batchSize)
+						this.batch = ByteBuffer.allocate(this.batchSize);
+
+					message.serializeTo(this.batch);
+				}
+				else
+				{
+					this.sealBatch();
+
+					// Header and payload are queued separately, so the payload is copied straight from the message into
+					// the socket buffers rather than into an intermediate array first.
+					ByteBuffer[] msg = message.serializeBuffers();
+					for (int i = 0; i < msg.length; i++)
+						queue.add(msg[i]);
+				}
+			}
 		}
 		catch (IOException e1)
 		{
@@ -226,13 +268,38 @@ public class SocketTransport extends AbstractTransport implements SocketHandler
 			throw new TrapTransportException(message, this.state);
 		}
 
-		queue.add(ByteBuffer.wrap(msg));
-
 		if (!expectMore)
 			_flush();
 
 	}
 
+	/*
+	 * Moves the current batch, if any, to the write queue. Caller must synchronize on queue.
+	 */
+	private void sealBatch()
+	{
+		if (this.batch == null || this.batch.position() == 0)
+			return;
+
+		this.batch.flip();
+
+		if (this.batch.remaining() > this.batch.capacity() / 2)
+		{
+			// Mostly full; hand the buffer itself over rather than copying it, and start a new one next time
+			queue.add(this.batch);
+			this.batch = null;
+		}
+		else
+		{
+			// Copy out just the batched bytes and keep the scratch buffer, so a short flush does not cost a full batch
+			ByteBuffer sealed = ByteBuffer.allocate(this.batch.remaining());
+			sealed.put(this.batch);
+			sealed.flip();
+			queue.add(sealed);
+			this.batch.clear();
+		}
+	}
+
 	/*
 	 * Called when the socket receives data. We'll just forward it. (We might
 	 * want to add a thread break here)
@@ -329,6 +396,11 @@ public class SocketTransport extends AbstractTransport implements SocketHandler
 	{
 		synchronized (socket)
 		{
+			synchronized (queue)
+			{
+				this.sealBatch();
+			}
+
 			for (;;)
 			{
 				ByteBuffer head = queue.peek();
@@ -356,6 +428,14 @@ public class SocketTransport extends AbstractTransport implements SocketHandler
 	@Override
 	public synchronized void received(ByteBuffer data, Socket sock)
 	{
+		// The decoder parses heap buffers in place. It is done with them once receive() returns.
+		if (data.hasArray())
+		{
+			receive(data.array(), data.arrayOffset() + data.position(), data.remaining());
+			data.position(data.limit());
+			return;
+		}
+
 		while (data.hasRemaining())
 		{
 			int loopData = Math.min(rcvBuf.length, data.remaining());
@@ -378,6 +458,22 @@ public class SocketTransport extends AbstractTransport implements SocketHandler
 		this.setState(TrapTransportState.DISCONNECTED);
 	}
 
+	/*
+	 * The socket stops accepting data when its write queue is full. Being unavailable meanwhile keeps the endpoint from
+	 * piling more messages onto this transport; they stay in the endpoint queue, or go to another transport.
+	 * Notifications may race each other, so the socket is asked for its current state.
+	 */
+	@Override
+	public synchronized void writabilityChanged(boolean writable, Socket sock)
+	{
+		writable = sock.isWritable();
+
+		if (!writable && this.getState() == TrapTransportState.AVAILABLE)
+			this.setState(TrapTransportState.UNAVAILABLE);
+		else if (writable && this.getState() == TrapTransportState.UNAVAILABLE)
+			this.setState(TrapTransportState.AVAILABLE);
+	}
+
 	@Override
 	public void error(Throwable e, Socket sock)
 	{
@@ -33,13 +33,106 @@ package com.ericsson.research.trap.spi.transports;
  * ##_END_LICENSE_##
  */
 
+import javax.net.ssl.SSLContext;
+
+import com.ericsson.research.trap.nio.SocketOptions;
+import com.ericsson.research.trap.utils.SSLUtil;
+
 public class SocketConstants
 {
     // Host (IP # to connect to)
-    public static final String CONFIG_HOST   = "host";
+    public static final String CONFIG_HOST        = "host";
     
     // Port to connect to
-    public static final String CONFIG_PORT   = "port";
+    public static final String CONFIG_PORT        = "port";
+    
+    public static final String CONFIG_SECURE      = "secure";
+    
+    // Disable Nagle's algorithm. Defaults to true; the endpoint already batches its writes.
+    public static final String CONFIG_NODELAY     = "nodelay";
+    
+    // Socket send and receive buffer sizes, in bytes
+    public static final String CONFIG_SNDBUF      = "sndbuf";
+    public static final String CONFIG_RCVBUF      = "rcvbuf";
+    
+    public static final String CONFIG_REUSEADDR   = "reuseaddr";
+    public static final String CONFIG_REUSEPORT   = "reuseport";
+    public static final String CONFIG_KEEPALIVE   = "keepalive";
+    
+    // Number of I/O completion threads, and whether they are a "fixed" or "cached" pool. Shared between all sockets
+    // with the same settings.
+    public static final String CONFIG_THREADS     = "threads";
+    public static final String CONFIG_THREADPOOL  = "threadpool";
+    
+    // Number of concurrent accept loops on the server socket
+    public static final String CONFIG_ACCEPTLOOPS = "acceptloops";
+    
+    // Bounds of the socket write queue, in bytes. The transport is unavailable while the queue is above the high
+    // watermark, until it drains to the low watermark.
+    public static final String CONFIG_WRITE_LOW   = "writelowwatermark";
+    public static final String CONFIG_WRITE_HIGH  = "writehighwatermark";
+    
+    // Comma separated TLS protocols, e.g. "TLSv1.2,TLSv1.3". TLSv1.3 resumes sessions with tickets.
+    public static final String CONFIG_SSL_PROTOCOLS = "sslprotocols";
+    
+    // Size of the TLS session cache (0 = unlimited), and how long sessions can be resumed, in seconds
+    public static final String CONFIG_SSL_SESSION_CACHE   = "sslsessioncache";
+    public static final String CONFIG_SSL_SESSION_TIMEOUT = "sslsessiontimeout";
+    
+    /**
+     * Reads the socket options out of a transport's configuration.
+     */
+    public static SocketOptions getSocketOptions(AbstractTransport transport)
+    {
+        SocketOptions options = new SocketOptions();
+        
+        String nodelay = transport.getOption(CONFIG_NODELAY);
+        options.setOption(SocketOptions.TCP_NODELAY, nodelay == null ? Boolean.TRUE : Boolean.valueOf(nodelay));
+        options.setOption(SocketOptions.SO_SNDBUF, transport.getOption(CONFIG_SNDBUF));
+        options.setOption(SocketOptions.SO_RCVBUF, transport.getOption(CONFIG_RCVBUF));
+        options.setOption(SocketOptions.SO_REUSEADDR, transport.getOption(CONFIG_REUSEADDR));
+        options.setOption(SocketOptions.SO_REUSEPORT, transport.getOption(CONFIG_REUSEPORT));
+        options.setOption(SocketOptions.SO_KEEPALIVE, transport.getOption(CONFIG_KEEPALIVE));
+        
+        options.setThreads(transport.getIntOption(CONFIG_THREADS, 0));
+        options.setAcceptLoops(transport.getIntOption(CONFIG_ACCEPTLOOPS, 1));
+        
+        try
+        {
+            options.setWriteWatermarks(transport.getIntOption(CONFIG_WRITE_LOW, options.getWriteLowWatermark()), transport.getIntOption(CONFIG_WRITE_HIGH, options.getWriteHighWatermark()));
+        }
+        catch (IllegalArgumentException e)
+        {
+            transport.logger.warn("Ignoring write watermarks: {}", e.getMessage());
+        }
+        
+        String protocols = transport.getOption(CONFIG_SSL_PROTOCOLS);
+        if (protocols != null && protocols.trim().length() > 0)
+            options.setSslProtocols(protocols.trim().split("\\s*,\\s*"));
+        
+        String pool = transport.getOption(CONFIG_THREADPOOL);
+        try
+        {
+            if (pool != null)
+                options.setThreadPool(pool.trim());
+        }
+        catch (IllegalArgumentException e)
+        {
+            transport.logger.warn("Ignoring {}: {}", CONFIG_THREADPOOL, e.getMessage());
+        }
+        
+        return options;
+    }
     
-    public static final String CONFIG_SECURE = "secure";
+    /**
+     * Applies the transport's session cache settings, if any, to a TLS context.
+     */
+    public static void configureSessionCache(AbstractTransport transport, SSLContext sslc)
+    {
+        int size = transport.getIntOption(CONFIG_SSL_SESSION_CACHE, -1);
+        int timeout = transport.getIntOption(CONFIG_SSL_SESSION_TIMEOUT, -1);
+        
+        if (size >= 0 || timeout >= 0)
+            SSLUtil.setSessionCache(sslc, size, timeout);
+    }
 }
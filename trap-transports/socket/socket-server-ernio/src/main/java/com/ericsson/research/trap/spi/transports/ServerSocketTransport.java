@@ -165,12 +165,13 @@ public class ServerSocketTransport extends AbstractListenerTransport implements
 
 			if (sslc == null)
 			{
-				ss = Nio.factory().server(this);
+				ss = Nio.factory().server(this, SocketConstants.getSocketOptions(this));
 			}
 			else
 			{
 
-				ss = Nio.factory().sslServer(sslc, this);
+				SocketConstants.configureSessionCache(this, sslc);
+				ss = Nio.factory().sslServer(sslc, this, SocketConstants.getSocketOptions(this));
 				this.secure = true;
 			}
 			// Listen on port 0
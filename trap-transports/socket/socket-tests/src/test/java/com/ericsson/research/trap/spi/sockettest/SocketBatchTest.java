@@ -0,0 +1,154 @@
+package com.ericsson.research.trap.spi.sockettest;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.ericsson.research.trap.TrapClient;
+import com.ericsson.research.trap.TrapEndpoint;
+import com.ericsson.research.trap.TrapFactory;
+import com.ericsson.research.trap.TrapListener;
+import com.ericsson.research.trap.TrapState;
+import com.ericsson.research.trap.delegates.OnAccept;
+import com.ericsson.research.trap.delegates.OnData;
+import com.ericsson.research.trap.utils.JDKLoggerConfig;
+
+/**
+ * Sends messages both smaller and larger than a deliberately tiny send batch, verifying that coalescing them into
+ * socket writes neither reorders nor corrupts them.
+ */
+public class SocketBatchTest implements OnAccept, OnData
+{
+    
+    TrapEndpoint                   incomingEP;
+    static TrapListener            listener;
+    static TrapClient              c;
+    static TrapEndpoint            s;
+    private static SocketBatchTest instance;
+    
+    LinkedBlockingQueue<byte[]>    received = new LinkedBlockingQueue<byte[]>();
+    
+    @BeforeClass
+    public static void setUp() throws Throwable
+    {
+        JDKLoggerConfig.initForPrefixes(Level.INFO);
+        
+        instance = new SocketBatchTest();
+        
+        listener = TrapFactory.createListener(null);
+        listener.listen(instance);
+        
+        String cfg = listener.getClientConfiguration();
+        c = TrapFactory.createClient(cfg, true);
+        c.setDelegate(instance, true);
+        c.setAsync(false);
+        c.open();
+        
+        s = instance.accept();
+        s.setOption(TrapEndpoint.OPTION_BATCH_MAX_BYTES, "200");
+        s.setOption(TrapEndpoint.OPTION_BATCH_MAX_COUNT, "7");
+        
+        while (c.getState() != TrapState.OPEN)
+            Thread.sleep(10);
+    }
+    
+    @Test(timeout = 30000)
+    public void testMixedSizes() throws Exception
+    {
+        int messages = 2000;
+        
+        for (int i = 0; i < messages; i++)
+            s.send(this.createPayload(i));
+        
+        for (int i = 0; i < messages; i++)
+        {
+            byte[] data = instance.received.poll(10, TimeUnit.SECONDS);
+            Assert.assertNotNull("Timed out waiting for message " + i, data);
+            Assert.assertArrayEquals(this.createPayload(i), data);
+        }
+    }
+    
+    private byte[] createPayload(int i)
+    {
+        // Sizes between 4 and 503 bytes, so both sides of the 200 byte batch limit are covered.
+        ByteBuffer buf = ByteBuffer.allocate(4 + ((i * 37) % 500));
+        buf.putInt(i);
+        while (buf.hasRemaining())
+            buf.put((byte) i);
+        return buf.array();
+    }
+    
+    protected synchronized TrapEndpoint accept() throws InterruptedException
+    {
+        try
+        {
+            while (this.incomingEP == null)
+                this.wait();
+            
+            return this.incomingEP;
+        }
+        finally
+        {
+            this.incomingEP = null;
+        }
+    }
+    
+    public synchronized void incomingTrapConnection(TrapEndpoint endpoint, TrapListener listener, Object context)
+    {
+        this.incomingEP = endpoint;
+        endpoint.setDelegate(this, true);
+        this.notify();
+    }
+    
+    public void trapData(byte[] data, int channel, TrapEndpoint endpoint, Object context)
+    {
+        this.received.add(data);
+    }
+    
+    public void trapStateChange(TrapState newState, TrapState oldState, TrapEndpoint endpoint, Object context)
+    {
+    }
+    
+    public void trapFailedSending(@SuppressWarnings("rawtypes") Collection datas, TrapEndpoint endpoint, Object context)
+    {
+    }
+}
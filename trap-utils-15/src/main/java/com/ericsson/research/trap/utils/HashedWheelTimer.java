@@ -0,0 +1,388 @@
+package com.ericsson.research.trap.utils;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Hashed timing wheel. Scheduling and cancelling are O(1) and never block: both go through lock-free queues that a
+ * single worker thread drains once per tick. The worker owns the wheel itself, moves each new timeout into the bucket
+ * for its tick and, when it reaches a bucket, hands every timeout that is due to the executor.
+ * <p>
+ * Timeouts are only as precise as the tick. A task never runs before its delay has passed, but it may run up to one
+ * tick (plus scheduling latency) later. When there is nothing scheduled, the worker sleeps until something is.
+ */
+public class HashedWheelTimer
+{
+    
+    private static final int                     MAX_TRANSFERS_PER_TICK = 100000;
+    
+    private final long                           tickNanos;
+    private final Bucket[]                       wheel;
+    private final int                            mask;
+    private final Executor                       executor;
+    private final long                           startTime              = System.nanoTime();
+    
+    final ConcurrentLinkedQueue<Timeout>         pending                = new ConcurrentLinkedQueue<Timeout>();
+    final ConcurrentLinkedQueue<Timeout>         cancelled              = new ConcurrentLinkedQueue<Timeout>();
+    
+    private final Object                         lock                   = new Object();
+    private volatile boolean                     idle                   = false;
+    private final Thread                         worker;
+    
+    // Owned by the worker thread
+    private long                                 tick                   = 0;
+    int                                          scheduled              = 0;
+    
+    /**
+     * Creates a new timer and starts its worker thread.
+     * 
+     * @param executor
+     *            The executor that will run expired tasks. Tasks should not run on the worker thread itself, so that a
+     *            slow task cannot delay the wheel.
+     * @param tickDuration
+     *            The duration of one tick, in milliseconds.
+     * @param ticksPerWheel
+     *            The number of buckets in the wheel. Rounded up to a power of two.
+     */
+    public HashedWheelTimer(Executor executor, long tickDuration, int ticksPerWheel)
+    {
+        if (tickDuration <= 0 || ticksPerWheel <= 0)
+            throw new IllegalArgumentException("Tick duration and wheel size must be positive");
+        
+        int size = Integer.highestOneBit(ticksPerWheel);
+        if (size < ticksPerWheel)
+            size <<= 1;
+        
+        this.executor = executor;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+        this.wheel = new Bucket[size];
+        this.mask = size - 1;
+        
+        for (int i = 0; i < size; i++)
+            this.wheel[i] = new Bucket();
+        
+        this.worker = new Thread(new Worker(), "trap-timer");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+    
+    /**
+     * Schedules a task to be run after (at least) the given delay.
+     * 
+     * @param task
+     *            The task to run.
+     * @param delay
+     *            The delay, in milliseconds.
+     * @return A {@link Future} that can be used to cancel the task.
+     */
+    public Future schedule(Runnable task, long delay)
+    {
+        if (delay < 0)
+            delay = 0;
+        
+        Timeout timeout = new Timeout(this, task, System.nanoTime() - this.startTime + TimeUnit.MILLISECONDS.toNanos(delay));
+        this.pending.add(timeout);
+        
+        if (this.idle)
+        {
+            synchronized (this.lock)
+            {
+                this.lock.notifyAll();
+            }
+        }
+        
+        return timeout;
+    }
+    
+    /**
+     * Stops the worker thread. Timeouts that have not expired yet will never run.
+     */
+    public void stop()
+    {
+        this.worker.interrupt();
+    }
+    
+    private void transferCancelled()
+    {
+        Timeout timeout;
+        while ((timeout = this.cancelled.poll()) != null)
+        {
+            // Timeouts cancelled before they reached the wheel are dropped by transferPending instead.
+            if (timeout.bucket != null)
+            {
+                timeout.bucket.remove(timeout);
+                this.scheduled--;
+            }
+        }
+    }
+    
+    private void transferPending()
+    {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++)
+        {
+            Timeout timeout = this.pending.poll();
+            
+            if (timeout == null)
+                break;
+            
+            if (timeout.state != Timeout.INIT)
+                continue;
+            
+            long calculated = timeout.deadline / this.tickNanos;
+            timeout.remainingRounds = (calculated - this.tick) / this.wheel.length;
+            
+            // Timeouts that are already due go in the current bucket rather than in one that has passed.
+            long ticks = Math.max(calculated, this.tick);
+            this.wheel[(int) (ticks & this.mask)].add(timeout);
+            this.scheduled++;
+        }
+    }
+    
+    private void expire(long deadline)
+    {
+        Bucket bucket = this.wheel[(int) (this.tick & this.mask)];
+        Timeout timeout = bucket.head;
+        
+        while (timeout != null)
+        {
+            Timeout next = timeout.next;
+            
+            if (timeout.remainingRounds <= 0)
+            {
+                bucket.remove(timeout);
+                this.scheduled--;
+                
+                if (timeout.deadline <= deadline)
+                    timeout.expire();
+                else
+                    this.pending.add(timeout); // Cannot happen unless the clock misbehaves; reschedule.
+            }
+            else
+            {
+                timeout.remainingRounds--;
+            }
+            
+            timeout = next;
+        }
+    }
+    
+    private void awaitPending() throws InterruptedException
+    {
+        synchronized (this.lock)
+        {
+            this.idle = true;
+            try
+            {
+                while (this.pending.isEmpty())
+                    this.lock.wait();
+            }
+            finally
+            {
+                this.idle = false;
+            }
+        }
+        
+        // The wheel is empty, so we can skip the ticks we slept through.
+        this.tick = Math.max(this.tick, (System.nanoTime() - this.startTime) / this.tickNanos);
+    }
+    
+    class Worker implements Runnable
+    {
+        public void run()
+        {
+            try
+            {
+                for (;;)
+                {
+                    long deadline = (HashedWheelTimer.this.tick + 1) * HashedWheelTimer.this.tickNanos;
+                    long now = System.nanoTime() - HashedWheelTimer.this.startTime;
+                    
+                    if (now < deadline)
+                    {
+                        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(deadline - now + 999999));
+                        continue;
+                    }
+                    
+                    HashedWheelTimer.this.transferCancelled();
+                    HashedWheelTimer.this.transferPending();
+                    HashedWheelTimer.this.expire(deadline);
+                    HashedWheelTimer.this.tick++;
+                    
+                    if (HashedWheelTimer.this.scheduled == 0 && HashedWheelTimer.this.pending.isEmpty())
+                    {
+                        HashedWheelTimer.this.cancelled.clear();
+                        HashedWheelTimer.this.awaitPending();
+                    }
+                }
+            }
+            catch (InterruptedException e)
+            {
+                // Stopped
+            }
+        }
+    }
+    
+    /**
+     * Doubly linked list of timeouts. Only touched by the worker thread.
+     */
+    static class Bucket
+    {
+        Timeout head;
+        Timeout tail;
+        
+        void add(Timeout timeout)
+        {
+            timeout.bucket = this;
+            timeout.prev = this.tail;
+            timeout.next = null;
+            
+            if (this.tail == null)
+                this.head = timeout;
+            else
+                this.tail.next = timeout;
+            
+            this.tail = timeout;
+        }
+        
+        void remove(Timeout timeout)
+        {
+            if (timeout.prev == null)
+                this.head = timeout.next;
+            else
+                timeout.prev.next = timeout.next;
+            
+            if (timeout.next == null)
+                this.tail = timeout.prev;
+            else
+                timeout.next.prev = timeout.prev;
+            
+            timeout.bucket = null;
+            timeout.prev = null;
+            timeout.next = null;
+        }
+    }
+    
+    static class Timeout implements Future, Runnable
+    {
+        static final int                                       INIT      = 0;
+        static final int                                       CANCELLED = 1;
+        static final int                                       EXPIRED   = 2;
+        
+        static final AtomicIntegerFieldUpdater<Timeout>        STATE     = AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+        
+        final HashedWheelTimer                                 timer;
+        final long                                             deadline;
+        volatile Runnable                                      task;
+        volatile int                                           state     = INIT;
+        volatile boolean                                       done      = false;
+        
+        // Owned by the worker thread
+        long                                                   remainingRounds;
+        Bucket                                                 bucket;
+        Timeout                                                prev;
+        Timeout                                                next;
+        
+        Timeout(HashedWheelTimer timer, Runnable task, long deadline)
+        {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+        
+        void expire()
+        {
+            if (!STATE.compareAndSet(this, INIT, EXPIRED))
+                return;
+            
+            try
+            {
+                this.timer.executor.execute(this);
+            }
+            catch (RejectedExecutionException e)
+            {
+                // The executor is shutting down.
+            }
+        }
+        
+        public void run()
+        {
+            Runnable t = this.task;
+            this.task = null;
+            
+            try
+            {
+                if (t != null)
+                    t.run();
+            }
+            finally
+            {
+                this.done = true;
+            }
+        }
+        
+        public boolean cancel()
+        {
+            return this.cancel(false);
+        }
+        
+        /**
+         * Cancels the timeout if it has not expired yet. A task that has already been handed to the executor is never
+         * interrupted, whatever the value of <i>mayInterruptIfRunning</i>.
+         */
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            if (!STATE.compareAndSet(this, INIT, CANCELLED))
+                return false;
+            
+            this.task = null;
+            this.timer.cancelled.add(this);
+            return true;
+        }
+        
+        public boolean isCancelled()
+        {
+            return this.state == CANCELLED;
+        }
+        
+        public boolean isDone()
+        {
+            return this.done;
+        }
+    }
+}
@@ -33,10 +33,8 @@ package com.ericsson.research.trap.utils;
  * ##_END_LICENSE_##
  */
 
-import java.util.concurrent.DelayQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -52,12 +50,15 @@ public class ThreadPoolImpl extends ThreadPool
     
     protected int                         SCHEDULED_THREADS      = 10;
     
+    protected int                         TIMER_TICK             = 5;
+    protected int                         TIMER_WHEEL_SIZE       = 512;
+    
     protected ThreadPoolExecutor          cachedPool             = new ThreadPoolExecutor(this.CACHED_THREADS_MIN, this.CACHED_THREADS_MAX, this.CACHED_THREADS_TIMEOUT, TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>());
     protected ThreadPoolExecutor          fixedPool              = new ThreadPoolExecutor(this.FIXED_THREADS, this.FIXED_THREADS, Long.MAX_VALUE, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
-    protected ScheduledThreadPoolExecutor scheduledPool          = new ScheduledThreadPoolExecutor(this.SCHEDULED_THREADS);
+    protected ThreadPoolExecutor          scheduledPool          = new ThreadPoolExecutor(this.SCHEDULED_THREADS, this.SCHEDULED_THREADS, Long.MAX_VALUE, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
     
-    protected DelayQueue<WeakDelay>       weakFutureTasks        = new DelayQueue<WeakDelay>();
-    protected Runnable                    weakFutureExecutor     = null;
+    // Keeps track of delayed tasks; expired tasks run in the scheduled pool.
+    protected HashedWheelTimer            timer                  = new HashedWheelTimer(this.scheduledPool, this.TIMER_TICK, this.TIMER_WHEEL_SIZE);
     
     static ThreadPoolImpl                 lastInstance           = null;
     
@@ -87,7 +88,7 @@ public class ThreadPoolImpl extends ThreadPool
     @Override
     protected Future performSchedule(Runnable task, long delay)
     {
-        return new FutureImpl(this.scheduledPool.schedule(task, delay, TimeUnit.MILLISECONDS));
+        return this.timer.schedule(task, delay);
     }
     
     @Override
@@ -222,6 +223,7 @@ public class ThreadPoolImpl extends ThreadPool
     {
         System.out.println("Final...");
         super.finalize();
+        this.timer.stop();
         this.cachedPool.shutdownNow();
         this.fixedPool.shutdownNow();
         this.scheduledPool.shutdownNow();
@@ -232,44 +234,9 @@ public class ThreadPoolImpl extends ThreadPool
     protected Future performWeakExecuteAfter(Runnable task, long delay)
     {
         RunnableFuture future = new RunnableFuture(task);
-        WeakDelay delayed = new WeakDelay(future, delay);
-        
-        this.weakFutureTasks.add(delayed);
-        synchronized (this)
-        {
-            
-            if (this.weakFutureExecutor == null)
-            {
-                this.weakFutureExecutor = new Runnable() {
-                    
-                    public void run()
-                    {
-                        try
-                        {
-                            while (!ThreadPoolImpl.this.weakFutureTasks.isEmpty())
-                            {
-                                WeakDelay delayed = ThreadPoolImpl.this.weakFutureTasks.poll(1, TimeUnit.HOURS);
-                                executeFixed(delayed);
-                            }
-                        }
-                        catch (InterruptedException e)
-                        {
-                            e.printStackTrace();
-                        }
-                        finally
-                        {
-                            synchronized (ThreadPoolImpl.this)
-                            {
-                                ThreadPoolImpl.this.weakFutureExecutor = null;
-                            }
-                        }
-                    }
-                };
-                this.performExecuteCached(this.weakFutureExecutor);
-            }
-            
-        }
         
+        // The wheel only holds the WeakDelay; the caller holds the future.
+        this.timer.schedule(new WeakDelay(future), delay);
         return future;
     }
     
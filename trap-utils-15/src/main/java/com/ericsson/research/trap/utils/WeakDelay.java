@@ -34,45 +34,19 @@ package com.ericsson.research.trap.utils;
  */
 
 import java.lang.ref.WeakReference;
-import java.util.concurrent.Delayed;
-import java.util.concurrent.TimeUnit;
 
-public class WeakDelay implements Delayed, Runnable
+/**
+ * Runnable that only weakly references the task it runs. If the task has been garbage collected by the time this
+ * runs, nothing happens.
+ */
+public class WeakDelay implements Runnable
 {
     
-    private final long                          expiry;
     private final WeakReference<RunnableFuture> task;
     
-    public WeakDelay(RunnableFuture task, long delay)
+    public WeakDelay(RunnableFuture task)
     {
         this.task = new WeakReference<RunnableFuture>(task);
-        this.expiry = System.currentTimeMillis() + delay;
-    }
-    
-    public int compareTo(Delayed other)
-    {
-        return (int) (this.getDelay(TimeUnit.MILLISECONDS) - other.getDelay(TimeUnit.MILLISECONDS));
-    }
-    
-    public boolean equals(Object obj)
-    {
-        if (obj instanceof WeakDelay)
-            return this.compareTo((Delayed) obj) == 0 && ((WeakDelay) obj).task.equals(this.task);
-        
-        return super.equals(obj);
-    }
-    
-    // WeakDelay is not hashCode() compliant.
-    public int hashCode()
-    {
-        assert false : "hashCode not designed";
-        return 42; // any arbitrary constant will do
-    }
-    
-    public long getDelay(TimeUnit unit)
-    {
-        long remaining = this.expiry - System.currentTimeMillis();
-        return unit.convert(remaining, TimeUnit.MILLISECONDS);
     }
     
     public void run()
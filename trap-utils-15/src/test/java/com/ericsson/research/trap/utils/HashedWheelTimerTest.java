@@ -0,0 +1,192 @@
+package com.ericsson.research.trap.utils;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HashedWheelTimerTest
+{
+    
+    private HashedWheelTimer timer;
+    
+    @Before
+    public void setUp()
+    {
+        // A small wheel, so that longer delays need several rounds
+        this.timer = new HashedWheelTimer(new Executor() {
+            
+            public void execute(Runnable command)
+            {
+                command.run();
+            }
+        }, 5, 8);
+    }
+    
+    @After
+    public void tearDown()
+    {
+        this.timer.stop();
+    }
+    
+    @Test(timeout = 10000)
+    public void testDelayIsLowerBound() throws Exception
+    {
+        long[] delays = { 0, 1, 6, 39, 40, 41, 250 };
+        final CountDownLatch latch = new CountDownLatch(delays.length);
+        final AtomicInteger early = new AtomicInteger();
+        
+        for (final long delay : delays)
+        {
+            final long start = System.nanoTime();
+            this.timer.schedule(new Runnable() {
+                
+                public void run()
+                {
+                    if (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < delay)
+                        early.incrementAndGet();
+                    latch.countDown();
+                }
+            }, delay);
+        }
+        
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(0, early.get());
+    }
+    
+    @Test(timeout = 10000)
+    public void testCancel() throws Exception
+    {
+        final AtomicInteger runs = new AtomicInteger();
+        Runnable r = new Runnable() {
+            
+            public void run()
+            {
+                runs.incrementAndGet();
+            }
+        };
+        
+        Future[] futures = new Future[1000];
+        for (int i = 0; i < futures.length; i++)
+            futures[i] = this.timer.schedule(r, 20 + i % 100);
+        
+        for (int i = 0; i < futures.length; i += 2)
+            Assert.assertTrue(futures[i].cancel());
+        
+        Thread.sleep(500);
+        
+        Assert.assertEquals(futures.length / 2, runs.get());
+        Assert.assertEquals(0, this.timer.scheduled);
+        
+        for (int i = 0; i < futures.length; i++)
+        {
+            Assert.assertEquals(i % 2 == 0, futures[i].isCancelled());
+            Assert.assertEquals(i % 2 == 1, futures[i].isDone());
+            Assert.assertFalse(futures[i].cancel());
+        }
+    }
+    
+    @Test(timeout = 10000)
+    public void testIdleRestart() throws Exception
+    {
+        for (int i = 0; i < 3; i++)
+        {
+            final CountDownLatch latch = new CountDownLatch(1);
+            this.timer.schedule(new Runnable() {
+                
+                public void run()
+                {
+                    latch.countDown();
+                }
+            }, 10);
+            Assert.assertTrue(latch.await(1, TimeUnit.SECONDS));
+            
+            // Let the worker go idle
+            Thread.sleep(100);
+        }
+    }
+    
+    @Test(timeout = 30000)
+    public void testManyTimeouts() throws Exception
+    {
+        int count = 200000;
+        final CountDownLatch latch = new CountDownLatch(count / 2);
+        Runnable r = new Runnable() {
+            
+            public void run()
+            {
+                latch.countDown();
+            }
+        };
+        
+        // Like keepalives, most timeouts are cancelled and replaced before they expire.
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++)
+        {
+            Future f = this.timer.schedule(r, 50 + i % 500);
+            if (i % 2 == 0)
+                f.cancel();
+        }
+        long time = System.nanoTime() - start;
+        System.out.println("Scheduled and cancelled " + count + " timeouts in " + TimeUnit.NANOSECONDS.toMillis(time) + " ms (" + (time / count) + " ns/timeout)");
+        
+        Assert.assertTrue(latch.await(20, TimeUnit.SECONDS));
+    }
+    
+    @Test(timeout = 10000)
+    public void testWeakExecuteAfter() throws Exception
+    {
+        ThreadPoolImpl tp = new ThreadPoolImpl();
+        final CountDownLatch latch = new CountDownLatch(1);
+        
+        Future f = tp.performWeakExecuteAfter(new Runnable() {
+            
+            public void run()
+            {
+                latch.countDown();
+            }
+        }, 20);
+        
+        Assert.assertTrue(latch.await(1, TimeUnit.SECONDS));
+        Assert.assertTrue(f.isDone());
+    }
+}
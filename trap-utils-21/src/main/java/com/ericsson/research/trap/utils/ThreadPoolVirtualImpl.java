@@ -0,0 +1,72 @@
+package com.ericsson.research.trap.utils;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ThreadPool implementation that runs cached and fixed tasks on virtual threads. Cached tasks get one virtual thread
+ * each, so blocking tasks (such as long-poll handlers) no longer consume a platform thread and are not limited by
+ * {@link #CACHED_THREADS_MAX}. Fixed tasks keep their bounded concurrency, but the workers are virtual. Scheduling is
+ * inherited from {@link ThreadPoolImpl}.
+ * <p>
+ * {@link ThreadPool} picks this class automatically when it is on the classpath and the JVM supports it (JDK 21+). Set
+ * the system property {@value ThreadPool#PROPERTY_VIRTUAL} to <i>false</i> to use {@link ThreadPoolImpl} instead.
+ */
+public class ThreadPoolVirtualImpl extends ThreadPoolImpl
+{
+    
+    protected ExecutorService virtualPool = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("trap-cached-", 0).factory());
+    
+    public ThreadPoolVirtualImpl()
+    {
+        super();
+        
+        // Replace the platform fixed pool, which the superclass has already started.
+        this.fixedPool.shutdown();
+        this.fixedPool = new ThreadPoolExecutor(this.FIXED_THREADS, this.FIXED_THREADS, Long.MAX_VALUE, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), Thread.ofVirtual().name("trap-fixed-", 0).factory());
+    }
+    
+    @Override
+    protected void performExecuteCached(Runnable task)
+    {
+        // There is no thread limit to run into, so none of the superclass' rejection handling applies.
+        this.virtualPool.submit(task);
+    }
+    
+}
@@ -0,0 +1,166 @@
+package com.ericsson.research.trap.utils;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.InputStreamReader;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Compares the resident set size of a JVM holding a number of simulated connections, each parked in a blocking
+ * handler on the cached pool (as a long-poll would be). Every measurement runs in a fresh JVM so that the pools do not
+ * share memory. Linux only, as the RSS is read from /proc.
+ */
+public class ThreadPoolPerformanceTest
+{
+
+	static final int[]	CONNECTIONS	= { 500, 1000, 2000, 10000, 50000 };
+
+	@Test(timeout = 300000)
+	public void testConnectionsVersusRSS() throws Exception
+	{
+		Assume.assumeTrue(new File("/proc/self/status").exists());
+
+		long baseline = this.measure(ThreadPoolVirtualImpl.class, 0);
+		System.out.println("Idle JVM: " + baseline + " kB RSS");
+		System.out.println("Connections\tPlatform (kB)\tVirtual (kB)");
+
+		long platformLast = 0;
+		long virtualLast = 0;
+
+		for (int connections : CONNECTIONS)
+		{
+			// The platform pool cannot hold more blocked tasks than its thread limit
+			String platform = "-";
+			if (connections <= new ThreadPoolImpl().CACHED_THREADS_MAX)
+			{
+				platformLast = this.measure(ThreadPoolImpl.class, connections);
+				virtualLast = this.measure(ThreadPoolVirtualImpl.class, connections);
+				platform = Long.toString(platformLast);
+				System.out.println(connections + "\t\t" + platform + "\t\t" + virtualLast);
+			}
+			else
+			{
+				System.out.println(connections + "\t\t" + platform + "\t\t" + this.measure(ThreadPoolVirtualImpl.class, connections));
+			}
+		}
+
+		Assert.assertTrue(virtualLast < platformLast);
+	}
+
+	private long measure(Class<? extends ThreadPool> impl, int connections) throws Exception
+	{
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		ProcessBuilder pb = new ProcessBuilder(java, "-Xmx256m", "-cp", System.getProperty("java.class.path"), ThreadPoolPerformanceTest.class.getName(), impl.getName(), Integer.toString(connections));
+		pb.redirectErrorStream(true);
+		Process p = pb.start();
+
+		BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream()));
+		String line;
+		long rss = -1;
+
+		while ((line = r.readLine()) != null)
+		{
+			if (line.startsWith("RSS "))
+				rss = Long.parseLong(line.substring(4));
+			else
+				System.out.println(line);
+		}
+
+		Assert.assertEquals(0, p.waitFor());
+		Assert.assertTrue(rss > 0);
+		return rss;
+	}
+
+	/**
+	 * Child process entry point. Parks the requested number of tasks on the given implementation and prints the RSS
+	 * once they are all running.
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		ThreadPoolImpl tp = (ThreadPoolImpl) Class.forName(args[0]).getDeclaredConstructor().newInstance();
+		int connections = Integer.parseInt(args[1]);
+		final CountDownLatch started = new CountDownLatch(connections);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		for (int i = 0; i < connections; i++)
+		{
+			tp.performExecuteCached(new Runnable() {
+
+				public void run()
+				{
+					started.countDown();
+					try
+					{
+						release.await();
+					}
+					catch (InterruptedException e)
+					{
+					}
+				}
+			});
+		}
+
+		if (!started.await(60, TimeUnit.SECONDS))
+			System.exit(1);
+
+		System.gc();
+		Thread.sleep(500);
+
+		BufferedReader r = new BufferedReader(new FileReader("/proc/self/status"));
+		try
+		{
+			String line;
+			while ((line = r.readLine()) != null)
+			{
+				if (line.startsWith("VmRSS:"))
+					System.out.println("RSS " + line.substring(6).trim().split("\\s+")[0]);
+			}
+		}
+		finally
+		{
+			r.close();
+		}
+
+		release.countDown();
+		System.exit(0);
+	}
+}
@@ -0,0 +1,135 @@
+package com.ericsson.research.trap.utils;
+
+/*
+ * ##_BEGIN_LICENSE_##
+ * Transport Abstraction Package (trap)
+ * ----------
+ * Copyright (C) 2014 Ericsson AB
+ * ----------
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Ericsson AB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ##_END_LICENSE_##
+ */
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ThreadPoolVirtualImplTest
+{
+
+	@Test
+	public void testSelectedAutomatically() throws Exception
+	{
+		final Thread[] executor = new Thread[1];
+		final CountDownLatch latch = new CountDownLatch(1);
+
+		ThreadPool.executeCached(new Runnable() {
+
+			public void run()
+			{
+				executor[0] = Thread.currentThread();
+				latch.countDown();
+			}
+		});
+
+		Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+		Assert.assertTrue(executor[0].isVirtual());
+	}
+
+	@Test(timeout = 30000)
+	public void testManyBlockedCachedTasks() throws Exception
+	{
+		// Well beyond CACHED_THREADS_MAX, which would make the platform pool run tasks in the calling thread.
+		final int tasks = 20000;
+		ThreadPoolVirtualImpl tp = new ThreadPoolVirtualImpl();
+		final CountDownLatch started = new CountDownLatch(tasks);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		for (int i = 0; i < tasks; i++)
+		{
+			tp.performExecuteCached(new Runnable() {
+
+				public void run()
+				{
+					started.countDown();
+					try
+					{
+						release.await();
+					}
+					catch (InterruptedException e)
+					{
+					}
+				}
+			});
+		}
+
+		Assert.assertTrue(started.await(20, TimeUnit.SECONDS));
+		release.countDown();
+	}
+
+	@Test(timeout = 10000)
+	public void testFixedIsBounded() throws Exception
+	{
+		ThreadPoolVirtualImpl tp = new ThreadPoolVirtualImpl();
+		final int tasks = tp.FIXED_THREADS * 4;
+		final CountDownLatch done = new CountDownLatch(tasks);
+		final Object lock = new Object();
+		final int[] running = new int[2];
+
+		for (int i = 0; i < tasks; i++)
+		{
+			tp.performExecuteFixed(new Runnable() {
+
+				public void run()
+				{
+					synchronized (lock)
+					{
+						running[0]++;
+						running[1] = Math.max(running[0], running[1]);
+					}
+					try
+					{
+						Thread.sleep(10);
+					}
+					catch (InterruptedException e)
+					{
+					}
+					synchronized (lock)
+					{
+						running[0]--;
+					}
+					Assert.assertTrue(Thread.currentThread().isVirtual());
+					done.countDown();
+				}
+			});
+		}
+
+		Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+		Assert.assertTrue(running[1] <= tp.FIXED_THREADS);
+	}
+}
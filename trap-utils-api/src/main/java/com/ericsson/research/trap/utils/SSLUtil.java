@@ -39,6 +39,7 @@ import java.util.Map;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
@@ -184,8 +185,46 @@ public class SSLUtil
         trustManagerFactories.remove(trustStore);
     }
     
-    public static SSLContext getInsecure() throws NoSuchAlgorithmException, KeyManagementException
+    /**
+     * Sizes the TLS session caches of a context. Cached sessions let returning clients resume with an abbreviated
+     * handshake, without the key exchange.
+     * 
+     * @param sslc
+     *            The context to configure. Both its client and server caches are set.
+     * @param size
+     *            The maximum number of cached sessions, or 0 for no limit. Negative values keep the current size.
+     * @param timeout
+     *            How long sessions may be resumed, in seconds, or 0 for no limit. Negative values keep the current
+     *            timeout.
+     */
+    public static void setSessionCache(SSLContext sslc, int size, int timeout)
     {
+        SSLSessionContext[] contexts = { sslc.getClientSessionContext(), sslc.getServerSessionContext() };
+        
+        for (SSLSessionContext context : contexts)
+        {
+            if (context == null)
+                continue;
+            
+            if (size >= 0)
+                context.setSessionCacheSize(size);
+            
+            if (timeout >= 0)
+                context.setSessionTimeout(timeout);
+        }
+    }
+    
+    private static SSLContext insecure = null;
+    
+    /**
+     * Returns a context that trusts any certificate. The context is shared, so that sessions can be resumed across
+     * connections.
+     */
+    public static synchronized SSLContext getInsecure() throws NoSuchAlgorithmException, KeyManagementException
+    {
+        if (insecure != null)
+            return insecure;
+        
         SSLContext sslc = SSLContext.getInstance("TLS");
         sslc.init(null, new TrustManager[] { new X509TrustManager() {
             
@@ -208,6 +247,7 @@ public class SSLUtil
             }
             
         } }, null);
+        insecure = sslc;
         return sslc;
     }
 }
@@ -44,16 +44,37 @@ public abstract class ThreadPool
 {
 	private static ThreadPool	instance;
 
+	/**
+	 * System property that, when set to <i>false</i>, prevents the virtual
+	 * thread implementation from being selected even if it is available.
+	 */
+	public static final String	PROPERTY_VIRTUAL	= "trap.threadpool.virtual";
+
 	static
+	{
+		// The virtual thread implementation is compiled for JDK 21. On older
+		// JVMs (or when it is not on the classpath) loading it fails, and we
+		// fall back to the regular implementation.
+		if (!"false".equals(System.getProperty(PROPERTY_VIRTUAL)))
+			instance = load(ThreadPool.class.getName() + "VirtualImpl");
+
+		if (instance == null)
+			instance = load(ThreadPool.class.getName() + "Impl");
+
+		if (instance == null)
+			System.err.println("Could not initialise ThreadPool Impl");
+	}
+
+	private static ThreadPool load(String className)
 	{
 		try
 		{
-			Class<?> c = Class.forName(ThreadPool.class.getName() + "Impl");
-			instance = (ThreadPool) c.newInstance();
+			Class<?> c = Class.forName(className);
+			return (ThreadPool) c.newInstance();
 		}
 		catch (Throwable t)
 		{
-			System.err.println("Could not initialise ThreadPool Impl");
+			return null;
 		}
 	}
 